@@ -1,5 +1,7 @@
 package org.maochen.nlp.ml;
 
+import org.apache.commons.lang3.NotImplementedException;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
@@ -9,11 +11,78 @@ import java.util.Properties;
 public interface IClassifier {
     IClassifier train(List<Tuple> trainingData);
 
+    /**
+     * Train from the shared CSR matrix, the same matrix can be reused by several classifiers. Classifiers without a
+     * matrix based path fall back to the tuples.
+     */
+    default IClassifier train(TrainingMatrix trainingData) {
+        return train(trainingData.toTuples());
+    }
+
     Map<String, Double> predict(Tuple predict);
 
+    /**
+     * @return labels of the model, the array index is the label index used by predictInto and predictArgmax.
+     */
+    default String[] getLabels() {
+        throw new NotImplementedException("Label index is not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * Same scores as predict, written by label index instead of boxed into a map.
+     *
+     * @param scores output, at least getLabels().length long.
+     */
+    default void predictInto(Tuple predict, double[] scores) {
+        String[] labels = getLabels();
+        Map<String, Double> result = predict(predict);
+        for (int i = 0; i < labels.length; i++) {
+            scores[i] = result.getOrDefault(labels[i], 0D);
+        }
+    }
+
+    /**
+     * @return label index with the highest score.
+     */
+    default int predictArgmax(Tuple predict) {
+        double[] scores = new double[getLabels().length];
+        predictInto(predict, scores);
+
+        int max = 0;
+        for (int i = 1; i < scores.length; i++) {
+            if (scores[i] > scores[max]) {
+                max = i;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @param out out[i] gets the scores of predicts[i], see predictInto.
+     */
+    default void predictBatch(List<Tuple> predicts, double[][] out) {
+        for (int i = 0; i < predicts.size(); i++) {
+            predictInto(predicts.get(i), out[i]);
+        }
+    }
+
     void setParameter(Properties props);
 
     void persistModel(String modelFile) throws IOException;
 
     void loadModel(InputStream modelFile);
+
+    /**
+     * Versioned binary model with little-endian parameter blocks, see ModelContainer.
+     */
+    default void persistBinaryModel(String modelFile) throws IOException {
+        throw new NotImplementedException("Binary model is not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * The parameters are memory-mapped read-only from the file instead of parsed.
+     */
+    default void loadBinaryModel(String modelFile) throws IOException {
+        throw new NotImplementedException("Binary model is not supported by " + getClass().getSimpleName());
+    }
 }
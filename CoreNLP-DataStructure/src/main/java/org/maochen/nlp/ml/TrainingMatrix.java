@@ -0,0 +1,424 @@
+package org.maochen.nlp.ml;
+
+import org.maochen.nlp.ml.vector.FeatDictionary;
+import org.maochen.nlp.ml.vector.FeatIdVector;
+import org.maochen.nlp.ml.vector.FeatNamedVector;
+import org.maochen.nlp.ml.vector.IVector;
+import org.maochen.nlp.ml.vector.IntDoubleConsumer;
+import org.maochen.nlp.ml.vector.SparseVector;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Training data in compressed sparse row format, built once and shared by the classifiers. Row i has the non-zero
+ * columns colIdx[rowPtr[i], rowPtr[i+1]) in ascending order, with the corresponding values.
+ *
+ * Labels are stored as indices into the sorted label names, same order as LabelIndexer. Columns are either the
+ * vector dimensions, or feature ids of getFeatDictionary() when the data is built from named vectors.
+ */
+public class TrainingMatrix {
+
+    private final String[] labelNames;
+    private final int[] labels;
+
+    private final int numCols;
+    private final int[] rowPtr;
+    private final int[] colIdx;
+    private final double[] values;
+
+    private final FeatDictionary featDictionary;
+
+    public int getNumRows() {
+        return labels.length;
+    }
+
+    public int getNumCols() {
+        return numCols;
+    }
+
+    /**
+     * @return total number of stored entries.
+     */
+    public int getNnz() {
+        return rowPtr[labels.length];
+    }
+
+    /**
+     * @return sorted distinct labels.
+     */
+    public String[] getLabelNames() {
+        return labelNames;
+    }
+
+    /**
+     * @return label index of the row, index into getLabelNames().
+     */
+    public int getLabel(int row) {
+        return labels[row];
+    }
+
+    public String getLabelName(int row) {
+        return labelNames[labels[row]];
+    }
+
+    /**
+     * @return column names when built from named vectors, otherwise null.
+     */
+    public FeatDictionary getFeatDictionary() {
+        return featDictionary;
+    }
+
+    /**
+     * @return name of the column, the index itself if there is no dictionary.
+     */
+    public String getColName(int col) {
+        return featDictionary == null ? String.valueOf(col) : featDictionary.getName(col);
+    }
+
+    /**
+     * The CSR arrays are exposed for tight loops, don't modify them.
+     */
+    public int[] getRowPtr() {
+        return rowPtr;
+    }
+
+    public int[] getColIdx() {
+        return colIdx;
+    }
+
+    public double[] getValues() {
+        return values;
+    }
+
+    /**
+     * @return read only view of the row, no copy.
+     */
+    public IVector row(int row) {
+        return new RowVector(row);
+    }
+
+    /**
+     * Materialize the rows as tuples, for classifiers without a matrix based training path.
+     */
+    public List<Tuple> toTuples() {
+        List<Tuple> tuples = new ArrayList<>(labels.length);
+        for (int i = 0; i < labels.length; i++) {
+            int[] cols = Arrays.copyOfRange(colIdx, rowPtr[i], rowPtr[i + 1]);
+            double[] vals = Arrays.copyOfRange(values, rowPtr[i], rowPtr[i + 1]);
+            IVector vector = featDictionary == null ? new SparseVector(numCols, cols, vals) : new FeatIdVector(featDictionary, cols, vals);
+            tuples.add(new Tuple(i, vector, labelNames[labels[i]]));
+        }
+        return tuples;
+    }
+
+    private class RowVector implements IVector {
+        private final int start;
+        private final int end;
+
+        @Override
+        public void setVector(double[] val) {
+            throw new UnsupportedOperationException("TrainingMatrix row is read only.");
+        }
+
+        @Override
+        public double[] getVector() {
+            double[] result = new double[numCols];
+            for (int i = start; i < end; i++) {
+                result[colIdx[i]] = values[i];
+            }
+            return result;
+        }
+
+        @Override
+        public int size() {
+            return numCols;
+        }
+
+        @Override
+        public int nnz() {
+            return end - start;
+        }
+
+        @Override
+        public double get(int index) {
+            if (index < 0 || index >= numCols) {
+                throw new IndexOutOfBoundsException("index " + index + " out of size " + numCols);
+            }
+
+            int pos = Arrays.binarySearch(colIdx, start, end, index);
+            return pos < 0 ? 0 : values[pos];
+        }
+
+        @Override
+        public double dot(double[] other) {
+            double sum = 0;
+            for (int i = start; i < end; i++) {
+                sum += values[i] * other[colIdx[i]];
+            }
+            return sum;
+        }
+
+        @Override
+        public void addTo(double[] target, double scale) {
+            for (int i = start; i < end; i++) {
+                target[colIdx[i]] += scale * values[i];
+            }
+        }
+
+        @Override
+        public double norm() {
+            double sum = 0;
+            for (int i = start; i < end; i++) {
+                sum += values[i] * values[i];
+            }
+            return Math.sqrt(sum);
+        }
+
+        @Override
+        public void forEachNonZero(IntDoubleConsumer consumer) {
+            for (int i = start; i < end; i++) {
+                consumer.accept(colIdx[i], values[i]);
+            }
+        }
+
+        RowVector(int row) {
+            this.start = rowPtr[row];
+            this.end = rowPtr[row + 1];
+        }
+    }
+
+    private TrainingMatrix(String[] labelNames, int[] labels, int numCols, int[] rowPtr, int[] colIdx, double[] values,
+                           FeatDictionary featDictionary) {
+        this.labelNames = labelNames;
+        this.labels = labels;
+        this.numCols = numCols;
+        this.rowPtr = rowPtr;
+        this.colIdx = colIdx;
+        this.values = values;
+        this.featDictionary = featDictionary;
+    }
+
+    /**
+     * Build from tuples. FeatNamedVector rows are keyed by feature name (a new FeatDictionary), FeatIdVector rows
+     * keep their shared dictionary, any other vector is keyed by dimension. The kinds can't be mixed.
+     */
+    public static TrainingMatrix fromTuples(List<Tuple> trainingData) {
+        if (trainingData == null || trainingData.isEmpty()) {
+            throw new IllegalArgumentException("Training data is empty.");
+        }
+
+        IVector first = trainingData.get(0).vector;
+        FeatDictionary dictionary = null;
+        if (first instanceof FeatIdVector) {
+            dictionary = ((FeatIdVector) first).getDictionary();
+        } else if (first instanceof FeatNamedVector) {
+            dictionary = new FeatDictionary();
+        }
+
+        Builder builder = new Builder(dictionary);
+        for (Tuple t : trainingData) {
+            boolean sameKind;
+            if (first instanceof FeatIdVector) {
+                sameKind = t.vector instanceof FeatIdVector && ((FeatIdVector) t.vector).getDictionary() == dictionary;
+            } else if (first instanceof FeatNamedVector) {
+                sameKind = t.vector instanceof FeatNamedVector;
+            } else {
+                sameKind = !(t.vector instanceof FeatNamedVector) && !(t.vector instanceof FeatIdVector);
+            }
+
+            if (!sameKind) {
+                throw new IllegalArgumentException("Vector kinds can't be mixed, tuple " + t.id + " is " + t.vector.getClass().getSimpleName());
+            }
+
+            if (t.vector instanceof FeatNamedVector) {
+                builder.addRow(t.label, ((FeatNamedVector) t.vector).featsName, t.vector.getVector());
+            } else {
+                builder.addRow(t.label, t.vector);
+            }
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Stream rows from a reader, one row per line: label followed by either plain values (column is the position) or
+     * index:value pairs. Same format as NaiveBayesClassifier.readTrainingData.
+     */
+    public static TrainingMatrix read(BufferedReader reader, String delimiter) throws IOException {
+        Builder builder = new Builder();
+        int[] cols = new int[16];
+        double[] vals = new double[16];
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            String[] tokens = line.split(delimiter);
+            if (tokens.length - 1 > cols.length) {
+                cols = new int[tokens.length - 1];
+                vals = new double[tokens.length - 1];
+            }
+
+            for (int i = 1; i < tokens.length; i++) {
+                int sep = tokens[i].indexOf(':');
+                if (sep < 0) {
+                    cols[i - 1] = i - 1;
+                    vals[i - 1] = Double.parseDouble(tokens[i]);
+                } else {
+                    cols[i - 1] = Integer.parseInt(tokens[i].substring(0, sep));
+                    vals[i - 1] = Double.parseDouble(tokens[i].substring(sep + 1));
+                }
+            }
+            builder.addRow(tokens[0], cols, vals, tokens.length - 1);
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Appends rows into growable CSR arrays. Zeros are dropped, columns of a row are sorted and duplicates summed.
+     */
+    public static class Builder {
+        private final FeatDictionary featDictionary;
+
+        private final Map<String, Integer> labelIds = new HashMap<>();
+        private final List<String> labelNames = new ArrayList<>();
+        private int[] labels = new int[64];
+
+        private int[] rowPtr = new int[65];
+        private int[] colIdx = new int[256];
+        private double[] values = new double[256];
+
+        private int numRows = 0;
+        private int maxCol = -1;
+
+        private void ensureCapacity(int nnz) {
+            int required = rowPtr[numRows] + nnz;
+            if (required > colIdx.length) {
+                int capacity = Math.max(required, colIdx.length * 2);
+                colIdx = Arrays.copyOf(colIdx, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+
+            if (numRows + 1 >= labels.length) {
+                labels = Arrays.copyOf(labels, labels.length * 2);
+                rowPtr = Arrays.copyOf(rowPtr, labels.length + 1);
+            }
+        }
+
+        private void endRow(String label) {
+            Integer labelId = labelIds.get(label);
+            if (labelId == null) {
+                labelId = labelNames.size();
+                labelIds.put(label, labelId);
+                labelNames.add(label);
+            }
+            labels[numRows] = labelId;
+            numRows++;
+        }
+
+        /**
+         * Append a row whose non-zero entries are strictly ascending by column, skips the sorting.
+         */
+        private void appendSorted(String label, int[] cols, double[] vals, int nnz) {
+            ensureCapacity(nnz);
+            int pos = rowPtr[numRows];
+            for (int i = 0; i < nnz; i++) {
+                colIdx[pos] = cols[i];
+                values[pos] = vals[i];
+                maxCol = Math.max(maxCol, cols[i]);
+                pos++;
+            }
+            rowPtr[numRows + 1] = pos;
+            endRow(label);
+        }
+
+        public Builder addRow(String label, IVector vector) {
+            if (vector instanceof SparseVector) {
+                SparseVector v = (SparseVector) vector;
+                appendSorted(label, v.getIndices(), v.getValues(), v.nnz());
+                maxCol = Math.max(maxCol, v.size() - 1);
+                return this;
+            }
+
+            ensureCapacity(vector.nnz());
+            rowPtr[numRows + 1] = rowPtr[numRows];
+            vector.forEachNonZero((index, value) -> {
+                int pos = rowPtr[numRows + 1]++;
+                colIdx[pos] = index;
+                values[pos] = value;
+            });
+            maxCol = Math.max(maxCol, vector.size() - 1);
+            endRow(label);
+            return this;
+        }
+
+        /**
+         * @param cols column indices, any order.
+         * @param vals corresponding values.
+         * @param nnz  number of entries to take from the arrays.
+         */
+        public Builder addRow(String label, int[] cols, double[] vals, int nnz) {
+            SparseVector.Builder rowBuilder = new SparseVector.Builder();
+            for (int i = 0; i < nnz; i++) {
+                rowBuilder.add(cols[i], vals[i]);
+            }
+            SparseVector row = rowBuilder.build();
+            appendSorted(label, row.getIndices(), row.getValues(), row.nnz());
+            return this;
+        }
+
+        /**
+         * Named feats, columns come from the dictionary of the builder.
+         */
+        public Builder addRow(String label, String[] featNames, double[] vals) {
+            if (featDictionary == null) {
+                throw new IllegalStateException("Builder has no FeatDictionary for named feats.");
+            }
+
+            int[] cols = new int[featNames.length];
+            for (int i = 0; i < featNames.length; i++) {
+                cols[i] = featDictionary.getOrAdd(featNames[i]);
+            }
+            return addRow(label, cols, vals, cols.length);
+        }
+
+        public TrainingMatrix build() {
+            String[] sortedLabels = labelNames.stream().sorted().toArray(String[]::new);
+            int[] remap = new int[sortedLabels.length];
+            for (int i = 0; i < sortedLabels.length; i++) {
+                remap[labelIds.get(sortedLabels[i])] = i;
+            }
+
+            int[] rowLabels = new int[numRows];
+            for (int i = 0; i < numRows; i++) {
+                rowLabels[i] = remap[labels[i]];
+            }
+
+            int nnz = rowPtr[numRows];
+            int numCols = featDictionary == null ? maxCol + 1 : Math.max(maxCol + 1, featDictionary.size());
+            return new TrainingMatrix(sortedLabels, rowLabels, numCols, Arrays.copyOf(rowPtr, numRows + 1),
+                    Arrays.copyOf(colIdx, nnz), Arrays.copyOf(values, nnz), featDictionary);
+        }
+
+        public Builder() {
+            this(null);
+        }
+
+        /**
+         * @param featDictionary column names, null if the columns are plain dimensions.
+         */
+        public Builder(FeatDictionary featDictionary) {
+            this.featDictionary = featDictionary;
+        }
+    }
+}
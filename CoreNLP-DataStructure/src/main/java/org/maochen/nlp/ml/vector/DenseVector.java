@@ -19,6 +19,61 @@ public class DenseVector implements IVector {
         return this.vector;
     }
 
+    @Override
+    public int size() {
+        return vector.length;
+    }
+
+    @Override
+    public int nnz() {
+        int count = 0;
+        for (double d : vector) {
+            if (d != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public double get(int index) {
+        return vector[index];
+    }
+
+    @Override
+    public double dot(double[] other) {
+        double sum = 0;
+        for (int i = 0; i < vector.length; i++) {
+            sum += vector[i] * other[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void addTo(double[] target, double scale) {
+        for (int i = 0; i < vector.length; i++) {
+            target[i] += scale * vector[i];
+        }
+    }
+
+    @Override
+    public double norm() {
+        double sum = 0;
+        for (double d : vector) {
+            sum += d * d;
+        }
+        return Math.sqrt(sum);
+    }
+
+    @Override
+    public void forEachNonZero(IntDoubleConsumer consumer) {
+        for (int i = 0; i < vector.length; i++) {
+            if (vector[i] != 0) {
+                consumer.accept(i, vector[i]);
+            }
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (!(o instanceof DenseVector)) {
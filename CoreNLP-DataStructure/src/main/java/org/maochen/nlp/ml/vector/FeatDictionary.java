@@ -0,0 +1,181 @@
+package org.maochen.nlp.ml.vector;
+
+import java.util.Arrays;
+
+/**
+ * Feature name to int id dictionary. Each distinct name is stored once, lookups take any CharSequence so callers can
+ * probe with a reused StringBuilder instead of creating a String per feature.
+ *
+ * Thread safe. Writes are synchronized; once frozen the dictionary is read only and lookups are lock free.
+ */
+public class FeatDictionary {
+
+    public static final int NOT_FOUND = -1;
+
+    private volatile boolean frozen = false;
+
+    // Open addressing table, stores ids. Capacity is power of 2 and kept at most half full.
+    private int[] slots;
+
+    private String[] names;
+    private int[] hashes;
+    private int size = 0;
+
+    private static int hash(CharSequence feat) {
+        int h = 0;
+        for (int i = 0; i < feat.length(); i++) {
+            h = 31 * h + feat.charAt(i);
+        }
+        h *= 0x9E3779B9; // spread the bits, the table index takes the low bits.
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean contentEquals(String name, CharSequence feat) {
+        if (name.length() != feat.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != feat.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int find(CharSequence feat, int h) {
+        int mask = slots.length - 1;
+        for (int pos = h & mask; ; pos = (pos + 1) & mask) {
+            int id = slots[pos];
+            if (id == NOT_FOUND) {
+                return NOT_FOUND;
+            }
+            if (hashes[id] == h && contentEquals(names[id], feat)) {
+                return id;
+            }
+        }
+    }
+
+    private void insert(int[] table, int id, int h) {
+        int mask = table.length - 1;
+        int pos = h & mask;
+        while (table[pos] != NOT_FOUND) {
+            pos = (pos + 1) & mask;
+        }
+        table[pos] = id;
+    }
+
+    private int add(CharSequence feat, int h) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+
+        int id = size++;
+        names[id] = feat.toString();
+        hashes[id] = h;
+
+        if (size * 2 > slots.length) {
+            int[] newSlots = new int[slots.length * 2];
+            Arrays.fill(newSlots, NOT_FOUND);
+            for (int i = 0; i < size; i++) {
+                insert(newSlots, i, hashes[i]);
+            }
+            slots = newSlots;
+        } else {
+            insert(slots, id, h);
+        }
+        return id;
+    }
+
+    /**
+     * @return id of the feature, NOT_FOUND if it is not in the dictionary.
+     */
+    public int getId(CharSequence feat) {
+        int h = hash(feat);
+        if (frozen) {
+            return find(feat, h);
+        }
+
+        synchronized (this) {
+            return find(feat, h);
+        }
+    }
+
+    /**
+     * Add the feature if it is new. A frozen dictionary doesn't grow, NOT_FOUND is returned for unseen features.
+     *
+     * @return id of the feature.
+     */
+    public int getOrAdd(CharSequence feat) {
+        int h = hash(feat);
+        if (frozen) {
+            return find(feat, h);
+        }
+
+        synchronized (this) {
+            int id = find(feat, h);
+            if (id == NOT_FOUND && !frozen) {
+                id = add(feat, h);
+            }
+            return id;
+        }
+    }
+
+    public String getName(int id) {
+        if (frozen) {
+            return names[id];
+        }
+
+        synchronized (this) {
+            if (id >= size) {
+                throw new IndexOutOfBoundsException("id " + id + " out of size " + size);
+            }
+            return names[id];
+        }
+    }
+
+    /**
+     * @return names ordered by id.
+     */
+    public synchronized String[] getNames() {
+        return Arrays.copyOf(names, size);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Make the dictionary read only, typically after training. Cannot be undone.
+     */
+    public synchronized void freeze() {
+        frozen = true;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    public FeatDictionary() {
+        this(1024);
+    }
+
+    public FeatDictionary(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+        slots = new int[capacity];
+        Arrays.fill(slots, NOT_FOUND);
+        names = new String[Math.max(expectedSize, 8)];
+        hashes = new int[names.length];
+    }
+
+    /**
+     * Dictionary with the given names, ids follow the array order.
+     */
+    public FeatDictionary(String[] names) {
+        this(names.length);
+        for (String name : names) {
+            getOrAdd(name);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.maochen.nlp.ml.vector;
+
+import java.util.Arrays;
+
+/**
+ * The id based counterpart of FeatNamedVector. Feature names live once in the shared FeatDictionary, the vector only
+ * keeps the ids (as sparse indices) and values.
+ */
+public class FeatIdVector extends SparseVector {
+
+    private final FeatDictionary dictionary;
+
+    private static SparseVector binaryFeats(FeatDictionary dictionary, int[] ids, int length) {
+        SparseVector.Builder builder = new SparseVector.Builder(dictionary.size());
+        for (int i = 0; i < length; i++) {
+            builder.add(ids[i], 1.0D);
+        }
+        return builder.build();
+    }
+
+    private FeatIdVector(FeatDictionary dictionary, SparseVector vector) {
+        super(vector.size(), vector.getIndices(), vector.getValues());
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Binary feats, each id gets value 1. Repeated ids are summed.
+     *
+     * @param ids    feature ids from the dictionary, any order.
+     * @param length number of ids to take from the array.
+     */
+    public FeatIdVector(FeatDictionary dictionary, int[] ids, int length) {
+        this(dictionary, binaryFeats(dictionary, ids, length));
+    }
+
+    /**
+     * @param ids    strictly ascending feature ids from the dictionary.
+     * @param values corresponding values.
+     */
+    public FeatIdVector(FeatDictionary dictionary, int[] ids, double[] values) {
+        super(dictionary.size(), ids, values);
+        this.dictionary = dictionary;
+    }
+
+    public FeatDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @return the names of the stored features, same order as getIndices(). Names are shared with the dictionary.
+     */
+    public String[] getFeatNames() {
+        int[] ids = getIndices();
+        String[] names = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            names[i] = dictionary.getName(ids[i]);
+        }
+        return names;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(getFeatNames());
+    }
+}
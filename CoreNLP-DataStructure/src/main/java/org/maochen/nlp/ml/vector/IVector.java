@@ -6,5 +6,49 @@ package org.maochen.nlp.ml.vector;
 public interface IVector {
     void setVector(double[] val);
 
+    /**
+     * Dense representation of the vector. Sparse implementations allocate a new array on each call, so don't use it in
+     * loops.
+     */
     double[] getVector();
+
+    /**
+     * @return dimension of the vector.
+     */
+    int size();
+
+    /**
+     * @return number of non-zero entries.
+     */
+    int nnz();
+
+    /**
+     * @param index dimension index, within [0, size()).
+     * @return value at the index.
+     */
+    double get(int index);
+
+    /**
+     * @param other dense vector, must be at least as long as the highest non-zero index of this vector.
+     * @return this . other
+     */
+    double dot(double[] other);
+
+    /**
+     * axpy: target = target + scale * this. Only non-zero entries are touched.
+     *
+     * @param target dense vector to be updated in place.
+     * @param scale  the multiplier.
+     */
+    void addTo(double[] target, double scale);
+
+    /**
+     * @return L2 norm.
+     */
+    double norm();
+
+    /**
+     * Iterate the non-zero entries in ascending index order.
+     */
+    void forEachNonZero(IntDoubleConsumer consumer);
 }
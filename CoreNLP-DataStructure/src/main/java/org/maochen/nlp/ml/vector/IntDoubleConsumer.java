@@ -0,0 +1,14 @@
+package org.maochen.nlp.ml.vector;
+
+/**
+ * Primitive (index, value) consumer, used to walk the non-zero entries of a vector without boxing.
+ */
+@FunctionalInterface
+public interface IntDoubleConsumer {
+
+    /**
+     * @param index dimension index.
+     * @param value value at the dimension.
+     */
+    void accept(int index, double value);
+}
@@ -1,33 +1,288 @@
 package org.maochen.nlp.ml.vector;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
+ * Sparse vector backed by parallel index/value arrays. Indices are strictly ascending and values are non-zero.
+ *
  * Created by mguan on 5/11/16.
  */
 public class SparseVector implements IVector {
 
-    private Map<Integer, Double> sparseMap = new HashMap<>();
+    private static final int[] EMPTY_INDICES = new int[0];
+    private static final double[] EMPTY_VALUES = new double[0];
+
+    // Dimension of the vector, not the number of non-zero entries.
+    private int size;
+
+    private int[] indices;
+    private double[] values;
 
     @Override
     public void setVector(double[] val) {
-        for (int i = 0; i < val.length; i++) {
+        int nnz = 0;
+        for (double v : val) {
+            if (v != 0) {
+                nnz++;
+            }
+        }
+
+        int[] newIndices = new int[nnz];
+        double[] newValues = new double[nnz];
+        for (int i = 0, j = 0; i < val.length; i++) {
             if (val[i] != 0) {
-                sparseMap.put(i, val[i]);
+                newIndices[j] = i;
+                newValues[j] = val[i];
+                j++;
             }
         }
+
+        this.size = val.length;
+        this.indices = newIndices;
+        this.values = newValues;
     }
 
     @Override
     public double[] getVector() {
-        int maxSize = sparseMap.keySet().stream().mapToInt(x -> x).max().orElse(-1);
-        double[] result = new double[maxSize + 1];
-
-        for (Integer i : sparseMap.keySet()) {
-            result[i] = sparseMap.get(i);
+        double[] result = new double[size];
+        for (int i = 0; i < indices.length; i++) {
+            result[indices[i]] = values[i];
         }
 
         return result;
     }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int nnz() {
+        return indices.length;
+    }
+
+    @Override
+    public double get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + " out of size " + size);
+        }
+
+        int pos = Arrays.binarySearch(indices, index);
+        return pos < 0 ? 0 : values[pos];
+    }
+
+    @Override
+    public double dot(double[] other) {
+        double sum = 0;
+        for (int i = 0; i < indices.length; i++) {
+            sum += values[i] * other[indices[i]];
+        }
+        return sum;
+    }
+
+    /**
+     * Merge join over two sorted index arrays, O(nnz1 + nnz2).
+     */
+    public double dot(SparseVector other) {
+        double sum = 0;
+        int i = 0;
+        int j = 0;
+        while (i < indices.length && j < other.indices.length) {
+            int a = indices[i];
+            int b = other.indices[j];
+            if (a == b) {
+                sum += values[i++] * other.values[j++];
+            } else if (a < b) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public void addTo(double[] target, double scale) {
+        for (int i = 0; i < indices.length; i++) {
+            target[indices[i]] += scale * values[i];
+        }
+    }
+
+    @Override
+    public double norm() {
+        double sum = 0;
+        for (double v : values) {
+            sum += v * v;
+        }
+        return Math.sqrt(sum);
+    }
+
+    @Override
+    public void forEachNonZero(IntDoubleConsumer consumer) {
+        for (int i = 0; i < indices.length; i++) {
+            consumer.accept(indices[i], values[i]);
+        }
+    }
+
+    /**
+     * The backing arrays are exposed for tight loops, don't modify them.
+     */
+    public int[] getIndices() {
+        return indices;
+    }
+
+    public double[] getValues() {
+        return values;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SparseVector)) {
+            return false;
+        }
+
+        SparseVector other = (SparseVector) o;
+        return size == other.size && Arrays.equals(indices, other.indices) && Arrays.equals(values, other.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * size + Arrays.hashCode(indices)) + Arrays.hashCode(values);
+    }
+
+    public SparseVector() {
+        this(0, EMPTY_INDICES, EMPTY_VALUES);
+    }
+
+    /**
+     * @param size    dimension of the vector.
+     * @param indices strictly ascending indices, the array is not copied.
+     * @param values  values corresponding to the indices, the array is not copied.
+     */
+    public SparseVector(int size, int[] indices, double[] values) {
+        if (indices.length != values.length) {
+            throw new IllegalArgumentException("indices and values must have equal length.");
+        }
+
+        for (int i = 0; i < indices.length; i++) {
+            if (indices[i] < 0 || indices[i] >= size || (i > 0 && indices[i] <= indices[i - 1])) {
+                throw new IllegalArgumentException("indices must be ascending and within [0, " + size + "): " + indices[i]);
+            }
+        }
+
+        this.size = size;
+        this.indices = indices;
+        this.values = values;
+    }
+
+    /**
+     * Collects (index, value) pairs in any order. Duplicated indices are summed and zeros are dropped on build.
+     */
+    public static class Builder {
+        private int size;
+        private int[] indices;
+        private double[] values;
+        private int count = 0;
+
+        /**
+         * @param size dimension of the vector, -1 means max index + 1.
+         */
+        public Builder(int size) {
+            this.size = size;
+            this.indices = new int[8];
+            this.values = new double[8];
+        }
+
+        public Builder() {
+            this(-1);
+        }
+
+        public Builder add(int index, double value) {
+            if (index < 0 || (size >= 0 && index >= size)) {
+                throw new IndexOutOfBoundsException("index " + index + " out of size " + size);
+            }
+
+            if (count == indices.length) {
+                indices = Arrays.copyOf(indices, count * 2);
+                values = Arrays.copyOf(values, count * 2);
+            }
+            indices[count] = index;
+            values[count] = value;
+            count++;
+            return this;
+        }
+
+        public SparseVector build() {
+            boolean sorted = true;
+            for (int i = 1; i < count && sorted; i++) {
+                sorted = indices[i - 1] < indices[i];
+            }
+            if (!sorted) {
+                sort(indices, values, 0, count - 1);
+            }
+
+            int[] newIndices = new int[count];
+            double[] newValues = new double[count];
+            int nnz = 0;
+            for (int i = 0; i < count; i++) {
+                if (nnz > 0 && newIndices[nnz - 1] == indices[i]) {
+                    newValues[nnz - 1] += values[i];
+                } else {
+                    newIndices[nnz] = indices[i];
+                    newValues[nnz] = values[i];
+                    nnz++;
+                }
+            }
+
+            int kept = 0;
+            for (int i = 0; i < nnz; i++) {
+                if (newValues[i] != 0) {
+                    newIndices[kept] = newIndices[i];
+                    newValues[kept] = newValues[i];
+                    kept++;
+                }
+            }
+
+            int dimension = size >= 0 ? size : (kept == 0 ? 0 : newIndices[kept - 1] + 1);
+            return new SparseVector(dimension, kept == newIndices.length ? newIndices : Arrays.copyOf(newIndices, kept),
+                    kept == newValues.length ? newValues : Arrays.copyOf(newValues, kept));
+        }
+
+        // Quick sort on the parallel arrays, avoid boxing into pairs.
+        private static void sort(int[] keys, double[] vals, int lo, int hi) {
+            while (lo < hi) {
+                int pivot = keys[(lo + hi) >>> 1];
+                int i = lo;
+                int j = hi;
+                while (i <= j) {
+                    while (keys[i] < pivot) {
+                        i++;
+                    }
+                    while (keys[j] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        int k = keys[i];
+                        keys[i] = keys[j];
+                        keys[j] = k;
+                        double v = vals[i];
+                        vals[i] = vals[j];
+                        vals[j] = v;
+                        i++;
+                        j--;
+                    }
+                }
+
+                // Recurse on the smaller half to bound the stack depth.
+                if (j - lo < hi - i) {
+                    sort(keys, vals, lo, j);
+                    lo = i;
+                } else {
+                    sort(keys, vals, i, hi);
+                    hi = j;
+                }
+            }
+        }
+    }
 }
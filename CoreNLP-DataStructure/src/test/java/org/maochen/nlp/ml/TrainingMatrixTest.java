@@ -0,0 +1,64 @@
+package org.maochen.nlp.ml;
+
+import org.junit.Test;
+import org.maochen.nlp.ml.vector.DenseVector;
+import org.maochen.nlp.ml.vector.FeatNamedVector;
+import org.maochen.nlp.ml.vector.IVector;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TrainingMatrixTest {
+
+    @Test
+    public void testFromTuples() {
+        List<Tuple> data = new ArrayList<>();
+        data.add(new Tuple(1, new DenseVector(new double[]{0, 2, 0, 3}), "b"));
+        data.add(new Tuple(2, new DenseVector(new double[]{1, 0, 0, 0}), "a"));
+
+        TrainingMatrix matrix = TrainingMatrix.fromTuples(data);
+        assertNull(matrix.getFeatDictionary());
+        assertEquals(2, matrix.getNumRows());
+        assertEquals(4, matrix.getNumCols());
+        assertEquals(3, matrix.getNnz());
+        assertArrayEquals(new String[]{"a", "b"}, matrix.getLabelNames());
+        assertEquals(1, matrix.getLabel(0));
+        assertArrayEquals(new int[]{0, 2, 3}, matrix.getRowPtr());
+
+        IVector row = matrix.row(0);
+        assertEquals(3, row.get(3), Double.MIN_VALUE);
+        assertEquals(0, row.get(2), Double.MIN_VALUE);
+        assertEquals(11, row.dot(new double[]{1, 1, 1, 3}), Double.MIN_VALUE);
+        assertArrayEquals(new double[]{0, 2, 0, 3}, matrix.toTuples().get(0).vector.getVector(), Double.MIN_VALUE);
+    }
+
+    @Test
+    public void testNamedFeats() {
+        List<Tuple> data = new ArrayList<>();
+        data.add(new Tuple(1, new FeatNamedVector(new String[]{"w0=the", "pos=DT"}), "x"));
+        data.add(new Tuple(2, new FeatNamedVector(new String[]{"pos=DT", "w0=a"}), "y"));
+
+        TrainingMatrix matrix = TrainingMatrix.fromTuples(data);
+        assertEquals(3, matrix.getNumCols());
+        assertArrayEquals(new int[]{0, 1, 1, 2}, matrix.getColIdx());
+        assertEquals("pos=DT", matrix.getColName(1));
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        String data = "1 0.5 0 2\n2 3:1.5 0:1\n";
+        TrainingMatrix matrix = TrainingMatrix.read(new BufferedReader(new StringReader(data)), "\\s");
+
+        assertEquals(2, matrix.getNumRows());
+        assertEquals(4, matrix.getNumCols());
+        assertArrayEquals(new int[]{0, 2, 0, 3}, matrix.getColIdx());
+        assertArrayEquals(new double[]{0.5, 2, 1, 1.5}, matrix.getValues(), Double.MIN_VALUE);
+    }
+}
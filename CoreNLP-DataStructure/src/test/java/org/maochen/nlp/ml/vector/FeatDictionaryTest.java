@@ -0,0 +1,46 @@
+package org.maochen.nlp.ml.vector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class FeatDictionaryTest {
+
+    @Test
+    public void testGetOrAdd() {
+        FeatDictionary dict = new FeatDictionary(2);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, dict.getOrAdd("w0=" + i));
+        }
+
+        StringBuilder builder = new StringBuilder("w0=42");
+        assertEquals(42, dict.getOrAdd(builder));
+        assertEquals(42, dict.getId(builder));
+        assertEquals(FeatDictionary.NOT_FOUND, dict.getId("w1=42"));
+        assertEquals(100, dict.size());
+        assertEquals("w0=7", dict.getName(7));
+    }
+
+    @Test
+    public void testFreeze() {
+        FeatDictionary dict = new FeatDictionary(new String[]{"a", "b"});
+        dict.freeze();
+
+        assertEquals(1, dict.getOrAdd("b"));
+        assertEquals(FeatDictionary.NOT_FOUND, dict.getOrAdd("c"));
+        assertEquals(2, dict.size());
+    }
+
+    @Test
+    public void testFeatIdVector() {
+        FeatDictionary dict = new FeatDictionary();
+        int[] ids = new int[]{dict.getOrAdd("x"), dict.getOrAdd("a"), dict.getOrAdd("x")};
+        FeatIdVector v = new FeatIdVector(dict, ids, ids.length);
+
+        assertArrayEquals(new String[]{"x", "a"}, v.getFeatNames());
+        assertArrayEquals(new double[]{2, 1}, v.getValues(), Double.MIN_VALUE);
+        assertSame(dict.getName(0), v.getFeatNames()[0]);
+    }
+}
@@ -0,0 +1,52 @@
+package org.maochen.nlp.ml.vector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SparseVectorTest {
+
+    @Test
+    public void testBuilder() {
+        SparseVector v = new SparseVector.Builder(10)
+                .add(7, 1.5)
+                .add(2, 3)
+                .add(7, 0.5)
+                .add(4, 0)
+                .build();
+
+        assertArrayEquals(new int[]{2, 7}, v.getIndices());
+        assertArrayEquals(new double[]{3, 2}, v.getValues(), Double.MIN_VALUE);
+        assertEquals(10, v.getVector().length);
+    }
+
+    @Test
+    public void testSetVector() {
+        SparseVector v = new SparseVector();
+        v.setVector(new double[]{0, 1, 0, 5});
+
+        assertArrayEquals(new int[]{1, 3}, v.getIndices());
+        assertArrayEquals(new double[]{0, 1, 0, 5}, v.getVector(), Double.MIN_VALUE);
+    }
+
+    @Test
+    public void testOps() {
+        SparseVector v1 = new SparseVector(5, new int[]{0, 3}, new double[]{3, 4});
+        SparseVector v2 = new SparseVector(5, new int[]{1, 3, 4}, new double[]{2, 2, 1});
+
+        assertEquals(8, v1.dot(v2), Double.MIN_VALUE);
+        assertEquals(8, v1.dot(v2.getVector()), Double.MIN_VALUE);
+        assertEquals(5, v1.norm(), Double.MIN_VALUE);
+
+        double[] target = new double[]{1, 1, 1, 1, 1};
+        v1.addTo(target, 2);
+        assertArrayEquals(new double[]{7, 1, 1, 9, 1}, target, Double.MIN_VALUE);
+        assertEquals(new DenseVector(new double[]{3, 0, 0, 4, 0}).dot(v2.getVector()), v1.dot(v2), Double.MIN_VALUE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsortedIndices() {
+        new SparseVector(5, new int[]{3, 1}, new double[]{1, 1});
+    }
+}
@@ -0,0 +1,455 @@
+package org.maochen.nlp.ml.classifier.knn;
+
+import org.maochen.nlp.util.VectorOps;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Approximate k nearest neighbor index, Hierarchical Navigable Small World graph (Malkov and Yashunin). Each point
+ * gets a random level, the upper layers are sparse long range graphs and layer 0 links every point to about 2M of
+ * its neighbors. A search descends greedily from the top entry point and runs a best first search of efSearch
+ * candidates on layer 0, the cost grows with log(n) instead of n, for the high dimensional data the trees can't
+ * prune.
+ *
+ * Works with any distance. For the cosine distance the vectors are normalized once, the distance is then
+ * 1 - |a * b|.
+ *
+ * The points are inserted concurrently: the levels are drawn up front, each neighbor list is guarded by a lock
+ * stripe and only one lock is held at a time. Searches after the build are lock free.
+ */
+final class HNSWIndex extends KNNIndex {
+
+    private static final int LOCK_STRIPES = 1024;
+
+    private final int m;
+    private final int efConstruction;
+    private volatile int efSearch;
+
+    // Normalized copies for the cosine distance, otherwise the points.
+    private final double[][] vectors;
+
+    private final int[] levels;
+
+    // links[node][level][0] is the neighbor count, the neighbors follow.
+    private final int[][][] links;
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final Object entryLock = new Object();
+    private volatile int entryPoint = -1;
+    private volatile int maxLevel = -1;
+
+    // Visit marks by node, a new epoch per search instead of clearing.
+    private final ThreadLocal<int[]> visitMarks;
+    private final ThreadLocal<int[]> visitEpoch = ThreadLocal.withInitial(() -> new int[1]);
+
+    /**
+     * Growable binary min heap of (node, distance), the search candidates.
+     */
+    private static final class Candidates {
+        private int[] nodes = new int[64];
+        private double[] distances = new double[64];
+        private int size = 0;
+
+        void push(int node, double distance) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                distances = Arrays.copyOf(distances, size * 2);
+            }
+            int child = size++;
+            while (child > 0) {
+                int parent = (child - 1) / 2;
+                if (distances[parent] <= distance) {
+                    break;
+                }
+                nodes[child] = nodes[parent];
+                distances[child] = distances[parent];
+                child = parent;
+            }
+            nodes[child] = node;
+            distances[child] = distance;
+        }
+
+        int topNode() {
+            return nodes[0];
+        }
+
+        double topDistance() {
+            return distances[0];
+        }
+
+        void pop() {
+            int node = nodes[--size];
+            double distance = distances[size];
+            int parent = 0;
+            for (int child = 1; child < size; parent = child, child = 2 * parent + 1) {
+                if (child + 1 < size && distances[child + 1] < distances[child]) {
+                    child++;
+                }
+                if (distances[child] >= distance) {
+                    break;
+                }
+                nodes[parent] = nodes[child];
+                distances[parent] = distances[child];
+            }
+            nodes[parent] = node;
+            distances[parent] = distance;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+
+    private int maxConnections(int level) {
+        return level == 0 ? 2 * m : m;
+    }
+
+    private Object lock(int node) {
+        return locks[node & (LOCK_STRIPES - 1)];
+    }
+
+    private double[] prepare(double[] vector) {
+        if (metric != Metric.COSINE) {
+            return vector;
+        }
+
+        double norm = VectorOps.get().squaredNorm(vector);
+        double[] normalized = new double[vector.length];
+        if (norm > 0) {
+            VectorOps.get().axpy(1 / Math.sqrt(norm), vector, normalized);
+        }
+        return normalized;
+    }
+
+    private double distance(double[] a, int node) {
+        double[] b = vectors[node];
+        if (metric == Metric.COSINE) {
+            return 1 - Math.min(1, Math.abs(VectorOps.get().dot(a, b)));
+        }
+        return metric.distance(a, b);
+    }
+
+    /**
+     * @param locked true while building, the neighbor lists may change under the search.
+     */
+    private int[] neighbors(int node, int level, boolean locked) {
+        int[] list = links[node][level];
+        if (!locked) {
+            return list;
+        }
+        synchronized (lock(node)) {
+            return Arrays.copyOf(list, list[0] + 1);
+        }
+    }
+
+    private int greedy(double[] query, int node, int fromLevel, int toLevel, boolean locked) {
+        double best = distance(query, node);
+        for (int level = fromLevel; level > toLevel; level--) {
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                int[] list = neighbors(node, level, locked);
+                for (int i = 1; i <= list[0]; i++) {
+                    double d = distance(query, list[i]);
+                    if (d < best) {
+                        best = d;
+                        node = list[i];
+                        changed = true;
+                    }
+                }
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Best first search of one layer.
+     *
+     * @return the ef nearest nodes found.
+     */
+    private Neighbors searchLayer(double[] query, int[] entries, int ef, int level, boolean locked) {
+        int[] marks = visitMarks.get();
+        int[] epoch = visitEpoch.get();
+        if (++epoch[0] == 0) { // Wrapped around, old marks would collide.
+            Arrays.fill(marks, 0);
+            epoch[0] = 1;
+        }
+
+        Candidates candidates = new Candidates();
+        Neighbors results = new Neighbors(ef);
+        for (int entry : entries) {
+            if (marks[entry] != epoch[0]) {
+                marks[entry] = epoch[0];
+                double d = distance(query, entry);
+                candidates.push(entry, d);
+                results.offer(entry, d);
+            }
+        }
+
+        while (!candidates.isEmpty()) {
+            int node = candidates.topNode();
+            if (candidates.topDistance() > results.worst()) {
+                break;
+            }
+            candidates.pop();
+
+            int[] list = neighbors(node, level, locked);
+            for (int i = 1; i <= list[0]; i++) {
+                int neighbor = list[i];
+                if (marks[neighbor] == epoch[0]) {
+                    continue;
+                }
+                marks[neighbor] = epoch[0];
+                double d = distance(query, neighbor);
+                if (d <= results.worst()) {
+                    candidates.push(neighbor, d);
+                    results.offer(neighbor, d);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Neighbor selection heuristic, a candidate is kept only if it is nearer to the base than to every kept one, so
+     * the links spread in all directions instead of into the nearest cluster.
+     *
+     * @param candidates nearest first.
+     */
+    private int selectNeighbors(int[] candidates, double[] distances, int count, int max, int[] out) {
+        int size = 0;
+        for (int i = 0; i < count && size < max; i++) {
+            double[] candidate = vectors[candidates[i]];
+            boolean keep = true;
+            for (int j = 1; j <= size && keep; j++) {
+                keep = distance(candidate, out[j]) >= distances[i];
+            }
+            if (keep) {
+                out[++size] = candidates[i];
+            }
+        }
+        out[0] = size;
+        return size;
+    }
+
+    // Adds the link node -> neighbor, prunes the list of the node with the heuristic when it is full.
+    private void link(int node, int neighbor, int level) {
+        int max = maxConnections(level);
+        synchronized (lock(node)) {
+            int[] list = links[node][level];
+            if (list[0] < max) {
+                list[++list[0]] = neighbor;
+                return;
+            }
+
+            double[] base = vectors[node];
+            int count = list[0] + 1;
+            int[] candidates = Arrays.copyOfRange(list, 1, count + 1);
+            candidates[count - 1] = neighbor;
+            double[] distances = new double[count];
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                distances[i] = distance(base, candidates[i]);
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Double.compare(distances[a], distances[b]));
+
+            int[] sortedCandidates = new int[count];
+            double[] sortedDistances = new double[count];
+            for (int i = 0; i < count; i++) {
+                sortedCandidates[i] = candidates[order[i]];
+                sortedDistances[i] = distances[order[i]];
+            }
+            selectNeighbors(sortedCandidates, sortedDistances, count, max, list);
+        }
+    }
+
+    private void insert(int node) {
+        double[] query = vectors[node];
+        int level = levels[node];
+
+        int entry;
+        int top;
+        synchronized (entryLock) {
+            entry = entryPoint;
+            top = maxLevel;
+        }
+
+        entry = greedy(query, entry, top, level, true);
+        int[] entries = {entry};
+        for (int l = Math.min(top, level); l >= 0; l--) {
+            Neighbors found = searchLayer(query, entries, efConstruction, l, true);
+            entries = found.getIndices();
+            double[] distances = found.getDistances();
+
+            int[] selected = new int[maxConnections(l) + 1];
+            selectNeighbors(entries, distances, entries.length, m, selected);
+            synchronized (lock(node)) {
+                System.arraycopy(selected, 0, links[node][l], 0, selected[0] + 1);
+            }
+            for (int i = 1; i <= selected[0]; i++) {
+                link(selected[i], node, l);
+            }
+        }
+
+        if (level > top) {
+            synchronized (entryLock) {
+                if (level > maxLevel) {
+                    maxLevel = level;
+                    entryPoint = node;
+                }
+            }
+        }
+    }
+
+    private void allocate(int node, int level) {
+        levels[node] = level;
+        links[node] = new int[level + 1][];
+        for (int l = 0; l <= level; l++) {
+            links[node][l] = new int[maxConnections(l) + 1];
+        }
+    }
+
+    private void build(int threads, long seed) {
+        int n = points.length;
+        Random random = new Random(seed);
+        double levelMultiplier = 1 / Math.log(Math.max(2, m));
+        for (int node = 0; node < n; node++) {
+            allocate(node, (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier));
+        }
+        if (n == 0) {
+            return;
+        }
+
+        entryPoint = 0;
+        maxLevel = levels[0];
+
+        AtomicInteger next = new AtomicInteger(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int node = next.getAndIncrement(); node < n; node = next.getAndIncrement()) {
+                        insert(node);
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("HNSW index build failed.", e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Query time recall / speed trade off, doesn't change the graph.
+     */
+    void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+
+    @Override
+    Neighbors search(double[] query, int k) {
+        if (entryPoint < 0) { // Empty graph, same empty result as the trees.
+            return new Neighbors(0);
+        }
+
+        double[] q = prepare(query);
+        int entry = greedy(q, entryPoint, maxLevel, 0, false);
+        Neighbors found = searchLayer(q, new int[]{entry}, Math.max(efSearch, k), 0, false);
+
+        int[] nodes = found.getIndices();
+        double[] distances = found.getDistances();
+        Neighbors neighbors = new Neighbors(Math.min(k, nodes.length));
+        for (int i = 0; i < nodes.length; i++) {
+            neighbors.offer(nodes[i], distances[i]);
+        }
+        return neighbors;
+    }
+
+    /**
+     * Writes the graph, the points are persisted by the classifier.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(entryPoint);
+        out.writeInt(maxLevel);
+        for (int node = 0; node < points.length; node++) {
+            out.writeInt(levels[node]);
+            for (int[] list : links[node]) {
+                for (int i = 0; i <= list[0]; i++) {
+                    out.writeInt(list[i]);
+                }
+            }
+        }
+    }
+
+    static HNSWIndex read(DataInputStream in, double[][] points, Metric metric, int m, int efConstruction, int efSearch) throws IOException {
+        HNSWIndex index = new HNSWIndex(points, metric, m, efConstruction, efSearch);
+        index.entryPoint = in.readInt();
+        index.maxLevel = in.readInt();
+        for (int node = 0; node < points.length; node++) {
+            index.allocate(node, in.readInt());
+            for (int[] list : index.links[node]) {
+                list[0] = in.readInt();
+                if (list[0] >= list.length) {
+                    throw new IOException("Node " + node + " has " + list[0] + " links, expect at most " + (list.length - 1));
+                }
+                for (int i = 1; i <= list[0]; i++) {
+                    list[i] = in.readInt();
+                }
+            }
+        }
+        return index;
+    }
+
+    private HNSWIndex(double[][] points, Metric metric, int m, int efConstruction, int efSearch) {
+        super(points, metric);
+        if (m < 2) {
+            throw new IllegalArgumentException("M must be at least 2.");
+        }
+        this.m = m;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.efSearch = efSearch;
+
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+
+        int n = points.length;
+        this.vectors = new double[n][];
+        for (int i = 0; i < n; i++) {
+            vectors[i] = prepare(points[i]);
+        }
+        this.levels = new int[n];
+        this.links = new int[n][][];
+        this.visitMarks = ThreadLocal.withInitial(() -> new int[n]);
+    }
+
+    /**
+     * @param m              links per node on the upper layers, 2M on layer 0.
+     * @param efConstruction candidates searched when inserting a point.
+     * @param efSearch       candidates searched for a query, at least k.
+     * @param threads        insertion threads.
+     * @param seed           seed of the levels.
+     */
+    HNSWIndex(double[][] points, Metric metric, int m, int efConstruction, int efSearch, int threads, long seed) {
+        this(points, metric, m, efConstruction, efSearch);
+        build(threads, seed);
+    }
+}
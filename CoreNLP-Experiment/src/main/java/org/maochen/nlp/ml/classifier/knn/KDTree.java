@@ -0,0 +1,114 @@
+package org.maochen.nlp.ml.classifier.knn;
+
+/**
+ * KD-tree for the low dimensional data. Each node splits its points at the median of the dimension with the largest
+ * spread. A subtree is skipped when |query[d] - split| is already farther than the k-th neighbor, which holds for all
+ * the metrics since none of them is smaller than the difference in one dimension.
+ *
+ * Nodes are kept in flat arrays, node 0 is the root.
+ */
+final class KDTree extends KNNIndex {
+
+    private final int[] order;
+
+    // Split dimension, -1 for a leaf.
+    private final int[] splitDim;
+    private final double[] splitValue;
+    private final int[] left;
+    private final int[] right;
+
+    // Points of a leaf, order[from, to).
+    private final int[] from;
+    private final int[] to;
+
+    private int size = 0;
+
+    private int build(int start, int end, double[] keys) {
+        int node = size++;
+        from[node] = start;
+        to[node] = end;
+        splitDim[node] = -1;
+        if (end - start <= LEAF_SIZE) {
+            return node;
+        }
+
+        int dim = 0;
+        double maxSpread = 0;
+        for (int d = 0; d < points[order[start]].length; d++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = start; i < end; i++) {
+                double value = points[order[i]][d];
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            if (max - min > maxSpread) {
+                maxSpread = max - min;
+                dim = d;
+            }
+        }
+
+        if (maxSpread == 0) { // Duplicates only.
+            return node;
+        }
+
+        for (int i = start; i < end; i++) {
+            keys[order[i]] = points[order[i]][dim];
+        }
+
+        // Left points are <= split, right ones >= split.
+        int mid = (start + end) >>> 1;
+        select(order, keys, start, end, mid);
+        splitDim[node] = dim;
+        splitValue[node] = keys[order[mid]];
+        left[node] = build(start, mid, keys);
+        right[node] = build(mid, end, keys);
+        return node;
+    }
+
+    @Override
+    Neighbors search(double[] query, int k) {
+        Neighbors neighbors = new Neighbors(Math.min(k, points.length));
+        if (points.length > 0) {
+            search(query, neighbors, 0);
+        }
+        return neighbors;
+    }
+
+    private void search(double[] query, Neighbors neighbors, int node) {
+        int dim = splitDim[node];
+        if (dim < 0) {
+            scan(query, neighbors, order, from[node], to[node]);
+            return;
+        }
+
+        double diff = query[dim] - splitValue[node];
+        search(query, neighbors, diff < 0 ? left[node] : right[node]);
+        if (Math.abs(diff) <= neighbors.worst()) {
+            search(query, neighbors, diff < 0 ? right[node] : left[node]);
+        }
+    }
+
+    KDTree(double[][] points, Metric metric) {
+        super(points, metric);
+        if (!metric.isMetric()) {
+            throw new IllegalArgumentException("KD-tree doesn't support the " + metric + " distance.");
+        }
+        int n = points.length;
+        this.order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+
+        int maxNodes = Math.max(1, 2 * n);
+        this.splitDim = new int[maxNodes];
+        this.splitValue = new double[maxNodes];
+        this.left = new int[maxNodes];
+        this.right = new int[maxNodes];
+        this.from = new int[maxNodes];
+        this.to = new int[maxNodes];
+        if (n > 0) {
+            build(0, n, new double[n]);
+        }
+    }
+}
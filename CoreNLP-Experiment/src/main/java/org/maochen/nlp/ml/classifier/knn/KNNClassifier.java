@@ -1,86 +1,274 @@
-package org.maochen.nlp.ml.classifier.knn;
-
-import org.maochen.nlp.ml.IClassifier;
-import org.maochen.nlp.ml.Tuple;
-
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
-/**
- * Simple Wrapper, Id is based on the input sequence.
- *
- * @author Maochen
- */
-public class KNNClassifier implements IClassifier {
-    public static final String DISTANCE = "distance";
-
-    private List<Tuple> trainingData;
-
-    private int k = 1;
-    private int mode = 0;
-
-    public KNNClassifier() {
-    }
-
-    /**
-     * k: k nearest neighbors. mode: 0 - EuclideanDistance, 1 - ChebyshevDistance, 2 - ManhattanDistance
-     *
-     * @param paraMap Parameters Map.
-     */
-    @Override
-    public void setParameter(Map<String, String> paraMap) {
-        if (paraMap.containsKey("k")) {
-            this.k = Integer.parseInt(paraMap.get("k"));
-        }
-        if (paraMap.containsKey("mode")) {
-            this.mode = Integer.parseInt(paraMap.get("mode"));
-        }
-    }
-
-    @Override
-    public void persistModel(String modelFile) throws IOException {
-        throw new IllegalArgumentException();
-    }
-
-    @Override
-    public void loadModel(InputStream inputStream) {
-        throw new IllegalArgumentException();
-    }
-
-    /**
-     * train() method for knn is just used for loading trainingdata!!
-     */
-    @Override
-    public IClassifier train(List<Tuple> trainingData) {
-        this.trainingData = trainingData;
-        return this;
-    }
-
-    /**
-     * Return the predict to every other train vector's distance.
-     *
-     * @return return by Id which is ordered by input sequential.
-     */
-    @Override
-    public Map<String, Double> predict(Tuple predict) {
-        KNNEngine engine = new KNNEngine(predict, trainingData, k);
-
-        if (mode == 1) {
-            engine.getDistance(engine.chebyshevDistance);
-        } else if (mode == 2) {
-            engine.getDistance(engine.manhattanDistance);
-        } else {
-            engine.getDistance(engine.euclideanDistance);
-        }
-
-        predict.label = engine.getResult();
-
-        Map<String, Double> outputMap = new ConcurrentHashMap<>();
-        trainingData.parallelStream().forEach(x -> outputMap.put(String.valueOf(x.id), (Double) x.getExtra().get(DISTANCE)));
-
-        return outputMap;
-    }
-}
+package org.maochen.nlp.ml.classifier.knn;
+
+import org.maochen.nlp.ml.IClassifier;
+import org.maochen.nlp.ml.Tuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Simple Wrapper, Id is based on the input sequence.
+ *
+ * The training vectors are copied into a KD-tree (up to KDTREE_MAX_DIMENSION dimensions) or a VP-tree in train(),
+ * predict() is an exact k nearest search and never touches the training tuples, safe to call from multiple threads.
+ * The hnsw index is an approximate search for the large high dimensional data, e.g. embeddings, and the only one for
+ * the cosine distance.
+ *
+ * @author Maochen
+ */
+public class KNNClassifier implements IClassifier {
+    private static final Logger LOG = LoggerFactory.getLogger(KNNClassifier.class);
+
+    public static final String DISTANCE = "distance";
+
+    private static final String MODEL_TYPE = "knn";
+    private static final int MODEL_VERSION = 1;
+
+    // KD-tree pruning degrades to a scan beyond this, auto index takes the VP-tree.
+    static final int KDTREE_MAX_DIMENSION = 16;
+
+    private int k = 1;
+    private int mode = 0;
+    private String index = "auto";
+
+    // HNSW only.
+    private int m = 16;
+    private int efConstruction = 200;
+    private int efSearch = 50;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private double[][] points;
+    private String[] labels;
+    private int[] ids;
+    private KNNIndex knnIndex;
+
+    public KNNClassifier() {
+    }
+
+    private static int intParameter(Properties props, String key, int value) {
+        return props.containsKey(key) ? Integer.parseInt(props.getProperty(key)) : value;
+    }
+
+    /**
+     * k: k nearest neighbors. mode: 0 - EuclideanDistance, 1 - ChebyshevDistance, 2 - ManhattanDistance, 3 -
+     * CosineDistance (1 - |cos|). index: auto, kdtree, vptree or hnsw.
+     *
+     * hnsw only: M, efConstruction, efSearch, threads (insertion threads of train()).
+     *
+     * @param props Parameters.
+     */
+    @Override
+    public void setParameter(Properties props) {
+        int k = intParameter(props, "k", this.k);
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1.");
+        }
+        int mode = intParameter(props, "mode", this.mode);
+        Metric.of(mode);
+        String index = props.getProperty("index", this.index);
+        int m = intParameter(props, "M", this.m);
+        int efConstruction = intParameter(props, "efConstruction", this.efConstruction);
+        boolean rebuild = mode != this.mode || !index.equals(this.index)
+                || m != this.m || efConstruction != this.efConstruction;
+
+        this.k = k;
+        this.mode = mode;
+        this.index = index;
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.efSearch = intParameter(props, "efSearch", efSearch);
+        this.threads = intParameter(props, "threads", threads);
+
+        if (points != null && rebuild) {
+            buildIndex();
+        } else if (knnIndex instanceof HNSWIndex) {
+            ((HNSWIndex) knnIndex).setEfSearch(efSearch);
+        }
+    }
+
+    private String resolveIndex() {
+        if (!index.equals("auto")) {
+            return index;
+        }
+        int dimension = points.length == 0 ? 0 : points[0].length;
+        if (!Metric.of(mode).isMetric()) {
+            return "hnsw";
+        }
+        return dimension <= KDTREE_MAX_DIMENSION ? "kdtree" : "vptree";
+    }
+
+    private void buildIndex() {
+        Metric metric = Metric.of(mode);
+        switch (resolveIndex()) {
+            case "kdtree":
+                knnIndex = new KDTree(points, metric);
+                break;
+            case "vptree":
+                knnIndex = new VPTree(points, metric);
+                break;
+            case "hnsw":
+                knnIndex = new HNSWIndex(points, metric, m, efConstruction, efSearch, threads, 0);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown index " + index + ", expect auto, kdtree, vptree or hnsw.");
+        }
+    }
+
+    /**
+     * Parameters and training data, and the graph for the hnsw index so it is not built again when loading.
+     */
+    @Override
+    public void persistModel(String modelFile) throws IOException {
+        if (points == null) {
+            throw new IllegalStateException("Model is not trained.");
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(modelFile)))) {
+            out.writeUTF(MODEL_TYPE);
+            out.writeInt(MODEL_VERSION);
+            out.writeInt(k);
+            out.writeInt(mode);
+            out.writeUTF(index);
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(efSearch);
+
+            int dimension = points.length == 0 ? 0 : points[0].length;
+            out.writeInt(points.length);
+            out.writeInt(dimension);
+            for (int i = 0; i < points.length; i++) {
+                out.writeInt(ids[i]);
+                out.writeUTF(labels[i]);
+                for (double value : points[i]) {
+                    out.writeDouble(value);
+                }
+            }
+
+            out.writeBoolean(knnIndex instanceof HNSWIndex);
+            if (knnIndex instanceof HNSWIndex) {
+                ((HNSWIndex) knnIndex).write(out);
+            }
+        }
+    }
+
+    @Override
+    public void loadModel(InputStream inputStream) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+            String type = in.readUTF();
+            int version = in.readInt();
+            if (!MODEL_TYPE.equals(type) || version > MODEL_VERSION) {
+                throw new IOException("Not a knn model or unsupported version: " + type + " " + version);
+            }
+
+            this.k = in.readInt();
+            this.mode = in.readInt();
+            this.index = in.readUTF();
+            this.m = in.readInt();
+            this.efConstruction = in.readInt();
+            this.efSearch = in.readInt();
+
+            int size = in.readInt();
+            int dimension = in.readInt();
+            double[][] points = new double[size][dimension];
+            String[] labels = new String[size];
+            int[] ids = new int[size];
+            for (int i = 0; i < size; i++) {
+                ids[i] = in.readInt();
+                labels[i] = in.readUTF();
+                for (int d = 0; d < dimension; d++) {
+                    points[i][d] = in.readDouble();
+                }
+            }
+
+            this.points = points;
+            this.labels = labels;
+            this.ids = ids;
+            if (in.readBoolean()) {
+                knnIndex = HNSWIndex.read(in, points, Metric.of(mode), m, efConstruction, efSearch);
+            } else {
+                buildIndex();
+            }
+        } catch (IOException e) {
+            LOG.error("Load model err.", e);
+        }
+    }
+
+    /**
+     * train() method for knn is just used for loading trainingdata!!
+     */
+    @Override
+    public IClassifier train(List<Tuple> trainingData) {
+        double[][] points = new double[trainingData.size()][];
+        String[] labels = new String[trainingData.size()];
+        int[] ids = new int[trainingData.size()];
+        for (int i = 0; i < trainingData.size(); i++) {
+            Tuple tuple = trainingData.get(i);
+            points[i] = tuple.vector.getVector().clone();
+            if (points[i].length != points[0].length) {
+                throw new IllegalArgumentException("2 Vectors must has same dimension.");
+            }
+            labels[i] = tuple.label;
+            ids[i] = tuple.id;
+        }
+
+        this.points = points;
+        this.labels = labels;
+        this.ids = ids;
+        buildIndex();
+        return this;
+    }
+
+    // Legacy scale of the reported distances, sqrt of the Chebyshev and Manhattan distance.
+    private double report(double distance) {
+        return mode == 1 || mode == 2 ? Math.sqrt(distance) : distance;
+    }
+
+    /**
+     * Return the distance of the predict to its k nearest train vectors, and set the predict label to the majority
+     * vote of them. Equal votes go to the label of the nearest one. Approximate for the hnsw index.
+     *
+     * @return return by Id, nearest first.
+     */
+    @Override
+    public Map<String, Double> predict(Tuple predict) {
+        double[] query = predict.vector.getVector();
+        if (points.length > 0 && query.length != points[0].length) {
+            throw new IllegalArgumentException("2 Vectors must has same dimension.");
+        }
+
+        Neighbors neighbors = knnIndex.search(query, k);
+        int[] nearest = neighbors.getIndices();
+        double[] distances = neighbors.getDistances();
+
+        Map<String, Integer> votes = new LinkedHashMap<>();
+        Map<String, Double> outputMap = new LinkedHashMap<>();
+        for (int i = 0; i < nearest.length; i++) {
+            votes.merge(labels[nearest[i]], 1, Integer::sum);
+            outputMap.put(String.valueOf(ids[nearest[i]]), report(distances[i]));
+        }
+
+        String maxVote = null;
+        int maxCount = 0;
+        for (Map.Entry<String, Integer> entry : votes.entrySet()) {
+            if (entry.getValue() > maxCount) {
+                maxCount = entry.getValue();
+                maxVote = entry.getKey();
+            }
+        }
+
+        predict.label = maxVote;
+        return outputMap;
+    }
+}
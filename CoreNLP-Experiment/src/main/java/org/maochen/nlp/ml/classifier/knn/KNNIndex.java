@@ -0,0 +1,67 @@
+package org.maochen.nlp.ml.classifier.knn;
+
+/**
+ * k nearest neighbor index over a fixed set of points, built once in train(). The points are not copied and must not
+ * change afterwards. Searches only read the index, safe to run from multiple threads.
+ */
+abstract class KNNIndex {
+
+    // Points per leaf, scanned linearly.
+    static final int LEAF_SIZE = 8;
+
+    final double[][] points;
+    final Metric metric;
+
+    /**
+     * @return the k nearest points of the query.
+     */
+    abstract Neighbors search(double[] query, int k);
+
+    void scan(double[] query, Neighbors neighbors, int[] order, int from, int to) {
+        for (int i = from; i < to; i++) {
+            neighbors.offer(order[i], metric.distance(query, points[order[i]]));
+        }
+    }
+
+    /**
+     * Quickselect, partially orders order[from, to) so that order[nth] has the nth smallest key, the smaller or equal
+     * keys before it and the greater or equal after.
+     *
+     * @param keys by point index.
+     */
+    static void select(int[] order, double[] keys, int from, int to, int nth) {
+        int lo = from;
+        int hi = to - 1;
+        while (lo < hi) {
+            double pivot = keys[order[(lo + hi) >>> 1]];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (keys[order[i]] < pivot) {
+                    i++;
+                }
+                while (keys[order[j]] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int tmp = order[i];
+                    order[i++] = order[j];
+                    order[j--] = tmp;
+                }
+            }
+
+            if (nth <= j) {
+                hi = j;
+            } else if (nth >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    KNNIndex(double[][] points, Metric metric) {
+        this.points = points;
+        this.metric = metric;
+    }
+}
@@ -0,0 +1,81 @@
+package org.maochen.nlp.ml.classifier.knn;
+
+import org.maochen.nlp.util.VectorOps;
+
+/**
+ * Distance between two vectors of the same dimension. Besides the cosine distance all of them are metrics, the tree
+ * indices prune with the triangle inequality and with |a[i] - b[i]| <= distance(a, b).
+ */
+enum Metric {
+    EUCLIDEAN {
+        @Override
+        double distance(double[] a, double[] b) {
+            return Math.sqrt(VectorOps.get().squaredDistance(a, b));
+        }
+    },
+
+    CHEBYSHEV {
+        @Override
+        double distance(double[] a, double[] b) {
+            double max = 0;
+            for (int i = 0; i < a.length; i++) {
+                max = Math.max(max, Math.abs(a[i] - b[i]));
+            }
+            return max;
+        }
+    },
+
+    MANHATTAN {
+        @Override
+        double distance(double[] a, double[] b) {
+            double sum = 0;
+            for (int i = 0; i < a.length; i++) {
+                sum += Math.abs(a[i] - b[i]);
+            }
+            return sum;
+        }
+    },
+
+    /**
+     * 1 - VectorUtils.getCosinValue(a, b), the cosine value is absolute. A zero vector is at distance 1 of everything.
+     */
+    COSINE {
+        @Override
+        double distance(double[] a, double[] b) {
+            double cosine = VectorOps.get().cosine(a, b);
+            return Double.isNaN(cosine) ? 1 : 1 - Math.min(1, Math.abs(cosine));
+        }
+
+        @Override
+        boolean isMetric() {
+            return false;
+        }
+    };
+
+    abstract double distance(double[] a, double[] b);
+
+    /**
+     * @return true if the distance satisfies the triangle inequality.
+     */
+    boolean isMetric() {
+        return true;
+    }
+
+    /**
+     * @param mode 0 - Euclidean, 1 - Chebyshev, 2 - Manhattan, 3 - Cosine.
+     */
+    static Metric of(int mode) {
+        switch (mode) {
+            case 0:
+                return EUCLIDEAN;
+            case 1:
+                return CHEBYSHEV;
+            case 2:
+                return MANHATTAN;
+            case 3:
+                return COSINE;
+            default:
+                throw new IllegalArgumentException("Unknown mode " + mode + ", expect 0, 1, 2 or 3.");
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.maochen.nlp.ml.classifier.knn;
+
+import java.util.Arrays;
+
+/**
+ * Bounded max heap of the k nearest points seen so far, the root is the farthest one. Ties are broken by the point
+ * index, so the result doesn't depend on the visiting order. One instance per search.
+ */
+final class Neighbors {
+
+    private final int capacity;
+    private final int[] indices;
+    private final double[] distances;
+    private int size = 0;
+    private boolean sorted = false;
+
+    private boolean farther(int a, int b) {
+        return distances[a] > distances[b] || (distances[a] == distances[b] && indices[a] > indices[b]);
+    }
+
+    private void swap(int a, int b) {
+        int index = indices[a];
+        indices[a] = indices[b];
+        indices[b] = index;
+        double distance = distances[a];
+        distances[a] = distances[b];
+        distances[b] = distance;
+    }
+
+    private void siftDown(int parent, int end) {
+        for (int child = 2 * parent + 1; child < end; parent = child, child = 2 * parent + 1) {
+            if (child + 1 < end && farther(child + 1, child)) {
+                child++;
+            }
+            if (!farther(child, parent)) {
+                return;
+            }
+            swap(child, parent);
+        }
+    }
+
+    /**
+     * @return distance of the k-th nearest point, infinite until k points are seen. Anything farther can be pruned.
+     */
+    double worst() {
+        if (capacity == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return size < capacity ? Double.POSITIVE_INFINITY : distances[0];
+    }
+
+    void offer(int index, double distance) {
+        if (size < capacity) {
+            indices[size] = index;
+            distances[size] = distance;
+            for (int child = size++, parent; child > 0 && farther(child, parent = (child - 1) / 2); child = parent) {
+                swap(child, parent);
+            }
+        } else if (size > 0 && (distance < distances[0] || (distance == distances[0] && index < indices[0]))) {
+            indices[0] = index;
+            distances[0] = distance;
+            siftDown(0, size);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Heap sort in place, nearest first. No more offers afterwards.
+    private void sort() {
+        if (!sorted) {
+            for (int end = size - 1; end > 0; end--) {
+                swap(0, end);
+                siftDown(0, end);
+            }
+            sorted = true;
+        }
+    }
+
+    /**
+     * @return point indices, nearest first.
+     */
+    int[] getIndices() {
+        sort();
+        return Arrays.copyOf(indices, size);
+    }
+
+    /**
+     * @return distances, nearest first.
+     */
+    double[] getDistances() {
+        sort();
+        return Arrays.copyOf(distances, size);
+    }
+
+    /**
+     * @param k 0 is the empty result, e.g. of an empty index.
+     */
+    Neighbors(int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must not be negative.");
+        }
+        this.capacity = k;
+        this.indices = new int[k];
+        this.distances = new double[k];
+    }
+}
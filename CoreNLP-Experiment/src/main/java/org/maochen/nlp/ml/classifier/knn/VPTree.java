@@ -0,0 +1,110 @@
+package org.maochen.nlp.ml.classifier.knn;
+
+/**
+ * Vantage point tree for the higher dimensional data, where a KD-tree ends up scanning most of its leaves. Each node
+ * picks a vantage point and splits the rest at the median distance mu to it: inside d(vp, x) <= mu, outside
+ * d(vp, x) >= mu. By the triangle inequality a query at distance d from the vantage point is at least d - mu from
+ * the inside points and mu - d from the outside ones, a side is skipped when that is farther than the k-th neighbor.
+ *
+ * Only uses the distances, so it works for any of the metrics. Nodes are kept in flat arrays, node 0 is the root.
+ */
+final class VPTree extends KNNIndex {
+
+    private final int[] order;
+
+    // Vantage point, -1 for a leaf.
+    private final int[] vantage;
+    private final double[] mu;
+    private final int[] inside;
+    private final int[] outside;
+
+    // Points of a leaf, order[from, to).
+    private final int[] from;
+    private final int[] to;
+
+    private int size = 0;
+
+    private int build(int start, int end, double[] keys) {
+        int node = size++;
+        from[node] = start;
+        to[node] = end;
+        vantage[node] = -1;
+        if (end - start <= LEAF_SIZE) {
+            return node;
+        }
+
+        // The middle point as vantage point, the input order is arbitrary so this is as good as a random pick and
+        // keeps the tree deterministic.
+        int pick = (start + end) >>> 1;
+        int vp = order[pick];
+        order[pick] = order[start];
+        order[start] = vp;
+
+        for (int i = start + 1; i < end; i++) {
+            keys[order[i]] = metric.distance(points[vp], points[order[i]]);
+        }
+
+        int mid = (start + 1 + end) >>> 1;
+        select(order, keys, start + 1, end, mid);
+        vantage[node] = vp;
+        mu[node] = keys[order[mid]];
+        inside[node] = build(start + 1, mid, keys);
+        outside[node] = build(mid, end, keys);
+        return node;
+    }
+
+    @Override
+    Neighbors search(double[] query, int k) {
+        Neighbors neighbors = new Neighbors(Math.min(k, points.length));
+        if (points.length > 0) {
+            search(query, neighbors, 0);
+        }
+        return neighbors;
+    }
+
+    private void search(double[] query, Neighbors neighbors, int node) {
+        int vp = vantage[node];
+        if (vp < 0) {
+            scan(query, neighbors, order, from[node], to[node]);
+            return;
+        }
+
+        double d = metric.distance(query, points[vp]);
+        neighbors.offer(vp, d);
+
+        if (d < mu[node]) {
+            search(query, neighbors, inside[node]);
+            if (mu[node] - d <= neighbors.worst()) {
+                search(query, neighbors, outside[node]);
+            }
+        } else {
+            search(query, neighbors, outside[node]);
+            if (d - mu[node] <= neighbors.worst()) {
+                search(query, neighbors, inside[node]);
+            }
+        }
+    }
+
+    VPTree(double[][] points, Metric metric) {
+        super(points, metric);
+        if (!metric.isMetric()) {
+            throw new IllegalArgumentException("VP-tree doesn't support the " + metric + " distance.");
+        }
+        int n = points.length;
+        this.order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+
+        int maxNodes = Math.max(1, 2 * n);
+        this.vantage = new int[maxNodes];
+        this.mu = new double[maxNodes];
+        this.inside = new int[maxNodes];
+        this.outside = new int[maxNodes];
+        this.from = new int[maxNodes];
+        this.to = new int[maxNodes];
+        if (n > 0) {
+            build(0, n, new double[n]);
+        }
+    }
+}
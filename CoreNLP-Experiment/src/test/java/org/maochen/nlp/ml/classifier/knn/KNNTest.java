@@ -4,13 +4,22 @@ import org.junit.Test;
 import org.maochen.nlp.ml.IClassifier;
 import org.maochen.nlp.ml.Tuple;
 import org.maochen.nlp.ml.vector.DenseVector;
+import org.maochen.nlp.util.VectorUtils;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by Maochen on 9/19/15.
@@ -48,11 +57,11 @@ public class KNNTest {
 
         IClassifier knn = new KNNClassifier();
         knn.train(trainList);
-        Map<String, String> paraMap = new HashMap<>();
-        paraMap.put("k", String.valueOf(k));
+        Properties paraMap = new Properties();
+        paraMap.setProperty("k", String.valueOf(k));
 
 //        System.out.println("Euclidean Distance:");
-        paraMap.put("mode", "0");
+        paraMap.setProperty("mode", "0");
         knn.setParameter(paraMap);
         Map<String, Double> details = knn.predict(predict);
         assertEquals(details.get("1"), 81.31180726069246, Double.MIN_NORMAL);
@@ -60,7 +69,7 @@ public class KNNTest {
         assertEquals(details.get("3"), 59.66246726376642, Double.MIN_NORMAL);
 
 //        System.out.println("Chebyshev Distance:");
-        paraMap.put("mode", "1");
+        paraMap.setProperty("mode", "1");
         knn.setParameter(paraMap);
         details = knn.predict(predict);
         assertEquals(details.get("1"), 8.06225774829855, Double.MIN_NORMAL);
@@ -68,11 +77,192 @@ public class KNNTest {
         assertEquals(details.get("3"), 7.416198487095663, Double.MIN_NORMAL);
 
 //        System.out.println("Manhattan Distance:");
-        paraMap.put("mode", "2");
+        paraMap.setProperty("mode", "2");
         knn.setParameter(paraMap);
         details = knn.predict(predict);
         assertEquals(details.get("1"), 11.449890829173874, Double.MIN_NORMAL);
         assertEquals(details.get("2"), 11.666190466471907, Double.MIN_NORMAL);
         assertEquals(details.get("3"), 8.893818077743664, Double.MIN_NORMAL);
     }
+
+    private static double[][] randomPoints(Random random, int n, int dimension) {
+        double[][] points = new double[n][dimension];
+        for (double[] point : points) {
+            for (int d = 0; d < dimension; d++) {
+                point[d] = Math.round(random.nextGaussian() * 4); // Coarse values, plenty of equal distances.
+            }
+        }
+        return points;
+    }
+
+    private static Neighbors bruteForce(double[][] points, double[] query, Metric metric, int k) {
+        Neighbors neighbors = new Neighbors(k);
+        for (int i = 0; i < points.length; i++) {
+            neighbors.offer(i, metric.distance(query, points[i]));
+        }
+        return neighbors;
+    }
+
+    @Test
+    public void testIndex() {
+        Random random = new Random(7);
+        int k = 5;
+        for (int dimension : new int[]{2, 24}) {
+            double[][] points = randomPoints(random, 500, dimension);
+            double[][] queries = randomPoints(random, 50, dimension);
+            for (Metric metric : new Metric[]{Metric.EUCLIDEAN, Metric.CHEBYSHEV, Metric.MANHATTAN}) {
+                KNNIndex[] indices = {new KDTree(points, metric), new VPTree(points, metric)};
+                for (double[] query : queries) {
+                    Neighbors expected = bruteForce(points, query, metric, k);
+                    int[] expectedIndices = expected.getIndices();
+                    double[] expectedDistances = expected.getDistances();
+                    for (KNNIndex index : indices) {
+                        Neighbors actual = index.search(query, k);
+                        assertArrayEquals(expectedIndices, actual.getIndices());
+                        assertArrayEquals(expectedDistances, actual.getDistances(), 0);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyIndex() {
+        double[][] points = new double[0][];
+        for (KNNIndex index : new KNNIndex[]{new KDTree(points, Metric.EUCLIDEAN), new VPTree(points, Metric.EUCLIDEAN),
+                new HNSWIndex(points, Metric.EUCLIDEAN, 16, 100, 64, 1, 0)}) {
+            Neighbors neighbors = index.search(new double[]{1, 2}, 3);
+            assertEquals(0, neighbors.size());
+            assertEquals(0, neighbors.getIndices().length);
+        }
+
+        Neighbors empty = new Neighbors(0);
+        empty.offer(0, 1);
+        assertEquals(0, empty.size());
+        assertEquals(Double.NEGATIVE_INFINITY, empty.worst(), 0);
+    }
+
+    @Test
+    public void testTopK() {
+        List<Tuple> trainList = new ArrayList<>();
+        trainList.add(new Tuple(1, new DenseVector(new double[]{0, 0}), "A"));
+        trainList.add(new Tuple(2, new DenseVector(new double[]{10, 10}), "B"));
+        trainList.add(new Tuple(3, new DenseVector(new double[]{11, 10}), "B"));
+        trainList.add(new Tuple(4, new DenseVector(new double[]{1, 0}), "A"));
+        trainList.add(new Tuple(5, new DenseVector(new double[]{0, 2}), "A"));
+
+        Properties props = new Properties();
+        props.setProperty("k", "3");
+        IClassifier knn = new KNNClassifier();
+        knn.setParameter(props);
+        knn.train(trainList);
+
+        // The first 3 in insertion order would vote B.
+        Tuple predict = new Tuple(new double[]{0.5, 0.5});
+        Map<String, Double> details = knn.predict(predict);
+        assertEquals("A", predict.label);
+        assertArrayEquals(new String[]{"1", "4", "5"}, details.keySet().toArray(new String[0]));
+
+        for (Tuple tuple : trainList) {
+            assertNull(tuple.getExtra());
+        }
+
+        // Equal votes, nearest one wins.
+        props.setProperty("k", "2");
+        props.setProperty("index", "vptree");
+        knn.setParameter(props);
+        predict = new Tuple(new double[]{7, 7});
+        knn.predict(predict);
+        assertEquals("B", predict.label);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidK() {
+        Properties props = new Properties();
+        props.setProperty("k", "0");
+        new KNNClassifier().setParameter(props);
+    }
+
+    @Test
+    public void testCosine() {
+        Random random = new Random(3);
+        double[][] points = randomPoints(random, 20, 5);
+        for (double[] a : points) {
+            for (double[] b : points) {
+                if (VectorUtils.vectorLen(a) > 0 && VectorUtils.vectorLen(b) > 0) {
+                    assertEquals(1 - VectorUtils.getCosinValue(a, b), Metric.COSINE.distance(a, b), 1e-12);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testHNSW() {
+        Random random = new Random(11);
+        int k = 10;
+        double[][] points = new double[2000][32];
+        for (double[] point : points) {
+            for (int d = 0; d < point.length; d++) {
+                point[d] = random.nextGaussian();
+            }
+        }
+
+        for (Metric metric : new Metric[]{Metric.EUCLIDEAN, Metric.COSINE}) {
+            HNSWIndex index = new HNSWIndex(points, metric, 16, 100, 64, 4, 0);
+            int found = 0;
+            for (int q = 0; q < 50; q++) {
+                double[] query = points[random.nextInt(points.length)].clone();
+                query[0] += 0.1;
+                List<Integer> expected = new ArrayList<>();
+                for (int i : bruteForce(points, query, metric, k).getIndices()) {
+                    expected.add(i);
+                }
+                for (int i : index.search(query, k).getIndices()) {
+                    found += expected.contains(i) ? 1 : 0;
+                }
+            }
+            double recall = found / (50.0 * k);
+            assertTrue(metric + " recall " + recall, recall > 0.9);
+        }
+    }
+
+    @Test
+    public void testPersistModel() throws IOException {
+        Random random = new Random(5);
+        List<Tuple> trainList = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            double[] point = new double[20];
+            for (int d = 0; d < point.length; d++) {
+                point[d] = random.nextGaussian();
+            }
+            trainList.add(new Tuple(i, new DenseVector(point), point[0] > 0 ? "P" : "N"));
+        }
+
+        Properties props = new Properties();
+        props.setProperty("k", "5");
+        props.setProperty("mode", "3");
+        props.setProperty("M", "8");
+        props.setProperty("threads", "2");
+        KNNClassifier knn = new KNNClassifier();
+        knn.setParameter(props);
+        knn.train(trainList);
+
+        File modelFile = File.createTempFile("knn", ".model");
+        modelFile.deleteOnExit();
+        knn.persistModel(modelFile.getAbsolutePath());
+
+        KNNClassifier loaded = new KNNClassifier();
+        try (InputStream in = new FileInputStream(modelFile)) {
+            loaded.loadModel(in);
+        }
+
+        for (int i = 0; i < 20; i++) {
+            double[] point = trainList.get(i).vector.getVector().clone();
+            point[1] += 0.05;
+            Tuple expected = new Tuple(point);
+            Tuple actual = new Tuple(point);
+            assertEquals(knn.predict(expected), loaded.predict(actual));
+            assertEquals(expected.label, actual.label);
+        }
+    }
 }
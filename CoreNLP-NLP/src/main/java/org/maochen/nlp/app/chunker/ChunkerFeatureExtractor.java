@@ -1,9 +1,12 @@
 package org.maochen.nlp.app.chunker;
 
 import org.maochen.nlp.app.featextractor.BrownFeatExtractor;
+import org.maochen.nlp.app.featextractor.FeatCollector;
+import org.maochen.nlp.app.featextractor.FeatIdCollector;
 import org.maochen.nlp.app.featextractor.IFeatureExtractor;
 import org.maochen.nlp.ml.SequenceTuple;
 import org.maochen.nlp.ml.Tuple;
+import org.maochen.nlp.ml.vector.FeatDictionary;
 import org.maochen.nlp.ml.vector.FeatNamedVector;
 
 import java.util.ArrayList;
@@ -23,37 +26,44 @@ public class ChunkerFeatureExtractor implements IFeatureExtractor {
     public static final int WORD_INDEX = 0;
     public static final int POS_INDEX = 1;
 
-    // Feats from http://www.aclweb.org/anthology/P10-1040
-    public List<String> extractFeatSingle(int i, final String[] tokens, final String[] pos) {
-        List<String> currentFeats = new ArrayList<>();
+    // [-2,2] window keys, avoid building "w" + offset per token.
+    private static final String[] WORD_KEYS = new String[]{"w-2", "w-1", "w0", "w1", "w2"};
+    private static final String[] POS_KEYS = new String[]{"pos-2", "pos-1", "pos0", "pos1", "pos2"};
 
+    // Feats from http://www.aclweb.org/anthology/P10-1040
+    public void extractFeatSingle(int i, final String[] tokens, final String[] pos, final FeatCollector collector) {
         for (int index = Math.max(0, i - 2); index < Math.min(i + 3, tokens.length); index++) { // [-2,2]
-            IFeatureExtractor.addFeat(currentFeats, "w" + (index - i), tokens[index]);
-            IFeatureExtractor.addFeat(currentFeats, "pos" + (index - i), pos[index]);
+            collector.add(WORD_KEYS[index - i + 2], tokens[index]);
+            collector.add(POS_KEYS[index - i + 2], pos[index]);
 
             if (index == i - 1) {
-                IFeatureExtractor.addFeat(currentFeats, "w-10", tokens[i - 1], tokens[i]);
-                IFeatureExtractor.addFeat(currentFeats, "pos-10", pos[i - 1], pos[i]);
+                collector.add("w-10", tokens[i - 1], tokens[i]);
+                collector.add("pos-10", pos[i - 1], pos[i]);
             } else if (index == i + 1) {
-                IFeatureExtractor.addFeat(currentFeats, "w0+1", tokens[i], tokens[i + 1]);
-                IFeatureExtractor.addFeat(currentFeats, "pos0+1", pos[i], pos[i + 1]);
+                collector.add("w0+1", tokens[i], tokens[i + 1]);
+                collector.add("pos0+1", pos[i], pos[i + 1]);
             } else if (index == i - 2) {
-                IFeatureExtractor.addFeat(currentFeats, "pos-2-1", pos[i - 2], pos[i - 1]);
-                IFeatureExtractor.addFeat(currentFeats, "pos-2-10", pos[i - 2], pos[i - 1], pos[i]);
+                collector.add("pos-2-1", pos[i - 2], pos[i - 1]);
+                collector.add("pos-2-10", pos[i - 2], pos[i - 1], pos[i]);
             } else if (index == i + 2) {
-                IFeatureExtractor.addFeat(currentFeats, "pos+1+2", pos[i + 1], pos[i + 2]);
+                collector.add("pos+1+2", pos[i + 1], pos[i + 2]);
             }
 
             if (index == i - 1 && i < tokens.length - 1) {
-                IFeatureExtractor.addFeat(currentFeats, "pos-10+1", pos[i - 1], pos[i], pos[i + 1]);
+                collector.add("pos-10+1", pos[i - 1], pos[i], pos[i + 1]);
             }
 
             if (index == i + 2) {
-                IFeatureExtractor.addFeat(currentFeats, "pos0+1+2", pos[i], pos[i + 1], pos[i + 2]);
+                collector.add("pos0+1+2", pos[i], pos[i + 1], pos[i + 2]);
             }
         }
 
-        currentFeats.addAll(BrownFeatExtractor.extractBrownFeat(i, -2, 2, tokens));
+        BrownFeatExtractor.extractBrownFeat(i, -2, 2, tokens, collector);
+    }
+
+    public List<String> extractFeatSingle(int i, final String[] tokens, final String[] pos) {
+        List<String> currentFeats = new ArrayList<>();
+        extractFeatSingle(i, tokens, pos, (key, val) -> IFeatureExtractor.addFeat(currentFeats, key, val));
         return currentFeats;
     }
 
@@ -82,4 +92,26 @@ public class ChunkerFeatureExtractor implements IFeatureExtractor {
 
         return tuples;
     }
+
+    @Override
+    public List<Tuple> extractFeat(final SequenceTuple entry, final FeatDictionary dictionary) {
+        String[] tokens = new String[entry.entries.size()];
+        String[] pos = new String[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            String[] featsName = ((FeatNamedVector) entry.entries.get(i).vector).featsName;
+            tokens[i] = featsName[WORD_INDEX];
+            pos[i] = featsName[POS_INDEX];
+        }
+
+        FeatIdCollector collector = new FeatIdCollector(dictionary);
+        List<Tuple> tuples = new ArrayList<>(tokens.length);
+        for (int i = 0; i < tokens.length; i++) {
+            extractFeatSingle(i, tokens, pos, collector);
+            Tuple t = new Tuple(collector.build());
+            t.label = entry.entries.get(i).label;
+            tuples.add(t);
+        }
+
+        return tuples;
+    }
 }
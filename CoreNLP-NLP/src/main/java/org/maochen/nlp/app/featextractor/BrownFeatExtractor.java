@@ -10,22 +10,27 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Created by Maochen on 2/22/16.
  */
 public class BrownFeatExtractor {
 
-    private static Map<String, String> BROWN_CLUSTER = new HashMap<>();
+    private static int[] BROWN_PREFIX = new int[]{4, 6, 10, 20};
+
+    // k: word - v: cluster Id prefixes by BROWN_PREFIX, one array per cluster.
+    private static Map<String, String[]> BROWN_CLUSTER = new HashMap<>();
 
     static {
+        Map<String, String[]> prefixes = new HashMap<>();
         try (BufferedReader br = new BufferedReader(new InputStreamReader(BrownFeatExtractor.class.getResourceAsStream("/brown.rcv1.3200.txt")))) {
             String line = br.readLine();
 
             while (line != null) {
                 String[] fields = line.split("\\s");
 
-                BROWN_CLUSTER.put(fields[1], fields[0]);
+                BROWN_CLUSTER.put(fields[1], prefixes.computeIfAbsent(fields[0], BrownFeatExtractor::prefixes));
                 line = br.readLine();
             }
         } catch (IOException e) {
@@ -33,7 +38,29 @@ public class BrownFeatExtractor {
         }
     }
 
-    private static int[] BROWN_PREFIX = new int[]{4, 6, 10, 20};
+    // Window offsets with the feat keys precomputed, the others are built per token.
+    private static final int MAX_OFFSET = 5;
+
+    // FEAT_KEYS[p][offset + MAX_OFFSET] is "brown_" + BROWN_PREFIX[p] + "_" + offset.
+    private static final String[][] FEAT_KEYS = new String[BROWN_PREFIX.length][2 * MAX_OFFSET + 1];
+
+    static {
+        for (int p = 0; p < BROWN_PREFIX.length; p++) {
+            for (int offset = -MAX_OFFSET; offset <= MAX_OFFSET; offset++) {
+                FEAT_KEYS[p][offset + MAX_OFFSET] = "brown_" + BROWN_PREFIX[p] + "_" + offset;
+            }
+        }
+    }
+
+    private static String[] prefixes(String clusterId) {
+        return Arrays.stream(BROWN_PREFIX)
+                .mapToObj(p -> clusterId.substring(0, Math.min(p, clusterId.length())))
+                .toArray(String[]::new);
+    }
+
+    private static String featKey(int p, int offset) {
+        return Math.abs(offset) <= MAX_OFFSET ? FEAT_KEYS[p][offset + MAX_OFFSET] : "brown_" + BROWN_PREFIX[p] + "_" + offset;
+    }
 
     // k: feat key - v: cluster Id
     public static Map<String, String> extractBrownFeat(String word) {
@@ -41,30 +68,31 @@ public class BrownFeatExtractor {
             return new HashMap<>();
         }
 
-        String clusterId = BROWN_CLUSTER.get(word);
+        String[] prefixes = BROWN_CLUSTER.get(word);
 
-        return Arrays.stream(BROWN_PREFIX).mapToObj(p -> {
-            int end = Math.min(p, clusterId.length());
-            return new AbstractMap.SimpleEntry<>("brown_" + p, clusterId.substring(0, end));
-        }).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        return IntStream.range(0, BROWN_PREFIX.length)
+                .mapToObj(p -> new AbstractMap.SimpleEntry<>("brown_" + BROWN_PREFIX[p], prefixes[p]))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
 
     }
 
 
     public static List<String> extractBrownFeat(int currentIndex, int negOffset, int posOffset, String[] tokens) {
-
         List<String> currentFeats = new ArrayList<>();
+        extractBrownFeat(currentIndex, negOffset, posOffset, tokens, (key, val) -> IFeatureExtractor.addFeat(currentFeats, key, val));
+        return currentFeats;
+    }
 
+    public static void extractBrownFeat(int currentIndex, int negOffset, int posOffset, String[] tokens, FeatCollector collector) {
         for (int index = Math.max(0, currentIndex + negOffset); index < Math.min(currentIndex + posOffset + 1, tokens.length); index++) {
+            String[] prefixes = BROWN_CLUSTER.get(tokens[index]);
+            if (prefixes == null) {
+                continue;
+            }
 
-            Map<String, String> feats = BrownFeatExtractor.extractBrownFeat(tokens[index]);
-
-            final int finalIndex = index;
-            feats.entrySet().stream().forEach(entry -> {
-                IFeatureExtractor.addFeat(currentFeats, entry.getKey() + "_" + (finalIndex - currentIndex), entry.getValue());
-            });
+            for (int p = 0; p < BROWN_PREFIX.length; p++) {
+                collector.add(featKey(p, index - currentIndex), prefixes[p]);
+            }
         }
-
-        return currentFeats;
     }
 }
@@ -0,0 +1,10 @@
+package org.maochen.nlp.app.featextractor;
+
+/**
+ * Receiver of a feature template, entry is key=val1_val2... or key alone. Lets the same template code build feature
+ * strings or dictionary ids.
+ */
+@FunctionalInterface
+public interface FeatCollector {
+    void add(String key, String... val);
+}
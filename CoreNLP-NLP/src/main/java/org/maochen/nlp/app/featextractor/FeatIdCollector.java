@@ -0,0 +1,52 @@
+package org.maochen.nlp.app.featextractor;
+
+import org.maochen.nlp.ml.vector.FeatDictionary;
+import org.maochen.nlp.ml.vector.FeatIdVector;
+
+import java.util.Arrays;
+
+/**
+ * Resolves features into dictionary ids. The feature key is assembled in a reused StringBuilder, so no feature string
+ * is created unless the dictionary sees a new one. Not thread safe, use one per thread.
+ */
+public class FeatIdCollector implements FeatCollector {
+
+    private final FeatDictionary dictionary;
+
+    private final StringBuilder builder = new StringBuilder();
+
+    private int[] ids = new int[64];
+    private int count = 0;
+
+    @Override
+    public void add(String key, String... val) {
+        builder.setLength(0);
+        builder.append(key);
+        for (int i = 0; i < val.length; i++) {
+            builder.append(i == 0 ? '=' : '_').append(val[i]);
+        }
+
+        int id = dictionary.getOrAdd(builder);
+        if (id == FeatDictionary.NOT_FOUND) { // Frozen dictionary, unseen feat.
+            return;
+        }
+
+        if (count == ids.length) {
+            ids = Arrays.copyOf(ids, count * 2);
+        }
+        ids[count++] = id;
+    }
+
+    /**
+     * Vector of the features collected since the last call, then reset.
+     */
+    public FeatIdVector build() {
+        FeatIdVector vector = new FeatIdVector(dictionary, ids, count);
+        count = 0;
+        return vector;
+    }
+
+    public FeatIdCollector(FeatDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+}
@@ -2,6 +2,7 @@ package org.maochen.nlp.app.featextractor;
 
 import org.maochen.nlp.ml.SequenceTuple;
 import org.maochen.nlp.ml.Tuple;
+import org.maochen.nlp.ml.vector.FeatDictionary;
 
 import java.util.Arrays;
 import java.util.List;
@@ -12,6 +13,12 @@ import java.util.List;
 public interface IFeatureExtractor {
     List<Tuple> extractFeat(final SequenceTuple entry);
 
+    /**
+     * Same feats as extractFeat, but emitted as FeatIdVector ids from the dictionary. With a frozen dictionary unseen
+     * feats are dropped.
+     */
+    List<Tuple> extractFeat(final SequenceTuple entry, final FeatDictionary dictionary);
+
     static void addFeat(List<String> feat, String key, String... val) {
         String entry = Arrays.stream(val).reduce((v1, v2) -> v1 + "_" + v2).orElse(null);
 
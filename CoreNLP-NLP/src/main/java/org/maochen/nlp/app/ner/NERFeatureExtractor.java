@@ -1,9 +1,12 @@
 package org.maochen.nlp.app.ner;
 
 import org.maochen.nlp.app.featextractor.BrownFeatExtractor;
+import org.maochen.nlp.app.featextractor.FeatCollector;
+import org.maochen.nlp.app.featextractor.FeatIdCollector;
 import org.maochen.nlp.app.featextractor.IFeatureExtractor;
 import org.maochen.nlp.ml.SequenceTuple;
 import org.maochen.nlp.ml.Tuple;
+import org.maochen.nlp.ml.vector.FeatDictionary;
 import org.maochen.nlp.ml.vector.FeatNamedVector;
 
 import java.util.ArrayList;
@@ -29,48 +32,57 @@ public class NERFeatureExtractor implements IFeatureExtractor {
         return stringBuilder.toString().trim();
     }
 
-    public List<String> extractFeatSingle(int i, final String[] tokens) {
+    private static final String[] WORD_KEYS = new String[]{"w-2", "w-1", "w0", "w1", "w2"};
 
-        List<String> currentFeats = new ArrayList<>();
+    private static final Pattern DIGIT = Pattern.compile("\\d+");
+    private static final Pattern TWO_DIGIT = Pattern.compile("\\d{2}");
+    private static final Pattern FOUR_DIGIT = Pattern.compile("\\d{4}");
+    private static final Pattern CHAR = Pattern.compile("[%|,|.|/|-]");
 
+    public void extractFeatSingle(int i, final String[] tokens, final FeatCollector collector) {
         for (int index = Math.max(0, i - 2); index < Math.min(i + 3, tokens.length); index++) { // [-2,2]
-            IFeatureExtractor.addFeat(currentFeats, "w" + (index - i), tokens[index]);
-            IFeatureExtractor.addFeat(currentFeats, "word_length", String.valueOf(tokens[index].length()));
-            IFeatureExtractor.addFeat(currentFeats, "word_shape", getWordShape(tokens[index]));
+            collector.add(WORD_KEYS[index - i + 2], tokens[index]);
+            collector.add("word_length", String.valueOf(tokens[index].length()));
+            collector.add("word_shape", getWordShape(tokens[index]));
 
-            boolean containsDigit = Pattern.compile("\\d+").matcher(tokens[index]).find();
-            boolean containsTwoDigit = Pattern.compile("\\d{2}").matcher(tokens[index]).find();
-            boolean containsFourDigit = Pattern.compile("\\d{4}").matcher(tokens[index]).find();
+            boolean containsDigit = DIGIT.matcher(tokens[index]).find();
+            boolean containsTwoDigit = TWO_DIGIT.matcher(tokens[index]).find();
+            boolean containsFourDigit = FOUR_DIGIT.matcher(tokens[index]).find();
 
-            boolean containsChar = Pattern.compile("[%|,|.|/|-]").matcher(tokens[index]).find();
+            boolean containsChar = CHAR.matcher(tokens[index]).find();
             boolean containsDigitCharacter = containsChar && containsDigit;
 
             if (containsChar) {
-                IFeatureExtractor.addFeat(currentFeats, "contains_char");
+                collector.add("contains_char");
             }
 
             if (containsDigit) {
-                IFeatureExtractor.addFeat(currentFeats, "contains_digit");
+                collector.add("contains_digit");
             }
             if (containsTwoDigit) {
-                IFeatureExtractor.addFeat(currentFeats, "contains_two_digit");
+                collector.add("contains_two_digit");
             }
 
             if (containsFourDigit) {
-                IFeatureExtractor.addFeat(currentFeats, "contains_four_digit");
+                collector.add("contains_four_digit");
             }
             if (containsDigitCharacter) {
-                IFeatureExtractor.addFeat(currentFeats, "contains_digit_char");
+                collector.add("contains_digit_char");
             }
 
             if (index == i - 1) {
-                IFeatureExtractor.addFeat(currentFeats, "w-10", tokens[i - 1], tokens[i]);
+                collector.add("w-10", tokens[i - 1], tokens[i]);
             } else if (index == i + 1) {
-                IFeatureExtractor.addFeat(currentFeats, "w0+1", tokens[i], tokens[i + 1]);
+                collector.add("w0+1", tokens[i], tokens[i + 1]);
             }
         }
 
-        currentFeats.addAll(BrownFeatExtractor.extractBrownFeat(i, -2, 2, tokens));
+        BrownFeatExtractor.extractBrownFeat(i, -2, 2, tokens, collector);
+    }
+
+    public List<String> extractFeatSingle(int i, final String[] tokens) {
+        List<String> currentFeats = new ArrayList<>();
+        extractFeatSingle(i, tokens, (key, val) -> IFeatureExtractor.addFeat(currentFeats, key, val));
         return currentFeats;
     }
 
@@ -97,4 +109,23 @@ public class NERFeatureExtractor implements IFeatureExtractor {
 
         return tuples;
     }
+
+    @Override
+    public List<Tuple> extractFeat(final SequenceTuple entry, final FeatDictionary dictionary) {
+        String[] tokens = new String[entry.entries.size()];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = ((FeatNamedVector) entry.entries.get(i).vector).featsName[0];
+        }
+
+        FeatIdCollector collector = new FeatIdCollector(dictionary);
+        List<Tuple> tuples = new ArrayList<>(tokens.length);
+        for (int i = 0; i < tokens.length; i++) {
+            extractFeatSingle(i, tokens, collector);
+            Tuple t = new Tuple(collector.build());
+            t.label = entry.entries.get(i).label;
+            tuples.add(t);
+        }
+
+        return tuples;
+    }
 }
@@ -67,8 +67,9 @@ public class SentenceTypeTagger extends MaxEntClassifier implements ITagger {
 
     private double simpleValidator(List<Tuple> trainingData) {
         int wrongCount = 0;
+        String[] labels = getLabels();
         for (Tuple tuple : trainingData) {
-            String actualLabel = super.predict(tuple).entrySet().stream().max((t1, t2) -> t1.getValue().compareTo(t2.getValue())).map(Map.Entry::getKey).orElse(null);
+            String actualLabel = labels[predictArgmax(tuple)];
             if (!tuple.label.equals(actualLabel)) {
                 LOG.info("Wrong Predicted sample: Expected[" + tuple.label + "]\tActual[" + actualLabel + "] -> " + tuple.getExtra().get("sentence"));
                 wrongCount++;
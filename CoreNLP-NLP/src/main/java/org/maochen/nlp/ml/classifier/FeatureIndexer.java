@@ -41,7 +41,7 @@ public class FeatureIndexer {
                 String[] featNameFields = featureVector.featsName[j].split("=");
                 String featName = featNameFields[0];
                 try {
-                    double featVal = featNameFields.length < 2 ? featureVector.getVector()[j] : Double.parseDouble(featNameFields[1]);
+                    double featVal = featNameFields.length < 2 ? featureVector.get(j) : Double.parseDouble(featNameFields[1]);
                     int featIndex = nameIndexMap.get(featName);
                     vector[featIndex] = featVal;
                 }catch (Exception e){
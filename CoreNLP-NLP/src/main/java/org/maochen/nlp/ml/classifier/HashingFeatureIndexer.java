@@ -0,0 +1,107 @@
+package org.maochen.nlp.ml.classifier;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import org.maochen.nlp.ml.vector.FeatNamedVector;
+import org.maochen.nlp.ml.vector.SparseVector;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashing trick alternative to FeatureIndexer. Feature names are hashed (murmur3 over the UTF-8 bytes) into a fixed
+ * number of 2^bits buckets, so there is no dictionary and memory doesn't grow with the vocabulary. One more hash bit
+ * decides the sign of the value, which keeps collisions unbiased in expectation.
+ *
+ * The whole feature name is hashed, use FeatNamedVector(feats, "=") if the values are encoded in the names.
+ */
+public class HashingFeatureIndexer {
+
+    public static final int DEFAULT_BITS = 18;
+
+    private final int bits;
+    private final int mask;
+    private final HashFunction hashFunction;
+
+    public int getBits() {
+        return bits;
+    }
+
+    /**
+     * @return dimension of the hashed vectors.
+     */
+    public int getNumBuckets() {
+        return mask + 1;
+    }
+
+    /**
+     * @return bucket index of the feature, with the sign encoded as (index + 1) * sign.
+     */
+    private int hash(String featName) {
+        int h = hashFunction.hashString(featName, StandardCharsets.UTF_8).asInt();
+        int index = h & mask;
+        return h < 0 ? -(index + 1) : index + 1; // Top bit is the sign, never overlaps the index bits (bits <= 30).
+    }
+
+    /**
+     * This method should only be used for debug purpose, different names may share the same index.
+     *
+     * @return bucket index of the feature name.
+     */
+    public int getIndex(String featName) {
+        return Math.abs(hash(featName)) - 1;
+    }
+
+    public SparseVector transform(FeatNamedVector featureVector) {
+        SparseVector.Builder builder = new SparseVector.Builder(getNumBuckets());
+        for (int i = 0; i < featureVector.featsName.length; i++) {
+            int h = hash(featureVector.featsName[i]);
+            double val = featureVector.get(i);
+            if (h < 0) {
+                builder.add(-h - 1, -val);
+            } else {
+                builder.add(h - 1, val);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Single pass over the samples, each sample is hashed independently.
+     */
+    public List<SparseVector> process(List<FeatNamedVector> trainingSamples) {
+        if (trainingSamples == null) {
+            throw new RuntimeException("Training samples is null.");
+        }
+
+        List<SparseVector> vectors = new ArrayList<>(trainingSamples.size());
+        for (FeatNamedVector featureVector : trainingSamples) {
+            vectors.add(transform(featureVector));
+        }
+        return vectors;
+    }
+
+    public HashingFeatureIndexer() {
+        this(DEFAULT_BITS);
+    }
+
+    public HashingFeatureIndexer(int bits) {
+        this(bits, 0);
+    }
+
+    /**
+     * @param bits number of index bits, the vector dimension is 2^bits. Within [1, 30].
+     * @param seed murmur3 seed, the same seed must be used for training and prediction.
+     */
+    public HashingFeatureIndexer(int bits, int seed) {
+        if (bits < 1 || bits > 30) {
+            throw new IllegalArgumentException("bits must be within [1, 30]: " + bits);
+        }
+
+        this.bits = bits;
+        this.mask = (1 << bits) - 1;
+        this.hashFunction = Hashing.murmur3_32(seed);
+    }
+}
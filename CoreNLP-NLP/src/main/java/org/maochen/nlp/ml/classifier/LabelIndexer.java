@@ -34,6 +34,15 @@ public class LabelIndexer {
                 .forEachOrdered(i -> labelIndexer.put(labels.get(i), maxIndex + 1 + i));
     }
 
+    /**
+     * @return labels ordered by index.
+     */
+    public String[] getLabels() {
+        String[] labels = new String[labelIndexer.size()];
+        labelIndexer.forEach((label, index) -> labels[index] = label);
+        return labels;
+    }
+
     public boolean hasLabel(String label) {
         return labelIndexer.containsKey(label);
     }
@@ -73,6 +82,13 @@ public class LabelIndexer {
         LOG.info("Successfully loaded " + labelIndexer.size() + " indices.");
     }
 
+    /**
+     * @param labels distinct labels.
+     */
+    public LabelIndexer(final String[] labels) {
+        putByLabels(new ArrayList<>(Arrays.asList(labels)));
+    }
+
     public LabelIndexer(final List<Tuple> trainingData) {
         List<String> labels = trainingData.parallelStream().map(tuple -> tuple.label).distinct().collect(Collectors.toList());
         putByLabels(labels);
@@ -6,6 +6,7 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.maochen.nlp.ml.ISeqClassifier;
 import org.maochen.nlp.ml.SequenceTuple;
 import org.maochen.nlp.ml.Tuple;
+import org.maochen.nlp.ml.vector.FeatIdVector;
 import org.maochen.nlp.ml.vector.FeatNamedVector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -64,13 +65,24 @@ public class CRFClassifier implements ISeqClassifier {
         for (Tuple t : sequenceTuple.entries) {
             // Add item which is a list of attributes
             Item item = new Item();
-            for (int i = 0; i < t.vector.getVector().length; i++) {
+            if (t.vector instanceof FeatIdVector) { // Only the stored feats, names come from the dictionary.
+                FeatIdVector v = (FeatIdVector) t.vector;
+                String[] names = v.getFeatNames();
+                double[] values = v.getValues();
+                for (int i = 0; i < names.length; i++) {
+                    item.add(new Attribute(names[i], values[i]));
+                }
+                xseq.add(item);
+                continue;
+            }
+
+            for (int i = 0; i < t.vector.size(); i++) {
                 Attribute attr;
 
                 if (t.vector instanceof FeatNamedVector) {
                     attr = new Attribute(((FeatNamedVector) t.vector).featsName[i]);
                 } else {
-                    attr = new Attribute(String.valueOf(i), t.vector.getVector()[i]);
+                    attr = new Attribute(String.valueOf(i), t.vector.get(i));
                 }
 
                 item.add(attr);
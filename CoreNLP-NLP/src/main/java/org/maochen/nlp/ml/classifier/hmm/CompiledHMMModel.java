@@ -0,0 +1,181 @@
+package org.maochen.nlp.ml.classifier.hmm;
+
+import org.maochen.nlp.ml.util.ModelContainer;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * HMMModel compiled for tagging. Tags and words are mapped to ints, the transitions are a dense log probability
+ * matrix logTransition[prev * numTags + tag], the emissions a sparse row of (tag, log probability) per word in CSR.
+ * Zero probabilities are -Infinity.
+ *
+ * Saved as a binary ModelContainer, a fraction of the serialized Table. Immutable once built, safe to share between
+ * threads.
+ */
+public final class CompiledHMMModel {
+
+    static final String MODEL_TYPE = "hmm";
+
+    // ASCII punctuation, same as \p{Punct}.
+    private static final boolean[] PUNCT = new boolean[128];
+
+    static {
+        for (char c : "!\"#$%&'()*+,-./:;<=>?@[\\]^_`{|}~".toCharArray()) {
+            PUNCT[c] = true;
+        }
+    }
+
+    // START is 0, END is the last one.
+    final String[] tags;
+    final int numTags;
+    final int start;
+    final int end;
+    private final Map<String, Integer> tagIndex = new HashMap<>();
+
+    private final String[] words;
+    private final Map<String, Integer> wordIndex = new HashMap<>();
+
+    final double[] logTransition;
+
+    // Tags of word w are emissionTag[emissionStart[w] ... emissionStart[w + 1]].
+    final int[] emissionStart;
+    final int[] emissionTag;
+    final double[] logEmission;
+
+    // Per tag, for the OOV words.
+    final double[] logEmissionMin;
+
+    // Tags with a punctuation char, not given to the OOV words without one.
+    final boolean[] punctTag;
+
+    // Has a punct char.
+    static boolean isPunct(String str) {
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < PUNCT.length && PUNCT[c]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return word index, -1 if OOV.
+     */
+    int getWordIndex(String word) {
+        Integer index = wordIndex.get(word);
+        return index == null ? -1 : index;
+    }
+
+    public String getTag(int index) {
+        return tags[index];
+    }
+
+    public String[] getTags() {
+        return tags.clone();
+    }
+
+    private static int[] getIntArray(ModelContainer container, String name) {
+        IntBuffer buffer = container.getInts(name);
+        int[] values = new int[buffer.remaining()];
+        buffer.get(values);
+        return values;
+    }
+
+    private static double log(Double probability) {
+        return probability == null ? Double.NEGATIVE_INFINITY : Math.log(probability);
+    }
+
+    /**
+     * Label table, word table and the probability blocks. Read back by the ModelContainer constructor.
+     */
+    void write(ModelContainer.Writer writer) {
+        writer.putStrings("tags", tags);
+        writer.putStrings("words", words);
+        writer.putDoubles("transition", logTransition);
+        writer.putInts("emission_start", emissionStart);
+        writer.putInts("emission_tag", emissionTag);
+        writer.putDoubles("emission", logEmission);
+        writer.putDoubles("emission_min", logEmissionMin);
+    }
+
+    private void buildIndex() {
+        for (int i = 0; i < tags.length; i++) {
+            tagIndex.put(tags[i], i);
+        }
+        for (int i = 0; i < words.length; i++) {
+            wordIndex.put(words[i], i);
+        }
+        for (int i = 0; i < numTags; i++) {
+            punctTag[i] = isPunct(tags[i]);
+        }
+    }
+
+    public CompiledHMMModel(HMMModel model) {
+        Set<String> tagSet = new TreeSet<>(model.emission.columnKeySet());
+        tagSet.addAll(model.transition.rowKeySet());
+        tagSet.addAll(model.transition.columnKeySet());
+        tagSet.remove(HMM.START);
+        tagSet.remove(HMM.END);
+
+        this.numTags = tagSet.size() + 2;
+        this.tags = new String[numTags];
+        this.start = 0;
+        this.end = numTags - 1;
+        tags[start] = HMM.START;
+        tags[end] = HMM.END;
+        int t = 1;
+        for (String tag : tagSet) {
+            tags[t++] = tag;
+        }
+
+        this.words = model.emission.rowKeySet().stream().sorted().toArray(String[]::new);
+        this.punctTag = new boolean[numTags];
+        buildIndex();
+
+        this.logTransition = new double[numTags * numTags];
+        Arrays.fill(logTransition, Double.NEGATIVE_INFINITY);
+        model.transition.cellSet().forEach(cell -> logTransition[tagIndex.get(cell.getRowKey()) * numTags
+                + tagIndex.get(cell.getColumnKey())] = log(cell.getValue()));
+
+        this.emissionStart = new int[words.length + 1];
+        this.emissionTag = new int[model.emission.size()];
+        this.logEmission = new double[emissionTag.length];
+        for (int w = 0, k = 0; w < words.length; w++) {
+            for (Map.Entry<String, Double> entry : model.emission.row(words[w]).entrySet()) {
+                emissionTag[k] = tagIndex.get(entry.getKey());
+                logEmission[k++] = log(entry.getValue());
+            }
+            emissionStart[w + 1] = k;
+        }
+
+        this.logEmissionMin = new double[numTags];
+        for (int i = 0; i < numTags; i++) {
+            logEmissionMin[i] = log(model.emissionMin.get(tags[i]));
+        }
+    }
+
+    /**
+     * The tables are read into the heap, they are scanned for every word.
+     */
+    CompiledHMMModel(ModelContainer container) {
+        this.tags = container.getStrings("tags");
+        this.numTags = tags.length;
+        this.start = 0;
+        this.end = numTags - 1;
+        this.words = container.getStrings("words");
+        this.punctTag = new boolean[numTags];
+        buildIndex();
+
+        this.logTransition = container.getDoubleArray("transition");
+        this.emissionStart = getIntArray(container, "emission_start");
+        this.emissionTag = getIntArray(container, "emission_tag");
+        this.logEmission = container.getDoubleArray("emission");
+        this.logEmissionMin = container.getDoubleArray("emission_min");
+    }
+}
@@ -3,6 +3,7 @@ package org.maochen.nlp.ml.classifier.hmm;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.maochen.nlp.ml.SequenceTuple;
+import org.maochen.nlp.ml.util.ModelContainer;
 import org.maochen.nlp.ml.vector.FeatNamedVector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -137,7 +138,30 @@ public class HMM {
         return Viterbi.resolve(model, words);
     }
 
+    public static List<String> viterbi(CompiledHMMModel model, String[] words) {
+        return Viterbi.resolve(model, words);
+    }
+
+    /**
+     * @param beamWidth     max tags kept per word, 0 for all.
+     * @param beamThreshold tags more than this below the best log probability of the word are dropped.
+     */
+    public static List<String> viterbi(CompiledHMMModel model, String[] words, int beamWidth, double beamThreshold) {
+        return Viterbi.resolve(model, words, beamWidth, beamThreshold);
+    }
+
+    /**
+     * @return model with int tags and words and log probabilities, for tagging.
+     */
+    public static CompiledHMMModel compile(HMMModel model) {
+        return new CompiledHMMModel(model);
+    }
+
     public static Map<String, Double> eval(HMMModel model, String testFile, String delimiter, int wordColIndex, int tagColIndex, boolean print) {
+        return eval(compile(model), testFile, delimiter, wordColIndex, tagColIndex, print);
+    }
+
+    public static Map<String, Double> eval(CompiledHMMModel model, String testFile, String delimiter, int wordColIndex, int tagColIndex, boolean print) {
         List<SequenceTuple> testData = readTrainFile(testFile, delimiter, wordColIndex, tagColIndex);
         int totalCount = 0;
         int errCount = 0;
@@ -185,4 +209,23 @@ public class HMM {
             LOG.error("Persist model err.", e);
         }
     }
+
+    public static CompiledHMMModel loadBinaryModel(String modelPath) {
+        try {
+            return new CompiledHMMModel(ModelContainer.open(modelPath, CompiledHMMModel.MODEL_TYPE));
+        } catch (IOException e) {
+            LOG.error("Load model err.", e);
+        }
+        return null;
+    }
+
+    public static void saveBinaryModel(String modelPath, CompiledHMMModel model) {
+        ModelContainer.Writer writer = new ModelContainer.Writer(CompiledHMMModel.MODEL_TYPE);
+        model.write(writer);
+        try {
+            writer.write(modelPath);
+        } catch (IOException e) {
+            LOG.error("Persist model err.", e);
+        }
+    }
 }
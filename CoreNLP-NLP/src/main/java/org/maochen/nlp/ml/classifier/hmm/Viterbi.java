@@ -1,35 +1,292 @@
 package org.maochen.nlp.ml.classifier.hmm;
 
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.function.Predicate;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 /**
+ * Log space Viterbi with a backpointer per column and state, no underflow on long sentences. The tags are the ones
+ * seen with the words of the sentence, an OOV word gets the min emission of the tag, none for a punct tag unless the
+ * word is punct.
+ *
+ * A column no tag can reach restarts from the best state of the previous one, one tag per word always.
+ *
  * Created by Maochen on 8/5/15.
  */
 public class Viterbi {
     private static final Logger LOG = LoggerFactory.getLogger(Viterbi.class);
 
-    private static Predicate<String> isPunct = str -> Pattern.compile("\\p{Punct}+").matcher(str).find();
+    // Buffers of the compiled decoding, grown to the largest sentence and tag set seen by the thread.
+    private static final class Lattice {
+        boolean[] candidate = new boolean[0];
+        int[] states = new int[0];
+        int[] active = new int[0];
+        double[] prev = new double[0];
+        double[] current = new double[0];
+        double[] emission = new double[0];
+        double[] scratch = new double[0];
+        int[] wordIndex = new int[0];
+        int[][] backpointer = new int[0][0];
 
+        void ensure(int numTags, int cols) {
+            if (candidate.length < numTags) {
+                candidate = new boolean[numTags];
+                states = new int[numTags];
+                active = new int[numTags];
+                prev = new double[numTags];
+                current = new double[numTags];
+                emission = new double[numTags];
+                scratch = new double[numTags];
+            }
+            if (wordIndex.length < cols) {
+                wordIndex = new int[Math.max(cols, wordIndex.length * 2)];
+            }
+            if (backpointer.length < cols || backpointer[0].length < numTags) {
+                backpointer = new int[Math.max(cols, backpointer.length * 2)][candidate.length];
+            }
+        }
+    }
+
+    private static final ThreadLocal<Lattice> LATTICE = ThreadLocal.withInitial(Lattice::new);
+
+    private static int argmax(double[] scores, int[] states, int size) {
+        int best = states[0];
+        for (int i = 1; i < size; i++) {
+            if (scores[states[i]] > scores[best]) {
+                best = states[i];
+            }
+        }
+        return best;
+    }
+
+    // k-th largest of values[0 ... size), reorders values.
+    private static double kthLargest(double[] values, int size, int k) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo < hi) {
+            double pivot = values[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (values[i] > pivot) {
+                    i++;
+                }
+                while (values[j] < pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    double tmp = values[i];
+                    values[i++] = values[j];
+                    values[j--] = tmp;
+                }
+            }
+            if (k - 1 <= j) {
+                hi = j;
+            } else if (k - 1 >= i) {
+                lo = i;
+            } else {
+                break;
+            }
+        }
+        return values[k - 1];
+    }
+
+    /**
+     * Keeps the reachable states of the column within threshold of the best one, at most beamWidth of them.
+     *
+     * @return number of states kept in lattice.active.
+     */
+    private static int prune(Lattice lattice, int numStates, int beamWidth, double beamThreshold) {
+        double[] scores = lattice.current;
+        double best = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < numStates; i++) {
+            best = Math.max(best, scores[lattice.states[i]]);
+        }
+        if (best == Double.NEGATIVE_INFINITY) {
+            return 0;
+        }
+
+        double cutoff = best - beamThreshold;
+        int size = 0;
+        for (int i = 0; i < numStates; i++) {
+            double score = scores[lattice.states[i]];
+            if (score != Double.NEGATIVE_INFINITY && score >= cutoff) {
+                lattice.scratch[size++] = score;
+            }
+        }
+
+        int ties = Integer.MAX_VALUE;
+        if (beamWidth > 0 && size > beamWidth) {
+            double kth = kthLargest(lattice.scratch, size, beamWidth);
+            cutoff = Math.max(cutoff, kth);
+            ties = beamWidth;
+            for (int i = 0; i < numStates; i++) {
+                if (scores[lattice.states[i]] > kth) {
+                    ties--;
+                }
+            }
+        }
+
+        int kept = 0;
+        for (int i = 0; i < numStates; i++) {
+            int s = lattice.states[i];
+            double score = scores[s];
+            if (score == Double.NEGATIVE_INFINITY || score < cutoff) {
+                continue;
+            }
+            if (score == cutoff && ties != Integer.MAX_VALUE && ties-- <= 0) {
+                continue;
+            }
+            lattice.active[kept++] = s;
+        }
+        return kept;
+    }
+
+    /**
+     * Decodes on the per thread lattice, no allocation once the lattice fits the sentence.
+     *
+     * @param beamWidth     max states kept per word, 0 for all.
+     * @param beamThreshold states more than this below the best log probability of the word are dropped,
+     *                      Double.POSITIVE_INFINITY for all.
+     * @param out           output, tag index of each word, at least words.length.
+     */
+    public static void resolve(CompiledHMMModel model, String[] words, int beamWidth, double beamThreshold, int[] out) {
+        int numTags = model.numTags;
+        int cols = words.length + 2; // <START> words <END>
+        Lattice lattice = LATTICE.get();
+        lattice.ensure(numTags, cols);
+
+        boolean[] candidate = lattice.candidate;
+        int[] wordIndex = lattice.wordIndex;
+        Arrays.fill(candidate, 0, numTags, false);
+        for (int col = 1; col < cols; col++) {
+            wordIndex[col] = model.getWordIndex(col <= words.length ? words[col - 1] : HMM.END);
+            if (col <= words.length && wordIndex[col] >= 0) {
+                for (int k = model.emissionStart[wordIndex[col]]; k < model.emissionStart[wordIndex[col] + 1]; k++) {
+                    candidate[model.emissionTag[k]] = true;
+                }
+            }
+        }
+        candidate[model.start] = false;
+        candidate[model.end] = true;
+
+        int[] states = lattice.states;
+        int numStates = 0;
+        for (int tag = 0; tag < numTags; tag++) {
+            if (candidate[tag]) {
+                states[numStates++] = tag;
+            }
+        }
+
+        double[] emission = lattice.emission;
+        int[][] backpointer = lattice.backpointer;
+        int[] active = lattice.active;
+        lattice.prev[model.start] = 0;
+        active[0] = model.start;
+        int numActive = 1;
+
+        for (int col = 1; col < cols; col++) {
+            double[] prev = lattice.prev;
+            double[] current = lattice.current;
+            int w = wordIndex[col];
+            if (w >= 0) {
+                for (int i = 0; i < numStates; i++) {
+                    emission[states[i]] = Double.NEGATIVE_INFINITY;
+                }
+                for (int k = model.emissionStart[w]; k < model.emissionStart[w + 1]; k++) {
+                    emission[model.emissionTag[k]] = model.logEmission[k];
+                }
+            } else {
+                String word = col <= words.length ? words[col - 1] : HMM.END; // No <END> row, e.g. a hand built model.
+                LOG.debug("Missing word: {}", word);
+                boolean punctWord = CompiledHMMModel.isPunct(word);
+                for (int i = 0; i < numStates; i++) {
+                    int s = states[i];
+                    // eliminate punct tag with non-punct word.
+                    emission[s] = model.punctTag[s] && !punctWord ? Double.NEGATIVE_INFINITY : model.logEmissionMin[s];
+                }
+            }
+
+            int[] back = backpointer[col];
+            for (int i = 0; i < numStates; i++) {
+                int s = states[i];
+                double best = Double.NEGATIVE_INFINITY;
+                int bestPrev = active[0];
+                if (emission[s] != Double.NEGATIVE_INFINITY) {
+                    for (int j = 0; j < numActive; j++) {
+                        int p = active[j];
+                        double score = prev[p] + model.logTransition[p * numTags + s];
+                        if (score > best) {
+                            best = score;
+                            bestPrev = p;
+                        }
+                    }
+                }
+                current[s] = best + emission[s];
+                back[s] = bestPrev;
+            }
+
+            int kept = prune(lattice, numStates, beamWidth, beamThreshold);
+            if (kept == 0) {
+                int bestPrev = argmax(prev, active, numActive);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("No path to column " + col + ", restart from " + model.tags[bestPrev]);
+                }
+                for (int i = 0; i < numStates; i++) {
+                    current[states[i]] = prev[bestPrev];
+                    back[states[i]] = bestPrev;
+                    active[i] = states[i];
+                }
+                kept = numStates;
+            }
+            numActive = kept;
+
+            lattice.prev = current;
+            lattice.current = prev;
+        }
+
+        int state = argmax(lattice.prev, active, numActive);
+        for (int col = cols - 1; col > 1; col--) {
+            state = backpointer[col][state];
+            out[col - 2] = state;
+        }
+    }
+
+    public static List<String> resolve(CompiledHMMModel model, String[] words, int beamWidth, double beamThreshold) {
+        int[] tags = new int[words.length];
+        resolve(model, words, beamWidth, beamThreshold, tags);
+
+        List<String> result = new ArrayList<>(tags.length);
+        for (int tag : tags) {
+            result.add(model.tags[tag]);
+        }
+        return result;
+    }
+
+    /**
+     * Exact, no pruning.
+     */
+    public static List<String> resolve(CompiledHMMModel model, String[] words) {
+        return resolve(model, words, 0, Double.POSITIVE_INFINITY);
+    }
+
+    private static double log(Double probability) {
+        return probability == null ? Double.NEGATIVE_INFINITY : Math.log(probability);
+    }
+
+    /**
+     * Straight from the tables, for a model still being built. Compile the model to tag many sentences.
+     */
     public static List<String> resolve(HMMModel model, String[] words) {
-        Set<String> tagSet = new HashSet<>();
+        Set<String> tagSet = new TreeSet<>();
 
         // Get all possible tags. Don't worry about OOV for this step.
-        for (int i = 0; i < words.length; i++) {
-            String word = words[i];
+        for (String word : words) {
             tagSet.addAll(model.emission.row(word).keySet());
         }
-
-        List<String> tags = new ArrayList<>(tagSet);
-        tags.add(0, HMM.START);
-        tags.add(HMM.END);
-        // ----------
+        tagSet.remove(HMM.START);
+        tagSet.remove(HMM.END);
 
         // row - tags | col - words
         //           <START> fish sleep <END>
@@ -37,67 +294,82 @@ public class Viterbi {
         // VB
         // NN
         // <END>
-        List<String> rowString = tags;
-        List<String> colString = Arrays.stream(words).collect(Collectors.toList());
+        List<String> rowString = new ArrayList<>(tagSet);
+        rowString.add(0, HMM.START);
+        rowString.add(HMM.END);
+        List<String> colString = new ArrayList<>(Arrays.asList(words));
         colString.add(0, HMM.START);
         colString.add(HMM.END);
 
-        double[][] matrix = new double[rowString.size()][colString.size()];
-        int[] path = new int[colString.size()]; // store row index, position is the column index. no need to restore both.
+        int rows = rowString.size();
+        int cols = colString.size();
+        double[][] matrix = new double[rows][cols];
+        int[][] backpointer = new int[cols][rows];
+        for (double[] row : matrix) {
+            Arrays.fill(row, Double.NEGATIVE_INFINITY);
+        }
+        matrix[0][0] = 0;
 
-        matrix[0][0] = 1;
-        for (int col = 1; col < matrix[0].length; col++) {
+        for (int col = 1; col < cols; col++) {
             String word = colString.get(col);
+            boolean known = model.emission.containsRow(word);
+            boolean punctWord = !known && CompiledHMMModel.isPunct(word);
+            if (!known) {
+                LOG.debug("Missing word: {}", word);
+            }
 
-            for (int row = 1; row < matrix.length; row++) {
+            boolean reachable = false;
+            for (int row = 1; row < rows; row++) {
                 String currentTag = rowString.get(row);
 
-                for (int prevRow = 0; prevRow < matrix.length; prevRow++) {
-                    if (matrix[prevRow][col - 1] == 0) {
+                double emission;
+                if (known) { // Has word, word may not get that tag.
+                    emission = log(model.emission.get(word, currentTag));
+                } else if (CompiledHMMModel.isPunct(currentTag) && !punctWord) {
+                    emission = Double.NEGATIVE_INFINITY; // eliminate punct tag with non-punct word.
+                } else {
+                    emission = log(model.emissionMin.get(currentTag)); // OOV
+                }
+
+                double best = Double.NEGATIVE_INFINITY;
+                for (int prevRow = 0; prevRow < rows && emission != Double.NEGATIVE_INFINITY; prevRow++) {
+                    if (matrix[prevRow][col - 1] == Double.NEGATIVE_INFINITY) {
                         continue;
                     }
 
-                    String prevTag = rowString.get(prevRow);
-
-                    Double trans = model.transition.get(prevTag, currentTag);
-                    trans = trans == null ? 0 : trans;
-
-                    Double emission = model.emission.get(word, currentTag);
-                    if (emission == null) {
-                        if (!model.emission.rowKeySet().contains(word)) {
-                            LOG.debug("Missing word: " + word);
-                            if (isPunct.test(currentTag) && !isPunct.test(word)) {
-                                emission = 0D; // eliminate punct tag with non-punct word.
-                            } else {
-                                emission = model.emissionMin.get(currentTag); // OOV
-                            }
-                        }
-
-                        if (emission == null) { // Has word, just word wont get that tag.
-                            emission = 0D;
-                        }
+                    double score = matrix[prevRow][col - 1] + log(model.transition.get(rowString.get(prevRow), currentTag));
+                    if (score > best) {
+                        best = score;
+                        backpointer[col][row] = prevRow;
                     }
+                }
+                matrix[row][col] = best + emission;
+                reachable |= matrix[row][col] != Double.NEGATIVE_INFINITY;
+            }
 
-                    double prevViterbi = matrix[prevRow][col - 1];
-                    double newViterbi = prevViterbi * trans * emission;
-
-                    if (newViterbi > matrix[row][col]) {
-                        matrix[row][col] = newViterbi;
-                        path[col - 1] = prevRow;
+            if (!reachable) {
+                int bestPrev = 0;
+                for (int prevRow = 1; prevRow < rows; prevRow++) {
+                    if (matrix[prevRow][col - 1] > matrix[bestPrev][col - 1]) {
+                        bestPrev = prevRow;
                     }
                 }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("No path to column " + col + ", restart from " + rowString.get(bestPrev));
+                }
+                for (int row = 1; row < rows; row++) {
+                    matrix[row][col] = matrix[bestPrev][col - 1];
+                    backpointer[col][row] = bestPrev;
+                }
             }
         }
 
         if (LOG.isDebugEnabled()) {
-            LOG.debug("Path: " + Arrays.stream(path).filter(Objects::nonNull).mapToObj(String::valueOf).reduce((x1, x2) -> x1 + StringUtils.SPACE + x2).orElse(null));
             StringBuilder stringBuilder = new StringBuilder();
-            stringBuilder.append("\t\t").append(colString.stream().reduce((x1, x2) -> x1 + "\t" + x2).orElse(null)).append(System.lineSeparator());
-            for (int i = 0; i < matrix.length; i++) {
-                for (int j = 0; j < matrix[i].length; j++) {
-                    if (j == 0) {
-                        stringBuilder.append(rowString.get(i)).append("\t");
-                    }
+            stringBuilder.append("\t\t").append(String.join("\t", colString)).append(System.lineSeparator());
+            for (int i = 0; i < rows; i++) {
+                stringBuilder.append(rowString.get(i)).append("\t");
+                for (int j = 0; j < cols; j++) {
                     stringBuilder.append(matrix[i][j]).append("\t");
                 }
                 stringBuilder.append(System.lineSeparator());
@@ -106,12 +378,18 @@ public class Viterbi {
             Arrays.stream(stringBuilder.toString().split(System.lineSeparator())).forEach(LOG::debug);
         }
 
-        List<String> result = Arrays.stream(path)
-                .filter(Objects::nonNull)
-                .filter(rowIndex -> rowIndex != 0)
-                .mapToObj(rowString::get)
-                .collect(Collectors.toList());
-        LOG.debug(result.toString());
-        return result;
+        int state = 1;
+        for (int row = 2; row < rows; row++) {
+            if (matrix[row][cols - 1] > matrix[state][cols - 1]) {
+                state = row;
+            }
+        }
+        String[] result = new String[words.length];
+        for (int col = cols - 1; col > 1; col--) {
+            state = backpointer[col][state];
+            result[col - 2] = rowString.get(state);
+        }
+        LOG.debug(Arrays.toString(result));
+        return Arrays.asList(result);
     }
 }
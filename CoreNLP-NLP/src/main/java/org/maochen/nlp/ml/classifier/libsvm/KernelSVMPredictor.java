@@ -0,0 +1,200 @@
+package org.maochen.nlp.ml.classifier.libsvm;
+
+import libsvm.svm_model;
+import libsvm.svm_node;
+import libsvm.svm_parameter;
+
+import org.maochen.nlp.ml.vector.IVector;
+
+import java.util.List;
+
+/**
+ * Batched prediction of a kernel libsvm model. The support vectors are scanned once per block of inputs instead of
+ * once per input: each support vector is scattered into a dense buffer, dotted with the sparse inputs of the block
+ * and its kernel values go straight into the pairwise decision values, no kernel matrix is kept.
+ *
+ * Same decision values and probability estimates as svm.svm_predict_probability up to rounding. The support vectors
+ * are read from the model, not copied. Stateless besides the norms, safe to share between threads.
+ */
+final class KernelSVMPredictor {
+
+    // Inputs per block, bounds the decision values kept at once.
+    private static final int BLOCK_SIZE = 256;
+
+    private final svm_model model;
+    private final int nrClass;
+    private final int pairs;
+    private final int dimension;
+
+    // Class of each support vector, the svs are grouped by class.
+    private final int[] svClass;
+
+    // Squared norm of each support vector, for the RBF kernel.
+    private final double[] svNorm;
+
+    // Pair index of (i, j), i < j.
+    private final int[][] pairIndex;
+
+    /**
+     * @return true if the model is a classifier with the probability estimates and a kernel computed from the
+     * vectors.
+     */
+    static boolean supports(svm_model model) {
+        return model.param.kernel_type != svm_parameter.PRECOMPUTED
+                && (model.param.svm_type == svm_parameter.C_SVC || model.param.svm_type == svm_parameter.NU_SVC)
+                && model.probA != null && model.probB != null;
+    }
+
+    private double kernel(double dot, double xNorm, double yNorm) {
+        svm_parameter param = model.param;
+        switch (param.kernel_type) {
+            case svm_parameter.POLY:
+                return Math.pow(param.gamma * dot + param.coef0, param.degree);
+            case svm_parameter.RBF:
+                return Math.exp(-param.gamma * (xNorm + yNorm - 2 * dot));
+            case svm_parameter.SIGMOID:
+                return Math.tanh(param.gamma * dot + param.coef0);
+            default:
+                return dot;
+        }
+    }
+
+    /**
+     * @param probs output, probs[b] by the libsvm label order for inputs[b].
+     */
+    void probability(List<IVector> inputs, double[][] probs) {
+        double[][] decValues = new double[Math.min(BLOCK_SIZE, inputs.size())][pairs];
+        SVMProbability.Buffers buffers = new SVMProbability.Buffers();
+        for (int from = 0; from < inputs.size(); from += BLOCK_SIZE) {
+            int to = Math.min(from + BLOCK_SIZE, inputs.size());
+            decisionValues(inputs.subList(from, to), decValues);
+            for (int b = from; b < to; b++) {
+                SVMProbability.probability(nrClass, decValues[b - from], model.probA, model.probB, probs[b], buffers);
+            }
+        }
+    }
+
+    /**
+     * @param decValues output, decValues[b] one per class pair (i, j), i < j, in the libsvm order.
+     */
+    void decisionValues(List<IVector> inputs, double[][] decValues) {
+        int size = inputs.size();
+
+        // Inputs as CSR, read once per support vector.
+        int[] rowStart = new int[size + 1];
+        for (int b = 0; b < size; b++) {
+            rowStart[b + 1] = rowStart[b] + inputs.get(b).nnz();
+        }
+        int[] indices = new int[rowStart[size]];
+        double[] values = new double[rowStart[size]];
+        double[] xNorm = new double[size];
+        for (int b = 0; b < size; b++) {
+            int[] k = {rowStart[b]};
+            double[] norm = new double[1];
+            inputs.get(b).forEachNonZero((index, value) -> {
+                indices[k[0]] = index;
+                values[k[0]++] = value;
+                norm[0] += value * value;
+            });
+            xNorm[b] = norm[0];
+        }
+
+        for (int b = 0; b < size; b++) {
+            for (int p = 0; p < pairs; p++) {
+                decValues[b][p] = -model.rho[p];
+            }
+        }
+
+        double[] dense = new double[dimension];
+        for (int s = 0; s < model.l; s++) {
+            svm_node[] sv = model.SV[s];
+            for (svm_node node : sv) {
+                dense[node.index] = node.value;
+            }
+
+            for (int b = 0; b < size; b++) {
+                double dot = 0;
+                for (int k = rowStart[b]; k < rowStart[b + 1]; k++) {
+                    if (indices[k] < dimension) {
+                        dot += dense[indices[k]] * values[k];
+                    }
+                }
+                addKernel(s, kernel(dot, xNorm[b], svNorm[s]), decValues[b]);
+            }
+
+            for (svm_node node : sv) {
+                dense[node.index] = 0;
+            }
+        }
+    }
+
+    // Class c of the sv takes part in pairs (i, c), i < c, coef in sv_coef[i], and (c, j), j > c, coef in
+    // sv_coef[j - 1].
+    private void addKernel(int s, double kvalue, double[] dec) {
+        int c = svClass[s];
+        for (int i = 0; i < c; i++) {
+            dec[pairIndex[i][c]] += model.sv_coef[i][s] * kvalue;
+        }
+        for (int j = c + 1; j < nrClass; j++) {
+            dec[pairIndex[c][j]] += model.sv_coef[j - 1][s] * kvalue;
+        }
+    }
+
+    /**
+     * Single input, the caller owns the buffers.
+     *
+     * @param x         input scattered dense, at least dimension long. Values past dimension are not read.
+     * @param xNorm     squared norm of the whole input.
+     * @param decValues buffer of the decision values, at least one per class pair.
+     * @param probs     output, by the libsvm label order.
+     * @param buffers   work arrays of the pairwise coupling.
+     */
+    void probability(double[] x, double xNorm, double[] decValues, double[] probs, SVMProbability.Buffers buffers) {
+        for (int p = 0; p < pairs; p++) {
+            decValues[p] = -model.rho[p];
+        }
+
+        for (int s = 0; s < model.l; s++) {
+            double dot = 0;
+            for (svm_node node : model.SV[s]) {
+                dot += node.value * x[node.index];
+            }
+            addKernel(s, kernel(dot, xNorm, svNorm[s]), decValues);
+        }
+        SVMProbability.probability(nrClass, decValues, model.probA, model.probB, probs, buffers);
+    }
+
+    int getDimension() {
+        return dimension;
+    }
+
+    KernelSVMPredictor(svm_model model) {
+        this.model = model;
+        this.nrClass = model.nr_class;
+        this.pairs = nrClass * (nrClass - 1) / 2;
+
+        this.pairIndex = new int[nrClass][nrClass];
+        for (int i = 0, p = 0; i < nrClass; i++) {
+            for (int j = i + 1; j < nrClass; j++) {
+                pairIndex[i][j] = p++;
+            }
+        }
+
+        this.svClass = new int[model.l];
+        for (int c = 0, s = 0; c < nrClass; c++) {
+            for (int k = 0; k < model.nSV[c]; k++) {
+                svClass[s++] = c;
+            }
+        }
+
+        int maxIndex = -1;
+        this.svNorm = new double[model.l];
+        for (int s = 0; s < model.l; s++) {
+            for (svm_node node : model.SV[s]) {
+                maxIndex = Math.max(maxIndex, node.index);
+                svNorm[s] += node.value * node.value;
+            }
+        }
+        this.dimension = maxIndex + 1;
+    }
+}
@@ -1,18 +1,22 @@
 package org.maochen.nlp.ml.classifier.libsvm;
 
 import libsvm.*;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.NotImplementedException;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.maochen.nlp.ml.IClassifier;
+import org.maochen.nlp.ml.TrainingMatrix;
 import org.maochen.nlp.ml.Tuple;
 import org.maochen.nlp.ml.classifier.LabelIndexer;
+import org.maochen.nlp.ml.vector.IVector;
+import org.maochen.nlp.ml.vector.IntDoubleConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -24,12 +28,100 @@ public class LibSVMClassifier implements IClassifier {
 
     private static final Logger LOG = LoggerFactory.getLogger(LibSVMClassifier.class);
 
+    // Buffers of the single tuple predictions, grown to the largest model seen by the thread.
+    private static final class Scratch {
+        double[] probs = new double[0];
+        double[] scores = new double[0];
+        double[] decValues = new double[0];
+
+        // Kernel input scattered dense, zero besides the touched indices.
+        double[] dense = new double[0];
+        int[] touched = new int[0];
+        int size;
+        double norm;
+
+        // Pairwise coupling of the probability estimates.
+        final SVMProbability.Buffers coupling = new SVMProbability.Buffers();
+
+        // Nodes of the plain libsvm path, reused while the nnz is the same, libsvm reads the whole array.
+        svm_node[] nodes = new svm_node[0];
+
+        final IntDoubleConsumer scatter = this::scatter;
+        final IntDoubleConsumer fill = this::fill;
+
+        private void scatter(int index, double value) {
+            if (index < dense.length) {
+                dense[index] = value;
+                touched[size++] = index;
+            }
+            norm += value * value;
+        }
+
+        private void fill(int index, double value) {
+            nodes[size].index = index;
+            nodes[size++].value = value;
+        }
+
+        void ensureSize(int labelSize, int pairs) {
+            if (probs.length < labelSize) {
+                probs = new double[labelSize];
+                scores = new double[labelSize];
+            }
+            if (decValues.length < pairs) {
+                decValues = new double[pairs];
+            }
+        }
+
+        void scatter(IVector vector, int dimension) {
+            if (dense.length < dimension) {
+                dense = new double[dimension];
+            }
+            if (touched.length < vector.nnz()) {
+                touched = new int[vector.nnz()];
+            }
+            size = 0;
+            norm = 0;
+            vector.forEachNonZero(scatter);
+        }
+
+        void clear() {
+            for (int i = 0; i < size; i++) {
+                dense[touched[i]] = 0;
+            }
+            size = 0;
+        }
+
+        svm_node[] toNodes(IVector vector) {
+            if (nodes.length != vector.nnz()) {
+                nodes = new svm_node[vector.nnz()];
+                for (int i = 0; i < nodes.length; i++) {
+                    nodes[i] = new svm_node();
+                }
+            }
+            size = 0;
+            vector.forEachNonZero(fill);
+            return nodes;
+        }
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
 
     private svm_model model = null;
     public svm_parameter para = null; // TODO: Evil here. change to private and so ...
 
     private LabelIndexer labelIndexer = null;
 
+    private volatile int[] svmLabels = null;
+
+    // Primal weights of a linear model, null for the other kernels.
+    private volatile LinearSVMPredictor linearPredictor = null;
+
+    // Batched prediction of the other kernels.
+    private volatile KernelSVMPredictor kernelPredictor = null;
+
+    // Class pairs trained in parallel when more than 1.
+    private int threads = 1;
+
     private void writeToLog() {
         svm.svm_set_print_string_function(x -> {
             if (!".".equals(x)) {
@@ -65,129 +157,253 @@ public class LibSVMClassifier implements IClassifier {
 
         svm_problem prob = new svm_problem();
 
-        int featSize = trainingData.iterator().next().vector.getVector().length;
         prob.l = trainingData.size();
         prob.y = new double[prob.l];
-        prob.x = new svm_node[prob.l][featSize];
+        prob.x = new svm_node[prob.l][];
 
         for (int i = 0; i < trainingData.size(); i++) {
             Tuple tuple = trainingData.get(i);
-            prob.x[i] = new svm_node[featSize];
+            prob.x[i] = toNodes(tuple.vector);
+            prob.y[i] = labelIndexer.getIndex(tuple.label);
+        }
+
+        setModel(trainModel(prob));
+        return this;
+    }
+
+    /**
+     * Only the non-zero entries become svm_node, libsvm treats missing indices as 0.
+     */
+    @Override
+    public IClassifier train(TrainingMatrix trainingData) {
+        if (para == null) {
+            LOG.warn("Parameter is null. Use the default parameter.");
+            this.para = getDefaultPara();
+        }
+
+        labelIndexer = new LabelIndexer(trainingData.getLabelNames());
 
-            for (int j = 0; j < tuple.vector.getVector().length; j++) {
+        int[] rowPtr = trainingData.getRowPtr();
+        int[] colIdx = trainingData.getColIdx();
+        double[] values = trainingData.getValues();
+
+        svm_problem prob = new svm_problem();
+        prob.l = trainingData.getNumRows();
+        prob.y = new double[prob.l];
+        prob.x = new svm_node[prob.l][];
+
+        for (int i = 0; i < prob.l; i++) {
+            prob.x[i] = new svm_node[rowPtr[i + 1] - rowPtr[i]];
+            for (int k = rowPtr[i]; k < rowPtr[i + 1]; k++) {
                 svm_node node = new svm_node();
-                node.index = j;
-                node.value = tuple.vector.getVector()[j];
-                prob.x[i][j] = node;
+                node.index = colIdx[k];
+                node.value = values[k];
+                prob.x[i][k - rowPtr[i]] = node;
             }
 
-            prob.y[i] = labelIndexer.getIndex(tuple.label);
+            prob.y[i] = trainingData.getLabel(i); // Same order as the labelIndexer.
         }
 
-        model = svm.svm_train(prob, para);
+        setModel(trainModel(prob));
         return this;
     }
 
-    @Override
-    public Map<String, Double> predict(Tuple predict) {
-        double[] feats = predict.vector.getVector();
-        svm_node[] svmfeats = new svm_node[feats.length];
+    private svm_model trainModel(svm_problem prob) {
+        int nrClass = labelIndexer.getLabelSize();
+        if (threads > 1 && PairwiseSVMTrainer.supports(para, nrClass)) {
+            return PairwiseSVMTrainer.train(prob, para, nrClass, threads);
+        }
+        return svm.svm_train(prob, para);
+    }
+
+    private void setModel(svm_model model) {
+        this.model = model;
+        this.svmLabels = null;
+        this.linearPredictor = LinearSVMPredictor.supports(model) ? new LinearSVMPredictor(model) : null;
+        this.kernelPredictor = linearPredictor == null && KernelSVMPredictor.supports(model) ? new KernelSVMPredictor(model) : null;
+    }
 
-        for (int i = 0; i < feats.length; i++) {
-            svm_node svmfeatI = new svm_node();
-            svmfeatI.index = i;
-            svmfeatI.value = feats[i];
-            svmfeats[i] = svmfeatI;
+    // Only the non-zero entries become svm_node, libsvm treats missing indices as 0.
+    private static svm_node[] toNodes(IVector vector) {
+        svm_node[] nodes = new svm_node[vector.nnz()];
+        int[] count = new int[1];
+        vector.forEachNonZero((index, value) -> {
+            svm_node node = new svm_node();
+            node.index = index;
+            node.value = value;
+            nodes[count[0]++] = node;
+        });
+        return nodes;
+    }
+
+    // libsvm orders the probabilities by its own label order, which holds our label indices.
+    private int[] getSvmLabels() {
+        if (svmLabels == null) {
+            int[] labels = new int[labelIndexer.getLabelSize()];
+            svm.svm_get_labels(model, labels);
+            svmLabels = labels;
+        }
+        return svmLabels;
+    }
+
+    // The buffers of the scratch are used for the probabilities in libsvm label order and the decision values.
+    private void predictInto(Tuple predict, double[] scores, Scratch scratch) {
+        LinearSVMPredictor linearPredictor = this.linearPredictor;
+        KernelSVMPredictor kernelPredictor = this.kernelPredictor;
+        scratch.ensureSize(labelIndexer.getLabelSize(), model.nr_class * (model.nr_class - 1) / 2);
+        double[] probs = scratch.probs;
+        if (linearPredictor != null) {
+            linearPredictor.probability(predict.vector, scratch.decValues, probs, scratch.coupling);
+        } else if (kernelPredictor != null) {
+            scratch.scatter(predict.vector, kernelPredictor.getDimension());
+            try {
+                kernelPredictor.probability(scratch.dense, scratch.norm, scratch.decValues, probs, scratch.coupling);
+            } finally {
+                scratch.clear();
+            }
+        } else {
+            svm.svm_predict_probability(model, scratch.toNodes(predict.vector), probs);
         }
 
-        int totalSize = labelIndexer.getLabelSize();
-        int[] labels = new int[totalSize];
-        svm.svm_get_labels(model, labels);
+        int[] labels = getSvmLabels();
+        for (int i = 0; i < labels.length; i++) {
+            scores[labels[i]] = probs[i];
+        }
+    }
 
-        double[] probs = new double[totalSize];
-        svm.svm_predict_probability(model, svmfeats, probs);
+    @Override
+    public Map<String, Double> predict(Tuple predict) {
+        double[] scores = new double[labelIndexer.getLabelSize()];
+        predictInto(predict, scores);
 
         Map<String, Double> result = new HashMap<>();
-        for (int i = 0; i < labels.length; i++) {
-            result.put(labelIndexer.getLabel(labels[i]), probs[i]);
+        for (int i = 0; i < scores.length; i++) {
+            result.put(labelIndexer.getLabel(i), scores[i]);
         }
 
         return result;
     }
 
     @Override
-    public void setParameter(Properties props) {
-        throw new NotImplementedException("Use direct set para for now.");
+    public String[] getLabels() {
+        return labelIndexer.getLabels();
     }
 
     @Override
-    public void persistModel(String modelFile) throws IOException {
-        if (this.labelIndexer == null) {
-            throw new RuntimeException("LabelIndexer is null!");
-        }
+    public void predictInto(Tuple predict, double[] scores) {
+        predictInto(predict, scores, SCRATCH.get());
+    }
 
-        ZipOutputStream zipos = new ZipOutputStream(new FileOutputStream(modelFile));
+    /**
+     * Argmax of the probability estimates, the pairwise coupling is not monotone in the decision values.
+     */
+    @Override
+    public int predictArgmax(Tuple predict) {
+        Scratch scratch = SCRATCH.get();
+        scratch.ensureSize(labelIndexer.getLabelSize(), 0);
+        double[] scores = scratch.scores;
+        predictInto(predict, scores, scratch);
+
+        int max = 0;
+        for (int i = 1; i < labelIndexer.getLabelSize(); i++) {
+            if (scores[i] > scores[max]) {
+                max = i;
+            }
+        }
+        return max;
+    }
 
-        String svmModelAbsolutePath = modelFile + ".model";
-        String svmModelFilename = new File(svmModelAbsolutePath).getName();
-        svm.svm_save_model(svmModelAbsolutePath, model);
-        ZipEntry libSVMModelZipEntry = new ZipEntry(svmModelFilename);
-        zipos.putNextEntry(libSVMModelZipEntry);
-        IOUtils.copy(new FileInputStream(svmModelAbsolutePath), zipos);
-        zipos.closeEntry();
+    /**
+     * Kernel models scan the support vectors once per block of tuples instead of once per tuple, linear models use
+     * the primal weights. The libsvm probability buffer is reused for the whole batch otherwise.
+     */
+    @Override
+    public void predictBatch(List<Tuple> predicts, double[][] out) {
+        LinearSVMPredictor linearPredictor = this.linearPredictor;
+        KernelSVMPredictor kernelPredictor = this.kernelPredictor;
+        if (linearPredictor != null || kernelPredictor != null) {
+            List<IVector> inputs = predicts.stream().map(t -> t.vector).collect(Collectors.toList());
+            double[][] probs = new double[predicts.size()][labelIndexer.getLabelSize()];
+            if (linearPredictor != null) {
+                linearPredictor.probability(inputs, probs);
+            } else {
+                kernelPredictor.probability(inputs, probs);
+            }
 
-        String labelIndexerAbsolutePath = modelFile + ".lbindexer";
-        String labelIndexerFileName = new File(labelIndexerAbsolutePath).getName();
-        String labelIndexerString = this.labelIndexer.serializeToString();
-        ZipEntry labelIndexerZipEntry = new ZipEntry(labelIndexerFileName);
-        zipos.putNextEntry(labelIndexerZipEntry);
-        IOUtils.write(labelIndexerString, zipos, Charset.defaultCharset());
-        zipos.closeEntry();
+            int[] labels = getSvmLabels();
+            for (int i = 0; i < predicts.size(); i++) {
+                for (int j = 0; j < labels.length; j++) {
+                    out[i][labels[j]] = probs[i][j];
+                }
+            }
+            return;
+        }
 
-        IOUtils.closeQuietly(zipos);
-        FileUtils.forceDelete(new File(svmModelAbsolutePath));
+        Scratch scratch = SCRATCH.get();
+        for (int i = 0; i < predicts.size(); i++) {
+            predictInto(predicts.get(i), out[i], scratch);
+        }
     }
 
-    // We load twice because svm.svm_load_model will close the stream after load. so the next guy will have Steam closed exception.
+    /**
+     * Only threads for now, the svm parameters are set directly by para.
+     */
     @Override
-    public void loadModel(InputStream modelIs) {
+    public void setParameter(Properties props) {
+        if (props == null) {
+            return;
+        }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            IOUtils.copy(modelIs, baos);
-        } catch (IOException e) {
-            LOG.error("Load model err.", e);
+        if (props.containsKey("threads")) {
+            this.threads = Integer.parseInt(props.getProperty("threads"));
         }
+    }
 
-        InputStream isForSVMLoad = new ByteArrayInputStream(baos.toByteArray());
-        try (ZipInputStream zipInputStream = new ZipInputStream(isForSVMLoad)) {
-            ZipEntry entry;
-            while ((entry = zipInputStream.getNextEntry()) != null) {
-                if (entry.getName().endsWith(".model")) {
-                    BufferedReader br = new BufferedReader(new InputStreamReader(zipInputStream, Charset.defaultCharset()));
-                    this.model = svm.svm_load_model(br);
-                }
+    /**
+     * Zip of the libsvm text model and the label indexer. The model is written straight into its entry.
+     */
+    @Override
+    public void persistModel(String modelFile) throws IOException {
+        if (this.labelIndexer == null) {
+            throw new RuntimeException("LabelIndexer is null!");
+        }
+
+        String modelName = new File(modelFile).getName();
+        try (ZipOutputStream zipos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(modelFile)))) {
+            zipos.putNextEntry(new ZipEntry(modelName + ".model"));
+            // Closing the writer flushes it, the shield keeps the zip open.
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new CloseShieldOutputStream(zipos), Charset.defaultCharset()))) {
+                LibSVMModelWriter.write(model, writer);
             }
+            zipos.closeEntry();
 
-        } catch (IOException e) {
-            // Do Nothing.
+            zipos.putNextEntry(new ZipEntry(modelName + ".lbindexer"));
+            IOUtils.write(this.labelIndexer.serializeToString(), zipos, Charset.defaultCharset());
+            zipos.closeEntry();
         }
+    }
 
-        modelIs = new ByteArrayInputStream(baos.toByteArray());
-        try (ZipInputStream zipInputStream = new ZipInputStream(modelIs)) {
+    /**
+     * Both entries are read in one pass over the zip stream, nothing is buffered besides the parsed model.
+     * svm.svm_load_model closes its reader, the shield keeps the zip stream open for the next entry.
+     */
+    @Override
+    public void loadModel(InputStream modelIs) {
+        try (ZipInputStream zipInputStream = new ZipInputStream(new BufferedInputStream(modelIs))) {
             ZipEntry entry;
             while ((entry = zipInputStream.getNextEntry()) != null) {
-                if (entry.getName().endsWith(".lbindexer")) {
+                if (entry.getName().endsWith(".model")) {
+                    BufferedReader br = new BufferedReader(new InputStreamReader(new CloseShieldInputStream(zipInputStream), Charset.defaultCharset()));
+                    setModel(svm.svm_load_model(br));
+                } else if (entry.getName().endsWith(".lbindexer")) {
                     String lbIndexer = IOUtils.toString(zipInputStream, Charset.defaultCharset());
                     this.labelIndexer = new LabelIndexer(new ArrayList<>());
                     this.labelIndexer.readFromSerializedString(lbIndexer);
                 }
             }
-
         } catch (IOException e) {
-            LOG.error("Err in load LabelIndexer", e);
+            LOG.error("Load model err.", e);
         }
-
     }
 
     public LibSVMClassifier() {
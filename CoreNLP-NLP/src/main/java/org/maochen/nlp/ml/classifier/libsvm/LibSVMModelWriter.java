@@ -0,0 +1,95 @@
+package org.maochen.nlp.ml.classifier.libsvm;
+
+import libsvm.svm_model;
+import libsvm.svm_node;
+import libsvm.svm_parameter;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Same text format as svm.svm_save_model, which only writes to a file name. Written to any stream so the model goes
+ * straight into the zip entry, svm.svm_load_model reads it back.
+ */
+final class LibSVMModelWriter {
+
+    private static final String[] SVM_TYPES = {"c_svc", "nu_svc", "one_class", "epsilon_svr", "nu_svr"};
+    private static final String[] KERNEL_TYPES = {"linear", "polynomial", "rbf", "sigmoid", "precomputed"};
+
+    private static void writeLine(Writer writer, String name, double[] values, int size) throws IOException {
+        writer.write(name);
+        for (int i = 0; i < size; i++) {
+            writer.write(" " + values[i]);
+        }
+        writer.write("\n");
+    }
+
+    private static void writeLine(Writer writer, String name, int[] values, int size) throws IOException {
+        writer.write(name);
+        for (int i = 0; i < size; i++) {
+            writer.write(" " + values[i]);
+        }
+        writer.write("\n");
+    }
+
+    static void write(svm_model model, Writer writer) throws IOException {
+        svm_parameter param = model.param;
+        writer.write("svm_type " + SVM_TYPES[param.svm_type] + "\n");
+        writer.write("kernel_type " + KERNEL_TYPES[param.kernel_type] + "\n");
+
+        if (param.kernel_type == svm_parameter.POLY) {
+            writer.write("degree " + param.degree + "\n");
+        }
+
+        if (param.kernel_type == svm_parameter.POLY || param.kernel_type == svm_parameter.RBF
+                || param.kernel_type == svm_parameter.SIGMOID) {
+            writer.write("gamma " + param.gamma + "\n");
+        }
+
+        if (param.kernel_type == svm_parameter.POLY || param.kernel_type == svm_parameter.SIGMOID) {
+            writer.write("coef0 " + param.coef0 + "\n");
+        }
+
+        int nrClass = model.nr_class;
+        int pairs = nrClass * (nrClass - 1) / 2;
+        writer.write("nr_class " + nrClass + "\n");
+        writer.write("total_sv " + model.l + "\n");
+        writeLine(writer, "rho", model.rho, pairs);
+
+        if (model.label != null) {
+            writeLine(writer, "label", model.label, nrClass);
+        }
+
+        if (model.probA != null) {
+            writeLine(writer, "probA", model.probA, pairs);
+        }
+
+        if (model.probB != null) {
+            writeLine(writer, "probB", model.probB, pairs);
+        }
+
+        if (model.nSV != null) {
+            writeLine(writer, "nr_sv", model.nSV, nrClass);
+        }
+
+        writer.write("SV\n");
+        for (int i = 0; i < model.l; i++) {
+            for (int j = 0; j < nrClass - 1; j++) {
+                writer.write(model.sv_coef[j][i] + " ");
+            }
+
+            svm_node[] sv = model.SV[i];
+            if (param.kernel_type == svm_parameter.PRECOMPUTED) {
+                writer.write("0:" + (int) sv[0].value);
+            } else {
+                for (svm_node node : sv) {
+                    writer.write(node.index + ":" + node.value + " ");
+                }
+            }
+            writer.write("\n");
+        }
+    }
+
+    private LibSVMModelWriter() {
+    }
+}
@@ -0,0 +1,113 @@
+package org.maochen.nlp.ml.classifier.libsvm;
+
+import libsvm.svm_model;
+import libsvm.svm_node;
+import libsvm.svm_parameter;
+
+import org.maochen.nlp.ml.util.WeightMatrix;
+import org.maochen.nlp.ml.vector.IVector;
+
+import java.util.List;
+
+/**
+ * Primal form of a linear kernel libsvm model. The support vectors of each class pair are collapsed into one weight
+ * vector, w = sum_k coef_k * sv_k, so the decision value is w * x - rho, one pass over the non-zero entries of x
+ * instead of one dot product per support vector.
+ *
+ * Weights are a feature-major WeightMatrix, all the pairs of a feature are adjacent, with -rho as the bias. Same
+ * pair order, probability estimates and label order as svm.svm_predict_probability. Immutable, safe to share between
+ * threads.
+ */
+final class LinearSVMPredictor {
+
+    private final int nrClass;
+    private final int pairs;
+
+    private final WeightMatrix weights;
+    private final double[] probA;
+    private final double[] probB;
+
+    /**
+     * @return true if the model is a linear classifier with the probability estimates.
+     */
+    static boolean supports(svm_model model) {
+        return model.param.kernel_type == svm_parameter.LINEAR
+                && (model.param.svm_type == svm_parameter.C_SVC || model.param.svm_type == svm_parameter.NU_SVC)
+                && model.probA != null && model.probB != null;
+    }
+
+    /**
+     * @param decValues output, one per class pair (i, j), i < j, in the libsvm order.
+     */
+    void decisionValues(IVector x, double[] decValues) {
+        weights.score(x, decValues);
+    }
+
+    /**
+     * @param probs output, by the libsvm label order.
+     */
+    void probability(IVector x, double[] probs) {
+        probability(x, new double[pairs], probs, new SVMProbability.Buffers());
+    }
+
+    /**
+     * @param decValues buffer of the decision values, at least one per class pair.
+     * @param probs     output, by the libsvm label order.
+     */
+    void probability(IVector x, double[] decValues, double[] probs, SVMProbability.Buffers buffers) {
+        decisionValues(x, decValues);
+        SVMProbability.probability(nrClass, decValues, probA, probB, probs, buffers);
+    }
+
+    /**
+     * @param probs output, probs[b] by the libsvm label order for inputs[b].
+     */
+    void probability(List<IVector> inputs, double[][] probs) {
+        double[][] decValues = new double[inputs.size()][pairs];
+        weights.scoreBatch(inputs, decValues);
+        SVMProbability.Buffers buffers = new SVMProbability.Buffers();
+        for (int b = 0; b < inputs.size(); b++) {
+            SVMProbability.probability(nrClass, decValues[b], probA, probB, probs[b], buffers);
+        }
+    }
+
+    LinearSVMPredictor(svm_model model) {
+        this.nrClass = model.nr_class;
+        this.pairs = nrClass * (nrClass - 1) / 2;
+        this.probA = model.probA.clone();
+        this.probB = model.probB.clone();
+
+        int maxIndex = -1;
+        for (svm_node[] sv : model.SV) {
+            for (svm_node node : sv) {
+                maxIndex = Math.max(maxIndex, node.index);
+            }
+        }
+        double[] bias = new double[pairs];
+        for (int p = 0; p < pairs; p++) {
+            bias[p] = -model.rho[p];
+        }
+        this.weights = new WeightMatrix(new double[(maxIndex + 1) * pairs], maxIndex + 1, pairs, bias);
+
+        int[] start = new int[nrClass];
+        for (int i = 1; i < nrClass; i++) {
+            start[i] = start[i - 1] + model.nSV[i - 1];
+        }
+
+        // Pair (i, j): the coefs of class i are in sv_coef[j - 1], the ones of class j in sv_coef[i].
+        for (int i = 0, p = 0; i < nrClass; i++) {
+            for (int j = i + 1; j < nrClass; j++, p++) {
+                addSupportVectors(model, start[i], model.nSV[i], model.sv_coef[j - 1], p);
+                addSupportVectors(model, start[j], model.nSV[j], model.sv_coef[i], p);
+            }
+        }
+    }
+
+    private void addSupportVectors(svm_model model, int from, int count, double[] coef, int pair) {
+        for (int k = from; k < from + count; k++) {
+            for (svm_node node : model.SV[k]) {
+                weights.add(node.index, pair, coef[k] * node.value);
+            }
+        }
+    }
+}
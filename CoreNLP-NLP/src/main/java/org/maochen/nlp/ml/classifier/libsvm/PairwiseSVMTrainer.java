@@ -0,0 +1,176 @@
+package org.maochen.nlp.ml.classifier.libsvm;
+
+import libsvm.svm;
+import libsvm.svm_model;
+import libsvm.svm_node;
+import libsvm.svm_parameter;
+import libsvm.svm_problem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * One-vs-one training with the class pairs in parallel. libsvm trains the k * (k - 1) / 2 pairs of a multi class
+ * problem one after another, here each pair is a binary svm.svm_train on its own thread and the binary models are
+ * assembled into the same multi class svm_model libsvm would build: support vectors grouped by class, one
+ * coefficient row per other class, rho and the probability params by pair.
+ *
+ * Labels of the problem are the label indices 0 ... k - 1, the model keeps them in that order.
+ */
+final class PairwiseSVMTrainer {
+
+    /**
+     * @return true if the problem is a multi class classification.
+     */
+    static boolean supports(svm_parameter param, int nrClass) {
+        return nrClass > 2 && (param.svm_type == svm_parameter.C_SVC || param.svm_type == svm_parameter.NU_SVC);
+    }
+
+    // Samples of class i first, so the decision value is positive for class i, same as libsvm.
+    private static svm_problem subProblem(svm_problem prob, int[][] members, int i, int j) {
+        svm_problem sub = new svm_problem();
+        sub.l = members[i].length + members[j].length;
+        sub.x = new svm_node[sub.l][];
+        sub.y = new double[sub.l];
+
+        int k = 0;
+        for (int c : new int[]{i, j}) {
+            for (int row : members[c]) {
+                sub.x[k] = prob.x[row];
+                sub.y[k++] = c;
+            }
+        }
+        return sub;
+    }
+
+    static svm_model train(svm_problem prob, svm_parameter param, int nrClass, int threads) {
+        int[] count = new int[nrClass];
+        for (int row = 0; row < prob.l; row++) {
+            count[(int) prob.y[row]]++;
+        }
+
+        int[][] members = new int[nrClass][];
+        for (int c = 0; c < nrClass; c++) {
+            members[c] = new int[count[c]];
+            count[c] = 0;
+        }
+        for (int row = 0; row < prob.l; row++) {
+            int c = (int) prob.y[row];
+            members[c][count[c]++] = row;
+        }
+
+        int pairs = nrClass * (nrClass - 1) / 2;
+        svm_model[] models = new svm_model[pairs];
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<svm_model>> futures = new ArrayList<>();
+            for (int i = 0; i < nrClass; i++) {
+                for (int j = i + 1; j < nrClass; j++) {
+                    svm_problem sub = subProblem(prob, members, i, j);
+                    futures.add(executor.submit(() -> svm.svm_train(sub, param)));
+                }
+            }
+
+            for (int p = 0; p < pairs; p++) {
+                models[p] = futures.get(p).get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Parallel svm training failed.", e);
+        } finally {
+            executor.shutdown();
+        }
+
+        return assemble(prob, param, nrClass, members, models);
+    }
+
+    private static svm_model assemble(svm_problem prob, svm_parameter param, int nrClass, int[][] members, svm_model[] models) {
+        int pairs = models.length;
+        boolean probability = models[0].probA != null;
+
+        // Coefficients by pair and position in the sub problem, a row is a sv if it is one of any pair.
+        int[] position = new int[prob.l];
+        for (int[] rows : members) {
+            for (int k = 0; k < rows.length; k++) {
+                position[rows[k]] = k;
+            }
+        }
+
+        double[][] coef = new double[pairs][];
+        boolean[] nonZero = new boolean[prob.l];
+        for (int i = 0, p = 0; i < nrClass; i++) {
+            for (int j = i + 1; j < nrClass; j++, p++) {
+                svm_model pairModel = models[p];
+                coef[p] = new double[members[i].length + members[j].length];
+                for (int k = 0; k < pairModel.l; k++) {
+                    int subIndex = pairModel.sv_indices[k] - 1;
+                    coef[p][subIndex] = pairModel.sv_coef[0][k];
+                    nonZero[subIndex < members[i].length ? members[i][subIndex] : members[j][subIndex - members[i].length]] = true;
+                }
+            }
+        }
+
+        svm_model model = new svm_model();
+        model.param = param;
+        model.nr_class = nrClass;
+        model.label = new int[nrClass];
+        model.nSV = new int[nrClass];
+        model.rho = new double[pairs];
+        model.probA = probability ? new double[pairs] : null;
+        model.probB = probability ? new double[pairs] : null;
+        for (int p = 0; p < pairs; p++) {
+            model.rho[p] = models[p].rho[0];
+            if (probability) {
+                model.probA[p] = models[p].probA[0];
+                model.probB[p] = models[p].probB[0];
+            }
+        }
+
+        List<Integer> svRows = new ArrayList<>();
+        for (int c = 0; c < nrClass; c++) {
+            model.label[c] = c;
+            for (int row : members[c]) {
+                if (nonZero[row]) {
+                    svRows.add(row);
+                    model.nSV[c]++;
+                }
+            }
+        }
+
+        model.l = svRows.size();
+        model.SV = new svm_node[model.l][];
+        model.sv_indices = new int[model.l];
+        model.sv_coef = new double[nrClass - 1][model.l];
+
+        int[] pairIndex = new int[nrClass * nrClass];
+        for (int i = 0, p = 0; i < nrClass; i++) {
+            for (int j = i + 1; j < nrClass; j++) {
+                pairIndex[i * nrClass + j] = p++;
+            }
+        }
+
+        // Same layout as libsvm: a sv of class c has the coef of pair (i, c) in row i and of pair (c, j) in row j - 1.
+        for (int s = 0, c = 0, end = model.nSV[0]; s < model.l; s++) {
+            while (s >= end) {
+                end += model.nSV[++c];
+            }
+            int row = svRows.get(s);
+            model.SV[s] = prob.x[row];
+            model.sv_indices[s] = row + 1;
+            for (int i = 0; i < c; i++) { // Class c is the second one of the pair.
+                model.sv_coef[i][s] = coef[pairIndex[i * nrClass + c]][members[i].length + position[row]];
+            }
+            for (int j = c + 1; j < nrClass; j++) {
+                model.sv_coef[j - 1][s] = coef[pairIndex[c * nrClass + j]][position[row]];
+            }
+        }
+        return model;
+    }
+
+    private PairwiseSVMTrainer() {
+    }
+}
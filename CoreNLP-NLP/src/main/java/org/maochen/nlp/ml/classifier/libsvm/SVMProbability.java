@@ -0,0 +1,117 @@
+package org.maochen.nlp.ml.classifier.libsvm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Probability estimates from the pairwise decision values, same as svm.svm_predict_probability: Platt scaling of
+ * each pair, then the pairwise coupling of Wu, Lin and Weng. libsvm keeps these private.
+ */
+final class SVMProbability {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SVMProbability.class);
+
+    private static final double MIN_PROB = 1e-7;
+
+    /**
+     * Work arrays of the pairwise coupling, grown to the largest class count seen. Not thread safe, one per thread.
+     */
+    static final class Buffers {
+        double[][] pairwise = new double[0][0];
+        double[][] q = new double[0][0];
+        double[] qp = new double[0];
+
+        private void ensure(int nrClass) {
+            if (qp.length < nrClass) {
+                pairwise = new double[nrClass][nrClass];
+                q = new double[nrClass][nrClass];
+                qp = new double[nrClass];
+            }
+        }
+    }
+
+    /**
+     * @param decValues one per class pair (i, j), i < j, in the libsvm order.
+     * @param probs     output, by the libsvm label order.
+     */
+    static void probability(int nrClass, double[] decValues, double[] probA, double[] probB, double[] probs,
+                            Buffers buffers) {
+        buffers.ensure(nrClass);
+        double[][] pairwise = buffers.pairwise;
+        for (int i = 0, p = 0; i < nrClass; i++) {
+            for (int j = i + 1; j < nrClass; j++, p++) {
+                pairwise[i][j] = Math.min(Math.max(sigmoid(decValues[p], probA[p], probB[p]), MIN_PROB), 1 - MIN_PROB);
+                pairwise[j][i] = 1 - pairwise[i][j];
+            }
+        }
+
+        if (nrClass == 2) {
+            probs[0] = pairwise[0][1];
+            probs[1] = pairwise[1][0];
+        } else {
+            multiclassProbability(nrClass, pairwise, probs, buffers);
+        }
+    }
+
+    private static double sigmoid(double decValue, double a, double b) {
+        double fApB = decValue * a + b;
+        return fApB >= 0 ? Math.exp(-fApB) / (1 + Math.exp(-fApB)) : 1 / (1 + Math.exp(fApB));
+    }
+
+    private static void multiclassProbability(int k, double[][] r, double[] p, Buffers buffers) {
+        int maxIter = Math.max(100, k);
+        double[][] q = buffers.q;
+        double[] qp = buffers.qp;
+        double eps = 0.005 / k;
+
+        for (int t = 0; t < k; t++) {
+            p[t] = 1.0 / k;
+            q[t][t] = 0;
+            for (int j = 0; j < t; j++) {
+                q[t][t] += r[j][t] * r[j][t];
+                q[t][j] = q[j][t];
+            }
+            for (int j = t + 1; j < k; j++) {
+                q[t][t] += r[j][t] * r[j][t];
+                q[t][j] = -r[j][t] * r[t][j];
+            }
+        }
+
+        int iter;
+        for (iter = 0; iter < maxIter; iter++) {
+            double pQp = 0;
+            for (int t = 0; t < k; t++) {
+                qp[t] = 0;
+                for (int j = 0; j < k; j++) {
+                    qp[t] += q[t][j] * p[j];
+                }
+                pQp += p[t] * qp[t];
+            }
+
+            double maxError = 0;
+            for (int t = 0; t < k; t++) {
+                maxError = Math.max(maxError, Math.abs(qp[t] - pQp));
+            }
+            if (maxError < eps) {
+                break;
+            }
+
+            for (int t = 0; t < k; t++) {
+                double diff = (-qp[t] + pQp) / q[t][t];
+                p[t] += diff;
+                pQp = (pQp + diff * (diff * q[t][t] + 2 * qp[t])) / (1 + diff) / (1 + diff);
+                for (int j = 0; j < k; j++) {
+                    qp[j] = (qp[j] + diff * q[t][j]) / (1 + diff);
+                    p[j] /= (1 + diff);
+                }
+            }
+        }
+
+        if (iter >= maxIter) {
+            LOG.info("Exceeds max_iter in multiclass_prob");
+        }
+    }
+
+    private SVMProbability() {
+    }
+}
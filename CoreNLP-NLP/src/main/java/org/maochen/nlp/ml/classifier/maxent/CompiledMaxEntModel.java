@@ -0,0 +1,464 @@
+package org.maochen.nlp.ml.classifier.maxent;
+
+import opennlp.maxent.GISModel;
+import opennlp.model.Context;
+import opennlp.model.IndexHashTable;
+
+import org.maochen.nlp.ml.util.ModelContainer;
+import org.maochen.nlp.ml.util.WeightMatrix;
+import org.maochen.nlp.ml.vector.FeatIdVector;
+import org.maochen.nlp.ml.vector.IVector;
+import org.maochen.nlp.ml.vector.IntDoubleConsumer;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * GISModel compiled for prediction. Predicates are looked up in an open addressing string to int table, params are
+ * flat buffers, one row of outcomes per predicate. Dense when every predicate has every outcome, CSR otherwise. The
+ * buffers are heap arrays when compiled, mapped from the file when read from a binary model.
+ *
+ * eval doesn't allocate, the feature counts of the legacy models with a correction param are per thread buffers.
+ * Immutable once built, safe to share between threads.
+ */
+final class CompiledMaxEntModel {
+
+    static final String MODEL_TYPE = "maxent";
+
+    private final String[] outcomeNames;
+    private final int numOutcomes;
+
+    // By predicate index.
+    private final String[] predNames;
+
+    // Open addressing, linear probing. Capacity is a power of 2, at most half full.
+    private final String[] keys;
+    private final int[] predIndex;
+    private final int mask;
+
+    // Row of predicate p is params[p * numOutcomes ...] when dense, params[rowStart[p] ... rowStart[p + 1]] with
+    // outcome indices in outcomes otherwise.
+    private final boolean dense;
+    private final DoubleBuffer params;
+    private final IntBuffer rowStart;
+    private final IntBuffer outcomes;
+
+    private final double constantInverse;
+    private final double correctionConstant;
+    private final double correctionParam;
+
+    // Params of the positional predicates "0", "1", ... by column, for the dense batch. Built on demand.
+    private volatile WeightMatrix positional = null;
+
+    // Predicate index of the positional predicates by column, -1 if none. Built on demand.
+    private volatile int[] positionalIndex = null;
+
+    // Per thread feature counts, and the consumer adding the positional feats of a vector.
+    private static final class Scratch implements IntDoubleConsumer {
+        private int[] numFeats = new int[0];
+
+        private CompiledMaxEntModel model;
+        private int[] columns;
+        private double[] out;
+        private int[] counts;
+
+        int[] numFeats(int size) {
+            if (numFeats.length < size) {
+                numFeats = new int[size];
+            } else {
+                Arrays.fill(numFeats, 0, size, 0);
+            }
+            return numFeats;
+        }
+
+        @Override
+        public void accept(int index, double value) {
+            if (index < columns.length && columns[index] >= 0) {
+                model.add(columns[index], value, out, counts);
+            }
+        }
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return predicate index, -1 if unknown.
+     */
+    int getIndex(String pred) {
+        for (int slot = hash(pred) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot].equals(pred)) {
+                return predIndex[slot];
+            }
+        }
+        return -1;
+    }
+
+    int getNumOutcomes() {
+        return numOutcomes;
+    }
+
+    String getOutcome(int index) {
+        return outcomeNames[index];
+    }
+
+    String[] getOutcomes() {
+        return outcomeNames.clone();
+    }
+
+    private void add(int pi, double value, double[] out, int[] numFeats) {
+        if (dense) {
+            for (int oi = 0, offset = pi * numOutcomes; oi < numOutcomes; oi++) {
+                out[oi] += params.get(offset + oi) * value;
+            }
+            if (numFeats != null) {
+                for (int oi = 0; oi < numOutcomes; oi++) {
+                    numFeats[oi]++;
+                }
+            }
+        } else {
+            for (int k = rowStart.get(pi), end = rowStart.get(pi + 1); k < end; k++) {
+                int oi = outcomes.get(k);
+                out[oi] += params.get(k) * value;
+                if (numFeats != null) {
+                    numFeats[oi]++;
+                }
+            }
+        }
+    }
+
+    // Same as GISModel.eval before the exp.
+    private void scale(double[] out, int[] numFeats) {
+        for (int oi = 0; oi < numOutcomes; oi++) {
+            out[oi] *= constantInverse;
+            if (numFeats != null) {
+                out[oi] += (1 - numFeats[oi] / correctionConstant) * correctionParam;
+            }
+        }
+    }
+
+    // Same as GISModel.eval, minus the max before exp.
+    void softmax(double[] out) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int oi = 0; oi < numOutcomes; oi++) {
+            max = Math.max(max, out[oi]);
+        }
+
+        double sum = 0;
+        for (int oi = 0; oi < numOutcomes; oi++) {
+            out[oi] = Math.exp(out[oi] - max);
+            sum += out[oi];
+        }
+
+        for (int oi = 0; oi < numOutcomes; oi++) {
+            out[oi] /= sum;
+        }
+    }
+
+    private int[] numFeats() {
+        return correctionParam == 0 ? null : SCRATCH.get().numFeats(numOutcomes);
+    }
+
+    /**
+     * Scores before the softmax, same argmax as the probabilities.
+     *
+     * @param vals null if all the values are 1.
+     * @param out  output, score by outcome index.
+     */
+    void logits(String[] feats, float[] vals, double[] out) {
+        int[] numFeats = numFeats();
+        Arrays.fill(out, 0, numOutcomes, 0);
+        for (int i = 0; i < feats.length; i++) {
+            int pi = getIndex(feats[i]);
+            if (pi >= 0) {
+                add(pi, vals == null ? 1 : vals[i], out, numFeats);
+            }
+        }
+        scale(out, numFeats);
+    }
+
+    /**
+     * Same as above, double values.
+     */
+    void logits(String[] feats, double[] vals, double[] out) {
+        int[] numFeats = numFeats();
+        Arrays.fill(out, 0, numOutcomes, 0);
+        for (int i = 0; i < feats.length; i++) {
+            int pi = getIndex(feats[i]);
+            if (pi >= 0) {
+                add(pi, vals == null ? 1 : vals[i], out, numFeats);
+            }
+        }
+        scale(out, numFeats);
+    }
+
+    /**
+     * Feats named by the dictionary of the vector.
+     */
+    void logits(FeatIdVector x, double[] out) {
+        int[] numFeats = numFeats();
+        Arrays.fill(out, 0, numOutcomes, 0);
+        int[] ids = x.getIndices();
+        double[] vals = x.getValues();
+        for (int i = 0; i < ids.length; i++) {
+            int pi = getIndex(x.getDictionary().getName(ids[i]));
+            if (pi >= 0) {
+                add(pi, vals[i], out, numFeats);
+            }
+        }
+        scale(out, numFeats);
+    }
+
+    /**
+     * Positional feats, index i is the predicate named i, same as TupleEventStream and TrainingMatrix.
+     */
+    void logits(IVector x, double[] out) {
+        Scratch scratch = SCRATCH.get();
+        int[] numFeats = numFeats();
+        Arrays.fill(out, 0, numOutcomes, 0);
+        scratch.model = this;
+        scratch.columns = positionalIndex();
+        scratch.out = out;
+        scratch.counts = numFeats;
+        try {
+            x.forEachNonZero(scratch);
+        } finally {
+            scratch.model = null;
+            scratch.columns = null;
+            scratch.out = null;
+            scratch.counts = null;
+        }
+        scale(out, numFeats);
+    }
+
+    /**
+     * @param vals null if all the values are 1.
+     * @param out  output, probability by outcome index.
+     */
+    void eval(String[] feats, float[] vals, double[] out) {
+        logits(feats, vals, out);
+        softmax(out);
+    }
+
+    /**
+     * Same as above, double values.
+     */
+    void eval(String[] feats, double[] vals, double[] out) {
+        logits(feats, vals, out);
+        softmax(out);
+    }
+
+    /**
+     * @return true if evalBatch can be used, the legacy models with a correction param count the features per
+     * outcome.
+     */
+    boolean supportsBatch() {
+        return correctionParam == 0;
+    }
+
+    // Canonical int name, same as String.valueOf, -1 otherwise.
+    private static int column(String pred) {
+        if (pred.isEmpty() || pred.length() > 9 || (pred.length() > 1 && pred.charAt(0) == '0')) {
+            return -1;
+        }
+        for (int i = 0; i < pred.length(); i++) {
+            if (pred.charAt(i) < '0' || pred.charAt(i) > '9') {
+                return -1;
+            }
+        }
+        return Integer.parseInt(pred);
+    }
+
+    private int[] positionalIndex() {
+        int[] index = positionalIndex;
+        if (index != null) {
+            return index;
+        }
+
+        int cols = 0;
+        for (String pred : predNames) {
+            cols = Math.max(cols, column(pred) + 1);
+        }
+
+        index = new int[cols];
+        Arrays.fill(index, -1);
+        for (int pi = 0; pi < predNames.length; pi++) {
+            int col = column(predNames[pi]);
+            if (col >= 0) {
+                index[col] = pi;
+            }
+        }
+        positionalIndex = index;
+        return index;
+    }
+
+    private WeightMatrix positionalMatrix() {
+        WeightMatrix matrix = positional;
+        if (matrix != null) {
+            return matrix;
+        }
+
+        int[] index = positionalIndex();
+        matrix = new WeightMatrix(index.length, numOutcomes);
+        for (int col = 0; col < index.length; col++) {
+            int pi = index[col];
+            if (pi < 0) {
+                continue;
+            }
+            if (dense) {
+                for (int oi = 0, offset = pi * numOutcomes; oi < numOutcomes; oi++) {
+                    matrix.add(col, oi, params.get(offset + oi));
+                }
+            } else {
+                for (int k = rowStart.get(pi), end = rowStart.get(pi + 1); k < end; k++) {
+                    matrix.add(col, outcomes.get(k), params.get(k));
+                }
+            }
+        }
+        positional = matrix;
+        return matrix;
+    }
+
+    /**
+     * Dense positional inputs, column c is the predicate named c. One blocked matrix product for the whole batch,
+     * then the same normalization as eval. Only if supportsBatch.
+     *
+     * @param out output, out[i] probability by outcome index for inputs[i].
+     */
+    void evalBatch(double[][] inputs, double[][] out) {
+        positionalMatrix().scoreBatch(inputs, out);
+        for (int i = 0; i < inputs.length; i++) {
+            scale(out[i], null);
+            softmax(out[i]);
+        }
+    }
+
+    /**
+     * Back to the opennlp model, for the text format.
+     */
+    GISModel toGISModel() {
+        Context[] contexts = new Context[predNames.length];
+        for (int pi = 0; pi < contexts.length; pi++) {
+            int from = dense ? pi * numOutcomes : rowStart.get(pi);
+            int to = dense ? from + numOutcomes : rowStart.get(pi + 1);
+            int[] active = new int[to - from];
+            double[] values = new double[to - from];
+            for (int k = from; k < to; k++) {
+                active[k - from] = dense ? k - from : outcomes.get(k);
+                values[k - from] = params.get(k);
+            }
+            contexts[pi] = new Context(active, values);
+        }
+        return new GISModel(contexts, predNames.clone(), outcomeNames.clone(), (int) correctionConstant, correctionParam);
+    }
+
+    /**
+     * Label table, feature table and the param blocks. Read back by the ModelContainer constructor.
+     */
+    void write(ModelContainer.Writer writer) {
+        writer.putStrings("outcomes", outcomeNames);
+        writer.putStrings("preds", predNames);
+        writer.putDoubles("correction", new double[]{correctionConstant, correctionParam});
+        if (dense) {
+            writer.putDoubles("params", params.duplicate(), predNames.length, numOutcomes);
+        } else {
+            writer.putDoubles("params", params.duplicate(), params.limit(), 1);
+            writer.putInts("row_start", rowStart.duplicate());
+            writer.putInts("outcome_index", outcomes.duplicate());
+        }
+    }
+
+    private static int capacity(int size) {
+        return Integer.highestOneBit(Math.max(2, size * 2 - 1)) << 1;
+    }
+
+    private void buildTable() {
+        for (int pi = 0; pi < predNames.length; pi++) {
+            int slot = hash(predNames[pi]) & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = predNames[pi];
+            predIndex[slot] = pi;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    CompiledMaxEntModel(GISModel model) {
+        Object[] data = model.getDataStructures();
+        Context[] contexts = (Context[]) data[0];
+        IndexHashTable<String> pmap = (IndexHashTable<String>) data[1];
+        this.outcomeNames = ((String[]) data[2]).clone();
+        this.numOutcomes = outcomeNames.length;
+        this.correctionConstant = ((Number) data[3]).doubleValue();
+        this.correctionParam = ((Number) data[4]).doubleValue();
+        this.constantInverse = 1 / correctionConstant;
+
+        this.predNames = new String[pmap.size()];
+        for (String pred : pmap.toArray(new String[pmap.size()])) {
+            predNames[pmap.get(pred)] = pred;
+        }
+        this.keys = new String[capacity(predNames.length)];
+        this.predIndex = new int[keys.length];
+        this.mask = keys.length - 1;
+
+        int nnz = 0;
+        for (Context context : contexts) {
+            nnz += context.getOutcomes().length;
+        }
+        this.dense = nnz == contexts.length * numOutcomes;
+        double[] params = new double[nnz];
+        int[] rowStart = dense ? null : new int[contexts.length + 1];
+        int[] outcomes = dense ? null : new int[nnz];
+
+        for (int pi = 0, k = 0; pi < contexts.length; pi++) {
+            int[] active = contexts[pi].getOutcomes();
+            double[] values = contexts[pi].getParameters();
+            for (int ai = 0; ai < active.length; ai++) {
+                if (dense) {
+                    params[pi * numOutcomes + active[ai]] = values[ai];
+                } else {
+                    outcomes[k] = active[ai];
+                    params[k++] = values[ai];
+                }
+            }
+            if (!dense) {
+                rowStart[pi + 1] = k;
+            }
+        }
+
+        this.params = DoubleBuffer.wrap(params);
+        this.rowStart = dense ? null : IntBuffer.wrap(rowStart);
+        this.outcomes = dense ? null : IntBuffer.wrap(outcomes);
+        buildTable();
+    }
+
+    /**
+     * The params stay in the mapped file, only the string tables are read into the heap.
+     */
+    CompiledMaxEntModel(ModelContainer container) {
+        this.outcomeNames = container.getStrings("outcomes");
+        this.numOutcomes = outcomeNames.length;
+        this.predNames = container.getStrings("preds");
+
+        double[] correction = container.getDoubleArray("correction");
+        this.correctionConstant = correction[0];
+        this.correctionParam = correction[1];
+        this.constantInverse = 1 / correctionConstant;
+
+        this.keys = new String[capacity(predNames.length)];
+        this.predIndex = new int[keys.length];
+        this.mask = keys.length - 1;
+
+        this.dense = !container.contains("row_start");
+        this.params = container.getDoubles("params");
+        this.rowStart = dense ? null : container.getInts("row_start");
+        this.outcomes = dense ? null : container.getInts("outcome_index");
+        buildTable();
+    }
+}
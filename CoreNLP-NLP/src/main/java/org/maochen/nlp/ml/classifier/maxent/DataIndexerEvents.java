@@ -0,0 +1,54 @@
+package org.maochen.nlp.ml.classifier.maxent;
+
+import opennlp.model.DataIndexer;
+
+/**
+ * The in memory arrays of a DataIndexer, split into equal parts.
+ */
+class DataIndexerEvents implements IndexedEvents {
+
+    private final DataIndexer di;
+    private final int[][] contexts;
+    private final float[][] values;
+    private final int[] outcomeList;
+    private final int[] numTimesEventsSeen;
+    private final int numParts;
+
+    @Override
+    public int getNumParts() {
+        return numParts;
+    }
+
+    @Override
+    public void forEach(int part, Visitor visitor) {
+        int from = (int) ((long) contexts.length * part / numParts);
+        int to = (int) ((long) contexts.length * (part + 1) / numParts);
+        for (int ei = from; ei < to; ei++) {
+            visitor.accept(contexts[ei], values == null ? null : values[ei], outcomeList[ei], numTimesEventsSeen[ei]);
+        }
+    }
+
+    @Override
+    public String[] getPredLabels() {
+        return di.getPredLabels();
+    }
+
+    @Override
+    public int[] getPredCounts() {
+        return di.getPredCounts();
+    }
+
+    @Override
+    public String[] getOutcomeLabels() {
+        return di.getOutcomeLabels();
+    }
+
+    DataIndexerEvents(DataIndexer di, int numParts) {
+        this.di = di;
+        this.contexts = di.getContexts();
+        this.values = di.getValues();
+        this.outcomeList = di.getOutcomeList();
+        this.numTimesEventsSeen = di.getNumTimesEventsSeen();
+        this.numParts = Math.max(1, Math.min(numParts, contexts.length));
+    }
+}
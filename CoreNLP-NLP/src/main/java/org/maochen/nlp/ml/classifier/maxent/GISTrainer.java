@@ -77,29 +77,9 @@ class GISTrainer {
     private double smoothingObservation = 0.1;
 
     /**
-     * Number of unique events which occured in the event set.
+     * The training events, in memory or spilled to disk.
      */
-    private int numUniqueEvents;
-
-    /**
-     * Records the array of predicates seen in each event.
-     */
-    private int[][] trainingDataFeatNameIndices;
-
-    /**
-     * The value associated with each context. If null then context values are assumes to be 1.
-     */
-    private float[][] trainingDataFeatValues;
-
-    /**
-     * List of outcomes for each event i, in context[i].
-     */
-    private int[] outcomeList;
-
-    /**
-     * Records the num of times an event has been seen for each event i, in context[i].
-     */
-    private int[] numTimesEventsSeen;
+    private IndexedEvents events;
 
     /**
      * The number of times a predicate occured in the training data.
@@ -149,6 +129,20 @@ class GISTrainer {
      */
     private EvalParameters evalParams;
 
+    /**
+     * Created once per training and reused by all the iterations.
+     */
+    private ExecutorService executor;
+
+    private final List<IterationStats> iterationStats = new ArrayList<>();
+
+    /**
+     * @return stats of the iterations of the last training, in order.
+     */
+    public List<IterationStats> getIterationStats() {
+        return iterationStats;
+    }
+
     /**
      * Sets whether this trainer will use smoothing while training the model. This can improve model
      * accuracy, though training will potentially take longer and use more memory.  Model size will
@@ -193,6 +187,13 @@ class GISTrainer {
      * opennlp.maxent.io.GISModelWriter object.
      */
     public GISModel trainModel(int iterations, DataIndexer di, Prior modelPrior, int cutoff, int threads) {
+        return trainModel(iterations, new DataIndexerEvents(di, threads), modelPrior, cutoff, threads);
+    }
+
+    /**
+     * Same as above, the events are iterated once per iteration.
+     */
+    public GISModel trainModel(int iterations, IndexedEvents events, Prior modelPrior, int cutoff, int threads) {
         if (threads <= 0) {
             threads = 1;
         }
@@ -201,55 +202,42 @@ class GISTrainer {
 
         /************** Incorporate all of the needed info ******************/
         LOG.debug("Incorporating indexed data for training...");
-        trainingDataFeatNameIndices = di.getContexts();
-        trainingDataFeatValues = di.getValues();
+        this.events = events;
         this.cutoff = cutoff;
-        predicateCounts = di.getPredCounts();
-        numTimesEventsSeen = di.getNumTimesEventsSeen();
-        numUniqueEvents = trainingDataFeatNameIndices.length;
+        predicateCounts = events.getPredCounts();
         this.prior = modelPrior;
 
-        labels = di.getOutcomeLabels();
-        outcomeList = di.getOutcomeList();
+        labels = events.getOutcomeLabels();
 
-        featNames = di.getPredLabels();
+        featNames = events.getPredLabels();
         prior.setLabels(labels, featNames);
 
-        // determine the correction constant and its inverse
-        double correctionConstant = 0;
-        for (int ci = 0; ci < trainingDataFeatNameIndices.length; ci++) {
-            if (trainingDataFeatValues == null || trainingDataFeatValues[ci] == null) {
-                if (trainingDataFeatNameIndices[ci].length > correctionConstant) {
-                    correctionConstant = trainingDataFeatNameIndices[ci].length;
-                }
+        // determine the correction constant and its inverse, and set up feature arrays
+        double[] correction = new double[1];
+        int[] numUniqueEvents = new int[1];
+        float[][] featCount = new float[featNames.length][labels.length];
+        events.forEach((context, values, outcome, seen) -> {
+            numUniqueEvents[0]++;
+            if (values == null) {
+                correction[0] = Math.max(correction[0], context.length);
             } else {
-                float cl = trainingDataFeatValues[ci][0];
-                for (int vi = 1; vi < trainingDataFeatValues[ci].length; vi++) {
-                    cl += trainingDataFeatValues[ci][vi];
+                float cl = values[0];
+                for (int vi = 1; vi < values.length; vi++) {
+                    cl += values[vi];
                 }
+                correction[0] = Math.max(correction[0], cl);
+            }
 
-                if (cl > correctionConstant) {
-                    correctionConstant = cl;
-                }
+            for (int j = 0; j < context.length; j++) {
+                featCount[context[j]][outcome] += values == null ? seen : seen * values[j];
             }
-        }
+        });
+        double correctionConstant = correction[0];
 
-        LOG.debug("Number of Event Tokens: " + numUniqueEvents);
+        LOG.debug("Number of Event Tokens: " + numUniqueEvents[0]);
         LOG.debug("Number of Outcomes: " + labels.length);
         LOG.debug("Number of Predicates: " + featNames.length);
 
-        // set up feature arrays
-        float[][] featCount = new float[featNames.length][labels.length];
-        for (int ti = 0; ti < numUniqueEvents; ti++) {
-            for (int j = 0; j < trainingDataFeatNameIndices[ti].length; j++) {
-                if (trainingDataFeatValues != null && trainingDataFeatValues[ti] != null) {
-                    featCount[trainingDataFeatNameIndices[ti][j]][outcomeList[ti]] += numTimesEventsSeen[ti] * trainingDataFeatValues[ti][j];
-                } else {
-                    featCount[trainingDataFeatNameIndices[ti][j]][outcomeList[ti]] += numTimesEventsSeen[ti];
-                }
-            }
-        }
-
         // A fake "observation" to cover features which are not detected in
         // the data.  The default is to assume that we observed "1/10th" of a
         // feature during training.
@@ -320,7 +308,13 @@ class GISTrainer {
 
         /***************** Find the parameters ************************/
         LOG.debug("Computing model parameters in " + threads + " threads...");
-        findParameters(iterations, correctionConstant);
+        executor = Executors.newFixedThreadPool(threads);
+        try {
+            findParameters(iterations, correctionConstant);
+        } finally {
+            executor.shutdown();
+            executor = null;
+        }
 
         /*************** Create and return the model ******************/
         // To be compatible with old models the correction constant is always 1
@@ -332,10 +326,13 @@ class GISTrainer {
     private void findParameters(int iterations, double correctionConstant) {
         LOG.info("Performing max " + iterations + " iterations.");
 
+        iterationStats.clear();
         double prevLL = 0.0;
         for (int i = 1; i <= iterations; i++) {
             LOG.debug("Iteration " + i);
-            double currLL = nextIteration(correctionConstant); // Core
+            IterationStats stats = nextIteration(i, correctionConstant); // Core
+            iterationStats.add(stats);
+            double currLL = stats.getLogLikelihood();
 
             if (i > 1) {
                 if (prevLL > currLL) {
@@ -352,8 +349,7 @@ class GISTrainer {
         // kill a bunch of these big objects now that we don't need them
         observedExpects = null;
         modelExpects = null;
-        numTimesEventsSeen = null;
-        trainingDataFeatNameIndices = null;
+        events = null;
     }
 
     //modeled on implementation in Zhang Le's maxent kit
@@ -379,10 +375,7 @@ class GISTrainer {
         return x0;
     }
 
-    private class ModelExpactationComputeTask implements Callable<ModelExpactationComputeTask> {
-
-        private final int startIndex;
-        private final int length;
+    private class ModelExpactationComputeTask implements Callable<ModelExpactationComputeTask>, IndexedEvents.Visitor {
 
         private double loglikelihood = 0;
 
@@ -390,59 +383,61 @@ class GISTrainer {
         private int numCorrect = 0;
 
         final private int threadIndex;
+        final private int numberOfThreads;
+
+        private final double[] modelDistribution = new double[labels.length];
 
-        // startIndex to compute, number of events to compute
-        ModelExpactationComputeTask(int threadIndex, int startIndex, int length) {
-            this.startIndex = startIndex;
-            this.length = length;
+        // Parts threadIndex, threadIndex + numberOfThreads ...
+        ModelExpactationComputeTask(int threadIndex, int numberOfThreads) {
             this.threadIndex = threadIndex;
+            this.numberOfThreads = numberOfThreads;
         }
 
         public ModelExpactationComputeTask call() {
+            for (int part = threadIndex; part < events.getNumParts(); part += numberOfThreads) {
+                events.forEach(part, this);
+            }
+            return this;
+        }
 
-            final double[] modelDistribution = new double[labels.length];
-
-            for (int ei = startIndex; ei < startIndex + length; ei++) {
-                prior.logPrior(modelDistribution, trainingDataFeatNameIndices[ei], trainingDataFeatValues[ei]);
-                GISModel.eval(trainingDataFeatNameIndices[ei], trainingDataFeatValues[ei], modelDistribution, evalParams);
+        @Override
+        public void accept(int[] context, float[] values, int outcome, int seen) {
+            prior.logPrior(modelDistribution, context, values);
+            GISModel.eval(context, values, modelDistribution, evalParams);
 
-                for (int j = 0; j < trainingDataFeatNameIndices[ei].length; j++) {
-                    int pi = trainingDataFeatNameIndices[ei][j];
-                    if (predicateCounts[pi] < cutoff) {
-                        continue;
-                    }
+            for (int j = 0; j < context.length; j++) {
+                int pi = context[j];
+                if (predicateCounts[pi] < cutoff) {
+                    continue;
+                }
 
-                    int[] activeOutcomes = modelExpects[threadIndex][pi].getOutcomes();
-                    for (int aoi = 0; aoi < activeOutcomes.length; aoi++) {
-                        int oi = activeOutcomes[aoi];
+                int[] activeOutcomes = modelExpects[threadIndex][pi].getOutcomes();
+                for (int aoi = 0; aoi < activeOutcomes.length; aoi++) {
+                    int oi = activeOutcomes[aoi];
 
-                        // numTimesEventsSeen must also be thread safe
-                        if (trainingDataFeatValues != null && trainingDataFeatValues[ei] != null) {
-                            modelExpects[threadIndex][pi].updateParameter(aoi, modelDistribution[oi] * trainingDataFeatValues[ei][j] * numTimesEventsSeen[ei]);
-                        } else {
-                            modelExpects[threadIndex][pi].updateParameter(aoi, modelDistribution[oi] * numTimesEventsSeen[ei]);
-                        }
+                    if (values != null) {
+                        modelExpects[threadIndex][pi].updateParameter(aoi, modelDistribution[oi] * values[j] * seen);
+                    } else {
+                        modelExpects[threadIndex][pi].updateParameter(aoi, modelDistribution[oi] * seen);
                     }
-
                 }
 
-                loglikelihood += Math.log(modelDistribution[outcomeList[ei]]) * numTimesEventsSeen[ei];
+            }
 
-                numEvents += numTimesEventsSeen[ei];
-                // The following is just for debug purpose.
-                int maxIndex = 0;
-                for (int labelIndex = 1; labelIndex < labels.length; labelIndex++) {
-                    if (modelDistribution[labelIndex] > modelDistribution[maxIndex]) {
-                        maxIndex = labelIndex;
-                    }
-                }
-                if (maxIndex == outcomeList[ei]) {
-                    numCorrect += numTimesEventsSeen[ei];
+            loglikelihood += Math.log(modelDistribution[outcome]) * seen;
+
+            numEvents += seen;
+            // The following is just for debug purpose.
+            int maxIndex = 0;
+            for (int labelIndex = 1; labelIndex < labels.length; labelIndex++) {
+                if (modelDistribution[labelIndex] > modelDistribution[maxIndex]) {
+                    maxIndex = labelIndex;
                 }
-                // End
             }
-
-            return this;
+            if (maxIndex == outcome) {
+                numCorrect += seen;
+            }
+            // End
         }
 
         synchronized int getNumEvents() {
@@ -458,30 +453,16 @@ class GISTrainer {
         }
     }
 
-    /* Compute one iteration of GIS and return log-likelihood.*/
-    private double nextIteration(double correctionConstant) {
-        // compute contribution of p(a|b_i) for each feature and the new
-        // correction parameter
-        double loglikelihood = 0.0;
-        int numEvents = 0;
-        int numCorrect = 0;
-
-        int numberOfThreads = modelExpects.length;
-        ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
-        int taskSize = numUniqueEvents / numberOfThreads;
-        int leftOver = numUniqueEvents % numberOfThreads;
-
-        List<Future<?>> futures = new ArrayList<>();
-
-        for (int i = 0; i < numberOfThreads; i++) {
-            int len = i == numberOfThreads - 1 ? taskSize + leftOver : taskSize;
-            futures.add(executor.submit(new ModelExpactationComputeTask(i, i * taskSize, len)));
+    private <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        List<Future<T>> futures = new ArrayList<>();
+        for (Callable<T> task : tasks) {
+            futures.add(executor.submit(task));
         }
 
-        for (Future<?> future : futures) {
-            ModelExpactationComputeTask finishedTask;
+        List<T> results = new ArrayList<>();
+        for (Future<T> future : futures) {
             try {
-                finishedTask = (ModelExpactationComputeTask) future.get();
+                results.add(future.get());
             } catch (InterruptedException e) {
                 // TODO: We got interrupted, but that is currently not really supported!
                 // For now we just print the exception and fail hard. We hopefully soon
@@ -494,37 +475,29 @@ class GISTrainer {
                 // which is caused through a bug in our implementation.
                 throw new RuntimeException("Exception during training: " + e.getMessage(), e);
             }
-
-            // When they are done, retrieve the results ...
-            numEvents += finishedTask.getNumEvents();
-            numCorrect += finishedTask.getNumCorrect();
-            loglikelihood += finishedTask.getLoglikelihood();
         }
+        return results;
+    }
 
-        executor.shutdown();
-
-        // merge the results of the two computations
-        for (int pi = 0; pi < featNames.length; pi++) {
-            int[] activeOutcomes = params[pi].getOutcomes();
-
-            for (int aoi = 0; aoi < activeOutcomes.length; aoi++) {
-                for (int i = 1; i < modelExpects.length; i++) {
-                    modelExpects[0][pi].updateParameter(aoi, modelExpects[i][pi].getParameters()[aoi]);
+    /* Merge the model expects of the threads and compute the new parameters for the predicates [from, to). */
+    private Void updateParameters(int from, int to, double correctionConstant) {
+        for (int pi = from; pi < to; pi++) {
+            double[] model = modelExpects[0][pi].getParameters();
+            for (int i = 1; i < modelExpects.length; i++) {
+                double[] other = modelExpects[i][pi].getParameters();
+                for (int aoi = 0; aoi < model.length; aoi++) {
+                    model[aoi] += other[aoi];
                 }
             }
-        }
 
-        // compute the new parameter values
-        for (int pi = 0; pi < featNames.length; pi++) {
             double[] observed = observedExpects[pi].getParameters();
-            double[] model = modelExpects[0][pi].getParameters();
             int[] activeOutcomes = params[pi].getOutcomes();
             for (int aoi = 0; aoi < activeOutcomes.length; aoi++) {
                 if (useGaussianSmoothing) {
                     params[pi].updateParameter(aoi, gaussianUpdate(pi, aoi, correctionConstant));
                 } else {
                     if (model[aoi] == 0) {
-                        LOG.error("Model expects == 0 for " + featNames[pi] + " " + labels[aoi]);
+                        LOG.error("Model expects == 0 for " + featNames[pi] + " " + labels[activeOutcomes[aoi]]);
                     }
                     params[pi].updateParameter(aoi, ((Math.log(observed[aoi]) - Math.log(model[aoi])) / correctionConstant));
                 }
@@ -532,12 +505,49 @@ class GISTrainer {
                 for (MutableContext[] modelExpect : modelExpects) {
                     modelExpect[pi].setParameter(aoi, 0.0); // re-initialize to 0.0's
                 }
-
             }
         }
+        return null;
+    }
+
+    /* Compute one iteration of GIS.*/
+    private IterationStats nextIteration(int iteration, double correctionConstant) {
+        long start = System.currentTimeMillis();
+
+        // compute contribution of p(a|b_i) for each feature and the new
+        // correction parameter
+        double loglikelihood = 0.0;
+        int numEvents = 0;
+        int numCorrect = 0;
+
+        int numberOfThreads = modelExpects.length;
 
-        LOG.debug("loglikelihood = " + loglikelihood + "\taccuracy: " + ((double) numCorrect / numEvents) * 100);
+        List<Callable<ModelExpactationComputeTask>> expectTasks = new ArrayList<>();
+        for (int i = 0; i < numberOfThreads; i++) {
+            expectTasks.add(new ModelExpactationComputeTask(i, numberOfThreads));
+        }
+
+        for (ModelExpactationComputeTask finishedTask : invokeAll(expectTasks)) {
+            // When they are done, retrieve the results ...
+            numEvents += finishedTask.getNumEvents();
+            numCorrect += finishedTask.getNumCorrect();
+            loglikelihood += finishedTask.getLoglikelihood();
+        }
+
+        long expectEnd = System.currentTimeMillis();
+
+        // Merge and update are independent between predicates, split them into ranges.
+        List<Callable<Void>> updateTasks = new ArrayList<>();
+        for (int i = 0; i < numberOfThreads; i++) {
+            int from = (int) ((long) featNames.length * i / numberOfThreads);
+            int to = (int) ((long) featNames.length * (i + 1) / numberOfThreads);
+            updateTasks.add(() -> updateParameters(from, to, correctionConstant));
+        }
+        invokeAll(updateTasks);
 
-        return loglikelihood;
+        IterationStats stats = new IterationStats(iteration, loglikelihood, (double) numCorrect / numEvents,
+                expectEnd - start, System.currentTimeMillis() - expectEnd);
+        LOG.debug(stats.toString());
+        return stats;
     }
 }
@@ -0,0 +1,34 @@
+package org.maochen.nlp.ml.classifier.maxent;
+
+/**
+ * Indexed training events, iterated by the trainers once per iteration. The events are split into parts, different
+ * parts can be iterated by different threads at the same time.
+ */
+public interface IndexedEvents {
+
+    interface Visitor {
+        /**
+         * @param context predicate indices of the event. Might be reused after the call returns.
+         * @param values  values of the predicates, null if all are 1. Might be reused after the call returns.
+         * @param outcome outcome index.
+         * @param seen    number of times the event was seen.
+         */
+        void accept(int[] context, float[] values, int outcome, int seen);
+    }
+
+    int getNumParts();
+
+    void forEach(int part, Visitor visitor);
+
+    String[] getPredLabels();
+
+    int[] getPredCounts();
+
+    String[] getOutcomeLabels();
+
+    default void forEach(Visitor visitor) {
+        for (int part = 0; part < getNumParts(); part++) {
+            forEach(part, visitor);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.maochen.nlp.ml.classifier.maxent;
+
+/**
+ * Metrics of one training iteration.
+ */
+public class IterationStats {
+
+    private final int iteration;
+    private final double logLikelihood;
+    private final double accuracy;
+
+    // GIS: time computing the model expectations, then merging them and updating the params. 0 for other trainers.
+    private final long expectMillis;
+    private final long updateMillis;
+
+    public int getIteration() {
+        return iteration;
+    }
+
+    public double getLogLikelihood() {
+        return logLikelihood;
+    }
+
+    /**
+     * @return training accuracy of the params before this iteration's update, 0 to 1.
+     */
+    public double getAccuracy() {
+        return accuracy;
+    }
+
+    public long getExpectMillis() {
+        return expectMillis;
+    }
+
+    public long getUpdateMillis() {
+        return updateMillis;
+    }
+
+    public long getElapsedMillis() {
+        return expectMillis + updateMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "Iteration " + iteration + "\tloglikelihood = " + logLikelihood + "\taccuracy: " + accuracy * 100
+                + "\ttime: " + getElapsedMillis() + "ms (expect " + expectMillis + "ms, update " + updateMillis + "ms)";
+    }
+
+    /**
+     * Trainers with their own timings, see QNIterationStats.
+     */
+    protected IterationStats(int iteration, double logLikelihood, double accuracy) {
+        this(iteration, logLikelihood, accuracy, 0, 0);
+    }
+
+    public IterationStats(int iteration, double logLikelihood, double accuracy, long expectMillis, long updateMillis) {
+        this.iteration = iteration;
+        this.logLikelihood = logLikelihood;
+        this.accuracy = accuracy;
+        this.expectMillis = expectMillis;
+        this.updateMillis = updateMillis;
+    }
+}
@@ -12,10 +12,15 @@ import opennlp.model.RealValueFileEventStream;
 import opennlp.model.UniformPrior;
 
 import org.maochen.nlp.ml.IClassifier;
+import org.maochen.nlp.ml.TrainingMatrix;
 import org.maochen.nlp.ml.Tuple;
 import org.maochen.nlp.ml.classifier.maxent.eventstream.EventStream;
+import org.maochen.nlp.ml.classifier.maxent.eventstream.FileEventStream;
 import org.maochen.nlp.ml.classifier.maxent.eventstream.StringEventStream;
 import org.maochen.nlp.ml.classifier.maxent.eventstream.TupleEventStream;
+import org.maochen.nlp.ml.util.ModelContainer;
+import org.maochen.nlp.ml.vector.DenseVector;
+import org.maochen.nlp.ml.vector.FeatIdVector;
 import org.maochen.nlp.ml.vector.FeatNamedVector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,39 +28,108 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.function.Supplier;
 
 public class MaxEntClassifier implements IClassifier {
 
     private static final Logger LOG = LoggerFactory.getLogger(MaxEntClassifier.class);
 
+    // Scores of predictArgmax, grown to the outcome size.
+    private static final ThreadLocal<double[]> SCORES = ThreadLocal.withInitial(() -> new double[0]);
+
     private boolean useSmoothing = true;
     private int iterations = 100;
     private int cutoff = 0;
     private int nthreads = Runtime.getRuntime().availableProcessors();
     private double smoothingObservation = 0.1;
 
+    // gis, lbfgs (l2 penalty) or owlqn (l1 penalty).
+    private String algorithm = "gis";
+    private double l1 = 1.0;
+    private double l2 = 1.0;
+
+    // Out of core training: temp dir of the spill files and the events sorted in memory at once.
+    private File spillDir = null;
+    private int runSize = 1000000;
+
+    // Null for the binary models, rebuilt from the compiled one when needed.
     private GISModel model = null;
 
+    // Compiled from the model or mapped from a binary model, used by the predictions.
+    private volatile CompiledMaxEntModel compiled = null;
+
+    private List<IterationStats> iterationStats = new ArrayList<>();
+
     public MaxEntClassifier trainString(List<String[]> trainingData) {
         EventStream es = new StringEventStream(trainingData);
         return train(es);
     }
 
     private MaxEntClassifier train(EventStream es) {
+        return train(new OnePassRealValueDataIndexer(es, cutoff, true));
+    }
+
+    private MaxEntClassifier train(DataIndexer di) {
+        return train(new DataIndexerEvents(di, nthreads));
+    }
+
+    private MaxEntClassifier train(IndexedEvents events) {
+        if (algorithm.equals("lbfgs") || algorithm.equals("owlqn")) {
+            QNTrainer qnTrainer = algorithm.equals("lbfgs") ? new QNTrainer(0, l2) : new QNTrainer(l1, 0);
+            setModel(qnTrainer.trainModel(iterations, events, nthreads));
+            iterationStats = qnTrainer.getIterationStats();
+            return this;
+        }
+
         Prior prior = new UniformPrior();
-        DataIndexer di = new OnePassRealValueDataIndexer(es, cutoff, true);
 
         GISTrainer gisTrainer = new GISTrainer();
         gisTrainer.setSmoothing(useSmoothing);
         gisTrainer.setSmoothingObservation(smoothingObservation);
-        model = gisTrainer.trainModel(iterations, di, prior, cutoff, nthreads);
+        setModel(gisTrainer.trainModel(iterations, events, prior, cutoff, nthreads));
+        iterationStats = gisTrainer.getIterationStats();
         return this;
     }
 
+    /**
+     * Train from an event file without loading it into memory. Same format as trainString, one event per line: feats
+     * separated by space, the label is the last token. The file is read twice and the indexed events are spilled to
+     * a temp file, see StreamingDataIndexer.
+     */
+    public MaxEntClassifier trainFile(String eventFile) throws IOException {
+        Supplier<FileEventStream> streams = () -> {
+            try {
+                return new FileEventStream(eventFile);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+
+        try (StreamingDataIndexer indexer = new StreamingDataIndexer(streams, cutoff, spillDir, runSize)) {
+            return train(indexer);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void setModel(GISModel model) {
+        this.model = model;
+        this.compiled = new CompiledMaxEntModel(model);
+    }
+
+    /**
+     * @return per iteration metrics of the last training.
+     */
+    public List<IterationStats> getIterationStats() {
+        return iterationStats;
+    }
+
     public Map<String, Double> predict(String[] feats) {
         float[] val = RealValueFileEventStream.parseContexts(feats); // This will remove the val in feats
         double[] vector = new double[val.length];
@@ -76,25 +150,95 @@ public class MaxEntClassifier implements IClassifier {
         return train(es);
     }
 
+    /**
+     * Predicates are the column names of the matrix, positional columns are named by their index.
+     */
+    @Override
+    public IClassifier train(TrainingMatrix trainingData) {
+        return train(new TrainingMatrixDataIndexer(trainingData, cutoff));
+    }
+
     @Override
     public Map<String, Double> predict(Tuple predict) {
-        if (!(predict.vector instanceof FeatNamedVector)) {
-            throw new IllegalArgumentException("Please use FeatNamedVector");
+        CompiledMaxEntModel compiled = this.compiled;
+        double[] prob = new double[compiled.getNumOutcomes()];
+        predictInto(compiled, predict, prob);
+
+        Map<String, Double> resultMap = new HashMap<>();
+        for (int i = 0; i < prob.length; i++) {
+            resultMap.put(compiled.getOutcome(i), prob[i]);
+        }
+
+        return resultMap;
+    }
+
+    /**
+     * Label index is the outcome index of the GIS model.
+     */
+    @Override
+    public String[] getLabels() {
+        return compiled.getOutcomes();
+    }
+
+    @Override
+    public void predictInto(Tuple predict, double[] scores) {
+        predictInto(compiled, predict, scores);
+    }
+
+    // Feats are evaluated in place, no copy of the names or values.
+    private static void logits(CompiledMaxEntModel compiled, Tuple predict, double[] scores) {
+        if (predict.vector instanceof FeatNamedVector) {
+            compiled.logits(((FeatNamedVector) predict.vector).featsName, predict.vector.getVector(), scores);
+        } else if (predict.vector instanceof FeatIdVector) {
+            compiled.logits((FeatIdVector) predict.vector, scores);
+        } else { // Positional feats, named by index same as TupleEventStream and TrainingMatrix.
+            compiled.logits(predict.vector, scores);
         }
+    }
+
+    private static void predictInto(CompiledMaxEntModel compiled, Tuple predict, double[] scores) {
+        logits(compiled, predict, scores);
+        compiled.softmax(scores);
+    }
 
-        float[] featureVector = new float[predict.vector.getVector().length];
-        for (int i = 0; i < featureVector.length; i++) {
-            featureVector[i] = (float) predict.vector.getVector()[i]; // So damn stupid.
+    /**
+     * Positional dense vectors are scored as one matrix product, see CompiledMaxEntModel.evalBatch. Named and sparse
+     * feats one by one.
+     */
+    @Override
+    public void predictBatch(List<Tuple> predicts, double[][] out) {
+        CompiledMaxEntModel compiled = this.compiled;
+        if (compiled.supportsBatch() && predicts.stream().allMatch(t -> t.vector.getClass() == DenseVector.class)) {
+            compiled.evalBatch(predicts.stream().map(t -> t.vector.getVector()).toArray(double[][]::new), out);
+            return;
         }
 
-        double[] prob = model.eval(((FeatNamedVector) predict.vector).featsName, featureVector, new double[model.getNumOutcomes()]);
+        for (int i = 0; i < predicts.size(); i++) {
+            predictInto(compiled, predicts.get(i), out[i]);
+        }
+    }
 
-        Map<String, Double> resultMap = new HashMap<>();
-        for (int i = 0; i < prob.length; i++) {
-            resultMap.put(model.getOutcome(i), prob[i]);
+    /**
+     * Argmax of the scores before the softmax, in a per thread buffer.
+     */
+    @Override
+    public int predictArgmax(Tuple predict) {
+        CompiledMaxEntModel compiled = this.compiled;
+        int numOutcomes = compiled.getNumOutcomes();
+        double[] scores = SCORES.get();
+        if (scores.length < numOutcomes) {
+            scores = new double[numOutcomes];
+            SCORES.set(scores);
         }
+        logits(compiled, predict, scores);
 
-        return resultMap;
+        int max = 0;
+        for (int i = 1; i < numOutcomes; i++) {
+            if (scores[i] > scores[max]) {
+                max = i;
+            }
+        }
+        return max;
     }
 
     @Override
@@ -122,22 +266,64 @@ public class MaxEntClassifier implements IClassifier {
         if (paraMap.containsKey("smoothing_observation")) {
             this.smoothingObservation = Double.parseDouble(paraMap.getProperty("smoothing_observation"));
         }
+
+        if (paraMap.containsKey("algorithm")) {
+            String algorithm = paraMap.getProperty("algorithm").trim().toLowerCase();
+            if (!algorithm.equals("gis") && !algorithm.equals("lbfgs") && !algorithm.equals("owlqn")) {
+                throw new IllegalArgumentException("Unknown algorithm " + algorithm + ", expect gis, lbfgs or owlqn.");
+            }
+            this.algorithm = algorithm;
+        }
+
+        if (paraMap.containsKey("l1")) {
+            this.l1 = Double.parseDouble(paraMap.getProperty("l1"));
+        }
+
+        if (paraMap.containsKey("l2")) {
+            this.l2 = Double.parseDouble(paraMap.getProperty("l2"));
+        }
+
+        if (paraMap.containsKey("spill_dir")) {
+            this.spillDir = new File(paraMap.getProperty("spill_dir"));
+        }
+
+        if (paraMap.containsKey("run_size")) {
+            this.runSize = Integer.parseInt(paraMap.getProperty("run_size"));
+        }
     }
 
     @Override
     public void persistModel(String modelPath) throws IOException {
         File outputFile = new File(modelPath);
-        GISModelWriter writer = new PlainTextGISModelWriter(model, outputFile);
+        GISModelWriter writer = new PlainTextGISModelWriter(model == null ? compiled.toGISModel() : model, outputFile);
         writer.persist();
     }
 
+    @Override
+    public void persistBinaryModel(String modelPath) throws IOException {
+        ModelContainer.Writer writer = new ModelContainer.Writer(CompiledMaxEntModel.MODEL_TYPE);
+        compiled.write(writer);
+        writer.write(modelPath);
+    }
+
+    /**
+     * The params are mapped, only the outcome and predicate tables are read.
+     */
+    @Override
+    public void loadBinaryModel(String modelPath) throws IOException {
+        LOG.info("Loading binary MaxEnt model.");
+        CompiledMaxEntModel compiled = new CompiledMaxEntModel(ModelContainer.open(modelPath, CompiledMaxEntModel.MODEL_TYPE));
+        this.model = null;
+        this.compiled = compiled;
+    }
+
     @Override
     public void loadModel(InputStream modelPath) {
         LOG.info("Loading MaxEnt model.");
         GISModelReader modelReader = new GISModelReader(new PlainTextFileDataReader(modelPath));
         try {
             AbstractModel model = modelReader.getModel();
-            this.model = (GISModel) model;
+            setModel((GISModel) model);
         } catch (IOException e) {
             LOG.error("model load err.", e);
         }
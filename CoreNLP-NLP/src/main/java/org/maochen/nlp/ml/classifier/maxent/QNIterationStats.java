@@ -0,0 +1,38 @@
+package org.maochen.nlp.ml.classifier.maxent;
+
+/**
+ * Metrics of one L-BFGS or OWL-QN iteration.
+ */
+public class QNIterationStats extends IterationStats {
+
+    // Time computing the search direction from the history, then in the line search evaluating the candidates.
+    private final long directionMillis;
+    private final long lineSearchMillis;
+
+    public long getDirectionMillis() {
+        return directionMillis;
+    }
+
+    public long getLineSearchMillis() {
+        return lineSearchMillis;
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        return directionMillis + lineSearchMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "Iteration " + getIteration() + "\tloglikelihood = " + getLogLikelihood() + "\taccuracy: "
+                + getAccuracy() * 100 + "\ttime: " + getElapsedMillis() + "ms (direction " + directionMillis
+                + "ms, line search " + lineSearchMillis + "ms)";
+    }
+
+    public QNIterationStats(int iteration, double logLikelihood, double accuracy, long directionMillis,
+                            long lineSearchMillis) {
+        super(iteration, logLikelihood, accuracy);
+        this.directionMillis = directionMillis;
+        this.lineSearchMillis = lineSearchMillis;
+    }
+}
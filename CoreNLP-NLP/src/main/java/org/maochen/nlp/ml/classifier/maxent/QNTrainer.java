@@ -0,0 +1,405 @@
+package org.maochen.nlp.ml.classifier.maxent;
+
+import opennlp.maxent.GISModel;
+import opennlp.model.Context;
+import opennlp.model.DataIndexer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Quasi-Newton MaxEnt trainer over the indexed events. Minimizes the negative log likelihood with L-BFGS, plus
+ * l2 / 2 * ||w||^2, and when l1 > 0 the OWL-QN variant for l1 * |w|_1 (Andrew and Gao, 2007). There is one param
+ * per (predicate, outcome) pair, the ones which end up 0 are left out of the model, so l1 gives sparse models.
+ *
+ * The parts of the events are split between the threads, each computes the loss and gradient of its parts.
+ *
+ * The result is a GISModel with correction constant 1, the GIS eval is exactly the softmax of the params.
+ */
+class QNTrainer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QNTrainer.class);
+
+    // Number of the (s, y) pairs kept for the inverse Hessian approximation.
+    private static final int MEMORY = 15;
+
+    private static final double TOLERANCE = 1e-4;
+    private static final int MAX_LINE_SEARCH = 20;
+    private static final double ARMIJO = 1e-4;
+
+    private final double l1;
+    private final double l2;
+
+    private IndexedEvents events;
+    private int numOutcomes;
+
+    private ExecutorService executor;
+    private int threads;
+
+    private final List<IterationStats> iterationStats = new ArrayList<>();
+
+    public List<IterationStats> getIterationStats() {
+        return iterationStats;
+    }
+
+    // Loss, gradient and accuracy of the parts of one thread. One per thread for the whole training, reset before each
+    // evaluation.
+    private class Partial implements IndexedEvents.Visitor {
+        double loss = 0;
+        int numEvents = 0;
+        int numCorrect = 0;
+        double[] w;
+        final double[] gradient;
+        final double[] scores = new double[numOutcomes];
+
+        Partial reset(double[] w) {
+            this.w = w;
+            loss = 0;
+            numEvents = 0;
+            numCorrect = 0;
+            Arrays.fill(gradient, 0);
+            return this;
+        }
+
+        Partial compute(int thread) {
+            for (int part = thread; part < events.getNumParts(); part += threads) {
+                events.forEach(part, this);
+            }
+            return this;
+        }
+
+        @Override
+        public void accept(int[] context, float[] values, int gold, int n) {
+            Arrays.fill(scores, 0);
+            for (int j = 0; j < context.length; j++) {
+                double v = values == null ? 1 : values[j];
+                int offset = context[j] * numOutcomes;
+                for (int oi = 0; oi < numOutcomes; oi++) {
+                    scores[oi] += w[offset + oi] * v;
+                }
+            }
+
+            int max = 0;
+            for (int oi = 1; oi < numOutcomes; oi++) {
+                if (scores[oi] > scores[max]) {
+                    max = oi;
+                }
+            }
+
+            double maxScore = scores[max];
+            double sum = 0;
+            for (int oi = 0; oi < numOutcomes; oi++) {
+                scores[oi] = Math.exp(scores[oi] - maxScore);
+                sum += scores[oi];
+            }
+
+            loss -= n * (Math.log(scores[gold] / sum));
+            numEvents += n;
+            if (max == gold) {
+                numCorrect += n;
+            }
+
+            // d(-log p(gold)) / dw[pred][o] = (p(o) - [o == gold]) * v
+            for (int oi = 0; oi < numOutcomes; oi++) {
+                scores[oi] = n * (scores[oi] / sum - (oi == gold ? 1 : 0));
+            }
+            for (int j = 0; j < context.length; j++) {
+                double v = values == null ? 1 : values[j];
+                int offset = context[j] * numOutcomes;
+                for (int oi = 0; oi < numOutcomes; oi++) {
+                    gradient[offset + oi] += scores[oi] * v;
+                }
+            }
+        }
+
+        Partial(int dimension) {
+            this.gradient = new double[dimension];
+        }
+    }
+
+    private Partial[] partials;
+
+    private double loglikelihood;
+    private double accuracy;
+
+    /**
+     * @param gradient output, gradient of the smooth part, l2 included.
+     * @return the smooth part of the objective, the l1 penalty is not included.
+     */
+    private double evaluate(double[] w, double[] gradient) {
+        List<Future<Partial>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> partials[thread].reset(w).compute(thread)));
+        }
+
+        double loss = 0;
+        int count = 0;
+        int correct = 0;
+        Arrays.fill(gradient, 0);
+        for (Future<Partial> future : futures) {
+            Partial partial;
+            try {
+                partial = future.get();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("Interruption is not supported!", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Exception during training: " + e.getMessage(), e);
+            }
+
+            loss += partial.loss;
+            count += partial.numEvents;
+            correct += partial.numCorrect;
+            for (int i = 0; i < gradient.length; i++) {
+                gradient[i] += partial.gradient[i];
+            }
+        }
+
+        loglikelihood = -loss;
+        accuracy = count == 0 ? 0 : (double) correct / count;
+
+        if (l2 > 0) {
+            for (int i = 0; i < w.length; i++) {
+                loss += l2 / 2 * w[i] * w[i];
+                gradient[i] += l2 * w[i];
+            }
+        }
+        return loss;
+    }
+
+    private double l1Norm(double[] w) {
+        double norm = 0;
+        for (double x : w) {
+            norm += Math.abs(x);
+        }
+        return norm;
+    }
+
+    // Gradient of the smooth part plus the l1 subgradient which points to the steepest descent, OWL-QN.
+    private void pseudoGradient(double[] w, double[] gradient, double[] pg) {
+        if (l1 == 0) {
+            System.arraycopy(gradient, 0, pg, 0, w.length);
+            return;
+        }
+
+        for (int i = 0; i < w.length; i++) {
+            if (w[i] < 0) {
+                pg[i] = gradient[i] - l1;
+            } else if (w[i] > 0) {
+                pg[i] = gradient[i] + l1;
+            } else if (gradient[i] + l1 < 0) {
+                pg[i] = gradient[i] + l1;
+            } else if (gradient[i] - l1 > 0) {
+                pg[i] = gradient[i] - l1;
+            } else {
+                pg[i] = 0;
+            }
+        }
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    // Two loop recursion, direction = -H * pg.
+    private static void direction(double[] pg, double[][] s, double[][] y, double[] rho, int start, int size,
+                                  double[] direction) {
+        for (int i = 0; i < pg.length; i++) {
+            direction[i] = -pg[i];
+        }
+
+        double[] alpha = new double[size];
+        for (int k = size - 1; k >= 0; k--) {
+            int m = (start + k) % MEMORY;
+            alpha[k] = rho[m] * dot(s[m], direction);
+            for (int i = 0; i < direction.length; i++) {
+                direction[i] -= alpha[k] * y[m][i];
+            }
+        }
+
+        if (size > 0) {
+            int last = (start + size - 1) % MEMORY;
+            double gamma = dot(s[last], y[last]) / dot(y[last], y[last]);
+            for (int i = 0; i < direction.length; i++) {
+                direction[i] *= gamma;
+            }
+        }
+
+        for (int k = 0; k < size; k++) {
+            int m = (start + k) % MEMORY;
+            double beta = rho[m] * dot(y[m], direction);
+            for (int i = 0; i < direction.length; i++) {
+                direction[i] += s[m][i] * (alpha[k] - beta);
+            }
+        }
+    }
+
+    private void findParameters(double[] w, int iterations) {
+        int dim = w.length;
+        double[] gradient = new double[dim];
+        double[] pg = new double[dim];
+        double[] dir = new double[dim];
+        double[] newW = new double[dim];
+        double[] newGradient = new double[dim];
+
+        double[][] s = new double[MEMORY][dim];
+        double[][] y = new double[MEMORY][dim];
+        double[] rho = new double[MEMORY];
+        int start = 0;
+        int size = 0;
+
+        double f = evaluate(w, gradient) + l1 * l1Norm(w);
+
+        for (int iter = 1; iter <= iterations; iter++) {
+            long iterStart = System.currentTimeMillis();
+            pseudoGradient(w, gradient, pg);
+
+            direction(pg, s, y, rho, start, size, dir);
+            if (l1 > 0) { // Keep the direction in the descent orthant of the pseudo gradient.
+                for (int i = 0; i < dim; i++) {
+                    if (dir[i] * pg[i] >= 0) {
+                        dir[i] = 0;
+                    }
+                }
+            }
+
+            long directionEnd = System.currentTimeMillis();
+
+            double step = iter == 1 ? 1 / Math.max(Math.sqrt(dot(pg, pg)), 1) : 1;
+            double newF = f;
+            boolean found = false;
+            for (int ls = 0; ls < MAX_LINE_SEARCH; ls++) {
+                for (int i = 0; i < dim; i++) {
+                    newW[i] = w[i] + step * dir[i];
+                    if (l1 > 0) { // Project back to the orthant, the sign of w or of -pg when w is 0.
+                        double orthant = w[i] != 0 ? Math.signum(w[i]) : Math.signum(-pg[i]);
+                        if (Math.signum(newW[i]) != orthant) {
+                            newW[i] = 0;
+                        }
+                    }
+                }
+
+                newF = evaluate(newW, newGradient) + l1 * l1Norm(newW);
+
+                double decrease = 0;
+                for (int i = 0; i < dim; i++) {
+                    decrease += pg[i] * (newW[i] - w[i]);
+                }
+                if (newF <= f + ARMIJO * decrease) {
+                    found = true;
+                    break;
+                }
+                step /= 2;
+            }
+
+            IterationStats stats = new QNIterationStats(iter, loglikelihood, accuracy, directionEnd - iterStart,
+                    System.currentTimeMillis() - directionEnd);
+            iterationStats.add(stats);
+            LOG.debug(stats.toString());
+
+            if (!found) {
+                LOG.warn("Line search failed at iteration " + iter + ", stop.");
+                break;
+            }
+
+            int m = (start + size) % MEMORY;
+            for (int i = 0; i < dim; i++) {
+                s[m][i] = newW[i] - w[i];
+                y[m][i] = newGradient[i] - gradient[i];
+            }
+            double sy = dot(s[m], y[m]);
+            if (sy > 0) { // Skip the pair otherwise, H has to stay positive definite.
+                rho[m] = 1 / sy;
+                if (size < MEMORY) {
+                    size++;
+                } else {
+                    start = (start + 1) % MEMORY;
+                }
+            }
+
+            System.arraycopy(newW, 0, w, 0, dim);
+            System.arraycopy(newGradient, 0, gradient, 0, dim);
+
+            double improvement = (f - newF) / Math.max(Math.abs(newF), 1);
+            f = newF;
+            if (improvement < TOLERANCE) {
+                break;
+            }
+        }
+    }
+
+    public GISModel trainModel(int iterations, DataIndexer di, int threads) {
+        return trainModel(iterations, new DataIndexerEvents(di, threads), threads);
+    }
+
+    public GISModel trainModel(int iterations, IndexedEvents events, int threads) {
+        this.threads = threads <= 0 ? 1 : threads;
+        this.events = events;
+
+        String[] outcomeLabels = events.getOutcomeLabels();
+        String[] predLabels = events.getPredLabels();
+        this.numOutcomes = outcomeLabels.length;
+
+        LOG.debug("Number of Outcomes: " + numOutcomes);
+        LOG.debug("Number of Predicates: " + predLabels.length);
+
+        double[] w = new double[predLabels.length * numOutcomes];
+        iterationStats.clear();
+        partials = new Partial[this.threads];
+        for (int t = 0; t < this.threads; t++) {
+            partials[t] = new Partial(w.length);
+        }
+        executor = Executors.newFixedThreadPool(this.threads);
+        try {
+            findParameters(w, iterations);
+        } finally {
+            executor.shutdown();
+            executor = null;
+            partials = null;
+        }
+
+        // Only the non-zero params, predicates without any are dropped.
+        List<Context> params = new ArrayList<>();
+        List<String> preds = new ArrayList<>();
+        int[] outcomes = new int[numOutcomes];
+        double[] paramValues = new double[numOutcomes];
+        for (int pi = 0; pi < predLabels.length; pi++) {
+            int active = 0;
+            for (int oi = 0; oi < numOutcomes; oi++) {
+                double param = w[pi * numOutcomes + oi];
+                if (param != 0) {
+                    outcomes[active] = oi;
+                    paramValues[active++] = param;
+                }
+            }
+
+            if (active > 0) {
+                params.add(new Context(Arrays.copyOf(outcomes, active), Arrays.copyOf(paramValues, active)));
+                preds.add(predLabels[pi]);
+            }
+        }
+
+        LOG.debug("Non-zero predicates: " + preds.size() + " of " + predLabels.length);
+
+        this.events = null;
+        return new GISModel(params.toArray(new Context[params.size()]), preds.toArray(new String[preds.size()]),
+                outcomeLabels, 1, 0);
+    }
+
+    QNTrainer(double l1, double l2) {
+        this.l1 = l1;
+        this.l2 = l2;
+    }
+}
@@ -0,0 +1,425 @@
+package org.maochen.nlp.ml.classifier.maxent;
+
+import opennlp.model.ComparableEvent;
+import opennlp.model.Event;
+
+import org.maochen.nlp.ml.classifier.maxent.eventstream.EventStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Supplier;
+
+/**
+ * Out of core indexer, only the predicate and outcome names are kept in memory.
+ *
+ * 1. The first pass over the events counts the predicates, the ones seen at least cutoff times are indexed.
+ * 2. The second pass indexes the events, sorts every runSize of them in memory, collapses the duplicates and writes
+ * each sorted run to a temp file.
+ * 3. The runs are merged into the spill file, duplicates across runs are collapsed too.
+ *
+ * The spill file is memory mapped and iterated by the trainers every iteration. Close it to delete the file.
+ *
+ * Record: seen, outcome, n, n predicate indices, has values flag, n values if the flag is 1.
+ */
+public class StreamingDataIndexer implements IndexedEvents, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(StreamingDataIndexer.class);
+
+    // Unique events per part.
+    private static final int PART_EVENTS = 8192;
+
+    // Max bytes of one mapping, parts don't cross mappings.
+    private static final long MAX_CHUNK = 1L << 30;
+
+    private final String[] predLabels;
+    private final int[] predCounts;
+    private final String[] outcomeLabels;
+
+    private File spillFile;
+    private MappedByteBuffer[] chunks;
+    private int[] partChunk;
+    private int[] partStart;
+    private int[] partEnd;
+
+    private int numUniqueEvents = 0;
+    private int maxContextSize = 0;
+
+    private static class RunReader implements Closeable {
+        private final DataInputStream input;
+        ComparableEvent current;
+
+        boolean advance() throws IOException {
+            current = readEvent(input);
+            return current != null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+
+        RunReader(File file) throws IOException {
+            this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+    }
+
+    private static ComparableEvent readEvent(DataInputStream input) throws IOException {
+        int seen;
+        try {
+            seen = input.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        int outcome = input.readInt();
+        int[] context = new int[input.readInt()];
+        for (int i = 0; i < context.length; i++) {
+            context[i] = input.readInt();
+        }
+
+        float[] values = null;
+        if (input.readByte() == 1) {
+            values = new float[context.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = input.readFloat();
+            }
+        }
+
+        ComparableEvent event = new ComparableEvent(outcome, context, values);
+        event.seen = seen;
+        return event;
+    }
+
+    // Returns the bytes written.
+    private static long writeEvent(DataOutputStream output, ComparableEvent event) throws IOException {
+        output.writeInt(event.seen);
+        output.writeInt(event.outcome);
+        output.writeInt(event.predIndexes.length);
+        for (int pred : event.predIndexes) {
+            output.writeInt(pred);
+        }
+
+        output.writeByte(event.values == null ? 0 : 1);
+        if (event.values != null) {
+            for (float value : event.values) {
+                output.writeFloat(value);
+            }
+        }
+        return 13L + 4L * event.predIndexes.length * (event.values == null ? 1 : 2);
+    }
+
+    private File writeRun(List<ComparableEvent> run, File spillDir) throws IOException {
+        run.sort(ComparableEvent::compareTo);
+
+        File file = File.createTempFile("maxent_run", ".bin", spillDir);
+        file.deleteOnExit();
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            ComparableEvent pending = null;
+            for (ComparableEvent event : run) {
+                if (pending != null && pending.compareTo(event) == 0) {
+                    pending.seen += event.seen;
+                } else {
+                    if (pending != null) {
+                        writeEvent(output, pending);
+                    }
+                    pending = event;
+                }
+            }
+
+            if (pending != null) {
+                writeEvent(output, pending);
+            }
+        }
+
+        run.clear();
+        return file;
+    }
+
+    // K-way merge of the sorted runs, returns the start offset of every part and the end offset.
+    private List<Long> merge(List<File> runs) throws IOException {
+        List<Long> partOffsets = new ArrayList<>();
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, runs.size()), (r1, r2) -> r1.current.compareTo(r2.current));
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)))) {
+            for (File run : runs) {
+                RunReader reader = new RunReader(run);
+                if (reader.advance()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+
+            long offset = 0;
+            ComparableEvent pending = null;
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                ComparableEvent event = reader.current;
+                if (reader.advance()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+
+                if (pending != null && pending.compareTo(event) == 0) {
+                    pending.seen += event.seen;
+                    continue;
+                }
+
+                if (pending != null) {
+                    if (numUniqueEvents % PART_EVENTS == 0) {
+                        partOffsets.add(offset);
+                    }
+                    offset += writeEvent(output, pending);
+                    numUniqueEvents++;
+                }
+                pending = event;
+            }
+
+            if (pending != null) {
+                if (numUniqueEvents % PART_EVENTS == 0) {
+                    partOffsets.add(offset);
+                }
+                offset += writeEvent(output, pending);
+                numUniqueEvents++;
+            }
+            partOffsets.add(offset);
+        } finally {
+            for (RunReader reader : queue) {
+                reader.close();
+            }
+            for (File run : runs) {
+                if (!run.delete()) {
+                    LOG.warn("Unable to delete " + run);
+                }
+            }
+        }
+        return partOffsets;
+    }
+
+    private void map(List<Long> partOffsets) throws IOException {
+        int numParts = partOffsets.size() - 1;
+        partChunk = new int[numParts];
+        partStart = new int[numParts];
+        partEnd = new int[numParts];
+
+        List<MappedByteBuffer> mapped = new ArrayList<>();
+        try (RandomAccessFile file = new RandomAccessFile(spillFile, "r"); FileChannel channel = file.getChannel()) {
+            int part = 0;
+            while (part < numParts) {
+                long chunkStart = partOffsets.get(part);
+                int last = part;
+                while (last + 1 < numParts && partOffsets.get(last + 2) - chunkStart <= MAX_CHUNK) {
+                    last++;
+                }
+
+                long chunkEnd = partOffsets.get(last + 1);
+                if (chunkEnd - chunkStart > Integer.MAX_VALUE) {
+                    throw new IOException("Part " + part + " is too large to map: " + (chunkEnd - chunkStart) + " bytes.");
+                }
+
+                for (int p = part; p <= last; p++) {
+                    partChunk[p] = mapped.size();
+                    partStart[p] = (int) (partOffsets.get(p) - chunkStart);
+                    partEnd[p] = (int) (partOffsets.get(p + 1) - chunkStart);
+                }
+                mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, chunkEnd - chunkStart));
+                part = last + 1;
+            }
+        }
+        chunks = mapped.toArray(new MappedByteBuffer[mapped.size()]);
+    }
+
+    @Override
+    public int getNumParts() {
+        return partChunk.length;
+    }
+
+    @Override
+    public void forEach(int part, Visitor visitor) {
+        // Thread confined view and buffers, reused by length.
+        ByteBuffer buffer = chunks[partChunk[part]].duplicate();
+        buffer.limit(partEnd[part]);
+        buffer.position(partStart[part]);
+        int[][] contextBuffers = new int[maxContextSize + 1][];
+        float[][] valueBuffers = new float[maxContextSize + 1][];
+
+        while (buffer.hasRemaining()) {
+            int seen = buffer.getInt();
+            int outcome = buffer.getInt();
+            int n = buffer.getInt();
+
+            int[] context = contextBuffers[n];
+            if (context == null) {
+                context = contextBuffers[n] = new int[n];
+            }
+            for (int i = 0; i < n; i++) {
+                context[i] = buffer.getInt();
+            }
+
+            float[] values = null;
+            if (buffer.get() == 1) {
+                values = valueBuffers[n];
+                if (values == null) {
+                    values = valueBuffers[n] = new float[n];
+                }
+                for (int i = 0; i < n; i++) {
+                    values[i] = buffer.getFloat();
+                }
+            }
+
+            visitor.accept(context, values, outcome, seen);
+        }
+    }
+
+    @Override
+    public String[] getPredLabels() {
+        return predLabels;
+    }
+
+    @Override
+    public int[] getPredCounts() {
+        return predCounts;
+    }
+
+    @Override
+    public String[] getOutcomeLabels() {
+        return outcomeLabels;
+    }
+
+    public int getNumUniqueEvents() {
+        return numUniqueEvents;
+    }
+
+    /**
+     * Delete the spill file. The mappings are released by the GC.
+     */
+    @Override
+    public void close() {
+        chunks = new MappedByteBuffer[0];
+        partChunk = new int[0];
+        if (spillFile != null && spillFile.exists() && !spillFile.delete()) {
+            LOG.warn("Unable to delete " + spillFile);
+        }
+    }
+
+    private static void close(EventStream stream) throws IOException {
+        if (stream instanceof Closeable) {
+            ((Closeable) stream).close();
+        }
+    }
+
+    /**
+     * @param streams  opens a new stream over the same events, called twice.
+     * @param cutoff   min count of a predicate.
+     * @param spillDir directory of the temp files, null for the default temp dir.
+     * @param runSize  events sorted in memory at once.
+     */
+    public StreamingDataIndexer(Supplier<? extends EventStream> streams, int cutoff, File spillDir, int runSize) throws IOException {
+        LOG.debug("Indexing events using cutoff of " + cutoff);
+
+        // Pass 1: counts.
+        Map<String, Integer> counter = new LinkedHashMap<>();
+        Map<String, Integer> outcomeIndex = new LinkedHashMap<>();
+        EventStream stream = streams.get();
+        try {
+            while (stream.hasNext()) {
+                Event event = stream.next();
+                outcomeIndex.putIfAbsent(event.getOutcome(), outcomeIndex.size());
+                for (String pred : event.getContext()) {
+                    counter.merge(pred, 1, Integer::sum);
+                }
+            }
+        } finally {
+            close(stream);
+        }
+
+        Map<String, Integer> predicateIndex = new LinkedHashMap<>();
+        List<Integer> counts = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : counter.entrySet()) {
+            if (entry.getValue() >= cutoff) {
+                predicateIndex.put(entry.getKey(), predicateIndex.size());
+                counts.add(entry.getValue());
+            }
+        }
+        counter = null;
+
+        predLabels = predicateIndex.keySet().toArray(new String[predicateIndex.size()]);
+        predCounts = counts.stream().mapToInt(Integer::intValue).toArray();
+        outcomeLabels = outcomeIndex.keySet().toArray(new String[outcomeIndex.size()]);
+        LOG.debug("Indexed " + predLabels.length + " predicates and " + outcomeLabels.length + " outcomes.");
+
+        // Pass 2: sorted runs.
+        List<File> runs = new ArrayList<>();
+        List<ComparableEvent> run = new ArrayList<>();
+        int numEvents = 0;
+        stream = streams.get();
+        try {
+            int[] context = new int[16];
+            float[] values = new float[16];
+            while (stream.hasNext()) {
+                Event event = stream.next();
+                String[] preds = event.getContext();
+                float[] eventValues = event.getValues();
+                if (context.length < preds.length) {
+                    context = new int[preds.length];
+                    values = new float[preds.length];
+                }
+
+                int n = 0;
+                for (int i = 0; i < preds.length; i++) {
+                    Integer index = predicateIndex.get(preds[i]);
+                    if (index != null) {
+                        context[n] = index;
+                        values[n++] = eventValues == null ? 1 : eventValues[i];
+                    }
+                }
+
+                if (n == 0) { // drop events with no active features
+                    LOG.warn("Dropped event " + event.getOutcome() + ":" + Arrays.asList(preds));
+                    continue;
+                }
+
+                maxContextSize = Math.max(maxContextSize, n);
+                run.add(new ComparableEvent(outcomeIndex.get(event.getOutcome()), Arrays.copyOf(context, n),
+                        eventValues == null ? null : Arrays.copyOf(values, n)));
+                numEvents++;
+                if (run.size() >= runSize) {
+                    runs.add(writeRun(run, spillDir));
+                }
+            }
+
+            if (!run.isEmpty()) {
+                runs.add(writeRun(run, spillDir));
+            }
+        } finally {
+            close(stream);
+        }
+
+        // Merge into the spill file.
+        spillFile = File.createTempFile("maxent_events", ".bin", spillDir);
+        spillFile.deleteOnExit();
+        map(merge(runs));
+
+        LOG.debug("Reduced " + numEvents + " events to " + numUniqueEvents + " in " + runs.size() + " runs, "
+                + getNumParts() + " parts.");
+    }
+}
@@ -0,0 +1,136 @@
+package org.maochen.nlp.ml.classifier.maxent;
+
+import opennlp.model.DataIndexer;
+
+import org.maochen.nlp.ml.TrainingMatrix;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+/**
+ * DataIndexer over a TrainingMatrix. Columns seen less than cutoff times are dropped and the rest are renumbered as
+ * predicates, rows left without any predicate are dropped. Events are not merged.
+ */
+public class TrainingMatrixDataIndexer implements DataIndexer {
+    private static final Logger LOG = LoggerFactory.getLogger(TrainingMatrixDataIndexer.class);
+
+    private int[][] contexts;
+    private float[][] values;
+    private int[] outcomeList;
+    private int[] numTimesEventsSeen;
+
+    private String[] predLabels;
+    private int[] predCounts;
+    private String[] outcomeLabels;
+
+    public TrainingMatrixDataIndexer(TrainingMatrix matrix, int cutoff) {
+        int[] rowPtr = matrix.getRowPtr();
+        int[] colIdx = matrix.getColIdx();
+        double[] matrixValues = matrix.getValues();
+
+        int[] colCounts = new int[matrix.getNumCols()];
+        for (int k = 0; k < matrix.getNnz(); k++) {
+            colCounts[colIdx[k]]++;
+        }
+
+        // Column -> predicate index, -1 if dropped.
+        int[] predIndex = new int[colCounts.length];
+        int numPreds = 0;
+        for (int col = 0; col < colCounts.length; col++) {
+            predIndex[col] = colCounts[col] > 0 && colCounts[col] >= cutoff ? numPreds++ : -1;
+        }
+
+        predLabels = new String[numPreds];
+        predCounts = new int[numPreds];
+        for (int col = 0; col < colCounts.length; col++) {
+            if (predIndex[col] >= 0) {
+                predLabels[predIndex[col]] = matrix.getColName(col);
+                predCounts[predIndex[col]] = colCounts[col];
+            }
+        }
+
+        contexts = new int[matrix.getNumRows()][];
+        values = new float[matrix.getNumRows()][];
+        outcomeList = new int[matrix.getNumRows()];
+
+        int numEvents = 0;
+        for (int row = 0; row < matrix.getNumRows(); row++) {
+            int nnz = 0;
+            for (int k = rowPtr[row]; k < rowPtr[row + 1]; k++) {
+                if (predIndex[colIdx[k]] >= 0) {
+                    nnz++;
+                }
+            }
+
+            if (nnz == 0) { // drop events with no active features
+                LOG.warn("Dropped event " + row + " with label " + matrix.getLabelName(row));
+                continue;
+            }
+
+            int[] context = new int[nnz];
+            float[] value = new float[nnz];
+            for (int k = rowPtr[row], i = 0; k < rowPtr[row + 1]; k++) {
+                if (predIndex[colIdx[k]] >= 0) {
+                    context[i] = predIndex[colIdx[k]];
+                    value[i] = (float) matrixValues[k];
+                    i++;
+                }
+            }
+
+            contexts[numEvents] = context;
+            values[numEvents] = value;
+            outcomeList[numEvents] = matrix.getLabel(row);
+            numEvents++;
+        }
+
+        contexts = Arrays.copyOf(contexts, numEvents);
+        values = Arrays.copyOf(values, numEvents);
+        outcomeList = Arrays.copyOf(outcomeList, numEvents);
+        numTimesEventsSeen = new int[numEvents];
+        Arrays.fill(numTimesEventsSeen, 1);
+        outcomeLabels = matrix.getLabelNames();
+
+        LOG.debug("Indexed " + numEvents + " events with " + numPreds + " predicates.");
+    }
+
+    @Override
+    public int[][] getContexts() {
+        return contexts;
+    }
+
+    @Override
+    public int[] getNumTimesEventsSeen() {
+        return numTimesEventsSeen;
+    }
+
+    @Override
+    public int[] getOutcomeList() {
+        return outcomeList;
+    }
+
+    @Override
+    public String[] getPredLabels() {
+        return predLabels;
+    }
+
+    @Override
+    public int[] getPredCounts() {
+        return predCounts;
+    }
+
+    @Override
+    public String[] getOutcomeLabels() {
+        return outcomeLabels;
+    }
+
+    @Override
+    public float[][] getValues() {
+        return values;
+    }
+
+    @Override
+    public int getNumEvents() {
+        return contexts.length;
+    }
+}
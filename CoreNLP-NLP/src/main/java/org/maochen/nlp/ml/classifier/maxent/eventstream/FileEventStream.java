@@ -0,0 +1,55 @@
+package org.maochen.nlp.ml.classifier.maxent.eventstream;
+
+import opennlp.model.Event;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the events line by line from a file, same format as StringEventStream: feats separated by space, the label
+ * is the last token. Blank lines are skipped.
+ *
+ * away pdiff=9.6875 ptwins=0.5 lose
+ */
+public class FileEventStream implements EventStream, Closeable {
+
+    private final BufferedReader reader;
+    private String nextLine;
+
+    private void advance() {
+        try {
+            do {
+                nextLine = reader.readLine();
+            } while (nextLine != null && nextLine.trim().isEmpty());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Event next() {
+        Event event = StringEventStream.createEvent(nextLine.trim());
+        advance();
+        return event;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextLine != null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    public FileEventStream(String filename) throws IOException {
+        this.reader = new BufferedReader(new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8));
+        advance();
+    }
+}
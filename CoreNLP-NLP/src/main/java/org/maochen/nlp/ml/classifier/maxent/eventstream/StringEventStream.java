@@ -16,7 +16,7 @@ public class StringEventStream implements EventStream, opennlp.model.EventStream
     private Iterator<String[]> dataIter;
 
     // away pdiff=9.6875 ptwins=0.5 lose
-    private Event createEvent(String obs) {
+    static Event createEvent(String obs) {
         int lastSpace = obs.lastIndexOf(StringUtils.SPACE);
         Event event = null;
 
@@ -5,6 +5,7 @@ import opennlp.model.Event;
 import org.apache.commons.lang3.NotImplementedException;
 import org.maochen.nlp.ml.Tuple;
 import org.maochen.nlp.ml.vector.DenseVector;
+import org.maochen.nlp.ml.vector.FeatIdVector;
 import org.maochen.nlp.ml.vector.FeatNamedVector;
 import org.maochen.nlp.ml.vector.SparseVector;
 import org.maochen.nlp.util.VectorUtils;
@@ -24,16 +25,28 @@ public class TupleEventStream implements EventStream {
         Tuple tuple = dataIter.next();
 
         String[] featName;
-        float[] featVal = VectorUtils.doubleToFloat(tuple.vector.getVector());
+        float[] featVal;
 
         if (tuple.vector instanceof FeatNamedVector) {
             featName = ((FeatNamedVector) tuple.vector).featsName;
-        } else if (tuple.vector instanceof SparseVector || tuple.vector instanceof DenseVector) {
-            featName = new String[tuple.vector.getVector().length];
+            featVal = new float[featName.length];
+            for (int i = 0; i < featVal.length; i++) {
+                featVal[i] = (float) tuple.vector.get(i);
+            }
+        } else if (tuple.vector instanceof FeatIdVector) {
+            featName = ((FeatIdVector) tuple.vector).getFeatNames();
+            featVal = VectorUtils.doubleToFloat(((FeatIdVector) tuple.vector).getValues());
+        } else if (tuple.vector instanceof SparseVector) { // Only non-zero feats.
+            int[] indices = ((SparseVector) tuple.vector).getIndices();
+            double[] values = ((SparseVector) tuple.vector).getValues();
+            featName = VectorUtils.intToString(indices);
+            featVal = VectorUtils.doubleToFloat(values);
+        } else if (tuple.vector instanceof DenseVector) {
+            featVal = VectorUtils.doubleToFloat(tuple.vector.getVector());
+            featName = new String[featVal.length];
             for (int i = 0; i < featName.length; i++) {
                 featName[i] = String.valueOf(i);
             }
-
         } else {
             throw new NotImplementedException("Unknown vector type");
         }
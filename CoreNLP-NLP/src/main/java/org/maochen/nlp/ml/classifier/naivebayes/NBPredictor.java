@@ -0,0 +1,182 @@
+package org.maochen.nlp.ml.classifier.naivebayes;
+
+import org.maochen.nlp.ml.util.ModelContainer;
+import org.maochen.nlp.ml.vector.DenseVector;
+import org.maochen.nlp.ml.vector.IVector;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * Gaussian Naive Bayes compiled from a NaiveBayesModel for prediction. Everything is in log space, so long vectors
+ * don't underflow, and the per feature constants are precomputed into flat row-major arrays (row = label index).
+ *
+ * log p(x|l) + log p(l) = logNorm[l] - sum_i (x_i - mean[l][i])^2 / (2 * var[l][i])
+ *
+ * The per feature buffers are heap arrays when compiled, mapped from the file when read from a binary model.
+ * Immutable once built, safe to share between threads.
+ */
+final class NBPredictor {
+
+    private final String[] labels;
+    private final int labelSize;
+    private final int dimension;
+
+    private final DoubleBuffer mean;
+    private final DoubleBuffer invTwoVariance;
+
+    // log prior - 0.5 * sum_i log(2 * PI * var[l][i])
+    private final double[] logNorm;
+
+    // logNorm - sum_i mean^2 / (2 * var), the log joint of the zero vector. Base for the sparse vectors.
+    private final double[] zeroLogJoint;
+
+    // False if a zero variance feature makes zeroLogJoint infinite, sparse vectors are densified then.
+    private final boolean sparseSafe;
+
+    public int getLabelSize() {
+        return labelSize;
+    }
+
+    public String getLabel(int index) {
+        return labels[index];
+    }
+
+    /**
+     * @return labels by index.
+     */
+    public String[] getLabels() {
+        return labels.clone();
+    }
+
+    /**
+     * @param logJoint output, unnormalized log posterior by label index.
+     */
+    public void logJoint(IVector x, double[] logJoint) {
+        if (x instanceof DenseVector || !sparseSafe) {
+            logJoint(x.getVector(), logJoint);
+            return;
+        }
+
+        // (x - m)^2 - m^2 = x * (x - 2m), only the non-zero entries differ from the zero vector.
+        System.arraycopy(zeroLogJoint, 0, logJoint, 0, labelSize);
+        x.forEachNonZero((i, value) -> {
+            for (int l = 0, offset = i; l < labelSize; l++, offset += dimension) {
+                logJoint[l] -= value * (value - 2 * mean.get(offset)) * invTwoVariance.get(offset);
+            }
+        });
+    }
+
+    private void logJoint(double[] v, double[] logJoint) {
+        for (int l = 0, offset = 0; l < labelSize; l++, offset += dimension) {
+            double sum = 0;
+            for (int i = 0; i < dimension; i++) {
+                double diff = v[i] - mean.get(offset + i);
+                sum += diff * diff * invTwoVariance.get(offset + i);
+            }
+            logJoint[l] = logNorm[l] - sum;
+        }
+    }
+
+    /**
+     * @param probs output, posterior by label index. Normalized with log-sum-exp.
+     */
+    public void posterior(IVector x, double[] probs) {
+        logJoint(x, probs);
+
+        double max = Double.NEGATIVE_INFINITY;
+        for (int l = 0; l < labelSize; l++) {
+            max = Math.max(max, probs[l]);
+        }
+
+        double evidence = 0;
+        for (int l = 0; l < labelSize; l++) {
+            probs[l] = Math.exp(probs[l] - max);
+            evidence += probs[l];
+        }
+
+        for (int l = 0; l < labelSize; l++) {
+            probs[l] /= evidence;
+        }
+    }
+
+    /**
+     * @return label index with the max posterior, the first one wins on tie.
+     */
+    public int argmax(IVector x, double[] buffer) {
+        logJoint(x, buffer);
+
+        int max = 0;
+        for (int l = 1; l < labelSize; l++) {
+            if (buffer[l] > buffer[max]) {
+                max = l;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Compiled blocks, the mean is the one of the model. Read back by the ModelContainer constructor.
+     */
+    void write(ModelContainer.Writer writer) {
+        writer.putDoubles("inv_two_variance", invTwoVariance.duplicate(), labelSize, dimension);
+        writer.putDoubles("log_norm", logNorm);
+        writer.putDoubles("zero_log_joint", zeroLogJoint);
+    }
+
+    private static boolean isSparseSafe(double[] zeroLogJoint) {
+        for (double value : zeroLogJoint) {
+            if (Double.isInfinite(value) || Double.isNaN(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    NBPredictor(NaiveBayesModel model) {
+        this.labels = model.labelIndexer.getLabels();
+        this.labelSize = labels.length;
+        this.dimension = labelSize == 0 ? 0 : model.meanVectors[0].length;
+
+        double[] mean = new double[labelSize * dimension];
+        double[] invTwoVariance = new double[labelSize * dimension];
+        this.logNorm = new double[labelSize];
+        this.zeroLogJoint = new double[labelSize];
+
+        for (int l = 0; l < labelSize; l++) {
+            double norm = Math.log(model.labelPrior.get(l));
+            double zero = 0;
+            for (int i = 0; i < dimension; i++) {
+                double m = model.meanVectors[l][i];
+                double variance = model.varianceVectors[l][i];
+                // Zero variance is stored as Double.MIN_VALUE, cap the inverse so 0 * inverse stays 0 instead of NaN.
+                double inv = Math.min(1 / (2 * variance), Double.MAX_VALUE);
+
+                mean[l * dimension + i] = m;
+                invTwoVariance[l * dimension + i] = inv;
+                norm -= 0.5 * Math.log(2 * Math.PI * variance);
+                zero += m * m * inv;
+            }
+            logNorm[l] = norm;
+            zeroLogJoint[l] = norm - zero;
+        }
+
+        this.mean = DoubleBuffer.wrap(mean);
+        this.invTwoVariance = DoubleBuffer.wrap(invTwoVariance);
+        this.sparseSafe = isSparseSafe(zeroLogJoint);
+    }
+
+    /**
+     * The per feature blocks stay in the mapped file.
+     */
+    NBPredictor(ModelContainer container) {
+        this.labels = container.getStrings(NaiveBayesModel.LABELS);
+        this.labelSize = labels.length;
+        this.dimension = container.getCols(NaiveBayesModel.MEAN);
+
+        this.mean = container.getDoubles(NaiveBayesModel.MEAN);
+        this.invTwoVariance = container.getDoubles("inv_two_variance");
+        this.logNorm = container.getDoubleArray("log_norm");
+        this.zeroLogJoint = container.getDoubleArray("zero_log_joint");
+        this.sparseSafe = isSparseSafe(zeroLogJoint);
+    }
+}
@@ -0,0 +1,156 @@
+package org.maochen.nlp.ml.classifier.naivebayes;
+
+import org.maochen.nlp.ml.vector.IVector;
+
+import java.util.Arrays;
+
+/**
+ * Per label sufficient statistics of the Gaussian NB: count, mean and M2 (sum of squared diffs from the mean).
+ * Partial statistics are combined with Chan's parallel formula, so the data is read once and partitions can be
+ * accumulated independently.
+ *
+ * A sample only touches its non-zero values: per label and dimension the non-zeros are folded in with Welford's
+ * update and counted. flush() accounts for the implicit zeros, a group with mean 0 and M2 0, and merges the pending
+ * samples into count, mean and M2 with Chan's formula. The pending arrays of a label are allocated on its first
+ * sample.
+ *
+ * Not thread safe, use one instance per partition and merge.
+ */
+final class NBStatistics {
+
+    final int dimension;
+
+    // Up to date after flush(), merge() and copy() flush.
+    long[] count;
+    double[][] mean;
+    double[][] m2;
+
+    // Samples added since the last flush, per label.
+    private int[] pendingCount = new int[0];
+    private int[][] nonZeroCount = new int[0][];
+    private double[][] nonZeroMean = new double[0][];
+    private double[][] nonZeroM2 = new double[0][];
+
+    void add(int labelIndex, IVector x) {
+        ensureLabelSize(labelIndex + 1);
+        if (nonZeroCount[labelIndex] == null) {
+            nonZeroCount[labelIndex] = new int[dimension];
+            nonZeroMean[labelIndex] = new double[dimension];
+            nonZeroM2[labelIndex] = new double[dimension];
+        } else if (pendingCount[labelIndex] == Integer.MAX_VALUE) {
+            flush();
+        }
+
+        pendingCount[labelIndex]++;
+        int[] k = nonZeroCount[labelIndex];
+        double[] mu = nonZeroMean[labelIndex];
+        double[] s = nonZeroM2[labelIndex];
+        x.forEachNonZero((i, value) -> {
+            double delta = value - mu[i];
+            mu[i] += delta / ++k[i];
+            s[i] += delta * (value - mu[i]);
+        });
+    }
+
+    // Chan's formula, folds (nb, meanB, m2B) of one dimension into label l.
+    private void combine(int l, int i, long na, long nb, double meanB, double m2B) {
+        if (na == 0) {
+            mean[l][i] = meanB;
+            m2[l][i] = m2B;
+            return;
+        }
+
+        long n = na + nb;
+        double delta = meanB - mean[l][i];
+        mean[l][i] += delta * nb / n;
+        m2[l][i] += m2B + delta * delta * na / n * nb;
+    }
+
+    /**
+     * Merge the pending samples into count, mean and M2.
+     */
+    void flush() {
+        for (int l = 0; l < pendingCount.length; l++) {
+            long nb = pendingCount[l];
+            if (nb == 0) {
+                continue;
+            }
+
+            long na = count[l];
+            int[] k = nonZeroCount[l];
+            double[] mu = nonZeroMean[l];
+            double[] s = nonZeroM2[l];
+            for (int i = 0; i < dimension; i++) {
+                // Non-zeros (k, mu, s) and nb - k zeros (0, 0).
+                double meanB = mu[i] * k[i] / nb;
+                double m2B = s[i] + mu[i] * mu[i] * k[i] / nb * (nb - k[i]);
+                combine(l, i, na, nb, meanB, m2B);
+            }
+            count[l] = na + nb;
+
+            pendingCount[l] = 0;
+            Arrays.fill(k, 0);
+            Arrays.fill(mu, 0);
+            Arrays.fill(s, 0);
+        }
+    }
+
+    /**
+     * Fold the other statistics into this one. Labels are matched by index.
+     */
+    void merge(NBStatistics other) {
+        flush();
+        other.flush();
+        ensureLabelSize(other.count.length);
+        for (int l = 0; l < other.count.length; l++) {
+            long nb = other.count[l];
+            if (nb == 0) {
+                continue;
+            }
+
+            long na = count[l];
+            for (int i = 0; i < dimension; i++) {
+                combine(l, i, na, nb, other.mean[l][i], other.m2[l][i]);
+            }
+            count[l] = na + nb;
+        }
+    }
+
+    /**
+     * Grow to hold more labels, the new labels start empty.
+     */
+    void ensureLabelSize(int labelSize) {
+        if (labelSize > count.length) {
+            int oldSize = count.length;
+            count = Arrays.copyOf(count, labelSize);
+            mean = Arrays.copyOf(mean, labelSize);
+            m2 = Arrays.copyOf(m2, labelSize);
+            for (int l = oldSize; l < labelSize; l++) {
+                mean[l] = new double[dimension];
+                m2[l] = new double[dimension];
+            }
+        }
+
+        // Loaded statistics set count, mean and M2 directly.
+        if (labelSize > pendingCount.length) {
+            pendingCount = Arrays.copyOf(pendingCount, labelSize);
+            nonZeroCount = Arrays.copyOf(nonZeroCount, labelSize);
+            nonZeroMean = Arrays.copyOf(nonZeroMean, labelSize);
+            nonZeroM2 = Arrays.copyOf(nonZeroM2, labelSize);
+        }
+    }
+
+    NBStatistics copy() {
+        NBStatistics copy = new NBStatistics(0, dimension);
+        copy.merge(this);
+        return copy;
+    }
+
+    NBStatistics(int labelSize, int dimension) {
+        this.dimension = dimension;
+        this.count = new long[0];
+        this.mean = new double[0][];
+        this.m2 = new double[0][];
+        ensureLabelSize(labelSize);
+    }
+}
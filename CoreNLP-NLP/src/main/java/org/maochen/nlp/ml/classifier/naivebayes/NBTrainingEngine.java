@@ -1,115 +1,183 @@
 package org.maochen.nlp.ml.classifier.naivebayes;
 
+import org.maochen.nlp.ml.TrainingMatrix;
 import org.maochen.nlp.ml.Tuple;
 import org.maochen.nlp.ml.classifier.LabelIndexer;
-import org.maochen.nlp.util.VectorUtils;
+import org.maochen.nlp.ml.vector.IVector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.Collectors;
 
 /**
+ * Single pass over the training data. Rows are split into at most MAX_PARTITIONS partitions, each partition
+ * accumulates its own per label NBStatistics in the fork join pool and the partial results are merged. The bound keeps
+ * the number of labels x dims statistics allocated per training fixed, the partitions don't depend on the machine.
+ *
  * Created by Maochen on 12/3/14.
  */
 final class NBTrainingEngine {
     private static final Logger LOG = LoggerFactory.getLogger(NBTrainingEngine.class);
 
-    private List<Tuple> trainingData;
+    // Min rows per leaf task.
+    private static final int PARTITION_SIZE = 4096;
+    private static final int MAX_PARTITIONS = 64;
 
     private NaiveBayesModel model;
 
-    private int[] count; // sum the training data by label
+    // Statistics to fold the new data into, null when training from scratch.
+    private NBStatistics baseStats = null;
 
-    // Step 1
-    private void calculateMean() {
-        for (Tuple t : trainingData) {
-            int index = model.labelIndexer.getIndex(t.label);
-            count[index]++;
-            model.meanVectors[index] = VectorUtils.addition(model.meanVectors[index], t.vector.getVector());
-//                    VectorUtils.zip(model.meanVectors[index], t.vector.getVector(), (x, y) -> x + y); // Performance
-        }
+    private final int numRows;
+    private final int dimension;
+    private final IntFunction<IVector> vectorOf;
+    private final IntUnaryOperator labelOf;
 
-        for (int i = 0; i < model.meanVectors.length; i++) {
-            // Get each label and normalize
-            double[] meanVector = model.meanVectors[i]; // feat(label)
-            VectorUtils.scale(meanVector, 1.0 / count[i]);
-            model.meanVectors[i] = meanVector;
-        }
+    private class Accumulator extends RecursiveTask<NBStatistics> {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final int partitionSize;
 
-        for (int i = 0; i < model.meanVectors.length; i++) {
-            for (int j = 0; j < model.meanVectors[i].length; j++) {
-                if (model.meanVectors[i][j] == 0) {
-                    LOG.warn("mean is 0 for label " + model.labelIndexer.labelIndexer.inverse().get(i) + " at dimension " + j);
-                    model.meanVectors[i][j] = Double.MIN_VALUE;
+        @Override
+        protected NBStatistics compute() {
+            if (to - from <= partitionSize) {
+                NBStatistics stats = new NBStatistics(model.labelIndexer.getLabelSize(), dimension);
+                for (int row = from; row < to; row++) {
+                    stats.add(labelOf.applyAsInt(row), vectorOf.apply(row));
                 }
+                stats.flush();
+                return stats;
             }
-        }
-    }
-
-    // Step 2
-    private void calculateVariance() {
-        for (Tuple t : trainingData) {
-            int index = model.labelIndexer.getIndex(t.label);
-
-            double[] meanVector = Arrays.copyOf(model.meanVectors[index], model.meanVectors[index].length);
-            VectorUtils.scale(meanVector, -1);
-            double[] diff = VectorUtils.addition(t.vector.getVector(), meanVector);
-//                    VectorUtils.zip(t.vector.getVector(), model.meanVectors[index], (x, y) -> x - y);
-            diff = Arrays.stream(diff).map(x -> x * x).toArray();
 
-            double[] varianceVector = VectorUtils.addition(model.varianceVectors[index], diff);
-            //  VectorUtils.zip(model.varianceVectors[index], diff, (x, y) -> x + y);
-            model.varianceVectors[index] = varianceVector;
+            int mid = (from + to) >>> 1;
+            Accumulator left = new Accumulator(from, mid, partitionSize);
+            left.fork();
+            NBStatistics right = new Accumulator(mid, to, partitionSize).compute();
+            NBStatistics stats = left.join();
+            stats.merge(right); // Fixed merge order, the result doesn't depend on the scheduling.
+            return stats;
         }
 
-        for (int i = 0; i < model.varianceVectors.length; i++) {
-            double[] varianceVector = model.varianceVectors[i];
-            // Denominator is Sample Var instead of Population Var
-            VectorUtils.scale(varianceVector, 1.0 / (count[i] - 1));
-            model.varianceVectors[i] = varianceVector;
+        Accumulator(int from, int to, int partitionSize) {
+            this.from = from;
+            this.to = to;
+            this.partitionSize = partitionSize;
         }
+    }
+
+    // Mean and variance from the statistics.
+    static void updateModel(NaiveBayesModel model, NBStatistics stats) {
+        stats.flush();
+        model.statistics = stats;
+        int labelSize = model.labelIndexer.getLabelSize();
+        model.meanVectors = new double[labelSize][];
+        model.varianceVectors = new double[labelSize][];
+
+        for (int i = 0; i < labelSize; i++) {
+            double[] meanVector = stats.mean[i].clone();
+            double[] varianceVector = new double[stats.dimension];
+            for (int j = 0; j < stats.dimension; j++) {
+                // Denominator is Sample Var instead of Population Var
+                varianceVector[j] = stats.m2[i][j] / (stats.count[i] - 1);
+
+                if (meanVector[j] == 0) {
+                    LOG.warn("mean is 0 for label " + model.labelIndexer.getLabel(i) + " at dimension " + j);
+                    meanVector[j] = Double.MIN_VALUE;
+                }
 
-        for (int i = 0; i < model.varianceVectors.length; i++) {
-            for (int j = 0; j < model.varianceVectors[i].length; j++) {
-                if (model.varianceVectors[i][j] == 0) {
-                    LOG.warn("variance is 0 for label " + model.labelIndexer.labelIndexer.inverse().get(i) + " at dimension " + j);
-                    model.varianceVectors[i][j] = Double.MIN_VALUE;
+                if (varianceVector[j] == 0) {
+                    LOG.warn("variance is 0 for label " + model.labelIndexer.getLabel(i) + " at dimension " + j);
+                    varianceVector[j] = Double.MIN_VALUE;
                 }
             }
+
+            model.meanVectors[i] = meanVector;
+            model.varianceVectors[i] = varianceVector;
         }
+
+        calculateLabelPrior(model);
     }
 
-    // Step 3
     // Assume labels have equal probability. Not depends on the training data size.
-    public void calculateLabelPrior() {
+    static void calculateLabelPrior(NaiveBayesModel model) {
         double prior = 1D / model.labelIndexer.getLabelSize();
+        model.labelPrior = new HashMap<>();
         model.labelIndexer.getIndexSet().forEach(labelIndex -> model.labelPrior.put(labelIndex, prior));
     }
 
     public NaiveBayesModel train() {
-        calculateMean();
-        calculateVariance();
-        calculateLabelPrior();
+        NBStatistics stats = numRows == 0 ? new NBStatistics(model.labelIndexer.getLabelSize(), dimension)
+                : ForkJoinPool.commonPool().invoke(new Accumulator(0, numRows,
+                Math.max(PARTITION_SIZE, (numRows + MAX_PARTITIONS - 1) / MAX_PARTITIONS)));
+        if (baseStats != null) {
+            NBStatistics merged = baseStats.copy();
+            merged.merge(stats);
+            stats = merged;
+        }
+        updateModel(model, stats);
         return model;
     }
 
     public NBTrainingEngine(List<Tuple> trainingData) {
-        this.trainingData = trainingData;
-        this.model = new NaiveBayesModel();
-        this.model.labelIndexer = new LabelIndexer(trainingData);
+        this(null, trainingData);
+    }
 
-        int vectorLength = trainingData.stream().findFirst().map(x -> x.vector.getVector().length).orElse(0);
-        count = new int[model.labelIndexer.getLabelSize()];
+    /**
+     * Fold the training data into the statistics of an existing model, the base model is not modified. Unseen
+     * labels get new indices after the existing ones.
+     *
+     * @param base model to update, null to train from scratch.
+     */
+    public NBTrainingEngine(NaiveBayesModel base, List<Tuple> trainingData) {
+        List<Tuple> data = trainingData instanceof RandomAccess ? trainingData : new ArrayList<>(trainingData);
 
-        model.meanVectors = new double[model.labelIndexer.getLabelSize()][vectorLength];
-        model.varianceVectors = new double[model.labelIndexer.getLabelSize()][vectorLength];
-        model.labelPrior = new HashMap<>();
+        this.model = new NaiveBayesModel();
+        if (base == null) {
+            this.model.labelIndexer = new LabelIndexer(data);
+            this.dimension = data.stream().findFirst().map(x -> x.vector.size()).orElse(0);
+        } else {
+            if (base.statistics == null) {
+                throw new IllegalStateException("Model has no sufficient statistics, please retrain it.");
+            }
 
-        for (int i = 0; i < model.labelIndexer.getLabelSize(); i++) {
-            model.meanVectors[i] = new double[vectorLength];
-            model.varianceVectors[i] = new double[vectorLength];
+            this.baseStats = base.statistics;
+            this.dimension = baseStats.dimension;
+            this.model.labelIndexer = new LabelIndexer(new String[0]);
+            this.model.labelIndexer.labelIndexer.putAll(base.labelIndexer.labelIndexer);
+            List<String> newLabels = data.stream().map(t -> t.label).distinct()
+                    .filter(label -> !model.labelIndexer.hasLabel(label))
+                    .collect(Collectors.toList());
+            this.model.labelIndexer.putByLabels(newLabels);
         }
+
+        for (Tuple t : data) {
+            if (t.vector.size() != dimension) {
+                throw new IllegalArgumentException("Expect vector size " + dimension + " but tuple " + t.id + " has " + t.vector.size());
+            }
+        }
+
+        this.numRows = data.size();
+        this.vectorOf = row -> data.get(row).vector;
+        this.labelOf = row -> model.labelIndexer.getIndex(data.get(row).label);
+    }
+
+    public NBTrainingEngine(TrainingMatrix matrix) {
+        this.model = new NaiveBayesModel();
+        this.model.labelIndexer = new LabelIndexer(matrix.getLabelNames());
+
+        this.numRows = matrix.getNumRows();
+        this.dimension = matrix.getNumCols();
+        this.vectorOf = matrix::row;
+        this.labelOf = matrix::getLabel; // Same order as the labelIndexer.
     }
 }
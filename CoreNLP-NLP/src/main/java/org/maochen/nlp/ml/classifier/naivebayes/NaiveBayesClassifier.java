@@ -3,9 +3,10 @@ package org.maochen.nlp.ml.classifier.naivebayes;
 import org.apache.commons.lang3.NotImplementedException;
 import org.apache.commons.lang3.StringUtils;
 import org.maochen.nlp.ml.IClassifier;
+import org.maochen.nlp.ml.TrainingMatrix;
 import org.maochen.nlp.ml.Tuple;
+import org.maochen.nlp.ml.util.ModelContainer;
 import org.maochen.nlp.ml.vector.DenseVector;
-import org.maochen.nlp.util.VectorUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,11 +33,36 @@ public class NaiveBayesClassifier implements IClassifier {
 
     private static final Logger LOG = LoggerFactory.getLogger(NaiveBayesClassifier.class);
 
+    // Guarded by this, with the container.
     private NaiveBayesModel model;
 
+    // Binary model not read into the model yet, the predictor maps it.
+    private ModelContainer container;
+
+    // Compiled from the model, rebuilt whenever the model changes.
+    private volatile NBPredictor predictor;
+
+    private synchronized void setModel(NaiveBayesModel model) {
+        this.model = model;
+        this.container = null;
+        this.predictor = new NBPredictor(model);
+    }
+
+    // The binary model is read on the first update or persist, predictions don't need it. Published once loaded.
+    private synchronized NaiveBayesModel getModel() {
+        if (model == null && container != null) {
+            NaiveBayesModel loaded = new NaiveBayesModel();
+            loaded.load(container);
+            model = loaded;
+            container = null;
+        }
+        return model;
+    }
+
     public NaiveBayesClassifier(InputStream modelInputStream) {
-        model = new NaiveBayesModel();
+        NaiveBayesModel model = new NaiveBayesModel();
         model.load(modelInputStream);
+        setModel(model);
     }
 
     public NaiveBayesClassifier() {
@@ -48,34 +74,21 @@ public class NaiveBayesClassifier implements IClassifier {
         throw new NotImplementedException("No parameter needed for Naive Bayes.");
     }
 
-    // Integer is label's Index from labelIndexer
     @Override
     public Map<String, Double> predict(Tuple predict) {
-        Map<Integer, Double> labelProb = new HashMap<>();
-        for (Integer labelIndex : model.labelIndexer.getIndexSet()) {
-            double likelihood = 1.0D;
-
-            for (int i = 0; i < predict.vector.getVector().length; i++) {
-                double fi = predict.vector.getVector()[i];
-                likelihood = likelihood * VectorUtils.gaussianPDF(model.meanVectors[labelIndex][i], model.varianceVectors[labelIndex][i], fi);
-            }
-
-            double posterior = model.labelPrior.get(labelIndex) * likelihood; // prior*likelihood, This is numerator of posterior
-            labelProb.put(labelIndex, posterior);
-        }
-
-        double evidence = labelProb.values().stream().reduce((e1, e2) -> e1 + e2).orElse(-1D);
-        if (evidence == -1) {
+        NBPredictor current = predictor;
+        if (current.getLabelSize() == 0) {
             LOG.error("Evidence is Empty!");
             return new HashMap<>();
         }
 
-        labelProb.entrySet().forEach(entry -> {
-            double prob = entry.getValue() / evidence;
-            labelProb.put(entry.getKey(), prob);
-        }); // This is denominator of posterior
+        double[] probs = new double[current.getLabelSize()];
+        current.posterior(predict.vector, probs);
 
-        Map<String, Double> result = model.labelIndexer.convertMapKey(labelProb);
+        Map<String, Double> result = new HashMap<>();
+        for (int i = 0; i < probs.length; i++) {
+            result.put(current.getLabel(i), probs[i]);
+        }
 
         if (predict.label == null || predict.label.isEmpty()) { // Just for write to predict tuple.
             predict.label = result.entrySet().stream().max((e1, e2) -> e1.getValue().compareTo(e2.getValue())).map(Entry::getKey).orElse(StringUtils.EMPTY);
@@ -83,6 +96,22 @@ public class NaiveBayesClassifier implements IClassifier {
         return result;
     }
 
+    @Override
+    public String[] getLabels() {
+        return predictor.getLabels();
+    }
+
+    @Override
+    public void predictInto(Tuple predict, double[] scores) {
+        predictor.posterior(predict.vector, scores);
+    }
+
+    @Override
+    public int predictArgmax(Tuple predict) {
+        NBPredictor current = predictor;
+        return current.getLabelSize() == 0 ? -1 : current.argmax(predict.vector, new double[current.getLabelSize()]);
+    }
+
     public String predictLabel(Tuple predict) {
         Map<String, Double> prob = predict(predict);
         return prob.entrySet().stream().max((x1, x2) -> x1.getValue().compareTo(x2.getValue())).map(Entry::getKey).orElse(null);
@@ -90,21 +119,66 @@ public class NaiveBayesClassifier implements IClassifier {
 
     @Override
     public IClassifier train(List<Tuple> trainingData) {
-        model = new NBTrainingEngine(trainingData).train();
+        setModel(new NBTrainingEngine(trainingData).train());
+        return this;
+    }
+
+    /**
+     * Fold the new samples into the current model, only the new data is read. New labels are added.
+     *
+     * @throws IllegalStateException if the model was saved without the sufficient statistics.
+     */
+    public NaiveBayesClassifier update(List<Tuple> newData) {
+        NaiveBayesModel current = getModel();
+        if (current == null) {
+            train(newData);
+        } else {
+            setModel(new NBTrainingEngine(current, newData).train());
+        }
+        return this;
+    }
+
+    @Override
+    public IClassifier train(TrainingMatrix trainingData) {
+        setModel(new NBTrainingEngine(trainingData).train());
         return this;
     }
 
     @Override
     public void persistModel(String filename) {
-        if (model != null) {
-            model.persist(filename);
+        NaiveBayesModel current = getModel();
+        if (current != null) {
+            current.persist(filename);
         }
     }
 
+    @Override
+    public void persistBinaryModel(String filename) throws IOException {
+        NaiveBayesModel current = getModel();
+        if (current != null) {
+            ModelContainer.Writer writer = new ModelContainer.Writer(NaiveBayesModel.MODEL_TYPE);
+            current.write(writer);
+            predictor.write(writer);
+            writer.write(filename);
+        }
+    }
+
+    /**
+     * Mean and the precomputed inverse variances are mapped, the model is read only if updated or persisted.
+     */
+    @Override
+    public synchronized void loadBinaryModel(String filename) throws IOException {
+        ModelContainer container = ModelContainer.open(filename, NaiveBayesModel.MODEL_TYPE);
+        this.predictor = new NBPredictor(container);
+        this.model = null;
+        this.container = container;
+    }
+
     @Override
     public void loadModel(InputStream inputStream) {
-        model = new NaiveBayesModel();
+        NaiveBayesModel model = new NaiveBayesModel();
         model.load(inputStream);
+        setModel(model);
     }
 
     public static List<Tuple> readTrainingData(String filename, String delimiter) {
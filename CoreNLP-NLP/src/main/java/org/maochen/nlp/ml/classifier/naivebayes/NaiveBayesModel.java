@@ -3,6 +3,7 @@ package org.maochen.nlp.ml.classifier.naivebayes;
 import com.google.common.collect.Lists;
 
 import org.maochen.nlp.ml.classifier.LabelIndexer;
+import org.maochen.nlp.ml.util.ModelContainer;
 import org.maochen.nlp.ml.util.ModelSerializeUtils;
 
 import java.io.BufferedReader;
@@ -20,6 +21,11 @@ import java.util.Map;
  * Created by Maochen on 5/29/15.
  */
 public class NaiveBayesModel {
+
+    static final String MODEL_TYPE = "naivebayes";
+    static final String LABELS = "labels";
+    static final String MEAN = "mean";
+
     // row=labelSize,col=featureLength
     double[][] meanVectors;
     double[][] varianceVectors;
@@ -28,6 +34,9 @@ public class NaiveBayesModel {
 
     Map<Integer, Double> labelPrior;
 
+    // Sufficient statistics for the incremental update, null for the models saved without them.
+    NBStatistics statistics;
+
     public void persist(String filename) {
         try (BufferedWriter output = new BufferedWriter(new FileWriter(new File(filename)))) {
             output.write(ModelSerializeUtils.twoDimensionalArraySerialize(meanVectors));
@@ -39,6 +48,16 @@ public class NaiveBayesModel {
             output.write(System.lineSeparator());
 
             output.write(ModelSerializeUtils.mapSerialize(labelPrior.entrySet()));
+
+            if (statistics != null) {
+                double[] count = Arrays.stream(statistics.count).asDoubleStream().toArray();
+                output.write(System.lineSeparator());
+                output.write(ModelSerializeUtils.oneDimensionArraySerialize(count));
+                output.write(System.lineSeparator());
+                output.write(ModelSerializeUtils.twoDimensionalArraySerialize(statistics.mean));
+                output.write(System.lineSeparator());
+                output.write(ModelSerializeUtils.twoDimensionalArraySerialize(statistics.m2));
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -48,6 +67,11 @@ public class NaiveBayesModel {
     public void load(InputStream is) {
         labelIndexer = new LabelIndexer(Lists.newArrayList());
         labelPrior = new HashMap<>();
+        statistics = null;
+
+        double[] count = null;
+        double[][] statMean = null;
+        double[][] statM2 = null;
 
         try (BufferedReader br = new BufferedReader(new InputStreamReader(is))) {
             String line;
@@ -66,8 +90,7 @@ public class NaiveBayesModel {
                         meanVectors = new double[Integer.parseInt(args[0])][Integer.parseInt(args[1])];
                         row = 0;
                     } else {
-                        String[] values = line.split("\\s");
-                        meanVectors[row] = Arrays.stream(values).map(Double::parseDouble).mapToDouble(x -> x).toArray();
+                        meanVectors[row] = parseRow(line);
                         row++;
                     }
                 } else if (newItemCount == 1) {
@@ -77,19 +100,91 @@ public class NaiveBayesModel {
                         varianceVectors = new double[Integer.parseInt(args[0])][Integer.parseInt(args[1])];
                         row = 0;
                     } else {
-                        String[] values = line.split("\\s");
-                        varianceVectors[row] = Arrays.stream(values).map(Double::parseDouble).mapToDouble(x -> x).toArray();
+                        varianceVectors[row] = parseRow(line);
                         row++;
                     }
                 } else if (newItemCount == 2) {
                     labelIndexer.labelIndexer.put(line.split("\\s")[0], Integer.parseInt(line.split("\\s")[1]));
                 } else if (newItemCount == 3) {
                     labelPrior.put(Integer.parseInt(line.split("\\s")[0]), Double.parseDouble(line.split("\\s")[1]));
+                } else if (newItemCount == 4) { // Sufficient statistics: count, mean, M2.
+                    if (isFirstLine) {
+                        isFirstLine = false;
+                    } else {
+                        count = parseRow(line);
+                    }
+                } else if (newItemCount == 5 || newItemCount == 6) {
+                    if (isFirstLine) {
+                        isFirstLine = false;
+                        String[] args = line.split("\\s");
+                        double[][] matrix = new double[Integer.parseInt(args[0])][];
+                        if (newItemCount == 5) {
+                            statMean = matrix;
+                        } else {
+                            statM2 = matrix;
+                        }
+                        row = 0;
+                    } else {
+                        (newItemCount == 5 ? statMean : statM2)[row] = parseRow(line);
+                        row++;
+                    }
                 }
 
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
+
+        if (count != null && statMean != null && statM2 != null) {
+            statistics = new NBStatistics(0, statMean[0].length);
+            statistics.count = Arrays.stream(count).mapToLong(c -> (long) c).toArray();
+            statistics.mean = statMean;
+            statistics.m2 = statM2;
+        }
+    }
+
+    /**
+     * Label table, prior, mean, variance and the statistics if any.
+     */
+    void write(ModelContainer.Writer writer) {
+        writer.putStrings(LABELS, labelIndexer.getLabels());
+        writer.putDoubles("prior", labelIndexer.getIndexSet().stream().sorted().mapToDouble(labelPrior::get).toArray());
+        writer.putDoubles(MEAN, meanVectors);
+        writer.putDoubles("variance", varianceVectors);
+
+        if (statistics != null) {
+            writer.putDoubles("stat_count", Arrays.stream(statistics.count).asDoubleStream().toArray());
+            writer.putDoubles("stat_mean", statistics.mean);
+            writer.putDoubles("stat_m2", statistics.m2);
+        }
+    }
+
+    /**
+     * Heap copy of the blocks written by write, for the update and the text format.
+     */
+    void load(ModelContainer container) {
+        String[] labels = container.getStrings(LABELS);
+        double[] prior = container.getDoubleArray("prior");
+        labelIndexer = new LabelIndexer(new String[0]);
+        labelPrior = new HashMap<>();
+        for (int i = 0; i < labels.length; i++) {
+            labelIndexer.labelIndexer.put(labels[i], i);
+            labelPrior.put(i, prior[i]);
+        }
+
+        meanVectors = container.getDoubleMatrix(MEAN);
+        varianceVectors = container.getDoubleMatrix("variance");
+
+        statistics = null;
+        if (container.contains("stat_count")) {
+            statistics = new NBStatistics(0, container.getCols("stat_mean"));
+            statistics.count = Arrays.stream(container.getDoubleArray("stat_count")).mapToLong(c -> (long) c).toArray();
+            statistics.mean = container.getDoubleMatrix("stat_mean");
+            statistics.m2 = container.getDoubleMatrix("stat_m2");
+        }
+    }
+
+    private static double[] parseRow(String line) {
+        return Arrays.stream(line.trim().split("\\s")).mapToDouble(Double::parseDouble).toArray();
     }
 }
@@ -0,0 +1,267 @@
+package org.maochen.nlp.ml.classifier.perceptron;
+
+import org.maochen.nlp.ml.vector.IVector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+/**
+ * Averaged multiclass perceptron. A mistake adds x to the gold label row and subtracts it from the predicted row,
+ * only the non-zero feats are touched. Errors are counted in the same pass, no extra pass per epoch.
+ *
+ * Averaging is lazy: besides the weights w, the updates are also accumulated as u += c * update with the timestamp
+ * c (number of examples seen), so the average of all the intermediate weights is w - u / c, computed once at the end.
+ *
+ * With threads > 1 it is iterative parameter mixing: the data is sharded, every epoch each shard runs from the mixed
+ * weights on its own copy, then the copies are averaged. The final model is the average of the mixed weights over
+ * the epochs.
+ */
+final class AveragedPerceptronTrainer {
+    private static final Logger LOG = LoggerFactory.getLogger(AveragedPerceptronTrainer.class);
+
+    private final int numRows;
+    private final int labelSize;
+    private final int dimension;
+    private final IntFunction<IVector> vectorOf;
+    private final int[] labels;
+
+    private int maxIteration = 200;
+    private double learningRate = 0.1;
+    private int threads = 1;
+    private Random random = new Random();
+
+    // Weights of one worker. Row = label index.
+    private final class Weights {
+        final double[][] w;
+        final double[] b;
+
+        // Timestamped accumulation of the updates, for the lazy average.
+        final double[][] u;
+        final double[] ub;
+        long c = 1;
+
+        private int argmax(IVector x) {
+            int max = 0;
+            double maxScore = x.dot(w[0]) + b[0];
+            for (int l = 1; l < labelSize; l++) {
+                double score = x.dot(w[l]) + b[l];
+                if (score > maxScore) {
+                    max = l;
+                    maxScore = score;
+                }
+            }
+            return max;
+        }
+
+        // One epoch over rows in the given order, returns the number of mistakes.
+        int epoch(int[] rows, int from, int to) {
+            int errCount = 0;
+            for (int i = from; i < to; i++) {
+                int row = rows[i];
+                IVector x = vectorOf.apply(row);
+                int gold = labels[row];
+                int predict = argmax(x);
+                if (predict != gold) {
+                    errCount++;
+                    x.addTo(w[gold], learningRate);
+                    x.addTo(w[predict], -learningRate);
+                    x.addTo(u[gold], c * learningRate);
+                    x.addTo(u[predict], -c * learningRate);
+                    b[gold] += learningRate;
+                    b[predict] -= learningRate;
+                    ub[gold] += c * learningRate;
+                    ub[predict] -= c * learningRate;
+                }
+                c++;
+            }
+            return errCount;
+        }
+
+        // w - u / c
+        void average(double[][] weights, double[] bias) {
+            for (int l = 0; l < labelSize; l++) {
+                for (int j = 0; j < dimension; j++) {
+                    weights[l][j] = w[l][j] - u[l][j] / c;
+                }
+                bias[l] = b[l] - ub[l] / c;
+            }
+        }
+
+        void reset(double[][] weights, double[] bias) {
+            for (int l = 0; l < labelSize; l++) {
+                System.arraycopy(weights[l], 0, w[l], 0, dimension);
+                Arrays.fill(u[l], 0);
+            }
+            System.arraycopy(bias, 0, b, 0, labelSize);
+            Arrays.fill(ub, 0);
+            c = 1;
+        }
+
+        Weights() {
+            w = new double[labelSize][dimension];
+            b = new double[labelSize];
+            u = new double[labelSize][dimension];
+            ub = new double[labelSize];
+        }
+    }
+
+    private static void shuffle(int[] rows, int from, int to, Random random) {
+        for (int i = to - 1; i > from; i--) {
+            int j = from + random.nextInt(i - from + 1);
+            int tmp = rows[i];
+            rows[i] = rows[j];
+            rows[j] = tmp;
+        }
+    }
+
+    private static int[] identity(int size) {
+        int[] rows = new int[size];
+        for (int i = 0; i < size; i++) {
+            rows[i] = i;
+        }
+        return rows;
+    }
+
+    /**
+     * Train the weights and bias of the model in place. The model's labelIndexer must match the label indices.
+     */
+    public void train(PerceptronModel model) {
+        model.weights = new double[labelSize][dimension];
+        model.bias = new double[labelSize];
+
+        if (threads <= 1 || numRows < threads * 2) {
+            trainSequential(model);
+        } else {
+            trainParallel(model);
+        }
+    }
+
+    private void trainSequential(PerceptronModel model) {
+        Weights weights = new Weights();
+        int[] rows = identity(numRows);
+
+        int errCount;
+        int iter = 0;
+        do {
+            LOG.debug("Iteration " + (++iter));
+            shuffle(rows, 0, numRows, random);
+            errCount = weights.epoch(rows, 0, numRows);
+        } while (errCount != 0 && iter < maxIteration);
+
+        LOG.debug("Err size: " + errCount);
+        weights.average(model.weights, model.bias);
+    }
+
+    private void trainParallel(PerceptronModel model) {
+        int[] rows = identity(numRows);
+        shuffle(rows, 0, numRows, random);
+
+        List<Weights> shards = new ArrayList<>();
+        List<Random> randoms = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            shards.add(new Weights());
+            randoms.add(new Random(random.nextLong()));
+        }
+
+        double[][] mixed = new double[labelSize][dimension];
+        double[] mixedBias = new double[labelSize];
+        double[][] shardWeights = new double[labelSize][dimension];
+        double[] shardBias = new double[labelSize];
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            int errCount;
+            int iter = 0;
+            do {
+                LOG.debug("Iteration " + (++iter));
+                List<Future<Integer>> futures = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    Weights shard = shards.get(t);
+                    Random shardRandom = randoms.get(t);
+                    int from = (int) ((long) numRows * t / threads);
+                    int to = (int) ((long) numRows * (t + 1) / threads);
+                    shard.reset(mixed, mixedBias);
+                    futures.add(executor.submit(() -> {
+                        shuffle(rows, from, to, shardRandom);
+                        return shard.epoch(rows, from, to);
+                    }));
+                }
+
+                errCount = 0;
+                for (Future<Integer> future : futures) {
+                    errCount += future.get();
+                }
+
+                // Uniform mixing of the averaged shard weights.
+                for (int l = 0; l < labelSize; l++) {
+                    Arrays.fill(mixed[l], 0);
+                }
+                Arrays.fill(mixedBias, 0);
+                for (Weights shard : shards) {
+                    shard.average(shardWeights, shardBias);
+                    for (int l = 0; l < labelSize; l++) {
+                        for (int j = 0; j < dimension; j++) {
+                            mixed[l][j] += shardWeights[l][j] / threads;
+                        }
+                        mixedBias[l] += shardBias[l] / threads;
+                    }
+                }
+
+                // Running average of the mixed weights over the epochs.
+                for (int l = 0; l < labelSize; l++) {
+                    for (int j = 0; j < dimension; j++) {
+                        model.weights[l][j] += (mixed[l][j] - model.weights[l][j]) / iter;
+                    }
+                    model.bias[l] += (mixedBias[l] - model.bias[l]) / iter;
+                }
+            } while (errCount != 0 && iter < maxIteration);
+
+            LOG.debug("Err size: " + errCount);
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Parallel perceptron training failed.", e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public AveragedPerceptronTrainer setMaxIteration(int maxIteration) {
+        this.maxIteration = maxIteration;
+        return this;
+    }
+
+    public AveragedPerceptronTrainer setLearningRate(double learningRate) {
+        this.learningRate = learningRate;
+        return this;
+    }
+
+    public AveragedPerceptronTrainer setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public AveragedPerceptronTrainer setRandom(Random random) {
+        this.random = random;
+        return this;
+    }
+
+    /**
+     * @param vectorOf row to feature vector.
+     * @param labels   label index of each row.
+     */
+    AveragedPerceptronTrainer(int numRows, int labelSize, int dimension, IntFunction<IVector> vectorOf, int[] labels) {
+        this.numRows = numRows;
+        this.labelSize = labelSize;
+        this.dimension = dimension;
+        this.vectorOf = vectorOf;
+        this.labels = labels;
+    }
+}
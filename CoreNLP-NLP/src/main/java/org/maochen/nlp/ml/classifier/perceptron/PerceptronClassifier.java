@@ -1,59 +1,92 @@
 package org.maochen.nlp.ml.classifier.perceptron;
 
-import org.apache.commons.lang3.tuple.ImmutablePair;
-import org.apache.commons.lang3.tuple.Pair;
 import org.maochen.nlp.ml.IClassifier;
+import org.maochen.nlp.ml.TrainingMatrix;
 import org.maochen.nlp.ml.Tuple;
+import org.maochen.nlp.ml.util.ModelContainer;
+import org.maochen.nlp.ml.util.WeightMatrix;
+import org.maochen.nlp.ml.vector.DenseVector;
+import org.maochen.nlp.ml.vector.IVector;
 import org.maochen.nlp.util.VectorUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
+import java.util.RandomAccess;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 /**
+ * In the serving mode predictions read an immutable snapshot of the model, online updates go to the writer owned
+ * model and a copy of it is published as the new snapshot every N updates or T ms. The read path takes no lock,
+ * writers are serialized. Without the serving mode the snapshot is the model itself.
+ *
  * Created by Maochen on 6/5/15.
  */
 public class PerceptronClassifier implements IClassifier {
 
     private static final Logger LOG = LoggerFactory.getLogger(PerceptronClassifier.class);
 
+    // Writer owned.
     protected PerceptronModel model = null;
 
+    // Read by the predictions, replaced as a whole, never modified in the serving mode.
+    private volatile PerceptronModel snapshot = null;
+
     private Properties properties = null;
 
-    private static int MAX_ITERATION = 200;
+    private int maxIteration = 200;
     private boolean initWeightRandom = true;
 
-    // Key is LabelIndex.
-    private Map<Integer, Double> predict(final double[] x) {
-        Map<Integer, Double> result = new HashMap<>();
+    // Averaged perceptron, see AveragedPerceptronTrainer. Starts from zero weights, init_weight_random is ignored.
+    private boolean averaged = false;
+    private int threads = 1;
+
+    // Seed of the shuffles of the training data, random if not set.
+    private Long seed = null;
+
+    // Written under this, read without the lock by onlineTrain to choose the locked path.
+    private volatile boolean serving = false;
+
+    // Guarded by this.
+    private int publishUpdates = 1000;
+    private long publishIntervalMs = 1000;
+    private int pendingUpdates = 0;
+    private long lastPublishMs = System.currentTimeMillis();
+
+    // Raw score by label index, before sigmoid.
+    private static void score(final PerceptronModel model, final IVector x, final double[] scores) {
         for (int i = 0; i < model.weights.length; i++) {
-            double y = VectorUtils.dotProduct(x, model.weights[i]);
-            y += model.bias[i];
-            result.put(i, y);
+            scores[i] = x.dot(model.weights[i]) + model.bias[i];
         }
-
-        return result;
     }
 
-    private Pair<Integer, Double> predictMax(final double[] x) {
-        Map.Entry<Integer, Double> result = predict(x).entrySet().stream().max((e1, e2) -> e1.getValue().compareTo(e2.getValue())).orElse(null);
-        return result == null ? null : new ImmutablePair<>(result.getKey(), result.getValue());
+    // Label index of the max raw score, the first one wins on tie.
+    private static int argmax(final PerceptronModel model, final IVector x) {
+        int max = -1;
+        double maxScore = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < model.weights.length; i++) {
+            double y = x.dot(model.weights[i]) + model.bias[i];
+            if (max == -1 || y > maxScore) {
+                max = i;
+                maxScore = y;
+            }
+        }
+        return max;
     }
 
-    private double[] reweight(final double[] x, final double[] weight, final double correctionD) {
-        return IntStream.range(0, x.length)
-                .mapToDouble(i -> weight[i] + model.learningRate * correctionD * x[i]) // Main Part, +1 strategy
-                .toArray();
+    // Main Part, +1 strategy. Updates the weight in place, only non-zero feats are touched.
+    private void reweight(final IVector x, final double[] weight, final double correctionD) {
+        x.addTo(weight, model.learningRate * correctionD);
     }
 
     /**
@@ -63,17 +96,53 @@ public class PerceptronClassifier implements IClassifier {
      * @param labelIndex label's index, from PerceptronModel.LabelIndexer
      */
     public void onlineTrain(final double[] x, final int labelIndex) {
-        Map<Integer, Double> result = predict(x);
-        Map.Entry<Integer, Double> maxResult = result.entrySet().stream().max((e1, e2) -> e1.getValue().compareTo(e2.getValue())).orElse(null);
+        onlineTrain(new DenseVector(x), labelIndex);
+    }
+
+    /**
+     * public use for doing one training sample.
+     *
+     * @param x          Feature Vector
+     * @param labelIndex label's index, from PerceptronModel.LabelIndexer
+     */
+    public void onlineTrain(final IVector x, final int labelIndex) {
+        if (!serving) {
+            update(x, labelIndex);
+            return;
+        }
 
-        if (maxResult.getKey() != labelIndex) {
+        synchronized (this) {
+            update(x, labelIndex);
+            pendingUpdates++;
+            if (pendingUpdates >= publishUpdates || System.currentTimeMillis() - lastPublishMs >= publishIntervalMs) {
+                publish();
+            }
+        }
+    }
+
+    /**
+     * Make the writer's model visible to the predictions now. Call it after the last online update, the pending
+     * updates are published only by the next update otherwise.
+     */
+    public synchronized void publish() {
+        model.invalidateWeightMatrix();
+        snapshot = serving && model.weights != null ? new PerceptronModel(model) : model;
+        pendingUpdates = 0;
+        lastPublishMs = System.currentTimeMillis();
+    }
+
+    private void update(final IVector x, final int labelIndex) {
+        int maxIndex = argmax(model, x);
+
+        if (maxIndex != labelIndex) {
             double e_correction_d = 1;
-            model.weights[labelIndex] = reweight(x, model.weights[labelIndex], e_correction_d);
+            reweight(x, model.weights[labelIndex], e_correction_d);
             model.bias[labelIndex] = e_correction_d;
 
             double w_correction_d = -1;
-            model.weights[maxResult.getKey()] = reweight(x, model.weights[maxResult.getKey()], w_correction_d);
-            model.bias[maxResult.getKey()] = w_correction_d;
+            reweight(x, model.weights[maxIndex], w_correction_d);
+            model.bias[maxIndex] = w_correction_d;
+            model.invalidateWeightMatrix();
         }
 
         if (LOG.isDebugEnabled()) {
@@ -83,28 +152,93 @@ public class PerceptronClassifier implements IClassifier {
     }
 
     @Override
-    public IClassifier train(List<Tuple> trainingData) {
+    public synchronized IClassifier train(List<Tuple> trainingData) {
         this.model = new PerceptronModel();
         setParameter(properties);
-        this.model.init(trainingData, initWeightRandom);
+        this.model.init(trainingData, initWeightRandom && !averaged);
 
+        if (averaged) {
+            List<Tuple> data = trainingData instanceof RandomAccess ? trainingData : new ArrayList<>(trainingData);
+            int[] labels = data.stream().mapToInt(entry -> model.labelIndexer.getIndex(entry.label)).toArray();
+            trainAveraged(new AveragedPerceptronTrainer(data.size(), model.weights.length, model.weights[0].length,
+                    row -> data.get(row).vector, labels));
+            publish();
+            return this;
+        }
+
+        Random random = newRandom();
         int errCount;
         int iter = 0;
         do {
             LOG.debug("Iteration " + (++iter));
-            Collections.shuffle(trainingData);
+            Collections.shuffle(trainingData, random);
 
             for (Tuple entry : trainingData) {
-                onlineTrain(entry.vector.getVector(), model.labelIndexer.getIndex(entry.label)); // for Xi
+                update(entry.vector, model.labelIndexer.getIndex(entry.label)); // for Xi
             }
 
-            errCount = (int) trainingData.stream().filter(entry -> predictMax(entry.vector.getVector()).getLeft() != model.labelIndexer.getIndex(entry.label)).count();
-        } while (errCount != 0 && iter < MAX_ITERATION);
+            errCount = (int) trainingData.stream().filter(entry -> argmax(model, entry.vector) != model.labelIndexer.getIndex(entry.label)).count();
+        } while (errCount != 0 && iter < maxIteration);
+
+        LOG.debug("Err size: " + errCount);
+        publish();
+        return this;
+    }
+
+    @Override
+    public synchronized IClassifier train(TrainingMatrix trainingData) {
+        this.model = new PerceptronModel();
+        setParameter(properties);
+        this.model.init(trainingData, initWeightRandom && !averaged);
+
+        if (averaged) {
+            int[] labels = IntStream.range(0, trainingData.getNumRows()).map(trainingData::getLabel).toArray();
+            trainAveraged(new AveragedPerceptronTrainer(trainingData.getNumRows(), model.weights.length,
+                    trainingData.getNumCols(), trainingData::row, labels));
+            publish();
+            return this;
+        }
+
+        // Label index of the matrix is the same as the labelIndexer, both are sorted. The matrix is shared, shuffle
+        // the row order instead of the data.
+        List<Integer> rows = IntStream.range(0, trainingData.getNumRows()).boxed().collect(Collectors.toList());
+
+        Random random = newRandom();
+        int errCount;
+        int iter = 0;
+        do {
+            LOG.debug("Iteration " + (++iter));
+            Collections.shuffle(rows, random);
+
+            for (int row : rows) {
+                update(trainingData.row(row), trainingData.getLabel(row)); // for Xi
+            }
+
+            errCount = 0;
+            for (int row = 0; row < trainingData.getNumRows(); row++) {
+                if (argmax(model, trainingData.row(row)) != trainingData.getLabel(row)) {
+                    errCount++;
+                }
+            }
+        } while (errCount != 0 && iter < maxIteration);
 
         LOG.debug("Err size: " + errCount);
+        publish();
         return this;
     }
 
+    private Random newRandom() {
+        return seed == null ? new Random() : new Random(seed);
+    }
+
+    private void trainAveraged(AveragedPerceptronTrainer trainer) {
+        trainer.setMaxIteration(maxIteration)
+                .setRandom(newRandom())
+                .setLearningRate(model.learningRate)
+                .setThreads(threads)
+                .train(model);
+    }
+
     /**
      * Do a prediction.
      *
@@ -114,10 +248,60 @@ public class PerceptronClassifier implements IClassifier {
      */
     @Override
     public Map<String, Double> predict(Tuple predict) {
-        Map<Integer, Double> indexResult = predict(predict.vector.getVector());
-        return indexResult.entrySet().stream()
-                .map(e -> new ImmutablePair<>(model.labelIndexer.getLabel(e.getKey()), VectorUtils.sigmoid.apply(e.getValue()))) // Only do sigmoid here!
-                .collect(Collectors.toMap(ImmutablePair::getLeft, ImmutablePair::getRight));
+        PerceptronModel current = snapshot;
+        double[] scores = new double[current.weights.length];
+        predictInto(current, predict, scores);
+
+        Map<String, Double> result = new HashMap<>();
+        for (int i = 0; i < scores.length; i++) {
+            result.put(current.labelIndexer.getLabel(i), scores[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public String[] getLabels() {
+        return snapshot.labelIndexer.getLabels();
+    }
+
+    /**
+     * Sigmoid of the raw scores, same as predict.
+     */
+    @Override
+    public void predictInto(Tuple predict, double[] scores) {
+        predictInto(snapshot, predict, scores);
+    }
+
+    private static void predictInto(PerceptronModel model, Tuple predict, double[] scores) {
+        score(model, predict.vector, scores);
+        for (int i = 0; i < model.weights.length; i++) {
+            scores[i] = VectorUtils.sigmoid(scores[i]); // Only do sigmoid here!
+        }
+    }
+
+    /**
+     * Dense inputs are scored as one blocked matrix product against the feature-major weights, sparse ones touch only
+     * the weight rows of their non-zero features. Same scores as predictInto up to rounding.
+     */
+    @Override
+    public void predictBatch(List<Tuple> predicts, double[][] out) {
+        PerceptronModel current = snapshot;
+        WeightMatrix matrix = current.getWeightMatrix();
+        matrix.scoreBatch(predicts.stream().map(t -> t.vector).collect(Collectors.toList()), out);
+
+        for (int i = 0; i < predicts.size(); i++) {
+            for (int j = 0; j < matrix.getCols(); j++) {
+                out[i][j] = VectorUtils.sigmoid(out[i][j]);
+            }
+        }
+    }
+
+    /**
+     * Sigmoid is monotonic, the max of the raw scores is the answer.
+     */
+    @Override
+    public int predictArgmax(Tuple predict) {
+        return argmax(snapshot, predict.vector);
     }
 
     @Override
@@ -133,7 +317,7 @@ public class PerceptronClassifier implements IClassifier {
         }
 
         if (props.containsKey("iter")) {
-            MAX_ITERATION = Integer.parseInt(props.getProperty("iter"));
+            this.maxIteration = Integer.parseInt(props.getProperty("iter"));
         }
 
         if (props.containsKey("threshold")) {
@@ -143,19 +327,61 @@ public class PerceptronClassifier implements IClassifier {
         if (props.containsKey("init_weight_random")) {
             this.initWeightRandom = Boolean.parseBoolean(props.getProperty("init_weight_random"));
         }
+
+        if (props.containsKey("averaged")) {
+            this.averaged = Boolean.parseBoolean(props.getProperty("averaged"));
+        }
+
+        if (props.containsKey("threads")) {
+            this.threads = Integer.parseInt(props.getProperty("threads"));
+        }
+
+        if (props.containsKey("seed")) {
+            this.seed = Long.parseLong(props.getProperty("seed"));
+        }
+
+        synchronized (this) {
+            if (props.containsKey("publish_updates")) {
+                this.publishUpdates = Integer.parseInt(props.getProperty("publish_updates"));
+            }
+
+            if (props.containsKey("publish_interval_ms")) {
+                this.publishIntervalMs = Long.parseLong(props.getProperty("publish_interval_ms"));
+            }
+
+            if (props.containsKey("serving") && Boolean.parseBoolean(props.getProperty("serving")) != serving) {
+                this.serving = !serving;
+                publish();
+            }
+        }
     }
 
     @Override
     public void persistModel(String modelFile) throws IOException {
-        model.persist(modelFile);
+        snapshot.persist(modelFile);
     }
 
     @Override
-    public void loadModel(InputStream inputStream) {
+    public synchronized void loadModel(InputStream inputStream) {
         model.load(inputStream);
+        publish();
+    }
+
+    @Override
+    public void persistBinaryModel(String modelFile) throws IOException {
+        ModelContainer.Writer writer = new ModelContainer.Writer(PerceptronModel.MODEL_TYPE);
+        snapshot.write(writer);
+        writer.write(modelFile);
+    }
+
+    @Override
+    public synchronized void loadBinaryModel(String modelFile) throws IOException {
+        model.load(ModelContainer.open(modelFile, PerceptronModel.MODEL_TYPE));
+        publish();
     }
 
     public PerceptronClassifier() {
         this.model = new PerceptronModel();
+        this.snapshot = model;
     }
 }
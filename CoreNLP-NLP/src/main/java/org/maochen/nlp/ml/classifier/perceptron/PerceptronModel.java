@@ -2,9 +2,12 @@ package org.maochen.nlp.ml.classifier.perceptron;
 
 import com.google.common.collect.Lists;
 
+import org.maochen.nlp.ml.TrainingMatrix;
 import org.maochen.nlp.ml.Tuple;
 import org.maochen.nlp.ml.classifier.LabelIndexer;
+import org.maochen.nlp.ml.util.ModelContainer;
 import org.maochen.nlp.ml.util.ModelSerializeUtils;
+import org.maochen.nlp.ml.util.WeightMatrix;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,6 +20,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by Maochen on 6/5/15.
@@ -25,6 +29,8 @@ public class PerceptronModel {
 
     private static final Logger LOG = LoggerFactory.getLogger(PerceptronModel.class);
 
+    static final String MODEL_TYPE = "perceptron";
+
     double learningRate = 0.1;
     double threshold = 0.5;
 
@@ -33,6 +39,22 @@ public class PerceptronModel {
 
     LabelIndexer labelIndexer;
 
+    // Feature-major copy of weights and bias for the batch scoring, built on demand.
+    private static final class CachedMatrix {
+        final long version;
+        final WeightMatrix matrix;
+
+        CachedMatrix(long version, WeightMatrix matrix) {
+            this.version = version;
+            this.matrix = matrix;
+        }
+    }
+
+    private volatile CachedMatrix weightMatrix = null;
+
+    // Bumped by invalidateWeightMatrix, a cached matrix is only valid for the version it was built from.
+    private final AtomicLong version = new AtomicLong();
+
     public PerceptronModel() {
 
     }
@@ -51,9 +73,38 @@ public class PerceptronModel {
         }
     }
 
+    WeightMatrix getWeightMatrix() {
+        long current = version.get();
+        CachedMatrix cached = weightMatrix;
+        if (cached != null && cached.version == current) {
+            return cached.matrix;
+        }
+
+        WeightMatrix matrix = WeightMatrix.transpose(weights, bias);
+        if (version.get() == current) { // Not cached if the weights changed while transposing.
+            weightMatrix = new CachedMatrix(current, matrix);
+        }
+        return matrix;
+    }
+
+    /**
+     * Call after weights or bias change.
+     */
+    void invalidateWeightMatrix() {
+        version.incrementAndGet();
+    }
+
     public void init(List<Tuple> trainingData, boolean initWeightRandom) {
-        labelIndexer = new LabelIndexer(trainingData);
-        int featurelength = trainingData.stream().findFirst().orElse(null).vector.getVector().length;
+        int featurelength = trainingData.stream().findFirst().orElse(null).vector.size();
+        init(new LabelIndexer(trainingData), featurelength, initWeightRandom);
+    }
+
+    public void init(TrainingMatrix trainingData, boolean initWeightRandom) {
+        init(new LabelIndexer(trainingData.getLabelNames()), trainingData.getNumCols(), initWeightRandom);
+    }
+
+    private void init(LabelIndexer labelIndexer, int featurelength, boolean initWeightRandom) {
+        this.labelIndexer = labelIndexer;
         weights = new double[labelIndexer.getLabelSize()][featurelength];
         bias = new double[labelIndexer.getLabelSize()];
 
@@ -119,5 +170,34 @@ public class PerceptronModel {
         } catch (IOException e) {
             LOG.error("Load model err.", e);
         }
+        invalidateWeightMatrix();
+    }
+
+    /**
+     * Label table, hyper parameters, bias and weights.
+     */
+    void write(ModelContainer.Writer writer) {
+        writer.putStrings("labels", labelIndexer.getLabels());
+        writer.putDoubles("hyper", new double[]{learningRate, threshold});
+        writer.putDoubles("bias", bias);
+        writer.putDoubles("weights", weights);
+    }
+
+    /**
+     * The weights are bulk copied from the mapped file, online training updates them in place.
+     */
+    void load(ModelContainer container) {
+        String[] labels = container.getStrings("labels");
+        this.labelIndexer = new LabelIndexer(new String[0]);
+        for (int i = 0; i < labels.length; i++) {
+            labelIndexer.labelIndexer.put(labels[i], i);
+        }
+
+        double[] hyper = container.getDoubleArray("hyper");
+        this.learningRate = hyper[0];
+        this.threshold = hyper[1];
+        this.bias = container.getDoubleArray("bias");
+        this.weights = container.getDoubleMatrix("weights");
+        invalidateWeightMatrix();
     }
 }
@@ -0,0 +1,346 @@
+package org.maochen.nlp.ml.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Versioned binary model file. A header followed by named blocks: string tables (labels, features) and little-endian
+ * double or int parameter blocks. Blocks are 8 byte aligned and memory-mapped read-only when opened, the parameters
+ * are read from the page cache instead of being parsed into the heap, and the pages are shared between the JVMs
+ * loading the same file.
+ *
+ * int magic, int version, int header length, header: string model type, int block count, per block: string name,
+ * int kind, int rows, int cols, long offset, long length. Strings are int byte length + UTF-8.
+ *
+ * Each block is at most 2GB, the size of one mapping.
+ */
+public final class ModelContainer {
+
+    public static final int MAGIC = 0x4A4E4C50; // JNLP
+    public static final int VERSION = 1;
+
+    private static final int STRINGS = 1;
+    private static final int DOUBLES = 2;
+    private static final int INTS = 3;
+
+    private static final int PREAMBLE = 12;
+
+    private static final class Block {
+        final int kind;
+        final int rows;
+        final int cols;
+        final ByteBuffer data;
+
+        Block(int kind, int rows, int cols, ByteBuffer data) {
+            this.kind = kind;
+            this.rows = rows;
+            this.cols = cols;
+            this.data = data;
+        }
+    }
+
+    private final String modelType;
+    private final Map<String, Block> blocks;
+
+    private Block block(String name, int kind) {
+        Block block = blocks.get(name);
+        if (block == null) {
+            throw new IllegalArgumentException("No block " + name + " in the " + modelType + " model.");
+        }
+        if (block.kind != kind) {
+            throw new IllegalArgumentException("Block " + name + " has kind " + block.kind + " instead of " + kind);
+        }
+        return block;
+    }
+
+    private ByteBuffer data(Block block) {
+        return block.data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public String getModelType() {
+        return modelType;
+    }
+
+    public boolean contains(String name) {
+        return blocks.containsKey(name);
+    }
+
+    public int getRows(String name) {
+        Block block = blocks.get(name);
+        return block == null ? 0 : block.rows;
+    }
+
+    public int getCols(String name) {
+        Block block = blocks.get(name);
+        return block == null ? 0 : block.cols;
+    }
+
+    /**
+     * @return read-only view of the mapped block, row-major.
+     */
+    public DoubleBuffer getDoubles(String name) {
+        return data(block(name, DOUBLES)).asDoubleBuffer();
+    }
+
+    /**
+     * @return read-only view of the mapped block, row-major.
+     */
+    public IntBuffer getInts(String name) {
+        return data(block(name, INTS)).asIntBuffer();
+    }
+
+    /**
+     * Heap copy of a double block, for the small blocks and the models that are mutated after loading.
+     */
+    public double[] getDoubleArray(String name) {
+        DoubleBuffer buffer = getDoubles(name);
+        double[] values = new double[buffer.remaining()];
+        buffer.get(values);
+        return values;
+    }
+
+    public double[][] getDoubleMatrix(String name) {
+        Block block = block(name, DOUBLES);
+        DoubleBuffer buffer = data(block).asDoubleBuffer();
+        double[][] values = new double[block.rows][block.cols];
+        for (double[] row : values) {
+            buffer.get(row);
+        }
+        return values;
+    }
+
+    public String[] getStrings(String name) {
+        ByteBuffer data = data(block(name, STRINGS));
+        String[] values = new String[data.getInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readString(data);
+        }
+        return values;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static int stringLength(String value) {
+        return 4 + value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * @param modelType expected model type, null to accept any.
+     * @throws IOException if the file is not a model container, or of another type or a newer version.
+     */
+    public static ModelContainer open(String filename, String modelType) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, preamble, 0);
+            if (preamble.getInt() != MAGIC) {
+                throw new IOException(filename + " is not a binary model.");
+            }
+            int version = preamble.getInt();
+            if (version > VERSION) {
+                throw new IOException("Unsupported model version " + version + ", expect at most " + VERSION);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(preamble.getInt()).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, PREAMBLE);
+
+            String type = readString(header);
+            if (modelType != null && !modelType.equals(type)) {
+                throw new IOException(filename + " is a " + type + " model instead of " + modelType);
+            }
+
+            Map<String, Block> blocks = new LinkedHashMap<>();
+            for (int i = header.getInt(); i > 0; i--) {
+                String name = readString(header);
+                int kind = header.getInt();
+                int rows = header.getInt();
+                int cols = header.getInt();
+                long offset = header.getLong();
+                long length = header.getLong();
+                if (offset + length > channel.size()) {
+                    throw new IOException("Block " + name + " is truncated in " + filename);
+                }
+                // The mapping stays valid after the channel is closed.
+                blocks.put(name, new Block(kind, rows, cols, channel.map(FileChannel.MapMode.READ_ONLY, offset, length)));
+            }
+            return new ModelContainer(type, blocks);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new IOException("Unexpected end of the model file.");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * @return true if the file starts with the container magic.
+     */
+    public static boolean isContainer(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            return channel.read(magic, 0) == 4 && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    private ModelContainer(String modelType, Map<String, Block> blocks) {
+        this.modelType = modelType;
+        this.blocks = blocks;
+    }
+
+    /**
+     * Collects the blocks, then writes the header and the blocks in one go.
+     */
+    public static final class Writer {
+
+        private final String modelType;
+        private final List<String> names = new ArrayList<>();
+        private final List<Block> blocks = new ArrayList<>();
+
+        private static ByteBuffer allocate(long length, String name) {
+            if (length > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Block " + name + " is larger than 2GB.");
+            }
+            return ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private Writer put(String name, Block block) {
+            if (names.contains(name)) {
+                throw new IllegalArgumentException("Duplicate block " + name);
+            }
+            names.add(name);
+            blocks.add(block);
+            return this;
+        }
+
+        public Writer putStrings(String name, String[] values) {
+            long length = 4;
+            for (String value : values) {
+                length += stringLength(value);
+            }
+
+            ByteBuffer data = allocate(length, name);
+            data.putInt(values.length);
+            for (String value : values) {
+                writeString(data, value);
+            }
+            return put(name, new Block(STRINGS, values.length, 1, data));
+        }
+
+        /**
+         * @param values row-major, from the current position. The buffer itself is not modified.
+         */
+        public Writer putDoubles(String name, DoubleBuffer values, int rows, int cols) {
+            if ((long) rows * cols != values.remaining()) {
+                throw new IllegalArgumentException("Block " + name + " has " + values.remaining() + " values instead of " + rows + "x" + cols);
+            }
+            ByteBuffer data = allocate(8L * values.remaining(), name);
+            data.asDoubleBuffer().put(values.duplicate());
+            return put(name, new Block(DOUBLES, rows, cols, data));
+        }
+
+        public Writer putDoubles(String name, double[] values) {
+            return putDoubles(name, DoubleBuffer.wrap(values), values.length, 1);
+        }
+
+        /**
+         * @param values rectangular matrix.
+         */
+        public Writer putDoubles(String name, double[][] values) {
+            int cols = values.length == 0 ? 0 : values[0].length;
+            ByteBuffer data = allocate(8L * values.length * cols, name);
+            DoubleBuffer view = data.asDoubleBuffer();
+            for (double[] row : values) {
+                if (row.length != cols) {
+                    throw new IllegalArgumentException("Block " + name + " is not rectangular.");
+                }
+                view.put(row);
+            }
+            return put(name, new Block(DOUBLES, values.length, cols, data));
+        }
+
+        public Writer putInts(String name, IntBuffer values) {
+            ByteBuffer data = allocate(4L * values.remaining(), name);
+            int length = values.remaining();
+            data.asIntBuffer().put(values.duplicate());
+            return put(name, new Block(INTS, length, 1, data));
+        }
+
+        public Writer putInts(String name, int[] values) {
+            return putInts(name, IntBuffer.wrap(values));
+        }
+
+        public void write(String filename) throws IOException {
+            int headerLength = stringLength(modelType) + 4;
+            for (String name : names) {
+                headerLength += stringLength(name) + 4 * 3 + 8 * 2;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(PREAMBLE + headerLength).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(headerLength);
+            writeString(header, modelType);
+            header.putInt(names.size());
+
+            long[] offsets = new long[blocks.size()];
+            long offset = header.capacity();
+            for (int i = 0; i < blocks.size(); i++) {
+                Block block = blocks.get(i);
+                offset = (offset + 7) & ~7L;
+                offsets[i] = offset;
+                writeString(header, names.get(i));
+                header.putInt(block.kind).putInt(block.rows).putInt(block.cols);
+                header.putLong(offset).putLong(block.data.capacity());
+                offset += block.data.capacity();
+            }
+            header.flip();
+
+            try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeFully(channel, header, 0);
+                for (int i = 0; i < blocks.size(); i++) {
+                    ByteBuffer data = blocks.get(i).data.duplicate();
+                    data.clear();
+                    writeFully(channel, data, offsets[i]);
+                }
+                // An empty last block is aligned past the data.
+                if (channel.size() < offset) {
+                    writeFully(channel, ByteBuffer.allocate((int) (offset - channel.size())), channel.size());
+                }
+            }
+        }
+
+        private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        public Writer(String modelType) {
+            this.modelType = modelType;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.maochen.nlp.ml.util;
+
+import org.maochen.nlp.ml.vector.DenseVector;
+import org.maochen.nlp.ml.vector.IVector;
+
+import java.util.List;
+
+/**
+ * Weights of a linear model in one contiguous row-major array, one row of output weights per feature:
+ * data[feature * cols + output]. Scoring is out = x * W + bias, each non-zero x[feature] adds its row to the outputs,
+ * an axpy over contiguous memory for both the dense and the sparse inputs.
+ *
+ * scoreBatch is a blocked GEMM: inputs, features and outputs are tiled so a tile of weights stays in the cache while
+ * a block of inputs is scored against it, instead of streaming the whole matrix once per input.
+ *
+ * Features beyond the rows of the matrix are ignored. Not modified by the scoring, safe to share between threads
+ * once built.
+ */
+public final class WeightMatrix {
+
+    // Inputs scored against one weight tile.
+    static final int INPUT_BLOCK = 32;
+
+    // Weight tile, 64 x 256 doubles, 128KB.
+    static final int FEATURE_BLOCK = 64;
+    static final int OUTPUT_BLOCK = 256;
+
+    private final int rows;
+    private final int cols;
+    private final double[] data;
+    private final double[] bias;
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public double get(int row, int col) {
+        return data[row * cols + col];
+    }
+
+    public void add(int row, int col, double value) {
+        data[row * cols + col] += value;
+    }
+
+    public double getBias(int col) {
+        return bias[col];
+    }
+
+    // out += value * row.
+    private void addRow(int row, double value, double[] out) {
+        for (int j = 0, offset = row * cols; j < cols; j++) {
+            out[j] += value * data[offset + j];
+        }
+    }
+
+    /**
+     * @param out output, one score per column.
+     */
+    public void score(IVector x, double[] out) {
+        System.arraycopy(bias, 0, out, 0, cols);
+        x.forEachNonZero((index, value) -> {
+            if (index < rows) {
+                addRow(index, value, out);
+            }
+        });
+    }
+
+    public void score(double[] x, double[] out) {
+        System.arraycopy(bias, 0, out, 0, cols);
+        for (int k = 0, n = Math.min(x.length, rows); k < n; k++) {
+            if (x[k] != 0) {
+                addRow(k, x[k], out);
+            }
+        }
+    }
+
+    /**
+     * @param out output, out[i] gets the scores of inputs[i].
+     */
+    public void scoreBatch(double[][] inputs, double[][] out) {
+        for (int i0 = 0; i0 < inputs.length; i0 += INPUT_BLOCK) {
+            int i1 = Math.min(i0 + INPUT_BLOCK, inputs.length);
+            for (int i = i0; i < i1; i++) {
+                System.arraycopy(bias, 0, out[i], 0, cols);
+            }
+
+            for (int k0 = 0; k0 < rows; k0 += FEATURE_BLOCK) {
+                int k1 = Math.min(k0 + FEATURE_BLOCK, rows);
+                for (int j0 = 0; j0 < cols; j0 += OUTPUT_BLOCK) {
+                    int j1 = Math.min(j0 + OUTPUT_BLOCK, cols);
+                    for (int i = i0; i < i1; i++) {
+                        double[] x = inputs[i];
+                        double[] o = out[i];
+                        for (int k = k0, kEnd = Math.min(k1, x.length); k < kEnd; k++) {
+                            double value = x[k];
+                            if (value == 0) {
+                                continue;
+                            }
+                            for (int j = j0, offset = k * cols; j < j1; j++) {
+                                o[j] += value * data[offset + j];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public double[][] scoreBatch(double[][] inputs) {
+        double[][] out = new double[inputs.length][cols];
+        scoreBatch(inputs, out);
+        return out;
+    }
+
+    /**
+     * A batch of dense vectors goes through the blocked product. Sparse inputs are scored one by one, they only touch
+     * the rows of their non-zero features.
+     */
+    public void scoreBatch(List<? extends IVector> inputs, double[][] out) {
+        if (inputs.stream().allMatch(x -> x instanceof DenseVector)) {
+            scoreBatch(inputs.stream().map(IVector::getVector).toArray(double[][]::new), out);
+            return;
+        }
+
+        for (int i = 0; i < inputs.size(); i++) {
+            score(inputs.get(i), out[i]);
+        }
+    }
+
+    /**
+     * Wraps the array, no copy.
+     *
+     * @param data row-major, rows x cols.
+     * @param bias per column, null for zeros.
+     */
+    public WeightMatrix(double[] data, int rows, int cols, double[] bias) {
+        if (data.length != rows * cols) {
+            throw new IllegalArgumentException("Weight matrix has " + data.length + " values instead of " + rows + "x" + cols);
+        }
+        this.rows = rows;
+        this.cols = cols;
+        this.data = data;
+        this.bias = bias == null ? new double[cols] : bias;
+    }
+
+    public WeightMatrix(int rows, int cols) {
+        this(new double[rows * cols], rows, cols, null);
+    }
+
+    /**
+     * From the per output weight vectors, weights[output][feature], e.g. one row per label.
+     */
+    public static WeightMatrix transpose(double[][] weights, double[] bias) {
+        int cols = weights.length;
+        int rows = cols == 0 ? 0 : weights[0].length;
+        double[] data = new double[rows * cols];
+        for (int j = 0; j < cols; j++) {
+            for (int k = 0; k < rows; k++) {
+                data[k * cols + j] = weights[j][k];
+            }
+        }
+        return new WeightMatrix(data, rows, cols, bias == null ? null : bias.clone());
+    }
+}
@@ -34,7 +34,7 @@ public class CSVDataWriter {
             stringBuilder.append(header).append(System.lineSeparator());
         }
 
-        int vecLength = trainingData.iterator().next().vector.getVector().length;
+        int vecLength = trainingData.iterator().next().vector.size();
         if (labelCol > vecLength - 1 || labelCol < 0) {
             labelCol = vecLength;
         }
@@ -42,7 +42,7 @@ public class CSVDataWriter {
         int batchSize = 100;
         for (int countT = 0; countT < trainingData.size(); countT++) {
             Tuple t = trainingData.get(countT);
-            for (int i = 0; i < t.vector.getVector().length; i++) {
+            for (int i = 0; i < t.vector.size(); i++) {
                 if (i == labelCol) {
                     stringBuilder.append(t.label).append(delim);
                 }
@@ -60,7 +60,7 @@ public class CSVDataWriter {
                 }
 
                 if (writeFeatValue) {
-                    stringBuilder.append(t.vector.getVector()[i]);
+                    stringBuilder.append(t.vector.get(i));
                 }
 
                 stringBuilder.append(delim);
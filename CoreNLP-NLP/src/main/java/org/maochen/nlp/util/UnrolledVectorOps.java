@@ -0,0 +1,207 @@
+package org.maochen.nlp.util;
+
+/**
+ * Reductions unrolled by 4 with independent accumulators. A single accumulator chains every add to the previous one,
+ * the JIT can't reorder floating point sums and the loop runs at the add latency. Four chains keep the pipeline busy
+ * and map onto the SIMD lanes.
+ */
+final class UnrolledVectorOps extends VectorOps {
+
+    @Override
+    public double dot(double[] a, double[] b) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int n = a.length;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += a[i] * b[i];
+            s1 += a[i + 1] * b[i + 1];
+            s2 += a[i + 2] * b[i + 2];
+            s3 += a[i + 3] * b[i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += a[i] * b[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    @Override
+    public float dot(float[] a, float[] b) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int n = a.length;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += a[i] * b[i];
+            s1 += a[i + 1] * b[i + 1];
+            s2 += a[i + 2] * b[i + 2];
+            s3 += a[i + 3] * b[i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += a[i] * b[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    @Override
+    public double squaredNorm(double[] a) {
+        return dot(a, a);
+    }
+
+    @Override
+    public float squaredNorm(float[] a) {
+        return dot(a, a);
+    }
+
+    @Override
+    public double squaredDistance(double[] a, double[] b) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int n = a.length;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            double d0 = a[i] - b[i];
+            double d1 = a[i + 1] - b[i + 1];
+            double d2 = a[i + 2] - b[i + 2];
+            double d3 = a[i + 3] - b[i + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; i < n; i++) {
+            double d = a[i] - b[i];
+            s0 += d * d;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    @Override
+    public float squaredDistance(float[] a, float[] b) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int n = a.length;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            float d0 = a[i] - b[i];
+            float d1 = a[i + 1] - b[i + 1];
+            float d2 = a[i + 2] - b[i + 2];
+            float d3 = a[i + 3] - b[i + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; i < n; i++) {
+            float d = a[i] - b[i];
+            s0 += d * d;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    // Unrolled by 2, three sums per element already.
+    @Override
+    public double cosine(double[] a, double[] b) {
+        double dot0 = 0, dot1 = 0, aa0 = 0, aa1 = 0, bb0 = 0, bb1 = 0;
+        int n = a.length;
+        int i = 0;
+        for (; i + 1 < n; i += 2) {
+            double a0 = a[i], a1 = a[i + 1], b0 = b[i], b1 = b[i + 1];
+            dot0 += a0 * b0;
+            dot1 += a1 * b1;
+            aa0 += a0 * a0;
+            aa1 += a1 * a1;
+            bb0 += b0 * b0;
+            bb1 += b1 * b1;
+        }
+        if (i < n) {
+            dot0 += a[i] * b[i];
+            aa0 += a[i] * a[i];
+            bb0 += b[i] * b[i];
+        }
+        return (dot0 + dot1) / (Math.sqrt(aa0 + aa1) * Math.sqrt(bb0 + bb1));
+    }
+
+    @Override
+    public float cosine(float[] a, float[] b) {
+        float dot0 = 0, dot1 = 0, aa0 = 0, aa1 = 0, bb0 = 0, bb1 = 0;
+        int n = a.length;
+        int i = 0;
+        for (; i + 1 < n; i += 2) {
+            float a0 = a[i], a1 = a[i + 1], b0 = b[i], b1 = b[i + 1];
+            dot0 += a0 * b0;
+            dot1 += a1 * b1;
+            aa0 += a0 * a0;
+            aa1 += a1 * a1;
+            bb0 += b0 * b0;
+            bb1 += b1 * b1;
+        }
+        if (i < n) {
+            dot0 += a[i] * b[i];
+            aa0 += a[i] * a[i];
+            bb0 += b[i] * b[i];
+        }
+        return (float) ((dot0 + dot1) / (Math.sqrt(aa0 + aa1) * Math.sqrt(bb0 + bb1)));
+    }
+
+    // 4 rows per pass, x is read once for the 4 of them.
+    @Override
+    public void dot(double[][] matrix, double[] x, double[] out) {
+        int r = 0;
+        for (; r + 3 < matrix.length; r += 4) {
+            double[] m0 = matrix[r], m1 = matrix[r + 1], m2 = matrix[r + 2], m3 = matrix[r + 3];
+            int n = Math.min(Math.min(m0.length, m1.length), Math.min(m2.length, m3.length));
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            for (int i = 0; i < n; i++) {
+                double xi = x[i];
+                s0 += m0[i] * xi;
+                s1 += m1[i] * xi;
+                s2 += m2[i] * xi;
+                s3 += m3[i] * xi;
+            }
+            out[r] = s0 + tail(m0, x, n);
+            out[r + 1] = s1 + tail(m1, x, n);
+            out[r + 2] = s2 + tail(m2, x, n);
+            out[r + 3] = s3 + tail(m3, x, n);
+        }
+        for (; r < matrix.length; r++) {
+            out[r] = dot(matrix[r], x);
+        }
+    }
+
+    private static double tail(double[] row, double[] x, int from) {
+        double sum = 0;
+        for (int i = from; i < row.length; i++) {
+            sum += row[i] * x[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void dot(float[][] matrix, float[] x, float[] out) {
+        int r = 0;
+        for (; r + 3 < matrix.length; r += 4) {
+            float[] m0 = matrix[r], m1 = matrix[r + 1], m2 = matrix[r + 2], m3 = matrix[r + 3];
+            int n = Math.min(Math.min(m0.length, m1.length), Math.min(m2.length, m3.length));
+            float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            for (int i = 0; i < n; i++) {
+                float xi = x[i];
+                s0 += m0[i] * xi;
+                s1 += m1[i] * xi;
+                s2 += m2[i] * xi;
+                s3 += m3[i] * xi;
+            }
+            out[r] = s0 + tail(m0, x, n);
+            out[r + 1] = s1 + tail(m1, x, n);
+            out[r + 2] = s2 + tail(m2, x, n);
+            out[r + 3] = s3 + tail(m3, x, n);
+        }
+        for (; r < matrix.length; r++) {
+            out[r] = dot(matrix[r], x);
+        }
+    }
+
+    private static float tail(float[] row, float[] x, int from) {
+        float sum = 0;
+        for (int i = from; i < row.length; i++) {
+            sum += row[i] * x[i];
+        }
+        return sum;
+    }
+}
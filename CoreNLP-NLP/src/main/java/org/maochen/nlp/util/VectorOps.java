@@ -0,0 +1,117 @@
+package org.maochen.nlp.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dense vector kernels under VectorUtils, the classifiers and the similarity search. Dot products run over the length
+ * of the first vector, same as VectorUtils.dotProduct.
+ *
+ * The backend is picked once at class loading by the system property nlp.vectorops: "scalar" for the plain loops,
+ * "unrolled" (default) for the loops with independent accumulators the JIT can vectorize, or the class name of a
+ * VectorOps subclass with a public no-arg constructor, e.g. a jdk.incubator.vector backend compiled for a JDK that
+ * has the module. Results of the backends can differ in the last bits, the sums are in another order.
+ *
+ * @author Maochen
+ */
+public abstract class VectorOps {
+    private static final Logger LOG = LoggerFactory.getLogger(VectorOps.class);
+
+    public static final String PROPERTY = "nlp.vectorops";
+
+    private static final VectorOps INSTANCE = load(System.getProperty(PROPERTY, "unrolled"));
+
+    static VectorOps load(String name) {
+        switch (name) {
+            case "scalar":
+                return new ScalarVectorOps();
+            case "unrolled":
+                return new UnrolledVectorOps();
+            default:
+                try {
+                    VectorOps ops = (VectorOps) Class.forName(name).getDeclaredConstructor().newInstance();
+                    LOG.info("VectorOps backend: " + name);
+                    return ops;
+                } catch (ReflectiveOperationException | ClassCastException | LinkageError e) {
+                    LOG.warn("VectorOps backend " + name + " is not available, use the unrolled one.", e);
+                    return new UnrolledVectorOps();
+                }
+        }
+    }
+
+    public static VectorOps get() {
+        return INSTANCE;
+    }
+
+    public abstract double dot(double[] a, double[] b);
+
+    public abstract float dot(float[] a, float[] b);
+
+    /**
+     * @return sum of a[i]^2.
+     */
+    public abstract double squaredNorm(double[] a);
+
+    public abstract float squaredNorm(float[] a);
+
+    /**
+     * @return sum of (a[i] - b[i])^2.
+     */
+    public abstract double squaredDistance(double[] a, double[] b);
+
+    public abstract float squaredDistance(float[] a, float[] b);
+
+    /**
+     * Fused, the dot product and both squared norms in one pass.
+     *
+     * @return a * b / (|a| |b|), signed. NaN if either vector is zero.
+     */
+    public abstract double cosine(double[] a, double[] b);
+
+    public abstract float cosine(float[] a, float[] b);
+
+    /**
+     * y += alpha * x, over the length of x. Element-wise loops like this one are vectorized by the JIT as they are.
+     */
+    public void axpy(double alpha, double[] x, double[] y) {
+        for (int i = 0; i < x.length; i++) {
+            y[i] += alpha * x[i];
+        }
+    }
+
+    public void axpy(float alpha, float[] x, float[] y) {
+        for (int i = 0; i < x.length; i++) {
+            y[i] += alpha * x[i];
+        }
+    }
+
+    /**
+     * a *= alpha.
+     */
+    public void scale(double[] a, double alpha) {
+        for (int i = 0; i < a.length; i++) {
+            a[i] *= alpha;
+        }
+    }
+
+    public void scale(float[] a, float alpha) {
+        for (int i = 0; i < a.length; i++) {
+            a[i] *= alpha;
+        }
+    }
+
+    /**
+     * Batched dot product of x against each row of the matrix, out[r] = matrix[r] * x.
+     */
+    public void dot(double[][] matrix, double[] x, double[] out) {
+        for (int r = 0; r < matrix.length; r++) {
+            out[r] = dot(matrix[r], x);
+        }
+    }
+
+    public void dot(float[][] matrix, float[] x, float[] out) {
+        for (int r = 0; r < matrix.length; r++) {
+            out[r] = dot(matrix[r], x);
+        }
+    }
+}
@@ -4,6 +4,8 @@ import java.util.function.BiFunction;
 import java.util.function.Function;
 
 /**
+ * The vector kernels run on VectorOps.get().
+ *
  * Created by Maochen on 12/3/14.
  */
 public class VectorUtils {
@@ -39,9 +41,7 @@ public class VectorUtils {
             if (vectors[i] == null || vectors[i].length == 0) {
                 continue;
             }
-            for (int dimension = 0; dimension < vectors[i].length; dimension++) {
-                result[dimension] += vectors[i][dimension];
-            }
+            VectorOps.get().axpy(1, vectors[i], result);
         }
 
         return result;
@@ -50,41 +50,37 @@ public class VectorUtils {
     }
 
     public static double dotProduct(final double[] vec1, final double[] vec2) {
-        double sum = 0;
-        for (int i = 0; i < vec1.length; i++) {
-            sum += vec1[i] * vec2[i];
-        }
-
-        return sum;
-//        return Arrays.stream(result).sum();
+        return VectorOps.get().dot(vec1, vec2);
     }
 
     public static double vectorLen(double[] vector) {
-//        double sum = Arrays.stream(vector).parallel().map(x -> x * x).sum();
-        double sum = 0;
-        for (double d : vector) {
-            sum += d * d;
-        }
-
-        return Math.sqrt(sum);
+        return Math.sqrt(VectorOps.get().squaredNorm(vector));
     }
 
-    // cos(theta) = A . B / ||A|| ||B||
+    // cos(theta) = A . B / ||A|| ||B||, dot product and norms in one pass.
     public static double getCosinValue(double[] vector1, double[] vector2) {
         if (vector1 == null || vector2 == null) {
             return 0;
         }
-        double dotProduct = VectorUtils.dotProduct(vector1, vector2);
-        double euclideanDistance = VectorUtils.vectorLen(vector1) * VectorUtils.vectorLen(vector2);
-        double cosineValue = Math.abs(dotProduct / euclideanDistance);
+        double cosineValue = Math.abs(VectorOps.get().cosine(vector1, vector2));
         return cosineValue > 1.0D ? 1.0D : cosineValue;  // because of the precision error
     }
 
     public static void scale(final double[] a, double scale) {
-        for (int i = 0; i < a.length; i++) {
-            a[i] = a[i] * scale;
+        VectorOps.get().scale(a, scale);
+    }
+
+    /**
+     * @return index of the max value, the first one wins on tie. -1 if the array is empty.
+     */
+    public static int argmax(final double[] a) {
+        int max = a.length == 0 ? -1 : 0;
+        for (int i = 1; i < a.length; i++) {
+            if (a[i] > a[max]) {
+                max = i;
+            }
         }
-//        return Arrays.stream(a).parallel().map(x -> x * scale).toArray();
+        return max;
     }
 
     public static double gaussianPDF(double mean, double variance, double x) {
@@ -123,24 +119,17 @@ public class VectorUtils {
 //        return Arrays.stream(vectorIndex).parallel().mapToObj(String::valueOf).toArray(String[]::new);
     }
 
-    public static Function<Double, Double> sigmoid = z -> 1 / (1 + Math.exp(-z));   // This is for p(s=1)
+    // This is for p(s=1)
+    public static double sigmoid(double z) {
+        return 1 / (1 + Math.exp(-z));
+    }
+
+    public static Function<Double, Double> sigmoid = VectorUtils::sigmoid;
 
     public static Function<Double, Double> tanh = z -> {
         double e2z = Math.exp(2 * z);
         return (e2z - 1) / (e2z + 1);
     };
 
-    public static final BiFunction<double[], double[], Double> euclideanDistance = (v1, v2) -> {
-        double result = 0;
-
-        for (int i = 0; i < v1.length; i++) {
-            double diff = v1[i] - v2[i];
-            diff *= diff;
-            result += diff;
-        }
-
-        result = Math.sqrt(result);
-        return result;
-//         Math.sqrt(Arrays.stream(VectorUtils.zip(v1, v2, (x1, y1) -> Math.pow(x1 - y1, 2))).sum());
-    };
+    public static final BiFunction<double[], double[], Double> euclideanDistance = (v1, v2) -> Math.sqrt(VectorOps.get().squaredDistance(v1, v2));
 }
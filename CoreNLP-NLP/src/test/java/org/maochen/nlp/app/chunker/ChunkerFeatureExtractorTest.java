@@ -3,12 +3,16 @@ package org.maochen.nlp.app.chunker;
 import org.junit.Test;
 import org.maochen.nlp.ml.SequenceTuple;
 import org.maochen.nlp.ml.Tuple;
+import org.maochen.nlp.ml.vector.FeatDictionary;
+import org.maochen.nlp.ml.vector.FeatIdVector;
+import org.maochen.nlp.ml.vector.FeatNamedVector;
 
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 /**
@@ -115,4 +119,29 @@ public class ChunkerFeatureExtractorTest {
             assertEquals(MOCK_TAGS[i], tuple.label);
         }
     }
+
+    @Test
+    public void testExtractFeatIds() {
+        Map<Integer, List<String>> feats = new HashMap<>();
+        feats.put(ChunkerFeatureExtractor.WORD_INDEX, Arrays.asList(MOCK_TOKENS));
+        feats.put(ChunkerFeatureExtractor.POS_INDEX, Arrays.asList(MOCK_POS));
+        SequenceTuple st = new SequenceTuple(feats, Arrays.asList(MOCK_TAGS));
+
+        ChunkerFeatureExtractor extractor = new ChunkerFeatureExtractor();
+        List<Tuple> expected = extractor.extractFeat(st);
+        FeatDictionary dictionary = new FeatDictionary();
+        List<Tuple> actual = extractor.extractFeat(st, dictionary);
+
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).label, actual.get(i).label);
+
+            // The string feats through the same dictionary, repeated ones are summed.
+            int[] ids = Arrays.stream(((FeatNamedVector) expected.get(i).vector).featsName).mapToInt(dictionary::getId).toArray();
+            FeatIdVector expectedIds = new FeatIdVector(dictionary, ids, ids.length);
+            FeatIdVector actualIds = (FeatIdVector) actual.get(i).vector;
+            assertArrayEquals(expectedIds.getIndices(), actualIds.getIndices());
+            assertArrayEquals(expectedIds.getValues(), actualIds.getValues(), 0);
+        }
+    }
 }
@@ -0,0 +1,55 @@
+package org.maochen.nlp.app.ner;
+
+import org.junit.Test;
+import org.maochen.nlp.ml.SequenceTuple;
+import org.maochen.nlp.ml.Tuple;
+import org.maochen.nlp.ml.vector.FeatDictionary;
+import org.maochen.nlp.ml.vector.FeatIdVector;
+import org.maochen.nlp.ml.vector.FeatNamedVector;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class NERFeatureExtractorTest {
+
+    private static String[] MOCK_TOKENS = new String[]{
+            "Shares", "of", "IBM", "rose", "2.5%", "in", "1998"
+    };
+
+    private static String[] MOCK_TAGS = new String[]{
+            "O", "O", "B-ORG", "O", "O", "O", "B-DATE"
+    };
+
+    @Test
+    public void testExtractFeatIds() {
+        Map<Integer, List<String>> feats = new HashMap<>();
+        feats.put(0, Arrays.asList(MOCK_TOKENS));
+        SequenceTuple st = new SequenceTuple(feats, Arrays.asList(MOCK_TAGS));
+
+        NERFeatureExtractor extractor = new NERFeatureExtractor();
+        List<Tuple> expected = extractor.extractFeat(st);
+
+        // Frozen dictionary of the string feats, so the ids are also looked up.
+        FeatDictionary dictionary = new FeatDictionary();
+        extractor.extractFeat(st, dictionary);
+        dictionary.freeze();
+        List<Tuple> actual = extractor.extractFeat(st, dictionary);
+
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).label, actual.get(i).label);
+
+            // The string feats through the same dictionary, repeated ones are summed.
+            int[] ids = Arrays.stream(((FeatNamedVector) expected.get(i).vector).featsName).mapToInt(dictionary::getId).toArray();
+            FeatIdVector expectedIds = new FeatIdVector(dictionary, ids, ids.length);
+            FeatIdVector actualIds = (FeatIdVector) actual.get(i).vector;
+            assertArrayEquals(expectedIds.getIndices(), actualIds.getIndices());
+            assertArrayEquals(expectedIds.getValues(), actualIds.getValues(), 0);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.maochen.nlp.ml.classifier;
+
+import org.junit.Test;
+import org.maochen.nlp.ml.vector.FeatNamedVector;
+import org.maochen.nlp.ml.vector.SparseVector;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class HashingFeatureIndexerTest {
+
+    @Test
+    public void testProcess() {
+        HashingFeatureIndexer indexer = new HashingFeatureIndexer(10);
+        List<SparseVector> vectors = indexer.process(Arrays.asList(
+                new FeatNamedVector(new String[]{"w0=the", "pos=DT"}),
+                new FeatNamedVector(new String[]{"w0=cat", "pos=NN", "suffix=at"})));
+
+        assertEquals(2, vectors.size());
+        assertEquals(1024, vectors.get(0).size());
+        assertEquals(2, vectors.get(0).nnz());
+        assertEquals(3, vectors.get(1).nnz());
+
+        int index = indexer.getIndex("pos=DT");
+        assertEquals(1, Math.abs(vectors.get(0).get(index)), Double.MIN_VALUE);
+        assertEquals(vectors.get(0), indexer.transform(new FeatNamedVector(new String[]{"pos=DT", "w0=the"})));
+    }
+}
@@ -8,8 +8,11 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 
@@ -70,8 +73,7 @@ public class HMMTest {
         assertEquals(1.0, model.transition.get("DT", "NN"), Double.MIN_NORMAL);
     }
 
-    @Test
-    public void testViterbi() {
+    private static HMMModel fishSleepModel() {
         HMMModel model = new HMMModel();
         model.emission.put("fish", "NN", 0.8);
         model.emission.put("sleep", "NN", 0.2);
@@ -91,12 +93,135 @@ public class HMMTest {
         model.transition.put("VB", HMM.END, 0.7);
         model.transition.put("VB", "VB", 0.1);
         model.transition.put("VB", "NN", 0.2);
+        return model;
+    }
 
+    @Test
+    public void testViterbi() {
+        HMMModel model = fishSleepModel();
         List<String> result = Viterbi.resolve(model, new String[]{"fish", "sleep"});
         List<String> expected = Lists.newArrayList("NN", "VB");
         assertEquals(result, expected);
     }
 
+    @Test
+    public void testCompiledViterbi() {
+        HMMModel model = fishSleepModel();
+        CompiledHMMModel compiled = HMM.compile(model);
+
+        assertEquals(HMM.START, compiled.getTag(0));
+        assertEquals(HMM.END, compiled.getTag(compiled.getTags().length - 1));
+        List<String> tags = Arrays.asList(compiled.getTags());
+        int nn = tags.indexOf("NN");
+        int vb = tags.indexOf("VB");
+        assertEquals(Math.log(0.8), compiled.logTransition[nn * compiled.numTags + vb], 1e-12);
+        assertEquals(Double.NEGATIVE_INFINITY, compiled.logTransition[nn * compiled.numTags], 0);
+
+        assertEquals(Lists.newArrayList("NN", "VB"), HMM.viterbi(compiled, new String[]{"fish", "sleep"}));
+        assertTrue(HMM.viterbi(compiled, new String[]{}).isEmpty());
+    }
+
+    @Test
+    public void testNoEndEmission() {
+        HMMModel model = fishSleepModel();
+        model.emission.remove(HMM.END, HMM.END);
+        String[] words = {"fish", "sleep"};
+
+        // <END> can't be reached, the path restarts from the best tag of the last word.
+        assertEquals(Lists.newArrayList("NN", "VB"), HMM.viterbi(HMM.compile(model), words));
+        assertEquals(Lists.newArrayList("NN", "VB"), HMM.viterbi(model, words));
+    }
+
+    @Test
+    public void testWriteReadBinaryModel() throws IOException {
+        HMMModel model = fishSleepModel();
+        model.emissionMin.put("NN", 0.2);
+        model.emissionMin.put("VB", 0.5);
+        CompiledHMMModel compiled = HMM.compile(model);
+
+        Path tempDir = Files.createTempDirectory("HMMModelTest");
+        String path = tempDir.toAbsolutePath().toString() + "/hmm_model.bin";
+        HMM.saveBinaryModel(path, compiled);
+        CompiledHMMModel newModel = HMM.loadBinaryModel(path);
+        assertNotNull(newModel);
+
+        assertArrayEquals(compiled.getTags(), newModel.getTags());
+        assertArrayEquals(compiled.logTransition, newModel.logTransition, 0);
+        assertArrayEquals(compiled.logEmission, newModel.logEmission, 0);
+        assertArrayEquals(compiled.logEmissionMin, newModel.logEmissionMin, 0);
+        String[] words = {"fish", "fish", "swim", "sleep"};
+        assertEquals(HMM.viterbi(compiled, words), HMM.viterbi(newModel, words));
+        assertEquals(4, HMM.viterbi(newModel, words).size());
+    }
+
+    // After "a" greedy keeps X, 0.6 * 0.5 against 0.4 * 0.5, the best path goes through Y.
+    private static HMMModel greedyTrapModel() {
+        HMMModel model = new HMMModel();
+        for (String word : new String[]{"a", "b"}) {
+            model.emission.put(word, "X", 0.5);
+            model.emission.put(word, "Y", 0.5);
+        }
+        model.emission.put(HMM.END, HMM.END, 1.0);
+
+        model.transition.put(HMM.START, "X", 0.6);
+        model.transition.put(HMM.START, "Y", 0.4);
+        model.transition.put("X", "X", 0.1);
+        model.transition.put("X", "Y", 0.2);
+        model.transition.put("Y", "X", 0.1);
+        model.transition.put("Y", "Y", 0.9);
+        model.transition.put("X", HMM.END, 1.0);
+        model.transition.put("Y", HMM.END, 1.0);
+        return model;
+    }
+
+    @Test
+    public void testBeam() {
+        CompiledHMMModel compiled = HMM.compile(greedyTrapModel());
+        String[] words = {"a", "b"};
+
+        assertEquals(Lists.newArrayList("Y", "Y"), HMM.viterbi(compiled, words));
+        assertEquals(Lists.newArrayList("Y", "Y"), HMM.viterbi(compiled, words, 2, Double.POSITIVE_INFINITY));
+        // Width 1 is greedy: X, then the best successor of X.
+        assertEquals(Lists.newArrayList("X", "Y"), HMM.viterbi(compiled, words, 1, Double.POSITIVE_INFINITY));
+
+        // Y is log(0.3 / 0.2) = 0.405 below X after "a".
+        assertEquals(Lists.newArrayList("X", "Y"), HMM.viterbi(compiled, words, 0, 0.1));
+        assertEquals(Lists.newArrayList("Y", "Y"), HMM.viterbi(compiled, words, 0, 1));
+    }
+
+    @Test
+    public void testBeamTies() {
+        HMMModel model = new HMMModel();
+        for (String tag : new String[]{"A", "B", "C", "D"}) {
+            model.emission.put("a", tag, 1.0);
+            model.transition.put(HMM.START, tag, 0.25);
+            model.transition.put(tag, HMM.END, 1.0);
+        }
+        model.emission.put("b", "D", 1.0);
+        model.emission.put(HMM.END, HMM.END, 1.0);
+        model.transition.put("A", "D", 0.1);
+        model.transition.put("D", "D", 0.9);
+        CompiledHMMModel compiled = HMM.compile(model);
+        String[] words = {"a", "b"};
+
+        assertEquals(Lists.newArrayList("D", "D"), HMM.viterbi(compiled, words));
+        // All four tie after "a", the first ones by tag index are kept, D only with the full width.
+        assertEquals(Lists.newArrayList("A", "D"), HMM.viterbi(compiled, words, 1, Double.POSITIVE_INFINITY));
+        assertEquals(Lists.newArrayList("A", "D"), HMM.viterbi(compiled, words, 3, Double.POSITIVE_INFINITY));
+        assertEquals(Lists.newArrayList("D", "D"), HMM.viterbi(compiled, words, 4, Double.POSITIVE_INFINITY));
+    }
+
+    @Test
+    public void testIsPunct() {
+        Pattern punct = Pattern.compile("\\p{Punct}+");
+        for (char c = 0; c < 256; c++) {
+            String str = "a" + c;
+            assertEquals(str, punct.matcher(str).find(), CompiledHMMModel.isPunct(str));
+        }
+        assertFalse(CompiledHMMModel.isPunct("\u00e9t\u00e9"));
+        assertTrue(CompiledHMMModel.isPunct("PRP$"));
+    }
+
     @Test
     public void testEnd2end() {
         String trainingFile = HMMTest.class.getResource("/brown_masc_pos/training.pos").getPath();
@@ -113,6 +238,27 @@ public class HMMTest {
         String[] predictions = HMM.viterbi(model, str.split("\\s")).stream().toArray(String[]::new);
         String[] expected = new String[]{"DT", "JJ", "NN", "NN", "VBD", "IN", "DT", "JJ", "NN", "."};
         assertEquals(Arrays.toString(expected), Arrays.toString(predictions));
+
+        CompiledHMMModel compiled = HMM.compile(model);
+        assertEquals(Arrays.asList(expected), HMM.viterbi(compiled, str.split("\\s")));
+        Map<String, Double> compiledResult = HMM.eval(compiled, devFile, "\t", 0, 1, false);
+        assertEquals(0.8896, compiledResult.get("accuracy"), 0.001);
+
+        String[] words = str.split("\\s");
+        assertEquals(Arrays.asList(expected), HMM.viterbi(compiled, words, 5, 20));
+        assertEquals(words.length, HMM.viterbi(compiled, words, 1, Double.POSITIVE_INFINITY).size());
+        assertEquals(words.length, HMM.viterbi(compiled, words, 0, 0).size());
+
+        int[] tags = new int[words.length];
+        Viterbi.resolve(compiled, words, 0, Double.POSITIVE_INFINITY, tags);
+        assertEquals(Arrays.asList(expected), Arrays.stream(tags).mapToObj(compiled::getTag).collect(Collectors.toList()));
+
+        // Probability of the path underflows a double long before 1000 words.
+        String[] longSentence = String.join(" ", Collections.nCopies(100, str)).split("\\s");
+        List<String> longResult = HMM.viterbi(compiled, longSentence);
+        assertEquals(longSentence.length, longResult.size());
+        assertEquals(Arrays.asList(expected), longResult.subList(longResult.size() - expected.length, longResult.size()));
+        assertEquals(longResult, HMM.viterbi(model, longSentence));
     }
 
 }
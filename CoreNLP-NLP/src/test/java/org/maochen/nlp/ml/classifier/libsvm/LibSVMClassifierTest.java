@@ -1,21 +1,36 @@
 package org.maochen.nlp.ml.classifier.libsvm;
 
 import com.google.common.collect.Lists;
+import libsvm.svm;
+import libsvm.svm_model;
+import libsvm.svm_node;
+import libsvm.svm_parameter;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 import org.maochen.nlp.ml.Tuple;
 import org.maochen.nlp.ml.classifier.LabelIndexer;
 import org.maochen.nlp.ml.util.dataio.CSVDataReader;
+import org.maochen.nlp.ml.vector.SparseVector;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Field;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
@@ -84,4 +99,203 @@ public class LibSVMClassifierTest {
 
         assertEquals(0.89, precision, 0.15);
     }
+
+    @Test
+    public void testModelEntry() throws Exception {
+        InputStream trainIs = this.getClass().getResourceAsStream("/training_data/student_exam_data.txt");
+        List<Tuple> trainingData = new CSVDataReader(null, -1, ",", null).read(trainIs);
+
+        LibSVMClassifier libSVMClassifier = new LibSVMClassifier();
+        libSVMClassifier.para = libSVMClassifier.getDefaultPara();
+        libSVMClassifier.para.kernel_type = svm_parameter.RBF;
+        libSVMClassifier.train(trainingData);
+
+        Path tempFile = Files.createTempFile(null, null);
+        libSVMClassifier.persistModel(tempFile.toString());
+
+        // The entry streamed into the zip is the same as the file written by libsvm.
+        Path svmFile = Files.createTempFile(null, null);
+        svm.svm_save_model(svmFile.toString(), (svm_model) getField(libSVMClassifier, "model"));
+        String expected = new String(Files.readAllBytes(svmFile), Charset.defaultCharset());
+        try (ZipFile zipFile = new ZipFile(tempFile.toFile())) {
+            ZipEntry entry = zipFile.getEntry(tempFile.getFileName() + ".model");
+            assertEquals(expected, IOUtils.toString(zipFile.getInputStream(entry), Charset.defaultCharset()));
+        }
+
+        LibSVMClassifier loaded = new LibSVMClassifier();
+        loaded.loadModel(Files.newInputStream(tempFile));
+        for (Tuple tuple : trainingData.subList(0, 10)) {
+            Map<String, Double> expectedProb = libSVMClassifier.predict(tuple);
+            Map<String, Double> actualProb = loaded.predict(tuple);
+            for (String label : expectedProb.keySet()) {
+                assertEquals(expectedProb.get(label), actualProb.get(label), 1e-9);
+            }
+        }
+
+        Files.delete(tempFile);
+        Files.delete(svmFile);
+    }
+
+    private static svm_node[] toNodes(double[] values) {
+        return IntStream.range(0, values.length).filter(i -> values[i] != 0).mapToObj(i -> {
+            svm_node node = new svm_node();
+            node.index = i;
+            node.value = values[i];
+            return node;
+        }).toArray(svm_node[]::new);
+    }
+
+    private static List<Tuple> getThreeClassData() {
+        Random random = new Random(7);
+        List<Tuple> data = new ArrayList<>();
+        for (int i = 0; i < 90; i++) {
+            int label = i % 3;
+            double[] values = new double[6];
+            values[label] = 1 + random.nextDouble();
+            values[3 + random.nextInt(3)] = random.nextGaussian(); // Sparse noise.
+            SparseVector vector = new SparseVector();
+            vector.setVector(values);
+            data.add(new Tuple(i, vector, "c" + label));
+        }
+        return data;
+    }
+
+    @Test
+    public void testLinearPrimal() throws Exception {
+        List<Tuple> threeClass = getThreeClassData();
+
+        InputStream trainIs = this.getClass().getResourceAsStream("/training_data/student_exam_data.txt");
+        List<Tuple> twoClass = new CSVDataReader(null, -1, ",", null).read(trainIs);
+
+        for (List<Tuple> trainingData : Arrays.asList(threeClass, twoClass)) {
+            LibSVMClassifier libSVMClassifier = new LibSVMClassifier();
+            libSVMClassifier.train(trainingData);
+            assertNotNull(getField(libSVMClassifier, "linearPredictor"));
+
+            svm_model model = (svm_model) getField(libSVMClassifier, "model");
+            LinearSVMPredictor linear = new LinearSVMPredictor(model);
+            int pairs = model.nr_class * (model.nr_class - 1) / 2;
+
+            for (Tuple tuple : trainingData) {
+                svm_node[] nodes = toNodes(tuple.vector.getVector());
+
+                double[] expected = new double[pairs];
+                double[] actual = new double[pairs];
+                svm.svm_predict_values(model, nodes, expected);
+                linear.decisionValues(tuple.vector, actual);
+                assertArrayEquals(expected, actual, 1e-6); // Summation order differs, large coefs cancel out.
+
+                expected = new double[model.nr_class];
+                actual = new double[model.nr_class];
+                svm.svm_predict_probability(model, nodes, expected);
+                linear.probability(tuple.vector, actual);
+                assertArrayEquals(expected, actual, 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void testPairwiseTraining() throws Exception {
+        List<Tuple> trainingData = getThreeClassData();
+
+        LibSVMClassifier serial = new LibSVMClassifier();
+        serial.para = serial.getDefaultPara();
+        serial.para.kernel_type = svm_parameter.RBF;
+        serial.train(trainingData);
+
+        Properties props = new Properties();
+        props.setProperty("threads", "3");
+        LibSVMClassifier parallel = new LibSVMClassifier();
+        parallel.setParameter(props);
+        parallel.para = serial.para;
+        parallel.train(trainingData);
+
+        // Same model as libsvm, only the probability params depend on its random cross validation.
+        svm_model expected = (svm_model) getField(serial, "model");
+        svm_model actual = (svm_model) getField(parallel, "model");
+        assertArrayEquals(expected.label, actual.label);
+        assertArrayEquals(expected.nSV, actual.nSV);
+        assertArrayEquals(expected.sv_indices, actual.sv_indices);
+        assertArrayEquals(expected.rho, actual.rho, 1e-9);
+        for (int i = 0; i < expected.sv_coef.length; i++) {
+            assertArrayEquals(expected.sv_coef[i], actual.sv_coef[i], 1e-9);
+        }
+
+        for (Tuple tuple : trainingData) {
+            svm_node[] nodes = toNodes(tuple.vector.getVector());
+            double[] expectedDec = new double[3];
+            double[] actualDec = new double[3];
+            svm.svm_predict_values(expected, nodes, expectedDec);
+            svm.svm_predict_values(actual, nodes, actualDec);
+            assertArrayEquals(expectedDec, actualDec, 1e-9);
+        }
+    }
+
+    @Test
+    public void testPredictBatch() throws Exception {
+        List<Tuple> trainingData = getThreeClassData();
+
+        for (int kernel : new int[]{svm_parameter.LINEAR, svm_parameter.RBF, svm_parameter.POLY}) {
+            LibSVMClassifier libSVMClassifier = new LibSVMClassifier();
+            libSVMClassifier.para = libSVMClassifier.getDefaultPara();
+            libSVMClassifier.para.kernel_type = kernel;
+            libSVMClassifier.para.degree = 2;
+            libSVMClassifier.para.coef0 = 1;
+            libSVMClassifier.train(trainingData);
+            assertNotNull(getField(libSVMClassifier, kernel == svm_parameter.LINEAR ? "linearPredictor" : "kernelPredictor"));
+
+            double[][] actual = new double[trainingData.size()][3];
+            libSVMClassifier.predictBatch(trainingData, actual);
+            for (int i = 0; i < trainingData.size(); i++) {
+                double[] expected = new double[3];
+                libSVMClassifier.predictInto(trainingData.get(i), expected);
+                assertArrayEquals(expected, actual[i], 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testPredictInto() throws Exception {
+        List<Tuple> trainingData = getThreeClassData();
+
+        for (int kernel : new int[]{svm_parameter.LINEAR, svm_parameter.RBF, svm_parameter.POLY}) {
+            LibSVMClassifier libSVMClassifier = new LibSVMClassifier();
+            libSVMClassifier.para = libSVMClassifier.getDefaultPara();
+            libSVMClassifier.para.kernel_type = kernel;
+            libSVMClassifier.para.degree = 2;
+            libSVMClassifier.para.coef0 = 1;
+            libSVMClassifier.train(trainingData);
+
+            svm_model model = (svm_model) getField(libSVMClassifier, "model");
+            int[] svmLabels = new int[3];
+            svm.svm_get_labels(model, svmLabels);
+            String[] labels = libSVMClassifier.getLabels();
+
+            // Same as libsvm, whether the tuple goes through the primal weights, the kernel predictor or the nodes.
+            for (boolean plain : new boolean[]{false, true}) {
+                if (plain) {
+                    Field field = LibSVMClassifier.class.getDeclaredField(kernel == svm_parameter.LINEAR ? "linearPredictor" : "kernelPredictor");
+                    field.setAccessible(true);
+                    field.set(libSVMClassifier, null);
+                }
+
+                for (Tuple tuple : trainingData) {
+                    double[] probs = new double[3];
+                    svm.svm_predict_probability(model, toNodes(tuple.vector.getVector()), probs);
+                    double[] expected = new double[3];
+                    for (int i = 0; i < 3; i++) {
+                        expected[svmLabels[i]] = probs[i];
+                    }
+
+                    double[] actual = new double[3];
+                    libSVMClassifier.predictInto(tuple, actual);
+                    assertArrayEquals(expected, actual, 1e-9);
+
+                    Map<String, Double> predict = libSVMClassifier.predict(tuple);
+                    String best = predict.entrySet().stream().max(Map.Entry.comparingByValue()).map(Map.Entry::getKey).orElse(null);
+                    assertEquals(best, labels[libSVMClassifier.predictArgmax(tuple)]);
+                }
+            }
+        }
+    }
 }
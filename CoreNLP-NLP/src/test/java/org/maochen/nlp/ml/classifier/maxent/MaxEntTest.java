@@ -1,13 +1,34 @@
 package org.maochen.nlp.ml.classifier.maxent;
 
+import opennlp.maxent.GISModel;
+import opennlp.model.Context;
+
 import org.junit.Test;
+import org.maochen.nlp.ml.Tuple;
+import org.maochen.nlp.ml.util.ModelContainer;
+import org.maochen.nlp.ml.vector.DenseVector;
+import org.maochen.nlp.ml.vector.FeatDictionary;
+import org.maochen.nlp.ml.vector.FeatIdVector;
+import org.maochen.nlp.ml.vector.FeatNamedVector;
+import org.maochen.nlp.ml.vector.IVector;
+import org.maochen.nlp.ml.vector.SparseVector;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -135,6 +156,13 @@ public class MaxEntTest {
         MaxEntClassifier maxent = new MaxEntClassifier();
         maxent.trainString(traindata);
 
+        List<IterationStats> stats = maxent.getIterationStats();
+        assertTrue(stats.size() > 1);
+        for (int i = 1; i < stats.size(); i++) {
+            assertEquals(i + 1, stats.get(i).getIteration());
+            assertTrue(stats.get(i).getLogLikelihood() >= stats.get(i - 1).getLogLikelihood());
+        }
+
         List<String[]> predictData = new ArrayList<>();
 
         predictData.add(new String[]{"home", "pdiff=0.6875", "ptwins=0.5"});
@@ -171,4 +199,229 @@ public class MaxEntTest {
             }
         }
     }
+
+    @Test
+    public void testQuasiNewton() throws Exception {
+        List<String[]> traindata = new ArrayList<>();
+        for (int i = 0; i < 10; i++) { // j0 and j1 don't tell the labels apart.
+            traindata.add(new String[]{"sunny", "noise", "j" + (i % 2), "out"});
+            traindata.add(new String[]{"rain", "noise", "j" + (i % 2), "in"});
+            traindata.add(new String[]{"snow", "noise", "j" + (i % 2), "in"});
+        }
+
+        for (String algorithm : new String[]{"lbfgs", "owlqn"}) {
+            Properties props = new Properties();
+            props.setProperty("algorithm", algorithm);
+            props.setProperty("l1", "0.1");
+            props.setProperty("l2", "0.1");
+
+            MaxEntClassifier maxent = new MaxEntClassifier();
+            maxent.setParameter(props);
+            maxent.trainString(traindata);
+            assertFalse(maxent.getIterationStats().isEmpty());
+            assertTrue(maxent.getIterationStats().stream().allMatch(stats -> stats instanceof QNIterationStats));
+
+            // Only the non-zero params are kept: all 6 preds x 2 outcomes with l2, the l1 penalty zeroes some.
+            Field field = MaxEntClassifier.class.getDeclaredField("model");
+            field.setAccessible(true);
+            Context[] params = (Context[]) ((GISModel) field.get(maxent)).getDataStructures()[0];
+            int nonZero = Arrays.stream(params).mapToInt(context -> context.getParameters().length).sum();
+            if (algorithm.equals("lbfgs")) {
+                assertEquals(12, nonZero);
+            } else {
+                assertTrue(nonZero < 12);
+            }
+
+            Map<String, Double> actual = maxent.predict(new String[]{"sunny", "noise=1"});
+            assertEquals(1, actual.values().stream().mapToDouble(Double::doubleValue).sum(), 1e-9);
+            assertTrue(actual.get("out") > 0.9);
+            assertTrue(maxent.predict(new String[]{"rain", "noise=1"}).get("in") > 0.9);
+        }
+    }
+
+    @Test
+    public void testTrainFile() throws IOException {
+        List<String[]> traindata = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String label = i % 7 == 0 ? "b" : (i % 3 == 0 ? "a" : "b");
+            traindata.add(new String[]{"x" + (i % 3), "y" + (i % 5) + "=0.5", "z=" + (i % 4), label});
+        }
+
+        File eventFile = File.createTempFile("maxent_events", ".txt");
+        eventFile.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(eventFile, "UTF-8")) {
+            traindata.forEach(event -> writer.println(String.join(" ", event)));
+        }
+
+        MaxEntClassifier expected = new MaxEntClassifier();
+        expected.trainString(traindata);
+
+        Properties props = new Properties();
+        props.setProperty("run_size", "7"); // Many runs to merge.
+        MaxEntClassifier actual = new MaxEntClassifier();
+        actual.setParameter(props);
+        actual.trainFile(eventFile.getPath());
+
+        for (String[] predict : new String[][]{{"x0", "y1=0.5", "z=2"}, {"x1", "y3=0.5", "z=0"}}) {
+            Map<String, Double> expectedProb = expected.predict(predict.clone());
+            Map<String, Double> actualProb = actual.predict(predict.clone());
+            for (String k : expectedProb.keySet()) {
+                assertEquals(expectedProb.get(k), actualProb.get(k), 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void testCompiledModel() {
+        String[] outcomes = new String[]{"a", "b", "c"};
+        String[] preds = new String[]{"p0", "p1", "p2"};
+        Context[] dense = new Context[]{
+                new Context(new int[]{0, 1, 2}, new double[]{0.5, -1, 2}),
+                new Context(new int[]{0, 1, 2}, new double[]{1, 0.25, -0.5}),
+                new Context(new int[]{0, 1, 2}, new double[]{-2, 3, 0.1})};
+        Context[] sparse = new Context[]{
+                new Context(new int[]{0, 2}, new double[]{0.5, 2}),
+                new Context(new int[]{1}, new double[]{0.25}),
+                new Context(new int[]{0, 1, 2}, new double[]{-2, 3, 0.1})};
+
+        String[] feats = new String[]{"p2", "unknown", "p0", "p1"};
+        float[] vals = new float[]{0.5f, 3, 1, 2};
+        for (Context[] params : new Context[][]{dense, sparse}) {
+            GISModel model = new GISModel(params, preds, outcomes, 1, 0);
+            CompiledMaxEntModel compiled = new CompiledMaxEntModel(model);
+
+            double[] expected = model.eval(feats, vals);
+            double[] actual = new double[outcomes.length];
+            compiled.eval(feats, vals, actual);
+            assertArrayEquals(expected, actual, 1e-12);
+
+            compiled.eval(feats, (float[]) null, actual);
+            assertArrayEquals(model.eval(feats), actual, 1e-12);
+            assertEquals(-1, compiled.getIndex("unknown"));
+        }
+    }
+
+    @Test
+    public void testEvalBatch() {
+        String[] outcomes = new String[]{"a", "b", "c"};
+        String[] preds = new String[]{"2", "x", "0", "01"}; // Only 2 and 0 are positional.
+        Context[] dense = new Context[]{
+                new Context(new int[]{0, 1, 2}, new double[]{0.5, -1, 2}),
+                new Context(new int[]{0, 1, 2}, new double[]{1, 0.25, -0.5}),
+                new Context(new int[]{0, 1, 2}, new double[]{-2, 3, 0.1}),
+                new Context(new int[]{0, 1, 2}, new double[]{4, 4, 4})};
+        Context[] sparse = new Context[]{
+                new Context(new int[]{0, 2}, new double[]{0.5, 2}),
+                new Context(new int[]{1}, new double[]{0.25}),
+                new Context(new int[]{0, 1, 2}, new double[]{-2, 3, 0.1}),
+                new Context(new int[]{1}, new double[]{4})};
+
+        double[][] inputs = new double[][]{{1, 0.5, 2}, {0, 3, 0}, {0.25, 0, -1, 7}, {}};
+        for (Context[] params : new Context[][]{dense, sparse}) {
+            CompiledMaxEntModel compiled = new CompiledMaxEntModel(new GISModel(params, preds, outcomes, 2, 0));
+            double[][] actual = new double[inputs.length][outcomes.length];
+            compiled.evalBatch(inputs, actual);
+
+            for (int i = 0; i < inputs.length; i++) {
+                List<String> feats = new ArrayList<>();
+                List<Double> vals = new ArrayList<>();
+                for (int c = 0; c < inputs[i].length; c++) {
+                    if (inputs[i][c] != 0) {
+                        feats.add(String.valueOf(c));
+                        vals.add(inputs[i][c]);
+                    }
+                }
+                double[] expected = new double[outcomes.length];
+                compiled.eval(feats.toArray(new String[0]), vals.stream().mapToDouble(Double::doubleValue).toArray(), expected);
+                assertArrayEquals(expected, actual[i], 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testBinaryModel() throws IOException {
+        List<String[]> traindata = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            String label = i % 3 == 0 ? "a" : (i % 3 == 1 ? "b" : "c");
+            traindata.add(new String[]{"x" + (i % 3), "y" + (i % 4) + "=0.5", label});
+        }
+        MaxEntClassifier maxent = new MaxEntClassifier();
+        maxent.trainString(traindata);
+
+        File binaryFile = File.createTempFile("maxent_model", ".bin");
+        binaryFile.deleteOnExit();
+        maxent.persistBinaryModel(binaryFile.getPath());
+
+        MaxEntClassifier binary = new MaxEntClassifier();
+        binary.loadBinaryModel(binaryFile.getPath());
+        assertArrayEquals(maxent.getLabels(), binary.getLabels());
+
+        // Text model from the binary one.
+        File textFile = File.createTempFile("maxent_model", ".txt");
+        textFile.deleteOnExit();
+        binary.persistModel(textFile.getPath());
+        MaxEntClassifier text = new MaxEntClassifier();
+        text.loadModel(new FileInputStream(textFile));
+
+        for (String[] predict : new String[][]{{"x0", "y1=0.5"}, {"x2", "y3=0.5", "unknown=1"}}) {
+            Map<String, Double> expected = maxent.predict(predict.clone());
+            for (MaxEntClassifier actual : new MaxEntClassifier[]{binary, text}) {
+                Map<String, Double> actualProb = actual.predict(predict.clone());
+                for (String k : expected.keySet()) {
+                    assertEquals(expected.get(k), actualProb.get(k), 1e-12);
+                }
+            }
+        }
+
+        // Sparse params.
+        GISModel model = new GISModel(new Context[]{new Context(new int[]{0, 2}, new double[]{0.5, 2}),
+                new Context(new int[]{1}, new double[]{0.25})}, new String[]{"p0", "p1"}, new String[]{"a", "b", "c"}, 1, 0);
+        ModelContainer.Writer writer = new ModelContainer.Writer(CompiledMaxEntModel.MODEL_TYPE);
+        new CompiledMaxEntModel(model).write(writer);
+        writer.write(binaryFile.getPath());
+        CompiledMaxEntModel compiled = new CompiledMaxEntModel(ModelContainer.open(binaryFile.getPath(), CompiledMaxEntModel.MODEL_TYPE));
+
+        String[] feats = new String[]{"p1", "p0"};
+        double[] actual = new double[3];
+        compiled.eval(feats, new float[]{2, 1}, actual);
+        assertArrayEquals(model.eval(feats, new float[]{2, 1}), actual, 1e-12);
+    }
+
+    @Test
+    public void testPredictInto() {
+        Random random = new Random(3);
+        List<Tuple> traindata = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            double[] values = new double[]{0.1 + random.nextDouble(), 0.1 + random.nextDouble(), 0.1 + random.nextDouble()};
+            values[i % 3] += 1;
+            traindata.add(new Tuple(i, new DenseVector(values), "c" + (i % 3)));
+        }
+        MaxEntClassifier maxent = new MaxEntClassifier();
+        maxent.train(traindata);
+
+        String[] labels = maxent.getLabels();
+        String[] names = new String[]{"0", "1", "2"};
+        FeatDictionary dictionary = new FeatDictionary(names);
+        for (Tuple t : traindata.subList(0, 10)) {
+            double[] values = t.vector.getVector();
+            Map<String, Double> expected = maxent.predict(t);
+            String best = expected.entrySet().stream().max(Map.Entry.comparingByValue()).map(Map.Entry::getKey).orElse(null);
+
+            // Positional, named and id feats of the same columns.
+            SparseVector sparse = new SparseVector();
+            sparse.setVector(values);
+            FeatNamedVector named = new FeatNamedVector(values.clone());
+            named.featsName = names;
+            FeatIdVector ids = new FeatIdVector(dictionary, new int[]{0, 1, 2}, values.clone());
+            for (IVector vector : new IVector[]{t.vector, sparse, named, ids}) {
+                Tuple predict = new Tuple(vector);
+                double[] actual = new double[labels.length];
+                maxent.predictInto(predict, actual);
+                for (int i = 0; i < labels.length; i++) {
+                    assertEquals(expected.get(labels[i]), actual[i], 1e-12);
+                }
+                assertEquals(best, labels[maxent.predictArgmax(predict)]);
+            }
+        }
+    }
 }
@@ -2,11 +2,18 @@ package org.maochen.nlp.ml.classifier.naivebayes;
 
 import org.junit.Test;
 import org.maochen.nlp.ml.IClassifier;
+import org.maochen.nlp.ml.TrainingMatrix;
 import org.maochen.nlp.ml.Tuple;
 import org.maochen.nlp.ml.vector.DenseVector;
+import org.maochen.nlp.ml.vector.SparseVector;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.*;
+import java.util.stream.IntStream;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 /**
@@ -16,8 +23,7 @@ public class NaiveBayesTest {
 
     private IClassifier nbc = new NaiveBayesClassifier();
 
-    @Test
-    public void test() {
+    private List<Tuple> getTrainingData() {
         List<Tuple> trainingData = new ArrayList<>();
         trainingData.add(new Tuple(1, new DenseVector(new double[]{6, 180, 12}), "male"));
         trainingData.add(new Tuple(2, new DenseVector(new double[]{5.92, 190, 11}), "male"));
@@ -27,6 +33,12 @@ public class NaiveBayesTest {
         trainingData.add(new Tuple(6, new DenseVector(new double[]{5.5, 150, 8}), "female"));
         trainingData.add(new Tuple(7, new DenseVector(new double[]{5.42, 130, 7}), "female"));
         trainingData.add(new Tuple(8, new DenseVector(new double[]{5.75, 150, 9}), "female"));
+        return trainingData;
+    }
+
+    @Test
+    public void test() {
+        List<Tuple> trainingData = getTrainingData();
 
         Tuple predict = new Tuple(new double[]{6, 130, 8});
 
@@ -40,13 +52,174 @@ public class NaiveBayesTest {
         Comparator<Map.Entry<String, Double>> reverseCmp = Collections.reverseOrder(Comparator.comparing(Map.Entry::getValue));
         probs.entrySet().stream().sorted(reverseCmp).forEach(result::add);
 
+        // Posterior is computed in log space with log-sum-exp, it may differ from the direct product in the last bits.
         assertEquals(2, result.size());
         for (Map.Entry<String, Double> entry : result) {
             if ("male".equals(entry.getKey())) {
-                assertEquals(1.1523066349783823E-5, entry.getValue(), Double.MIN_VALUE);
+                assertEquals(1.1523066349783823E-5, entry.getValue(), 1e-12);
             } else {
-                assertEquals(0.9999884769336502, entry.getValue(), Double.MIN_VALUE);
+                assertEquals(0.9999884769336502, entry.getValue(), 1e-12);
             }
         }
     }
+
+    @Test
+    public void testTrainingMatrix() {
+        Tuple predict = new Tuple(new double[]{6, 130, 8});
+        Map<String, Double> expected = nbc.train(getTrainingData()).predict(predict);
+
+        IClassifier matrixNbc = new NaiveBayesClassifier().train(TrainingMatrix.fromTuples(getTrainingData()));
+        Map<String, Double> actual = matrixNbc.predict(predict);
+
+        assertEquals(expected.size(), actual.size());
+        for (Map.Entry<String, Double> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), actual.get(entry.getKey()), 1e-9);
+        }
+    }
+
+    @Test
+    public void testPredictInto() {
+        nbc.train(getTrainingData());
+        Tuple predict = new Tuple(new double[]{6, 130, 8});
+        Map<String, Double> expected = nbc.predict(predict);
+
+        String[] labels = nbc.getLabels();
+        double[][] scores = new double[1][labels.length];
+        nbc.predictBatch(Collections.singletonList(predict), scores);
+        for (int i = 0; i < labels.length; i++) {
+            assertEquals(expected.get(labels[i]), scores[0][i], Double.MIN_VALUE);
+        }
+
+        assertEquals("female", labels[nbc.predictArgmax(predict)]);
+    }
+
+    @Test
+    public void testLongVector() {
+        int dimension = 2000;
+        Random random = new Random(7);
+        List<Tuple> trainingData = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            double[] v = new double[dimension];
+            for (int j = 0; j < dimension; j++) {
+                v[j] = random.nextGaussian() + (i % 2 == 0 ? 1 : -1);
+            }
+            trainingData.add(new Tuple(i, new DenseVector(v), i % 2 == 0 ? "pos" : "neg"));
+        }
+        nbc.train(trainingData);
+
+        double[] v = new double[dimension];
+        Arrays.fill(v, 0.8);
+        Map<String, Double> probs = nbc.predict(new Tuple(v)); // Product of the pdfs underflows to 0 here.
+
+        assertEquals(1, probs.get("pos") + probs.get("neg"), 1e-12);
+        assertEquals(1, probs.get("pos"), 1e-9);
+    }
+
+    @Test
+    public void testMergeStatistics() {
+        List<Tuple> data = getTrainingData();
+        NBStatistics all = new NBStatistics(2, 3);
+        NBStatistics first = new NBStatistics(2, 3);
+        NBStatistics second = new NBStatistics(2, 3);
+        for (int i = 0; i < data.size(); i++) {
+            int label = "male".equals(data.get(i).label) ? 0 : 1;
+            all.add(label, data.get(i).vector);
+            (i < 5 ? first : second).add(label, data.get(i).vector);
+        }
+        first.merge(second);
+        all.flush();
+
+        assertArrayEquals(all.count, first.count);
+        for (int l = 0; l < 2; l++) {
+            assertArrayEquals(all.mean[l], first.mean[l], 1e-9);
+            assertArrayEquals(all.m2[l], first.m2[l], 1e-9);
+        }
+        assertEquals(176.25, all.mean[0][1], 1e-9);
+    }
+
+    @Test
+    public void testSparseStatistics() {
+        int dimension = 50;
+        Random random = new Random(7);
+        double[][] rows = new double[300][dimension];
+        NBStatistics stats = new NBStatistics(1, dimension);
+        for (double[] row : rows) {
+            for (int k = 0; k < 4; k++) {
+                row[random.nextInt(dimension)] = 1000 + random.nextGaussian();
+            }
+            int[] indices = IntStream.range(0, dimension).filter(i -> row[i] != 0).toArray();
+            stats.add(0, new SparseVector(dimension, indices, Arrays.stream(indices).mapToDouble(i -> row[i]).toArray()));
+        }
+        stats.flush();
+
+        // Two pass, zeros included.
+        for (int i = 0; i < dimension; i++) {
+            int j = i;
+            double mean = Arrays.stream(rows).mapToDouble(row -> row[j]).average().orElse(0);
+            double m2 = Arrays.stream(rows).mapToDouble(row -> (row[j] - mean) * (row[j] - mean)).sum();
+            assertEquals(mean, stats.mean[0][i], 1e-9);
+            assertEquals(m2, stats.m2[0][i], 1e-6);
+        }
+        assertEquals(rows.length, stats.count[0]);
+    }
+
+    @Test
+    public void testUpdate() throws IOException {
+        List<Tuple> all = getTrainingData();
+        all.add(new Tuple(9, new DenseVector(new double[]{4, 80, 5}), "child"));
+        all.add(new Tuple(10, new DenseVector(new double[]{4.2, 70, 4}), "child"));
+        all.add(new Tuple(11, new DenseVector(new double[]{3.9, 75, 5}), "child"));
+
+        NaiveBayesClassifier base = new NaiveBayesClassifier();
+        base.train(all.subList(0, 6));
+        File modelFile = File.createTempFile("nb_model", ".dat");
+        modelFile.deleteOnExit();
+        base.persistModel(modelFile.getAbsolutePath());
+
+        NaiveBayesClassifier updated = new NaiveBayesClassifier(new FileInputStream(modelFile));
+        updated.update(all.subList(6, all.size()));
+
+        Tuple predict = new Tuple(new double[]{6, 130, 8});
+        Map<String, Double> expected = new NaiveBayesClassifier().train(all).predict(predict);
+        Map<String, Double> actual = updated.predict(predict);
+
+        assertEquals(3, actual.size());
+        for (Map.Entry<String, Double> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), actual.get(entry.getKey()), 1e-9);
+        }
+    }
+
+    @Test
+    public void testBinaryModel() throws IOException {
+        List<Tuple> all = getTrainingData();
+        all.add(new Tuple(9, new DenseVector(new double[]{4, 80, 5}), "child"));
+        all.add(new Tuple(10, new DenseVector(new double[]{4.2, 70, 4}), "child"));
+        all.add(new Tuple(11, new DenseVector(new double[]{3.9, 75, 5}), "child"));
+
+        NaiveBayesClassifier base = new NaiveBayesClassifier();
+        base.train(all.subList(0, 6));
+        File modelFile = File.createTempFile("nb_model", ".bin");
+        modelFile.deleteOnExit();
+        base.persistBinaryModel(modelFile.getAbsolutePath());
+
+        NaiveBayesClassifier loaded = new NaiveBayesClassifier();
+        loaded.loadBinaryModel(modelFile.getAbsolutePath());
+        assertArrayEquals(base.getLabels(), loaded.getLabels());
+
+        Tuple predict = new Tuple(new double[]{6, 130, 8});
+        Map<String, Double> expected = base.predict(predict);
+        Map<String, Double> actual = loaded.predict(predict);
+        for (Map.Entry<String, Double> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), actual.get(entry.getKey()), 1e-12);
+        }
+
+        // The statistics are kept, the binary model can be updated.
+        loaded.update(all.subList(6, all.size()));
+        expected = new NaiveBayesClassifier().train(all).predict(predict);
+        actual = loaded.predict(predict);
+        assertEquals(3, actual.size());
+        for (Map.Entry<String, Double> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), actual.get(entry.getKey()), 1e-9);
+        }
+    }
 }
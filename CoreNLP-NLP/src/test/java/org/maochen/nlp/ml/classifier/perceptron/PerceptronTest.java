@@ -4,14 +4,21 @@ import org.junit.Before;
 import org.junit.Test;
 import org.maochen.nlp.ml.Tuple;
 import org.maochen.nlp.ml.vector.DenseVector;
+import org.maochen.nlp.ml.vector.SparseVector;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 /**
  * Created by Maochen on 8/9/15.
@@ -50,6 +57,133 @@ public class PerceptronTest {
         assertEquals(expectedLabel, actualLabel);
     }
 
+    // One hot feature per label plus a shared noise feature, separable. 3 labels, 4 features.
+    private static List<Tuple> separableData() {
+        List<Tuple> data = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            double[] x = new double[4];
+            x[i % 3] = 1;
+            x[3] = (i % 5) / 5D;
+            data.add(new Tuple(i, new DenseVector(x), String.valueOf(i % 3)));
+        }
+        return data;
+    }
+
+    @Test
+    public void testAveraged() {
+        List<Tuple> data = separableData();
+
+        for (String threads : new String[]{"1", "3"}) {
+            Properties props = new Properties();
+            props.setProperty("averaged", "true");
+            props.setProperty("threads", threads);
+            props.setProperty("seed", "42");
+            perceptronClassifier = new PerceptronClassifier();
+            perceptronClassifier.setParameter(props);
+            perceptronClassifier.train(data);
+
+            for (Tuple t : data) {
+                assertEquals(t.label, perceptronClassifier.getLabels()[perceptronClassifier.predictArgmax(t)]);
+            }
+
+            // Same seed, same model.
+            PerceptronClassifier same = new PerceptronClassifier();
+            same.setParameter(props);
+            same.train(data);
+            for (Tuple t : data) {
+                assertEquals(perceptronClassifier.predict(t), same.predict(t));
+            }
+        }
+    }
+
+    @Test
+    public void testPredictBatch() {
+        List<Tuple> data = separableData();
+        perceptronClassifier.train(data); // Shuffles the data.
+
+        List<Tuple> sparse = new ArrayList<>();
+        for (Tuple t : data) {
+            SparseVector.Builder builder = new SparseVector.Builder(4);
+            t.vector.forEachNonZero(builder::add);
+            sparse.add(new Tuple(t.id, builder.build(), null));
+        }
+
+        for (List<Tuple> predicts : Arrays.asList(data, sparse)) {
+            double[][] actual = new double[predicts.size()][3];
+            perceptronClassifier.predictBatch(predicts, actual);
+            for (int i = 0; i < predicts.size(); i++) {
+                double[] expected = new double[3];
+                perceptronClassifier.predictInto(data.get(i), expected);
+                assertArrayEquals(expected, actual[i], 1e-12);
+            }
+        }
+
+        // Online updates are seen by the next batch, the wrong label makes sure the weights change.
+        Tuple t = data.get(0);
+        double[][] before = new double[1][3];
+        perceptronClassifier.predictBatch(Collections.singletonList(t), before);
+        perceptronClassifier.onlineTrain(t.vector, (perceptronClassifier.predictArgmax(t) + 1) % 3);
+        double[][] after = new double[1][3];
+        perceptronClassifier.predictBatch(Collections.singletonList(t), after);
+        assertFalse(Arrays.equals(before[0], after[0]));
+        double[] expected = new double[3];
+        perceptronClassifier.predictInto(t, expected);
+        assertArrayEquals(expected, after[0], 1e-12);
+    }
+
+    @Test
+    public void testPredictInto() {
+        List<Tuple> data = separableData();
+        perceptronClassifier.train(data);
+
+        String[] labels = perceptronClassifier.getLabels();
+        for (Tuple t : data) {
+            SparseVector.Builder builder = new SparseVector.Builder(4);
+            t.vector.forEachNonZero(builder::add);
+            for (Tuple predict : Arrays.asList(t, new Tuple(t.id, builder.build(), null))) {
+                Map<String, Double> expected = perceptronClassifier.predict(predict);
+                double[] actual = new double[labels.length];
+                perceptronClassifier.predictInto(predict, actual);
+                for (int i = 0; i < labels.length; i++) {
+                    assertEquals(expected.get(labels[i]), actual[i], 1e-12);
+                }
+
+                // The sigmoid may saturate, any of the max labels.
+                double max = expected.values().stream().mapToDouble(Double::doubleValue).max().getAsDouble();
+                assertEquals(max, expected.get(labels[perceptronClassifier.predictArgmax(predict)]), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testServing() {
+        List<Tuple> data = new ArrayList<>();
+        data.add(new Tuple(1, new DenseVector(new double[]{1, 0}), "a"));
+        data.add(new Tuple(2, new DenseVector(new double[]{0, 1}), "b"));
+        perceptronClassifier.train(data);
+
+        Properties props = new Properties();
+        props.setProperty("serving", "true");
+        props.setProperty("publish_updates", "2");
+        props.setProperty("publish_interval_ms", String.valueOf(Long.MAX_VALUE));
+        perceptronClassifier.setParameter(props);
+
+        Tuple test = new Tuple(3, new DenseVector(new double[]{1, 0}), null);
+        double[] before = new double[2];
+        perceptronClassifier.predictInto(test, before);
+
+        // Train it as the other label, so the first update is a mistake.
+        int wrong = 1 - perceptronClassifier.predictArgmax(test);
+        double[] scores = new double[2];
+        perceptronClassifier.onlineTrain(test.vector, wrong);
+        perceptronClassifier.predictInto(test, scores);
+        assertArrayEquals(before, scores, 0);
+
+        perceptronClassifier.onlineTrain(test.vector, wrong);
+        perceptronClassifier.predictInto(test, scores);
+        assertFalse(Arrays.equals(before, scores));
+    }
+
     @Test
     public void testModel() {
         PerceptronModel model = new PerceptronModel();
@@ -62,4 +196,32 @@ public class PerceptronTest {
         assertEquals(0.03, cloneModel.learningRate, Double.MIN_NORMAL);
         assertEquals(1.3, cloneModel.bias[0], Double.MIN_NORMAL);
     }
+
+    @Test
+    public void testBinaryModel() throws IOException {
+        List<Tuple> data = new ArrayList<>();
+        data.add(new Tuple(1, new DenseVector(new double[]{1, 0, 0}), String.valueOf(1)));
+        data.add(new Tuple(2, new DenseVector(new double[]{1, 0, 1}), String.valueOf(1)));
+        data.add(new Tuple(3, new DenseVector(new double[]{1, 1, 0}), String.valueOf(1)));
+        data.add(new Tuple(4, new DenseVector(new double[]{1, 1, 1}), String.valueOf(0)));
+        perceptronClassifier.train(data);
+
+        File modelFile = File.createTempFile("perceptron_model", ".bin");
+        modelFile.deleteOnExit();
+        perceptronClassifier.persistBinaryModel(modelFile.getPath());
+        PerceptronClassifier loaded = new PerceptronClassifier();
+        loaded.loadBinaryModel(modelFile.getPath());
+
+        assertArrayEquals(perceptronClassifier.getLabels(), loaded.getLabels());
+        for (Tuple t : data) {
+            double[] expected = new double[2];
+            double[] actual = new double[2];
+            perceptronClassifier.predictInto(t, expected);
+            loaded.predictInto(t, actual);
+            assertArrayEquals(expected, actual, 0);
+        }
+
+        // Weights are on the heap, online training still works.
+        loaded.onlineTrain(new double[]{1, 1, 1}, 0);
+    }
 }
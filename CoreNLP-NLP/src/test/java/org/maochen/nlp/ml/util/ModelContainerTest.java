@@ -0,0 +1,80 @@
+package org.maochen.nlp.ml.util;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ModelContainerTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File file = File.createTempFile("model_container", ".bin");
+        file.deleteOnExit();
+
+        String[] labels = new String[]{"a", "b", "\u4e2d\u6587", ""};
+        double[][] weights = new double[][]{{1.5, -2, Double.MIN_VALUE}, {0, Double.MAX_VALUE, -0.25}};
+        int[] index = new int[]{3, 1, 4, 1, 5};
+
+        new ModelContainer.Writer("test")
+                .putStrings("labels", labels)
+                .putDoubles("weights", weights)
+                .putInts("index", index)
+                .putDoubles("empty", new double[0])
+                .write(file.getPath());
+
+        assertTrue(ModelContainer.isContainer(file.getPath()));
+        ModelContainer container = ModelContainer.open(file.getPath(), "test");
+        assertEquals("test", container.getModelType());
+        assertArrayEquals(labels, container.getStrings("labels"));
+
+        assertEquals(2, container.getRows("weights"));
+        assertEquals(3, container.getCols("weights"));
+        DoubleBuffer buffer = container.getDoubles("weights");
+        assertTrue(buffer.isDirect());
+        assertEquals(-0.25, buffer.get(5), 0);
+        for (int i = 0; i < weights.length; i++) {
+            assertArrayEquals(weights[i], container.getDoubleMatrix("weights")[i], 0);
+        }
+
+        IntBuffer ints = container.getInts("index");
+        assertEquals(index.length, ints.remaining());
+        assertEquals(5, ints.get(4));
+        assertEquals(0, container.getDoubleArray("empty").length);
+        assertFalse(container.contains("bias"));
+    }
+
+    @Test
+    public void testInvalidFile() throws IOException {
+        File file = File.createTempFile("model_container", ".txt");
+        file.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+            writer.println("0.1 0.2 0.3");
+        }
+        assertFalse(ModelContainer.isContainer(file.getPath()));
+
+        try {
+            ModelContainer.open(file.getPath(), null);
+            fail();
+        } catch (IOException e) {
+            // Expected, not a binary model.
+        }
+
+        new ModelContainer.Writer("test").putDoubles("bias", new double[]{1}).write(file.getPath());
+        try {
+            ModelContainer.open(file.getPath(), "maxent");
+            fail();
+        } catch (IOException e) {
+            // Expected, another model type.
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.maochen.nlp.ml.util;
+
+import org.junit.Test;
+import org.maochen.nlp.ml.vector.DenseVector;
+import org.maochen.nlp.ml.vector.IVector;
+import org.maochen.nlp.ml.vector.SparseVector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class WeightMatrixTest {
+
+    @Test
+    public void testScoreBatch() {
+        // Larger than one tile in every direction, with ragged edges.
+        int rows = WeightMatrix.FEATURE_BLOCK * 2 + 7;
+        int cols = WeightMatrix.OUTPUT_BLOCK + 9;
+        int size = WeightMatrix.INPUT_BLOCK * 2 + 3;
+        Random random = new Random(1);
+
+        double[][] weights = new double[cols][rows];
+        double[] bias = new double[cols];
+        for (int j = 0; j < cols; j++) {
+            bias[j] = random.nextGaussian();
+            for (int k = 0; k < rows; k++) {
+                weights[j][k] = random.nextGaussian();
+            }
+        }
+        WeightMatrix matrix = WeightMatrix.transpose(weights, bias);
+
+        double[][] inputs = new double[size][];
+        List<IVector> sparse = new ArrayList<>();
+        double[][] expected = new double[size][cols];
+        for (int i = 0; i < size; i++) {
+            inputs[i] = new double[i % 5 == 0 ? rows + 4 : rows]; // Extra features are ignored.
+            SparseVector.Builder builder = new SparseVector.Builder(inputs[i].length);
+            for (int k = 0; k < inputs[i].length; k++) {
+                if (random.nextInt(3) == 0) {
+                    inputs[i][k] = random.nextGaussian();
+                    builder.add(k, inputs[i][k]);
+                }
+            }
+            sparse.add(builder.build());
+
+            for (int j = 0; j < cols; j++) {
+                expected[i][j] = bias[j];
+                for (int k = 0; k < rows; k++) {
+                    expected[i][j] += weights[j][k] * inputs[i][k];
+                }
+            }
+        }
+
+        double[][] actual = matrix.scoreBatch(inputs);
+        double[][] actualSparse = new double[size][cols];
+        matrix.scoreBatch(sparse, actualSparse);
+        List<IVector> dense = new ArrayList<>();
+        for (double[] input : inputs) {
+            dense.add(new DenseVector(input));
+        }
+        double[][] actualDense = new double[size][cols];
+        matrix.scoreBatch(dense, actualDense);
+
+        double[] single = new double[cols];
+        for (int i = 0; i < size; i++) {
+            assertArrayEquals(expected[i], actual[i], 1e-9);
+            assertArrayEquals(expected[i], actualSparse[i], 1e-9);
+            assertArrayEquals(expected[i], actualDense[i], 1e-9);
+            matrix.score(sparse.get(i), single);
+            assertArrayEquals(expected[i], single, 1e-9);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.maochen.nlp.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VectorOpsTest {
+
+    private static final VectorOps[] BACKENDS = {new ScalarVectorOps(), new UnrolledVectorOps()};
+
+    private static double[] random(Random random, int n) {
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = random.nextGaussian();
+        }
+        return values;
+    }
+
+    @Test
+    public void testKernels() {
+        Random random = new Random(1);
+        for (int n = 0; n < 40; n++) {
+            double[] a = random(random, n);
+            double[] b = random(random, n);
+            float[] fa = VectorUtils.doubleToFloat(a);
+            float[] fb = VectorUtils.doubleToFloat(b);
+
+            double dot = 0;
+            double aa = 0;
+            double bb = 0;
+            double dist = 0;
+            for (int i = 0; i < n; i++) {
+                dot += a[i] * b[i];
+                aa += a[i] * a[i];
+                bb += b[i] * b[i];
+                dist += (a[i] - b[i]) * (a[i] - b[i]);
+            }
+
+            for (VectorOps ops : BACKENDS) {
+                assertEquals(dot, ops.dot(a, b), 1e-12);
+                assertEquals(aa, ops.squaredNorm(a), 1e-12);
+                assertEquals(dist, ops.squaredDistance(a, b), 1e-12);
+                assertEquals(dot, ops.dot(fa, fb), 1e-4);
+                assertEquals(aa, ops.squaredNorm(fa), 1e-4);
+                assertEquals(dist, ops.squaredDistance(fa, fb), 1e-4);
+                if (n > 0) {
+                    assertEquals(dot / Math.sqrt(aa * bb), ops.cosine(a, b), 1e-12);
+                    assertEquals(dot / Math.sqrt(aa * bb), ops.cosine(fa, fb), 1e-5);
+                }
+
+                double[] y = b.clone();
+                ops.axpy(0.5, a, y);
+                float[] fy = fb.clone();
+                ops.axpy(0.5f, fa, fy);
+                for (int i = 0; i < n; i++) {
+                    assertEquals(b[i] + 0.5 * a[i], y[i], 1e-12);
+                    assertEquals(b[i] + 0.5 * a[i], fy[i], 1e-5);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBatchDot() {
+        Random random = new Random(2);
+        double[] x = random(random, 13);
+        double[][] matrix = new double[11][];
+        float[][] floatMatrix = new float[matrix.length][];
+        for (int r = 0; r < matrix.length; r++) {
+            matrix[r] = random(random, r % 3 == 0 ? 9 : 13); // Ragged rows.
+            floatMatrix[r] = VectorUtils.doubleToFloat(matrix[r]);
+        }
+
+        for (VectorOps ops : BACKENDS) {
+            double[] out = new double[matrix.length];
+            float[] floatOut = new float[matrix.length];
+            ops.dot(matrix, x, out);
+            ops.dot(floatMatrix, VectorUtils.doubleToFloat(x), floatOut);
+            for (int r = 0; r < matrix.length; r++) {
+                assertEquals(VectorUtils.dotProduct(matrix[r], x), out[r], 1e-12);
+                assertEquals(out[r], floatOut[r], 1e-4);
+            }
+        }
+    }
+
+    @Test
+    public void testLoad() {
+        assertTrue(VectorOps.load("scalar") instanceof ScalarVectorOps);
+        assertTrue(VectorOps.load("org.maochen.nlp.util.UnrolledVectorOps") instanceof UnrolledVectorOps);
+        assertTrue(VectorOps.load("no.such.Backend") instanceof UnrolledVectorOps);
+        assertEquals(1.0, VectorUtils.getCosinValue(new double[]{1, 2, 3}, new double[]{-2, -4, -6}), 1e-12);
+    }
+}